@@ -0,0 +1,169 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.protelis.vm.util.CodePath;
+
+import com.google.common.collect.ImmutableMap;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Encoding and decoding a large shared state, one {@link ResourceSummary} and
+ * one {@link RegionPlan} per region, with {@link BinarySharedStateCodec} and
+ * with {@link JavaSerializationCodec} for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = BinarySharedStateCodecBenchmark.ITERATIONS, time = 1)
+@Measurement(iterations = BinarySharedStateCodecBenchmark.ITERATIONS, time = 1)
+@Fork(1)
+public class BinarySharedStateCodecBenchmark {
+
+    /* package */ static final int ITERATIONS = 5;
+
+    private static final int NUM_REGIONS = 10;
+    private static final int NUM_SERVICES = 10;
+
+    /**
+     * The codec to measure, binary or java.
+     */
+    @Param({ "binary", "java" })
+    private String codecName;
+
+    private SharedStateCodec codec;
+    private Map<CodePath, Object> state;
+    private byte[] encoded;
+
+    /**
+     * Create the state and encode it once for {@link #decode()}.
+     *
+     * @throws IOException
+     *             if the state cannot be encoded
+     */
+    @Setup
+    public void setup() throws IOException {
+        codec = "java".equals(codecName) ? new JavaSerializationCodec() : new BinarySharedStateCodec();
+
+        state = new HashMap<>();
+        for (int i = 0; i < NUM_REGIONS; ++i) {
+            final RegionIdentifier region = new StringRegionIdentifier("region" + i);
+            state.put(new CodePath(new TIntArrayList(new int[] { 2 * i })), createSummary(region));
+            state.put(new CodePath(new TIntArrayList(new int[] { 2 * i + 1 })), createPlan(region));
+        }
+        encoded = codec.encode(state);
+    }
+
+    /**
+     * @return the encoded state
+     * @throws IOException
+     *             if the state cannot be encoded
+     */
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return codec.encode(state);
+    }
+
+    /**
+     * @return the decoded state
+     * @throws IOException
+     *             if the state cannot be decoded
+     */
+    @Benchmark
+    public Map<CodePath, Object> decode() throws IOException {
+        return codec.decode(encoded);
+    }
+
+    private static RegionPlan createPlan(final RegionIdentifier region) {
+        final ImmutableMap.Builder<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, Double>> plan = ImmutableMap
+                .builder();
+        for (int i = 0; i < NUM_SERVICES; ++i) {
+            final ImmutableMap.Builder<RegionIdentifier, Double> weights = ImmutableMap.builder();
+            for (int j = 0; j < NUM_REGIONS; ++j) {
+                weights.put(new StringRegionIdentifier("region" + j), 1D / (i + j + 1));
+            }
+            plan.put(new StringServiceIdentifier("service" + i), weights.build());
+        }
+        return new RegionPlan(region, plan.build());
+    }
+
+    /**
+     * Every leaf map is a separate instance with distinct values, as happens
+     * when summaries are merged.
+     */
+    private static ResourceSummary createSummary(final RegionIdentifier summaryRegion) {
+        final ImmutableMap.Builder<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverLoad = ImmutableMap
+                .builder();
+        final ImmutableMap.Builder<ServiceIdentifier<?>, Integer> counts = ImmutableMap.builder();
+        final ImmutableMap.Builder<ServiceIdentifier<?>, Double> sums = ImmutableMap.builder();
+        for (int i = 0; i < NUM_SERVICES; ++i) {
+            final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>> regionValues = ImmutableMap
+                    .builder();
+            for (int j = 0; j < NUM_REGIONS; ++j) {
+                regionValues.put(new StringRegionIdentifier("region" + j), nodeAttributes(i * NUM_REGIONS + j));
+            }
+            final ServiceIdentifier<?> service = new StringServiceIdentifier("service" + i);
+            serverLoad.put(service, regionValues.build());
+            counts.put(service, i + 1);
+            sums.put(service, (double) i);
+        }
+
+        final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity = ImmutableMap
+                .builder();
+        final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad = ImmutableMap
+                .builder();
+        for (int i = 0; i < NUM_REGIONS; ++i) {
+            final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>> inner = ImmutableMap
+                    .builder();
+            for (int j = 0; j < NUM_REGIONS; ++j) {
+                final ImmutableMap.Builder<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>> serviceValues = ImmutableMap
+                        .builder();
+                for (int k = 0; k < NUM_SERVICES; ++k) {
+                    serviceValues.put(new StringServiceIdentifier("service" + k), linkAttributes(i + j + k));
+                }
+                inner.put(new StringRegionIdentifier("region" + j), serviceValues.build());
+            }
+            final RegionIdentifier region = new StringRegionIdentifier("region" + i);
+            networkLoad.put(region, inner.build());
+            networkCapacity.put(region, linkAttributes(i));
+        }
+
+        final long minTimestamp = 10;
+        final long maxTimestamp = 20;
+        return new ResourceSummary(summaryRegion, minTimestamp, maxTimestamp, ResourceReport.EstimationWindow.SHORT,
+                nodeAttributes(0), serverLoad.build(), serverLoad.build(), counts.build(), sums.build(),
+                networkCapacity.build(), networkLoad.build(), networkLoad.build());
+    }
+
+    private static ImmutableMap<NodeAttribute<?>, Double> nodeAttributes(final int seed) {
+        final ImmutableMap.Builder<NodeAttribute<?>, Double> values = ImmutableMap.builder();
+        for (final NodeAttributeEnum attr : NodeAttributeEnum.values()) {
+            values.put(attr, (double) (seed + attr.ordinal()));
+        }
+        return values.build();
+    }
+
+    private static ImmutableMap<LinkAttribute<?>, Double> linkAttributes(final int seed) {
+        final ImmutableMap.Builder<LinkAttribute<?>, Double> values = ImmutableMap.builder();
+        for (final LinkAttributeEnum attr : LinkAttributeEnum.values()) {
+            values.put(attr, (double) (seed + attr.ordinal()));
+        }
+        return values.build();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.bbn.protelis.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contended reads of one {@link SimpleClock} from many threads, the way node
+ * threads read a shared clock. {@link #monitorRead()} reads the same time under
+ * a global monitor, which is how the clock used to be read, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = SimpleClockBenchmark.ITERATIONS, time = 1)
+@Measurement(iterations = SimpleClockBenchmark.ITERATIONS, time = 1)
+@Fork(1)
+@Threads(16)
+public class SimpleClockBenchmark {
+
+    /* package */ static final int ITERATIONS = 5;
+
+    private SimpleClock clock;
+
+    private final Object lock = new Object();
+    private long offset;
+
+    /**
+     * Start the clock.
+     */
+    @Setup
+    public void setup() {
+        clock = new SimpleClock();
+        clock.startClock();
+        offset = System.currentTimeMillis();
+    }
+
+    /**
+     * Shut the clock down.
+     */
+    @TearDown
+    public void tearDown() {
+        clock.shutdown();
+    }
+
+    /**
+     * @return the clock time
+     */
+    @Benchmark
+    public long clockRead() {
+        return clock.getCurrentTime();
+    }
+
+    /**
+     * @return the time read while holding a shared monitor
+     */
+    @Benchmark
+    public long monitorRead() {
+        synchronized (lock) {
+            return System.currentTimeMillis() - offset;
+        }
+    }
+
+}
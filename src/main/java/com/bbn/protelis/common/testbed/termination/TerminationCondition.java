@@ -16,4 +16,15 @@ public interface TerminationCondition<T> {
      * @return true if the scenario should terminate.
      */
     boolean shouldTerminate(T toCheck);
+
+    /**
+     * Conditions that know when they may have become true call the listener
+     * then, so that the scenario ends right away instead of at the next
+     * periodic check. The default implementation never calls it.
+     * 
+     * @param listener called when {@link #shouldTerminate(Object)} should be
+     *            checked again
+     */
+    default void setTerminationListener(final Runnable listener) {
+    }
 }
@@ -0,0 +1,114 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+/**
+ * Round period of a {@link NetworkServer} that adapts to how quickly things
+ * change. While the state the node shares and the state of its neighbors stay
+ * the same the period grows by a factor each round up to the maximum. As soon
+ * as either changes the period drops back to the minimum.
+ *
+ * @see NetworkServer#setAdaptiveRoundPeriod(AdaptiveRoundPeriod)
+ */
+public final class AdaptiveRoundPeriod {
+
+    /**
+     * Default value for {@link #getGrowthFactor()}.
+     */
+    public static final double DEFAULT_GROWTH_FACTOR = 2;
+
+    private final long minPeriod;
+    private final long maxPeriod;
+    private final double growthFactor;
+
+    // written by the round, read by anyone
+    private volatile long currentPeriod;
+
+    /**
+     * Use {@link #DEFAULT_GROWTH_FACTOR}.
+     *
+     * @param minPeriod
+     *            see {@link #getMinPeriod()}
+     * @param maxPeriod
+     *            see {@link #getMaxPeriod()}
+     * @throws IllegalArgumentException
+     *             if the minimum is negative or greater than the maximum
+     */
+    public AdaptiveRoundPeriod(final long minPeriod, final long maxPeriod) {
+        this(minPeriod, maxPeriod, DEFAULT_GROWTH_FACTOR);
+    }
+
+    /**
+     *
+     * @param minPeriod
+     *            see {@link #getMinPeriod()}
+     * @param maxPeriod
+     *            see {@link #getMaxPeriod()}
+     * @param growthFactor
+     *            see {@link #getGrowthFactor()}
+     * @throws IllegalArgumentException
+     *             if the minimum is negative or greater than the maximum or
+     *             the growth factor is not greater than 1
+     */
+    public AdaptiveRoundPeriod(final long minPeriod, final long maxPeriod, final double growthFactor) {
+        if (minPeriod < 0 || maxPeriod < minPeriod) {
+            throw new IllegalArgumentException(
+                    "Periods must satisfy 0 <= min <= max, min: " + minPeriod + " max: " + maxPeriod);
+        }
+        if (growthFactor <= 1) {
+            throw new IllegalArgumentException("Growth factor must be greater than 1: " + growthFactor);
+        }
+        this.minPeriod = minPeriod;
+        this.maxPeriod = maxPeriod;
+        this.growthFactor = growthFactor;
+        this.currentPeriod = minPeriod;
+    }
+
+    /**
+     * @return the period in milliseconds while things change
+     */
+    public long getMinPeriod() {
+        return minPeriod;
+    }
+
+    /**
+     * @return the longest period in milliseconds once nothing changes
+     */
+    public long getMaxPeriod() {
+        return maxPeriod;
+    }
+
+    /**
+     * @return how much the period grows each round without changes
+     */
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    /**
+     * @return the period in milliseconds to wait after the current round
+     */
+    public long getCurrentPeriod() {
+        return currentPeriod;
+    }
+
+    /**
+     * Called at the end of each round.
+     *
+     * @param changed
+     *            if the shared state or the neighbor state changed since the
+     *            previous round
+     * @return the new period
+     */
+    public long update(final boolean changed) {
+        final long period;
+        if (changed) {
+            period = minPeriod;
+        } else {
+            // at least 1 ms of growth so that a minimum of 0 can grow
+            final long grown = Math.max(currentPeriod + 1, (long) (currentPeriod * growthFactor));
+            period = Math.min(maxPeriod, grown);
+        }
+        currentPeriod = period;
+        return period;
+    }
+
+}
@@ -18,6 +18,27 @@ public class BasicNetworkFactory implements NetworkFactory<NetworkServer, Networ
     private final String program;
     private final boolean anonymousProgram;
     private final ResourceManagerFactory<NetworkServer> managerFactory;
+    private final NeighborTransportFactory transportFactory;
+    private ExecutionBackend executionBackend = DedicatedThreadBackend.INSTANCE;
+
+    /**
+     * @return what executes the rounds of the servers created from now on
+     */
+    @Nonnull
+    public ExecutionBackend getExecutionBackend() {
+        return executionBackend;
+    }
+
+    /**
+     * @param v
+     *            what executes the rounds of the servers created from now on,
+     *            for example one {@link SharedSchedulerBackend} to run all
+     *            nodes on a pool of threads sized to the number of processors
+     * @see NetworkServer#setExecutionBackend(ExecutionBackend)
+     */
+    public void setExecutionBackend(@Nonnull final ExecutionBackend v) {
+        executionBackend = v;
+    }
 
     /**
      * Create a basic factory.
@@ -40,6 +61,39 @@ public class BasicNetworkFactory implements NetworkFactory<NetworkServer, Networ
             @Nonnull final ResourceManagerFactory<NetworkServer> managerFactory,
             final String program,
             final boolean anonymous) {
+        this(lookupService, regionLookupService, managerFactory, program, anonymous, SocketNeighborTransport::new);
+    }
+
+    /**
+     * Create a basic factory that uses a specific transport to communicate
+     * between nodes.
+     * 
+     * @param lookupService
+     *            how to find other nodes
+     * @param program
+     *            the program to put in all nodes
+     * @param anonymous
+     *            if true, parse as main expression; if false, treat as a module
+     *            reference
+     * @param managerFactory
+     *            used to create the {@link ResourceManager}s.
+     * @param regionLookupService
+     *            see
+     *            {@link NetworkServer#NetworkServer(NodeLookupService, RegionLookupService, ProtelisProgram, String)}
+     * @param transportFactory
+     *            used to create the {@link NeighborTransport} for each node,
+     *            for example {@code NioNeighborTransport::new} to share a small
+     *            pool of I/O threads between all nodes or an
+     *            {@link InMemoryExchange} to run all nodes in this JVM without
+     *            sockets
+     */
+    public BasicNetworkFactory(@Nonnull final NodeLookupService lookupService,
+            @Nonnull final RegionLookupService regionLookupService,
+            @Nonnull final ResourceManagerFactory<NetworkServer> managerFactory,
+            final String program,
+            final boolean anonymous,
+            @Nonnull final NeighborTransportFactory transportFactory) {
+        this.transportFactory = transportFactory;
         this.nodeLookupService = lookupService;
         this.regionLookupService = regionLookupService;
         this.program = program;
@@ -59,8 +113,11 @@ public class BasicNetworkFactory implements NetworkFactory<NetworkServer, Networ
         }
 
         final ResourceManager<NetworkServer> manager = managerFactory.createResourceManager();
-        final NetworkServer node = new NetworkServer(nodeLookupService, regionLookupService, instance, name, manager,
+        final NodeNetworkManager networkManager = new NodeNetworkManager(nodeLookupService,
+                transportFactory.createTransport());
+        final NetworkServer node = new NetworkServer(networkManager, regionLookupService, instance, name, manager,
                 extraData);
+        node.setExecutionBackend(executionBackend);
         manager.init(node, extraData);
 
         return node;
@@ -139,7 +139,7 @@ public class BasicResourceManager implements ResourceManager<NetworkServer> {
                     final Map<String, Object> individualDemand = (Map<String, Object>) v;
                     final ImmutableMap<LinkAttribute<?>, Double> serviceDemand = parseLinkAttributeDoubleMap(
                             individualDemand);
-                    builder.put(new DnsNameIdentifier(nodeName), serviceDemand);
+                    builder.put(DnsNameIdentifier.intern(nodeName), serviceDemand);
                 } else {
                     LOGGER.warn("While parsing resource report for node " + nodeName + " the service " + nodeName
                             + " doesn't have valid client demand data");
@@ -177,7 +177,7 @@ public class BasicResourceManager implements ResourceManager<NetworkServer> {
                     // builder.put(new ApplicationIdentifier(new
                     // GAV("groupPlaceholder", serviceName,
                     // "versionPlaceholder")), serviceDemand);
-                    builder.put(new StringServiceIdentifier(serviceName),
+                    builder.put(StringServiceIdentifier.intern(serviceName),
                             ImmutableMap.of(node.getRegionIdentifier(), serviceDemand));
 
                 } else {
@@ -206,7 +206,7 @@ public class BasicResourceManager implements ResourceManager<NetworkServer> {
 
                 if (avgObj instanceof Number) {
                     final double value = ((Number) avgObj).doubleValue();
-                    builder.put(new StringServiceIdentifier(serviceName), value);
+                    builder.put(StringServiceIdentifier.intern(serviceName), value);
                 }
             });
             return builder.build();
@@ -273,7 +273,7 @@ public class BasicResourceManager implements ResourceManager<NetworkServer> {
         final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> nodeNetworkLoad = networkLoad;
         final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> nodeNetworkDemand = computeNeighborLinkDemand();
 
-        final ResourceReport report = new ResourceReport(node.getNodeIdentifier(), System.currentTimeMillis(),
+        final ResourceReport report = new ResourceReport(node.getNodeIdentifier(), clock.getCurrentTime(),
                 demandWindow, this.computeCapacity, nodeNetworkCapacity, nodeNetworkLoad, nodeNetworkDemand,
                 ImmutableMap.of());
         return report;
@@ -0,0 +1,450 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DatatypeFactory;
+import org.protelis.lang.datatype.Tuple;
+import org.protelis.vm.util.CodePath;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Compact binary encoding of the shared state. The types used by this project
+ * (identifiers, attributes, summaries, plans, tuples, primitives and the
+ * immutable collections that hold them) are written as a tag byte followed by
+ * their fields. Strings are written once per message and referenced by index
+ * after that, so region and service names that appear in many nested maps
+ * only cost a few bytes each. Immutable collections that appear more than once
+ * in a message, such as attribute maps shared between summaries, are also only
+ * written once. Any other value, as well as the {@link CodePath}
+ * keys, are written with Java serialization into the same stream so that class
+ * descriptors are only written once per message.
+ */
+public class BinarySharedStateCodec implements SharedStateCodec {
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_TRUE = 1;
+    private static final int TAG_FALSE = 2;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_DOUBLE = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_TUPLE = 7;
+    private static final int TAG_MAP = 8;
+    private static final int TAG_SET = 9;
+    private static final int TAG_LIST = 10;
+    private static final int TAG_REGION = 11;
+    private static final int TAG_SERVICE = 12;
+    private static final int TAG_DNS_NAME = 13;
+    private static final int TAG_NODE_ATTRIBUTE = 14;
+    private static final int TAG_LINK_ATTRIBUTE = 15;
+    private static final int TAG_RESOURCE_SUMMARY = 16;
+    private static final int TAG_LOAD_BALANCER_PLAN = 17;
+    private static final int TAG_REGION_PLAN = 18;
+    private static final int TAG_SERVICE_STATE = 19;
+    private static final int TAG_JAVA = 20;
+    private static final int TAG_COLLECTION_REFERENCE = 21;
+
+    private static final int VARINT_DATA_BITS = 7;
+    private static final int VARINT_DATA_MASK = 0x7F;
+    private static final int VARINT_CONTINUE = 0x80;
+
+    private static final NodeAttributeEnum[] NODE_ATTRIBUTES = NodeAttributeEnum.values();
+    private static final LinkAttributeEnum[] LINK_ATTRIBUTES = LinkAttributeEnum.values();
+    private static final ResourceReport.EstimationWindow[] ESTIMATION_WINDOWS = ResourceReport.EstimationWindow
+            .values();
+    private static final ServiceState.Status[] SERVICE_STATUSES = ServiceState.Status.values();
+
+    @Override
+    @Nonnull
+    public byte[] encode(@Nonnull final Map<CodePath, Object> state) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            final Writer writer = new Writer(out);
+            writer.writeVarInt(state.size());
+            for (final Map.Entry<CodePath, Object> entry : state.entrySet()) {
+                out.writeObject(entry.getKey());
+                writer.writeValue(entry.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    @Nonnull
+    public Map<CodePath, Object> decode(@Nonnull final byte[] data) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            final Reader reader = new Reader(in);
+            final int size = reader.readVarInt();
+            final Map<CodePath, Object> state = new HashMap<>(size * 2);
+            for (int i = 0; i < size; ++i) {
+                final CodePath key = (CodePath) reader.readJavaObject();
+                final Object value = reader.readValue();
+                state.put(key, value);
+            }
+            return state;
+        } catch (final ClassCastException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed shared state", e);
+        }
+    }
+
+    /**
+     * Encode a single value. Exposed for testing.
+     *
+     * @param value
+     *            the value to encode
+     * @return the encoded value
+     * @throws IOException
+     *             if the value cannot be encoded
+     */
+    /* package */ static byte[] encodeValue(final Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            new Writer(out).writeValue(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a single value. Exposed for testing.
+     *
+     * @param data
+     *            the output of {@link #encodeValue(Object)}
+     * @return the value
+     * @throws IOException
+     *             if the value cannot be decoded
+     */
+    /* package */ static Object decodeValue(final byte[] data) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return new Reader(in).readValue();
+        }
+    }
+
+    /**
+     * Writes values to a stream. One instance per message so that strings are
+     * only written once per message.
+     */
+    private static final class Writer {
+        private final ObjectOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Object, Integer> collections = new IdentityHashMap<>();
+
+        Writer(final ObjectOutputStream out) {
+            this.out = out;
+        }
+
+        void writeVarInt(final int value) throws IOException {
+            int v = value;
+            while ((v & ~VARINT_DATA_MASK) != 0) {
+                out.writeByte((v & VARINT_DATA_MASK) | VARINT_CONTINUE);
+                v >>>= VARINT_DATA_BITS;
+            }
+            out.writeByte(v);
+        }
+
+        void writeString(final String value) throws IOException {
+            final Integer index = strings.get(value);
+            if (null != index) {
+                writeVarInt(index + 1);
+            } else {
+                strings.put(value, strings.size());
+                final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(0);
+                writeVarInt(utf8.length);
+                out.write(utf8);
+            }
+        }
+
+        void writeValue(final Object value) throws IOException {
+            if (null == value) {
+                out.writeByte(TAG_NULL);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Double) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(TAG_INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TAG_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof String) {
+                out.writeByte(TAG_STRING);
+                writeString((String) value);
+            } else if (value.getClass().equals(StringRegionIdentifier.class)) {
+                out.writeByte(TAG_REGION);
+                writeString(((StringRegionIdentifier) value).getName());
+            } else if (value.getClass().equals(StringServiceIdentifier.class)) {
+                out.writeByte(TAG_SERVICE);
+                writeString(((StringServiceIdentifier) value).getName());
+            } else if (value.getClass().equals(DnsNameIdentifier.class)) {
+                out.writeByte(TAG_DNS_NAME);
+                writeString(((DnsNameIdentifier) value).getName());
+            } else if (value instanceof NodeAttributeEnum) {
+                out.writeByte(TAG_NODE_ATTRIBUTE);
+                out.writeByte(((NodeAttributeEnum) value).ordinal());
+            } else if (value instanceof LinkAttributeEnum) {
+                out.writeByte(TAG_LINK_ATTRIBUTE);
+                out.writeByte(((LinkAttributeEnum) value).ordinal());
+            } else if (value instanceof Tuple) {
+                final Tuple tuple = (Tuple) value;
+                out.writeByte(TAG_TUPLE);
+                writeVarInt(tuple.size());
+                for (final Object element : tuple) {
+                    writeValue(element);
+                }
+            } else if (collections.containsKey(value)) {
+                out.writeByte(TAG_COLLECTION_REFERENCE);
+                writeVarInt(collections.get(value));
+            } else if (value instanceof ImmutableMap) {
+                collections.put(value, collections.size());
+                out.writeByte(TAG_MAP);
+                writeMapEntries((ImmutableMap<?, ?>) value);
+            } else if (value instanceof ImmutableSet) {
+                collections.put(value, collections.size());
+                final ImmutableSet<?> set = (ImmutableSet<?>) value;
+                out.writeByte(TAG_SET);
+                writeVarInt(set.size());
+                for (final Object element : set) {
+                    writeValue(element);
+                }
+            } else if (value instanceof ImmutableList) {
+                collections.put(value, collections.size());
+                final ImmutableList<?> list = (ImmutableList<?>) value;
+                out.writeByte(TAG_LIST);
+                writeVarInt(list.size());
+                for (final Object element : list) {
+                    writeValue(element);
+                }
+            } else if (value.getClass().equals(ResourceSummary.class)) {
+                out.writeByte(TAG_RESOURCE_SUMMARY);
+                writeResourceSummary((ResourceSummary) value);
+            } else if (value.getClass().equals(LoadBalancerPlan.class)) {
+                final LoadBalancerPlan plan = (LoadBalancerPlan) value;
+                out.writeByte(TAG_LOAD_BALANCER_PLAN);
+                writeValue(plan.getRegion());
+                writeValue(plan.getServicePlan());
+                writeValue(plan.getOverflowPlan());
+                writeValue(plan.getStopTrafficTo());
+                writeValue(plan.getStopContainers());
+            } else if (value.getClass().equals(RegionPlan.class)) {
+                final RegionPlan plan = (RegionPlan) value;
+                out.writeByte(TAG_REGION_PLAN);
+                writeValue(plan.getRegion());
+                writeValue(plan.getPlan());
+            } else if (value.getClass().equals(ServiceState.class)) {
+                final ServiceState state = (ServiceState) value;
+                out.writeByte(TAG_SERVICE_STATE);
+                writeValue(state.getService());
+                out.writeByte(state.getStatus().ordinal());
+            } else {
+                out.writeByte(TAG_JAVA);
+                out.writeObject(value);
+            }
+        }
+
+        private void writeMapEntries(final Map<?, ?> map) throws IOException {
+            writeVarInt(map.size());
+            for (final Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeResourceSummary(final ResourceSummary summary) throws IOException {
+            writeValue(summary.getRegion());
+            out.writeLong(summary.getMinTimestamp());
+            out.writeLong(summary.getMaxTimestamp());
+            out.writeByte(summary.getDemandEstimationWindow().ordinal());
+            writeValue(summary.getServerCapacity());
+            writeValue(summary.getServerLoad());
+            writeValue(summary.getServerDemand());
+            writeValue(summary.getServerAverageProcessingTimeCount());
+            writeValue(summary.getServerAverageProcessingTimeSum());
+            writeValue(summary.getNetworkCapacity());
+            writeValue(summary.getNetworkLoad());
+            writeValue(summary.getNetworkDemand());
+        }
+    }
+
+    /**
+     * Reads values written by {@link Writer}.
+     */
+    private static final class Reader {
+        private final ObjectInputStream in;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Object> collections = new ArrayList<>();
+
+        Reader(final ObjectInputStream in) {
+            this.in = in;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > Integer.SIZE) {
+                    throw new IOException("Malformed variable length integer");
+                }
+                b = in.readUnsignedByte();
+                value |= (b & VARINT_DATA_MASK) << shift;
+                shift += VARINT_DATA_BITS;
+            } while ((b & VARINT_CONTINUE) != 0);
+            return value;
+        }
+
+        String readString() throws IOException {
+            final int index = readVarInt();
+            if (0 == index) {
+                final byte[] utf8 = new byte[readVarInt()];
+                in.readFully(utf8);
+                final String value = new String(utf8, StandardCharsets.UTF_8);
+                strings.add(value);
+                return value;
+            } else {
+                return strings.get(index - 1);
+            }
+        }
+
+        Object readJavaObject() throws IOException {
+            try {
+                return in.readObject();
+            } catch (final ClassNotFoundException e) {
+                throw new IOException("Unable to decode shared value", e);
+            }
+        }
+
+        Object readValue() throws IOException {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INTEGER:
+                return in.readInt();
+            case TAG_LONG:
+                return in.readLong();
+            case TAG_DOUBLE:
+                return in.readDouble();
+            case TAG_STRING:
+                return readString();
+            case TAG_REGION:
+                return StringRegionIdentifier.intern(readString());
+            case TAG_SERVICE:
+                return StringServiceIdentifier.intern(readString());
+            case TAG_DNS_NAME:
+                return DnsNameIdentifier.intern(readString());
+            case TAG_NODE_ATTRIBUTE:
+                return NODE_ATTRIBUTES[in.readUnsignedByte()];
+            case TAG_LINK_ATTRIBUTE:
+                return LINK_ATTRIBUTES[in.readUnsignedByte()];
+            case TAG_TUPLE: {
+                final Object[] elements = new Object[readVarInt()];
+                for (int i = 0; i < elements.length; ++i) {
+                    elements[i] = readValue();
+                }
+                return DatatypeFactory.createTuple(elements);
+            }
+            case TAG_MAP: {
+                final int index = reserveCollection();
+                final ImmutableMap<Object, Object> map = readMapEntries();
+                collections.set(index, map);
+                return map;
+            }
+            case TAG_SET: {
+                final int index = reserveCollection();
+                final int size = readVarInt();
+                final ImmutableSet.Builder<Object> builder = ImmutableSet.builder();
+                for (int i = 0; i < size; ++i) {
+                    builder.add(readValue());
+                }
+                final ImmutableSet<Object> set = builder.build();
+                collections.set(index, set);
+                return set;
+            }
+            case TAG_LIST: {
+                final int index = reserveCollection();
+                final int size = readVarInt();
+                final ImmutableList.Builder<Object> builder = ImmutableList.builder();
+                for (int i = 0; i < size; ++i) {
+                    builder.add(readValue());
+                }
+                final ImmutableList<Object> list = builder.build();
+                collections.set(index, list);
+                return list;
+            }
+            case TAG_COLLECTION_REFERENCE:
+                return collections.get(readVarInt());
+            case TAG_RESOURCE_SUMMARY:
+                return readResourceSummary();
+            case TAG_LOAD_BALANCER_PLAN:
+                return new LoadBalancerPlan(readAs(), readMap(), readMap(), readMap(), readMap());
+            case TAG_REGION_PLAN:
+                return new RegionPlan(readAs(), readMap());
+            case TAG_SERVICE_STATE:
+                return new ServiceState(readAs(), SERVICE_STATUSES[in.readUnsignedByte()]);
+            case TAG_JAVA:
+                return readJavaObject();
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private <T> T readAs() throws IOException {
+            return (T) readValue();
+        }
+
+        private int reserveCollection() {
+            collections.add(null);
+            return collections.size() - 1;
+        }
+
+        private ImmutableMap<Object, Object> readMapEntries() throws IOException {
+            final int size = readVarInt();
+            final ImmutableMap.Builder<Object, Object> builder = ImmutableMap.builder();
+            for (int i = 0; i < size; ++i) {
+                final Object key = readValue();
+                final Object value = readValue();
+                builder.put(key, value);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Read a map field that was written as a value.
+         */
+        private <K, V> ImmutableMap<K, V> readMap() throws IOException {
+            return readAs();
+        }
+
+        private ResourceSummary readResourceSummary() throws IOException {
+            final RegionIdentifier region = readAs();
+            final long minTimestamp = in.readLong();
+            final long maxTimestamp = in.readLong();
+            final ResourceReport.EstimationWindow window = ESTIMATION_WINDOWS[in.readUnsignedByte()];
+            return new ResourceSummary(region, minTimestamp, maxTimestamp, window, readMap(), readMap(), readMap(),
+                    readMap(), readMap(), readMap(), readMap(), readMap());
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bbn.protelis.utils.VirtualClock;
+
+/**
+ * Execute each node on its own thread that sleeps between rounds. This is the
+ * default {@link ExecutionBackend}.
+ */
+public final class DedicatedThreadBackend implements ExecutionBackend {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DedicatedThreadBackend.class);
+
+    /**
+     * The backend holds no state, so one instance is enough.
+     */
+    public static final DedicatedThreadBackend INSTANCE = new DedicatedThreadBackend();
+
+    private DedicatedThreadBackend() {
+    }
+
+    @Override
+    @Nonnull
+    public Execution start(@Nonnull final String name, @Nonnull final Rounds rounds) {
+        final ThreadExecution execution = new ThreadExecution(name, rounds);
+        execution.thread.start();
+        return execution;
+    }
+
+    private static final class ThreadExecution implements Execution {
+        private final String name;
+        private final Rounds rounds;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        private final Object lock = new Object();
+        // guarded by lock, clock time by which the next round was asked to
+        // start
+        private long requestedStart = Long.MAX_VALUE;
+        // guarded by lock, the thread may only be interrupted to wake it up
+        // while it waits on the clock
+        private boolean sleeping = false;
+
+        ThreadExecution(final String name, final Rounds rounds) {
+            this.name = name;
+            this.rounds = rounds;
+            this.thread = new Thread(this::run);
+            this.thread.setName("Node-" + name);
+        }
+
+        private void run() {
+            final VirtualClock clock = rounds.getClock();
+            clock.registerParticipant();
+            try {
+                while (running) {
+                    if (!rounds.runRound() || !running) {
+                        break;
+                    }
+
+                    try {
+                        sleep(rounds.getSleepTime());
+                    } catch (final InterruptedException e) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Node " + name + " got interrupted, waking up to check if it's time to exit",
+                                    e);
+                        }
+                    }
+                }
+            } finally {
+                clock.deregisterParticipant();
+            }
+        }
+
+        /**
+         * Wait for the duration or until {@link #runNextRoundWithin(long)}
+         * asks for an earlier round. The clock may not notify on our lock, so
+         * an earlier round is requested by interrupting the wait on the clock.
+         */
+        private void sleep(final long duration) throws InterruptedException {
+            final VirtualClock clock = rounds.getClock();
+            final long deadline;
+            synchronized (lock) {
+                deadline = Math.min(clock.getCurrentTime() + duration, requestedStart);
+                sleeping = true;
+            }
+            try {
+                while (running) {
+                    final long wakeAt;
+                    synchronized (lock) {
+                        wakeAt = Math.min(deadline, requestedStart);
+                    }
+                    if (clock.getCurrentTime() >= wakeAt || clock.isShutdown()) {
+                        break;
+                    }
+                    try {
+                        clock.waitUntilTimeInterruptibly(wakeAt);
+                    } catch (final InterruptedException e) {
+                        if (!running) {
+                            throw e;
+                        }
+                        // woken up for an earlier round, recompute the deadline
+                    }
+                }
+            } finally {
+                synchronized (lock) {
+                    sleeping = false;
+                    requestedStart = Long.MAX_VALUE;
+                    if (running) {
+                        // clear an interrupt that arrived after the wait ended
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void runNextRoundWithin(final long delayMs) {
+            synchronized (lock) {
+                final long start = rounds.getClock().getCurrentTime() + delayMs;
+                if (start < requestedStart) {
+                    requestedStart = start;
+                    if (sleeping) {
+                        thread.interrupt();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+            thread.interrupt();
+            try {
+                thread.join(); // may want to have a timeout here
+            } catch (final InterruptedException e) {
+                LOGGER.debug("Got interrupted waiting for join, probably just time to shutdown", e);
+            }
+        }
+
+        @Override
+        public boolean isAlive() {
+            return thread.isAlive();
+        }
+    }
+
+}
@@ -29,6 +29,15 @@ public class DelegateRegionLookup implements RegionLookupService {
         }
     }
 
+    @Override
+    public RegionIndex getRegionIndex() {
+        if (null == delegate) {
+            return null;
+        } else {
+            return delegate.getRegionIndex();
+        }
+    }
+
     private RegionLookupService delegate = null;
 
     /**
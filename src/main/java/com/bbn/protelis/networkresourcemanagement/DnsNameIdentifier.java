@@ -2,15 +2,27 @@ package com.bbn.protelis.networkresourcemanagement;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 /**
  * Identifier that represents a DNS name. The name is compared in a
- * case-insensitive manner.
+ * case-insensitive manner. The case-folded name and its hash code are computed
+ * once, use {@link #intern(String)} to share instances so that map lookups can
+ * stop at reference equality.
  */
 public class DnsNameIdentifier implements ContainerIdentifier, Comparable<DnsNameIdentifier> {
     private static final long serialVersionUID = 1L;
 
+    private static final Interner<DnsNameIdentifier> INTERNER = Interners.newWeakInterner();
+
     private final String name;
 
+    // derived from name, recomputed if the object wasn't created by the
+    // constructor
+    private transient String folded;
+    private transient int hash;
+
     /**
      * 
      * @param name
@@ -18,6 +30,35 @@ public class DnsNameIdentifier implements ContainerIdentifier, Comparable<DnsNam
      */
     public DnsNameIdentifier(@Nonnull final String name) {
         this.name = name;
+        this.folded = name.toLowerCase();
+        this.hash = folded.hashCode();
+    }
+
+    /**
+     * Get the canonical identifier for a name. Names that differ only in case
+     * are equal, but the canonical instance is only returned if it has the
+     * same spelling so that {@link #getName()} doesn't change.
+     * 
+     * @param name
+     *            the name for the node
+     * @return the shared identifier for the name
+     */
+    @Nonnull
+    public static DnsNameIdentifier intern(@Nonnull final String name) {
+        return intern(new DnsNameIdentifier(name));
+    }
+
+    private static DnsNameIdentifier intern(final DnsNameIdentifier id) {
+        final DnsNameIdentifier canonical = INTERNER.intern(id);
+        if (canonical.getName().equals(id.getName())) {
+            return canonical;
+        } else {
+            return id;
+        }
+    }
+
+    private Object readResolve() {
+        return intern(name);
     }
 
     @Override
@@ -25,6 +66,13 @@ public class DnsNameIdentifier implements ContainerIdentifier, Comparable<DnsNam
         return name;
     }
 
+    private String getFoldedName() {
+        if (null == folded) {
+            folded = name.toLowerCase();
+        }
+        return folded;
+    }
+
     @Override
     public boolean equals(final Object alt) {
         if (null == alt) {
@@ -33,7 +81,7 @@ public class DnsNameIdentifier implements ContainerIdentifier, Comparable<DnsNam
             return true;
         } else if (getClass().equals(alt.getClass())) {
             final DnsNameIdentifier other = (DnsNameIdentifier) alt;
-            return getName().equalsIgnoreCase(other.getName());
+            return hashCode() == other.hashCode() && getFoldedName().equals(other.getFoldedName());
         } else {
             return false;
         }
@@ -41,7 +89,10 @@ public class DnsNameIdentifier implements ContainerIdentifier, Comparable<DnsNam
 
     @Override
     public int hashCode() {
-        return this.name.toLowerCase().hashCode();
+        if (0 == hash) {
+            hash = getFoldedName().hashCode();
+        }
+        return hash;
     }
 
     @Override
@@ -51,6 +102,9 @@ public class DnsNameIdentifier implements ContainerIdentifier, Comparable<DnsNam
 
     @Override
     public int compareTo(final DnsNameIdentifier other) {
-        return getName().toLowerCase().compareTo(other.getName().toLowerCase());
+        if (this == other) {
+            return 0;
+        }
+        return getFoldedName().compareTo(other.getFoldedName());
     }
 }
@@ -0,0 +1,76 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+/**
+ * Run a round of a {@link NetworkServer} when new neighbor state arrives
+ * rather than only every period, so that changes spread hop by hop as fast as
+ * the network allows.
+ *
+ * A round is started {@link #getDebounce()} after the first change, so that
+ * changes from several neighbors arriving close together are handled by one
+ * round. Round starts are at least {@link #getMinInterval()} apart, which
+ * bounds the work done when neighbors change all the time. Without changes a
+ * round still runs every {@link #getFallbackPeriod()}.
+ *
+ * @see NetworkServer#setEventTrigger(EventTrigger)
+ */
+public final class EventTrigger {
+
+    private final long debounce;
+    private final long minInterval;
+    private final long fallbackPeriod;
+
+    /**
+     *
+     * @param debounce
+     *            see {@link #getDebounce()}
+     * @param minInterval
+     *            see {@link #getMinInterval()}
+     * @param fallbackPeriod
+     *            see {@link #getFallbackPeriod()}
+     * @throws IllegalArgumentException
+     *             if a value is negative
+     */
+    public EventTrigger(final long debounce, final long minInterval, final long fallbackPeriod) {
+        if (debounce < 0 || minInterval < 0 || fallbackPeriod < 0) {
+            throw new IllegalArgumentException("Times cannot be negative, debounce: " + debounce + " min interval: "
+                    + minInterval + " fallback period: " + fallbackPeriod);
+        }
+        this.debounce = debounce;
+        this.minInterval = minInterval;
+        this.fallbackPeriod = fallbackPeriod;
+    }
+
+    /**
+     * @return milliseconds from a change to the round that handles it
+     */
+    public long getDebounce() {
+        return debounce;
+    }
+
+    /**
+     * @return least milliseconds between the starts of 2 rounds
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return milliseconds between rounds when nothing changes
+     */
+    public long getFallbackPeriod() {
+        return fallbackPeriod;
+    }
+
+    /**
+     * @param now
+     *            the current time in milliseconds
+     * @param lastRoundStart
+     *            when the most recent round started
+     * @return milliseconds from now until the round for a change that arrives
+     *         now should start
+     */
+    public long delayForChange(final long now, final long lastRoundStart) {
+        return Math.max(debounce, lastRoundStart + minInterval - now);
+    }
+
+}
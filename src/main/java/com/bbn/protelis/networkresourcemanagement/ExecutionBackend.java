@@ -0,0 +1,81 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import javax.annotation.Nonnull;
+
+import com.bbn.protelis.utils.VirtualClock;
+
+/**
+ * Decides which threads execute the rounds of a {@link NetworkServer}.
+ * Implementations must run the rounds of one node one at a time, in order, and
+ * wait {@link Rounds#getSleepTime()} between the end of a round and the
+ * start of the next. Times are measured on {@link Rounds#getClock()}.
+ *
+ * @see DedicatedThreadBackend
+ * @see SharedSchedulerBackend
+ */
+public interface ExecutionBackend {
+
+    /**
+     * The rounds of one node.
+     */
+    interface Rounds {
+        /**
+         * Execute one round.
+         *
+         * @return true if there should be another round
+         */
+        boolean runRound();
+
+        /**
+         * @return milliseconds to wait before the next round
+         */
+        long getSleepTime();
+
+        /**
+         * @return the clock the sleep time and delays are measured on
+         */
+        @Nonnull
+        VirtualClock getClock();
+    }
+
+    /**
+     * Handle on the execution of one node.
+     */
+    interface Execution {
+        /**
+         * Stop executing rounds and wait for the current round, if any, to
+         * finish. The node has stopped running rounds when this returns.
+         */
+        void stop();
+
+        /**
+         * @return true until the node stops executing rounds
+         */
+        boolean isAlive();
+
+        /**
+         * Start the next round no later than the delay from now, even if the
+         * sleep time has not passed. Does nothing if the next round is due
+         * sooner. A round that is running finishes first. Backends that don't
+         * sleep between rounds may ignore this.
+         *
+         * @param delayMs
+         *            milliseconds from now
+         */
+        default void runNextRoundWithin(final long delayMs) {
+        }
+    }
+
+    /**
+     * Start executing rounds.
+     *
+     * @param name
+     *            name of the node, for thread names and logging
+     * @param rounds
+     *            the rounds to execute
+     * @return handle to stop the execution
+     */
+    @Nonnull
+    Execution start(@Nonnull String name, @Nonnull Rounds rounds);
+
+}
@@ -0,0 +1,122 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Connects {@link InMemoryNeighborTransport}s in the same JVM. Plays the part
+ * of the network: transports register the address they would listen on and
+ * neighbors are found by the address from the {@link NodeLookupService}, so
+ * {@link com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService}
+ * works unchanged. Pass an instance to
+ * {@link BasicNetworkFactory#BasicNetworkFactory(NodeLookupService, RegionLookupService, ResourceManagerFactory, String, boolean, NeighborTransportFactory)}
+ * to run a whole scenario without sockets or serialization.
+ *
+ * With deferred delivery the shared state is held by the exchange until
+ * {@link #deliverPending()} is called, so that all nodes of a lockstep
+ * simulation see the state their neighbors shared in the previous round, no
+ * matter in which order the nodes executed.
+ */
+public final class InMemoryExchange implements NeighborTransportFactory {
+
+    private final ConcurrentMap<InetSocketAddress, InMemoryNeighborTransport> listeners = new ConcurrentHashMap<>();
+
+    private final boolean deferredDelivery;
+
+    private final Queue<Delivery> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Shared state is delivered to the neighbors as soon as it is sent.
+     */
+    public InMemoryExchange() {
+        this(false);
+    }
+
+    /**
+     * @param deferredDelivery
+     *            if true hold the shared state until
+     *            {@link #deliverPending()} is called
+     */
+    public InMemoryExchange(final boolean deferredDelivery) {
+        this.deferredDelivery = deferredDelivery;
+    }
+
+    /**
+     * @return if the shared state is held until {@link #deliverPending()}
+     */
+    public boolean isDeferredDelivery() {
+        return deferredDelivery;
+    }
+
+    private static final class Delivery {
+        private final NetworkNeighbor receiver;
+        private final Map<CodePath, Object> state;
+
+        Delivery(final NetworkNeighbor receiver, final Map<CodePath, Object> state) {
+            this.receiver = receiver;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Hold shared state until the next {@link #deliverPending()}.
+     *
+     * @param receiver
+     *            the neighbor object on the receiving node
+     * @param state
+     *            the immutable state
+     */
+    /* package */ void defer(@Nonnull final NetworkNeighbor receiver, @Nonnull final Map<CodePath, Object> state) {
+        pending.add(new Delivery(receiver, state));
+    }
+
+    /**
+     * Hand all held shared state to the receiving nodes. Must not be called
+     * while nodes are sharing state if the rounds are to stay separate.
+     *
+     * @return the number of states delivered
+     */
+    public int deliverPending() {
+        int count = 0;
+        Delivery delivery;
+        while (null != (delivery = pending.poll())) {
+            delivery.receiver.receiveState(delivery.state);
+            ++count;
+        }
+        return count;
+    }
+
+    @Override
+    @Nonnull
+    public NeighborTransport createTransport() {
+        return new InMemoryNeighborTransport(this);
+    }
+
+    /* package */ void listen(@Nonnull final InetSocketAddress address,
+            @Nonnull final InMemoryNeighborTransport transport) {
+        listeners.put(address, transport);
+    }
+
+    /* package */ void unlisten(@Nonnull final InetSocketAddress address,
+            @Nonnull final InMemoryNeighborTransport transport) {
+        listeners.remove(address, transport);
+    }
+
+    /**
+     * @param address
+     *            the address to look up
+     * @return the transport listening on the address, null if none
+     */
+    /* package */ InMemoryNeighborTransport lookup(@Nonnull final InetSocketAddress address) {
+        return listeners.get(address);
+    }
+
+}
@@ -0,0 +1,220 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport between nodes in the same JVM, created by an
+ * {@link InMemoryExchange}. The shared state is never encoded, each round is
+ * handed to the neighbors as one immutable map that becomes the neighbor state
+ * of the receiver. The transport uses no threads. Heartbeats are passed as
+ * frames.
+ */
+public class InMemoryNeighborTransport implements NeighborTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InMemoryNeighborTransport.class);
+
+    private static final Random RANDOM = new Random();
+
+    private final InMemoryExchange exchange;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private NodeNetworkManager manager = null;
+    private InetSocketAddress listenAddress = null;
+    private final Set<InMemoryChannel> channels = new HashSet<>();
+
+    /**
+     *
+     * @param exchange
+     *            where to find the neighbors
+     */
+    public InMemoryNeighborTransport(@Nonnull final InMemoryExchange exchange) {
+        this.exchange = exchange;
+    }
+
+    @Override
+    public void start(@Nonnull final NodeNetworkManager manager, @Nonnull final InetSocketAddress listenAddress) {
+        synchronized (lock) {
+            this.manager = manager;
+            this.listenAddress = listenAddress;
+        }
+        exchange.listen(listenAddress, this);
+    }
+
+    @Override
+    public void connect(@Nonnull final NodeNetworkManager manager,
+            @Nonnull final InetSocketAddress neighborAddress,
+            final long connectTimeoutMs) {
+        final InMemoryNeighborTransport remote = exchange.lookup(neighborAddress);
+        if (null == remote) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Couldn't connect to neighbor, nothing is listening at " + neighborAddress);
+            }
+            return;
+        }
+
+        final int nonce = RANDOM.nextInt();
+        final InMemoryChannel local = new InMemoryChannel(manager);
+        final InMemoryChannel other = remote.accept(local, manager, nonce);
+        if (null == other) {
+            return;
+        }
+
+        local.peer = other;
+        if (!register(local)) {
+            local.close();
+            return;
+        }
+        local.neighbor = manager.addNeighbor(other.owner.getNodeIdentifier(), nonce, local);
+        if (null == local.neighbor) {
+            local.close();
+        }
+    }
+
+    /**
+     * Called on the transport of the neighbor being dialed.
+     *
+     * @return the channel for this side of the link, null if the link was
+     *         refused
+     */
+    private InMemoryChannel accept(final InMemoryChannel dialer,
+            final NodeNetworkManager dialerManager,
+            final int nonce) {
+        final NodeNetworkManager localManager;
+        synchronized (lock) {
+            localManager = manager;
+        }
+        if (null == localManager) {
+            return null;
+        }
+
+        final InMemoryChannel channel = new InMemoryChannel(localManager);
+        channel.peer = dialer;
+        if (!register(channel)) {
+            return null;
+        }
+        channel.neighbor = localManager.addNeighbor(dialerManager.getNodeIdentifier(), nonce, channel);
+        if (null == channel.neighbor) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
+    private boolean register(final InMemoryChannel channel) {
+        synchronized (lock) {
+            if (null == manager) {
+                return false;
+            }
+            channels.add(channel);
+            return true;
+        }
+    }
+
+    @Override
+    public void stop() {
+        final Set<InMemoryChannel> toStop;
+        final InetSocketAddress address;
+        synchronized (lock) {
+            manager = null;
+            address = listenAddress;
+            listenAddress = null;
+            toStop = new HashSet<>(channels);
+            channels.clear();
+        }
+        if (null != address) {
+            exchange.unlisten(address, this);
+        }
+        toStop.forEach(InMemoryChannel::close);
+    }
+
+    @Override
+    public int getIoThreadCount() {
+        return 0;
+    }
+
+    /**
+     * One end of a link. Sends go straight to the {@link NetworkNeighbor} on
+     * the other end.
+     */
+    private final class InMemoryChannel implements NeighborChannel {
+        private final NodeNetworkManager owner;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile InMemoryChannel peer = null;
+        private volatile NetworkNeighbor neighbor = null;
+
+        InMemoryChannel(final NodeNetworkManager owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * @return the neighbor object for the other end of the link, null if
+         *         it is not known yet
+         */
+        private NetworkNeighbor receiver() throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection is closed");
+            }
+            final InMemoryChannel p = peer;
+            return null == p ? null : p.neighbor;
+        }
+
+        @Override
+        public void send(final byte[] frame) throws IOException {
+            final NetworkNeighbor receiver = receiver();
+            if (null != receiver) {
+                receiver.receiveFrame(frame);
+            }
+        }
+
+        @Override
+        public boolean sendState(@Nonnull final OutboundState round) throws IOException {
+            final NetworkNeighbor receiver = receiver();
+            if (null != receiver) {
+                if (exchange.isDeferredDelivery()) {
+                    exchange.defer(receiver, round.getSnapshot());
+                } else {
+                    receiver.receiveState(round.getSnapshot());
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                synchronized (lock) {
+                    channels.remove(this);
+                }
+
+                // the other end notices the close right away rather than at
+                // the next send. Done on another thread as the manager may
+                // close channels while holding its lock.
+                final InMemoryChannel p = peer;
+                if (null != p) {
+                    NeighborConnectionManager.schedule(p::peerClosed, 0);
+                }
+            }
+        }
+
+        private void peerClosed() {
+            final NetworkNeighbor n = neighbor;
+            close();
+            if (null != n) {
+                owner.removeNeighbor(n);
+            }
+        }
+    }
+
+}
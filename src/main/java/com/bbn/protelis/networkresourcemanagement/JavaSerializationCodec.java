@@ -0,0 +1,51 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Encode the shared state with Java serialization. This is the original wire
+ * format and handles any {@link java.io.Serializable} value, but is much larger
+ * and slower than {@link BinarySharedStateCodec}.
+ */
+public class JavaSerializationCodec implements SharedStateCodec {
+
+    @Override
+    @Nonnull
+    public byte[] encode(@Nonnull final Map<CodePath, Object> state) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(state);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    @Nonnull
+    public Map<CodePath, Object> decode(@Nonnull final byte[] data) throws IOException {
+        final Object incoming;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            incoming = in.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Unable to decode shared state", e);
+        }
+
+        if (incoming instanceof Map) {
+            @SuppressWarnings("unchecked")
+            final Map<CodePath, Object> state = (Map<CodePath, Object>) incoming;
+            return state;
+        } else {
+            return new HashMap<>();
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Assigns small dense ordinals to the keys of the maps in a
+ * {@link ResourceSummary}, so that a key of several levels can be packed into
+ * a single long. Ordinals are never reused, the dictionaries are shared by all
+ * summaries in the JVM and only grow. Ordinals are local to the JVM and are
+ * never serialized.
+ *
+ * @param <K>
+ *            the type of key
+ * @see SummaryTable
+ */
+/* package */ final class KeyDictionary<K> {
+
+    /**
+     * Number of bits of an ordinal.
+     */
+    /* package */ static final int BITS = 16;
+
+    /**
+     * Returned when the dictionary is full.
+     */
+    /* package */ static final int NO_ORDINAL = -1;
+
+    private static final int CAPACITY = 1 << BITS;
+
+    private static final int INITIAL_SIZE = 256;
+
+    /**
+     * Services.
+     */
+    /* package */ static final KeyDictionary<ServiceIdentifier<?>> SERVICES = new KeyDictionary<>("services");
+
+    /**
+     * Regions.
+     */
+    /* package */ static final KeyDictionary<RegionIdentifier> REGIONS = new KeyDictionary<>("regions");
+
+    /**
+     * Node attributes.
+     */
+    /* package */ static final KeyDictionary<NodeAttribute<?>> NODE_ATTRIBUTES = new KeyDictionary<>(
+            "node attributes");
+
+    /**
+     * Link attributes.
+     */
+    /* package */ static final KeyDictionary<LinkAttribute<?>> LINK_ATTRIBUTES = new KeyDictionary<>(
+            "link attributes");
+
+    private final String name;
+    private final ConcurrentHashMap<K, Integer> ordinals = new ConcurrentHashMap<>();
+
+    // written with this held, a new array is published when it grows
+    private volatile Object[] keys = new Object[INITIAL_SIZE];
+    private int size = 0;
+
+    private KeyDictionary(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param key
+     *            the key to look up
+     * @return the ordinal of the key, assigned on first use.
+     *         {@link #NO_ORDINAL} if the dictionary is full.
+     */
+    /* package */ int ordinal(@Nonnull final K key) {
+        final Integer ordinal = ordinals.get(key);
+        if (null != ordinal) {
+            return ordinal;
+        }
+        return add(key);
+    }
+
+    private synchronized int add(final K key) {
+        final Integer existing = ordinals.get(key);
+        if (null != existing) {
+            return existing;
+        }
+        if (size >= CAPACITY) {
+            return NO_ORDINAL;
+        }
+
+        Object[] current = keys;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, Math.min(CAPACITY, current.length * 2));
+        }
+        current[size] = key;
+        // publish the key before the ordinal so readers of the ordinal can
+        // always find the key
+        keys = current;
+        ordinals.put(key, size);
+        return size++;
+    }
+
+    /**
+     * @param ordinal
+     *            an ordinal returned by {@link #ordinal(Object)}
+     * @return the key
+     */
+    @Nonnull
+    /* package */ K key(final int ordinal) {
+        @SuppressWarnings("unchecked")
+        final K key = (K) keys[ordinal];
+        return key;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + name + " size: " + ordinals.size() + "]";
+    }
+
+}
@@ -0,0 +1,68 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The transport specific half of a link to a neighbor. A
+ * {@link NeighborTransport} creates these and {@link NetworkNeighbor} uses
+ * them to send frames. Received frames are passed to
+ * {@link NetworkNeighbor#receiveFrame(byte[])} by the transport.
+ */
+/* package */ interface NeighborChannel {
+
+    /**
+     * Send a frame to the neighbor. The frame is not modified by the channel.
+     *
+     * @param frame
+     *            the payload to send, the length header is added by the
+     *            channel
+     * @throws IOException
+     *             if the channel is broken
+     */
+    void send(byte[] frame) throws IOException;
+
+    /**
+     * Send a frame without waiting for the neighbor. A channel that is still
+     * busy with earlier frames doesn't take the frame and calls
+     * {@code whenWritable} once, when it can take another frame or is closed.
+     * The default implementation calls {@link #send(byte[])}, which is only
+     * right for channels that never wait for the neighbor.
+     *
+     * @param frame
+     *            the payload to send, see {@link #send(byte[])}
+     * @param whenWritable
+     *            called if false is returned, must not block
+     * @return true if the channel took the frame, false if it is busy
+     * @throws IOException
+     *             if the channel is broken
+     */
+    default boolean offer(@Nonnull final byte[] frame, @Nonnull final Runnable whenWritable) throws IOException {
+        send(frame);
+        return true;
+    }
+
+    /**
+     * Hand the shared state directly to the neighbor without encoding it. Only
+     * possible when the neighbor is in the same JVM. The default
+     * implementation returns false.
+     *
+     * @param round
+     *            the state to hand over, see
+     *            {@link OutboundState#getSnapshot()}
+     * @return true if the state was handed over, false if the encoded frame
+     *         must be sent with {@link #send(byte[])}
+     * @throws IOException
+     *             if the channel is broken
+     */
+    default boolean sendState(@Nonnull final OutboundState round) throws IOException {
+        return false;
+    }
+
+    /**
+     * Close the channel. It is safe to call this multiple times.
+     */
+    void close();
+
+}
@@ -0,0 +1,428 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps a {@link NodeNetworkManager} connected to the neighbors it is
+ * responsible for dialing. All neighbors are dialed concurrently. A failed
+ * dial is retried with exponential backoff and jitter, a link that is lost is
+ * dialed again. Dialing stops while a neighbor is connected, no matter which
+ * side created the link.
+ */
+public final class NeighborConnectionManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NeighborConnectionManager.class);
+
+    /**
+     * Default value for {@link #getConnectTimeoutMs()}.
+     */
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+
+    /**
+     * Default value for {@link #getInitialBackoffMs()}.
+     */
+    public static final long DEFAULT_INITIAL_BACKOFF_MS = 100;
+
+    /**
+     * Default value for {@link #getMaxBackoffMs()}.
+     */
+    public static final long DEFAULT_MAX_BACKOFF_MS = 10000;
+
+    /**
+     * Default value for {@link #getJitter()}.
+     */
+    public static final double DEFAULT_JITTER = 0.5;
+
+    /**
+     * Shared by all managers. Only times backoffs and connect timeouts, the
+     * tasks it runs must not block.
+     */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("neighbor-connect-%d").setDaemon(true).build());
+
+    /**
+     * Shared by all managers. Blocking transports dial on these threads, so
+     * the pool grows with the number of pending dials and shrinks again once
+     * the neighbors are connected. The connect timeout limits how long a
+     * thread is held by one dial.
+     */
+    private static final ExecutorService DIAL_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("neighbor-dial-%d").setDaemon(true).build());
+
+    /**
+     * Run a task after a delay on the thread that times dials. Used by
+     * transports to enforce connect timeouts.
+     *
+     * @param task
+     *            the task to run, must not block
+     * @param delayMs
+     *            how long to wait
+     */
+    /* package */ static void schedule(@Nonnull final Runnable task, final long delayMs) {
+        SCHEDULER.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private final NodeNetworkManager manager;
+    private final Random random = new Random();
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private boolean running = false;
+    private final Map<DeviceUID, Dialer> dialers = new HashMap<>();
+    private long startTime = 0;
+    private long timeToFullConnectivity = -1;
+
+    /**
+     * @param manager
+     *            the manager to keep connected
+     */
+    /* package */ NeighborConnectionManager(@Nonnull final NodeNetworkManager manager) {
+        this.manager = manager;
+    }
+
+    private volatile long connectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+
+    /**
+     * @return how long a single dial may take before it is considered failed
+     */
+    public long getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    /**
+     * @param v
+     *            see {@link #getConnectTimeoutMs()}
+     * @throws IllegalArgumentException
+     *             if the value is not positive
+     */
+    public void setConnectTimeoutMs(final long v) {
+        if (v <= 0) {
+            throw new IllegalArgumentException("Connect timeout must be positive: " + v);
+        }
+        connectTimeoutMs = v;
+    }
+
+    private volatile long initialBackoffMs = DEFAULT_INITIAL_BACKOFF_MS;
+
+    /**
+     * @return how long to wait before the first redial, doubled for each
+     *         consecutive failure
+     */
+    public long getInitialBackoffMs() {
+        return initialBackoffMs;
+    }
+
+    /**
+     * @param v
+     *            see {@link #getInitialBackoffMs()}
+     * @throws IllegalArgumentException
+     *             if the value is not positive
+     */
+    public void setInitialBackoffMs(final long v) {
+        if (v <= 0) {
+            throw new IllegalArgumentException("Initial backoff must be positive: " + v);
+        }
+        initialBackoffMs = v;
+    }
+
+    private volatile long maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+    /**
+     * @return the longest time to wait between dials
+     */
+    public long getMaxBackoffMs() {
+        return maxBackoffMs;
+    }
+
+    /**
+     * @param v
+     *            see {@link #getMaxBackoffMs()}
+     * @throws IllegalArgumentException
+     *             if the value is not positive
+     */
+    public void setMaxBackoffMs(final long v) {
+        if (v <= 0) {
+            throw new IllegalArgumentException("Max backoff must be positive: " + v);
+        }
+        maxBackoffMs = v;
+    }
+
+    private volatile double jitter = DEFAULT_JITTER;
+
+    /**
+     * Each backoff is reduced by a random fraction of up to this value so that
+     * nodes started together do not dial in lock step.
+     *
+     * @return the jitter fraction between 0 and 1
+     */
+    public double getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @param v
+     *            see {@link #getJitter()}
+     * @throws IllegalArgumentException
+     *             if the value is not between 0 and 1
+     */
+    public void setJitter(final double v) {
+        if (v < 0 || v > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1: " + v);
+        }
+        jitter = v;
+    }
+
+    /**
+     * @return milliseconds from {@link #start(Set)} until all neighbors were
+     *         connected at the same time, -1 if that has not happened yet
+     */
+    public long getTimeToFullConnectivity() {
+        synchronized (lock) {
+            return timeToFullConnectivity;
+        }
+    }
+
+    /**
+     * Start dialing.
+     *
+     * @param neighbors
+     *            the neighbors to dial
+     */
+    /* package */ void start(@Nonnull final Set<? extends DeviceUID> neighbors) {
+        final Map<DeviceUID, Dialer> toStart;
+        synchronized (lock) {
+            running = true;
+            startTime = System.currentTimeMillis();
+            timeToFullConnectivity = -1;
+            dialers.clear();
+            for (final DeviceUID uid : neighbors) {
+                dialers.put(uid, new Dialer(uid));
+            }
+            checkFullConnectivity();
+            toStart = new HashMap<>(dialers);
+        }
+        logFullConnectivity();
+        toStart.forEach((uid, dialer) -> dialer.activate(0));
+    }
+
+    /**
+     * Stop dialing.
+     */
+    /* package */ void stop() {
+        final Map<DeviceUID, Dialer> toStop;
+        synchronized (lock) {
+            running = false;
+            toStop = new HashMap<>(dialers);
+        }
+        toStop.forEach((uid, dialer) -> dialer.cancel());
+    }
+
+    private boolean isRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    /**
+     * Called by the manager after a link to a neighbor has been established.
+     *
+     * @param uid
+     *            the neighbor
+     */
+    /* package */ void neighborAdded(@Nonnull final DeviceUID uid) {
+        final boolean connected;
+        synchronized (lock) {
+            connected = running && timeToFullConnectivity < 0 && checkFullConnectivity();
+        }
+        if (connected) {
+            logFullConnectivity();
+        }
+    }
+
+    /**
+     * Must hold lock.
+     * 
+     * @return true if all neighbors are connected
+     */
+    private boolean checkFullConnectivity() {
+        if (dialers.keySet().stream().allMatch(manager::isConnected)) {
+            timeToFullConnectivity = System.currentTimeMillis() - startTime;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    // called without holding lock as the manager may call in with its lock
+    // held
+    private void logFullConnectivity() {
+        if (LOGGER.isInfoEnabled()) {
+            final long time = getTimeToFullConnectivity();
+            if (time >= 0) {
+                LOGGER.info("Node: {} connected to all neighbors in {} ms", manager.getNodeName(), time);
+            }
+        }
+    }
+
+    /**
+     * Called by the manager after the link to a neighbor has been lost. If
+     * this node is responsible for dialing the neighbor a redial is
+     * scheduled.
+     *
+     * @param uid
+     *            the neighbor
+     */
+    /* package */ void neighborLost(@Nonnull final DeviceUID uid) {
+        final Dialer dialer;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            dialer = dialers.get(uid);
+        }
+        if (null != dialer) {
+            dialer.activate(backoff(0));
+        }
+    }
+
+    /**
+     * @param failures
+     *            number of consecutive failed dials
+     * @return how long to wait before the next dial
+     */
+    private long backoff(final int failures) {
+        final long max = maxBackoffMs;
+        // avoid overflow, the cap is reached long before the shift matters
+        final long exponential = failures >= Long.SIZE - 2 ? max : initialBackoffMs << failures;
+        final long capped = Math.min(max, Math.max(exponential, initialBackoffMs));
+        final double fraction;
+        synchronized (random) {
+            fraction = random.nextDouble();
+        }
+        return Math.round(capped * (1 - jitter * fraction));
+    }
+
+    /**
+     * Dials one neighbor until it is connected. Alternates between dialing
+     * and checking the result after the connect timeout. Dials run on
+     * {@link #DIAL_EXECUTOR}, the checks on {@link #SCHEDULER}.
+     */
+    private final class Dialer {
+        private final DeviceUID uid;
+
+        // guarded by this
+        private boolean active = false;
+        private int failures = 0;
+        private ScheduledFuture<?> future = null;
+
+        Dialer(final DeviceUID uid) {
+            this.uid = uid;
+        }
+
+        /**
+         * Start dialing unless already dialing.
+         */
+        synchronized void activate(final long delayMs) {
+            if (!active) {
+                active = true;
+                failures = 0;
+                scheduleNext(this::startDial, delayMs);
+            }
+        }
+
+        synchronized void cancel() {
+            active = false;
+            if (null != future) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        // must hold this
+        private void scheduleNext(final Runnable task, final long delayMs) {
+            if (isRunning()) {
+                future = SCHEDULER.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            } else {
+                active = false;
+            }
+        }
+
+        /**
+         * Checked under the lock of this object after the link was published
+         * to the manager, so a link that is lost concurrently is either seen
+         * here or reactivates this dialer.
+         *
+         * @return true if there is nothing more to do
+         */
+        private synchronized boolean finished() {
+            if (!active || !isRunning() || manager.isConnected(uid)) {
+                active = false;
+                failures = 0;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        private void startDial() {
+            DIAL_EXECUTOR.execute(this::dial);
+        }
+
+        private void dial() {
+            if (finished()) {
+                return;
+            }
+
+            final long timeout = connectTimeoutMs;
+            final InetSocketAddress addr = manager.getNeighborAddress(uid);
+            if (null == addr) {
+                LOGGER.warn(uid + " is not found in the lookup service, not connecting to this neighbor for AP sharing");
+            } else {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Node: {} dialing {} at {}", manager.getNodeName(), uid, addr);
+                }
+                manager.getTransport().connect(manager, addr, timeout);
+            }
+
+            synchronized (this) {
+                if (active) {
+                    scheduleNext(this::check, timeout);
+                }
+            }
+        }
+
+        private void check() {
+            if (finished()) {
+                return;
+            }
+
+            synchronized (this) {
+                ++failures;
+                final long delay = backoff(failures);
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Node: {} not connected to {} after {} attempts, dialing again in {} ms",
+                            manager.getNodeName(), uid, failures, delay);
+                }
+                scheduleNext(this::startDial, delay);
+            }
+        }
+    }
+
+}
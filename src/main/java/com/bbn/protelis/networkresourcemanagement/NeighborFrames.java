@@ -0,0 +1,176 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DeviceUID;
+
+/**
+ * Framing shared by all {@link NeighborTransport} implementations. Each frame
+ * on the wire is a 4 byte big-endian length followed by the payload. The first
+ * frame in each direction is a {@link Hello}. All following frames carry shared
+ * state and start with {@link #STATE_FULL} or {@link #STATE_DELTA}, or are a
+ * {@link #HEARTBEAT}, see {@link NetworkNeighbor}.
+ */
+/* package */ final class NeighborFrames {
+
+    private NeighborFrames() {
+    }
+
+    /**
+     * Number of bytes in the length header of a frame.
+     */
+    public static final int HEADER_LENGTH = Integer.BYTES;
+
+    /**
+     * Largest frame that will be accepted. Anything larger is treated as a
+     * corrupt stream.
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    /**
+     * First byte of a state frame that contains all of the shared state.
+     */
+    public static final int STATE_FULL = 0;
+
+    /**
+     * First byte of a state frame that contains only the changes since a
+     * previous state frame.
+     */
+    public static final int STATE_DELTA = 1;
+
+    /**
+     * Single byte frame sent to a neighbor that has not been sent anything
+     * else recently, to show that the link is alive.
+     */
+    public static final int HEARTBEAT = 2;
+
+    /**
+     * Write a frame to a blocking stream.
+     *
+     * @param out
+     *            where to write
+     * @param frame
+     *            the payload
+     * @throws IOException
+     *             if there is an error writing
+     */
+    public static void writeFrame(@Nonnull final DataOutputStream out, @Nonnull final byte[] frame)
+            throws IOException {
+        out.writeInt(frame.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    /**
+     * Read a frame from a blocking stream.
+     *
+     * @param in
+     *            where to read from
+     * @return the payload
+     * @throws IOException
+     *             if there is an error reading or the length is invalid
+     */
+    @Nonnull
+    public static byte[] readFrame(@Nonnull final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        checkLength(length);
+        final byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    /**
+     * @param length
+     *            the length read from a frame header
+     * @throws IOException
+     *             if the length is negative or larger than
+     *             {@link #MAX_FRAME_LENGTH}
+     */
+    public static void checkLength(final int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    /**
+     * The first frame sent in each direction on a new link.
+     */
+    public static final class Hello {
+        private final DeviceUID uid;
+        private final int nonce;
+
+        /**
+         *
+         * @param uid
+         *            see {@link #getUid()}
+         * @param nonce
+         *            see {@link #getNonce()}
+         */
+        Hello(@Nonnull final DeviceUID uid, final int nonce) {
+            this.uid = uid;
+            this.nonce = nonce;
+        }
+
+        /**
+         * @return the node that sent the hello
+         */
+        @Nonnull
+        public DeviceUID getUid() {
+            return uid;
+        }
+
+        /**
+         * @return symmetry breaking value chosen by the side that initiated
+         *         the connection, ignored from the accepting side
+         */
+        public int getNonce() {
+            return nonce;
+        }
+
+        /**
+         * @return the frame payload
+         * @throws IOException
+         *             if the uid cannot be serialized
+         */
+        @Nonnull
+        public byte[] encode() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream data = new DataOutputStream(bytes)) {
+                data.writeInt(nonce);
+                try (ObjectOutputStream out = new ObjectOutputStream(data)) {
+                    out.writeObject(uid);
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * @param frame
+         *            the payload created by {@link #encode()}
+         * @return the hello
+         * @throws IOException
+         *             if the frame cannot be decoded
+         */
+        @Nonnull
+        public static Hello decode(@Nonnull final byte[] frame) throws IOException {
+            try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame))) {
+                final int nonce = data.readInt();
+                try (ObjectInputStream in = new ObjectInputStream(data)) {
+                    final DeviceUID uid = (DeviceUID) in.readObject();
+                    return new Hello(uid, nonce);
+                }
+            } catch (final ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Unable to decode hello from neighbor", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+/**
+ * The state of the send queue for one neighbor, see
+ * {@link NodeNetworkManager#getNeighborSendStatus()}.
+ */
+public final class NeighborSendStatus {
+
+    private final int queueDepth;
+    private final long droppedCount;
+    private final long sentCount;
+
+    /**
+     *
+     * @param queueDepth
+     *            see {@link #getQueueDepth()}
+     * @param droppedCount
+     *            see {@link #getDroppedCount()}
+     * @param sentCount
+     *            see {@link #getSentCount()}
+     */
+    public NeighborSendStatus(final int queueDepth, final long droppedCount, final long sentCount) {
+        this.queueDepth = queueDepth;
+        this.droppedCount = droppedCount;
+        this.sentCount = sentCount;
+    }
+
+    /**
+     * @return number of rounds waiting to be sent, at most 1
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return number of rounds that were replaced by a newer round before they
+     *         could be sent
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return number of rounds sent
+     */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    @Override
+    public String toString() {
+        return "NeighborSendStatus [" + "queueDepth: " + queueDepth + " dropped: " + droppedCount + " sent: "
+                + sentCount + "]";
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.net.InetSocketAddress;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Moves shared state between a {@link NodeNetworkManager} and the managers of
+ * its neighbors. The transport is responsible for accepting and creating
+ * connections, performing the {@link NeighborFrames.Hello} exchange and then
+ * registering the link with
+ * {@link NodeNetworkManager#addNeighbor(org.protelis.lang.datatype.DeviceUID, int, NeighborChannel)}.
+ *
+ * Each {@link NodeNetworkManager} owns one transport instance. Transports may
+ * share resources, such as I/O threads, between instances.
+ *
+ * @see SocketNeighborTransport
+ * @see NioNeighborTransport
+ */
+public interface NeighborTransport {
+
+    /**
+     * Start accepting connections from neighbors.
+     *
+     * @param manager
+     *            the manager to register new neighbors with
+     * @param listenAddress
+     *            the address to listen on
+     */
+    void start(@Nonnull NodeNetworkManager manager, @Nonnull InetSocketAddress listenAddress);
+
+    /**
+     * Attempt to create a connection to a neighbor. Implementations may
+     * complete the connection asynchronously. Failures are logged and
+     * otherwise ignored, the {@link NeighborConnectionManager} dials again if
+     * the neighbor is not connected after the timeout.
+     *
+     * @param manager
+     *            the manager to register the neighbor with
+     * @param neighborAddress
+     *            the address of the neighbor
+     * @param connectTimeoutMs
+     *            how long to wait for the connection and the hello exchange
+     *            before giving up
+     */
+    void connect(@Nonnull NodeNetworkManager manager,
+            @Nonnull InetSocketAddress neighborAddress,
+            long connectTimeoutMs);
+
+    /**
+     * Stop accepting connections and close all connections created by this
+     * transport.
+     */
+    void stop();
+
+    /**
+     *
+     * @return the number of threads currently used by this transport for I/O.
+     *         Threads shared with other transports are included.
+     */
+    int getIoThreadCount();
+
+}
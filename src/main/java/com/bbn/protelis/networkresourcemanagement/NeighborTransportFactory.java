@@ -0,0 +1,17 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates a {@link NeighborTransport} for each {@link NodeNetworkManager}.
+ */
+@FunctionalInterface
+public interface NeighborTransportFactory {
+
+    /**
+     * @return a new transport. Not null.
+     */
+    @Nonnull
+    NeighborTransport createTransport();
+
+}
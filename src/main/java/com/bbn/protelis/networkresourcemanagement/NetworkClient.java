@@ -38,7 +38,7 @@ public class NetworkClient implements NetworkNode {
 
         final String regionName = NetworkServerProperties.parseRegionName(extraData);
         if (null != regionName) {
-            final StringRegionIdentifier region = new StringRegionIdentifier(regionName);
+            final StringRegionIdentifier region = StringRegionIdentifier.intern(regionName);
             this.region = region;
         } else {
             this.region = StringRegionIdentifier.UNKNOWN;
@@ -1,12 +1,18 @@
 package com.bbn.protelis.networkresourcemanagement;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
 
 import org.protelis.lang.datatype.DeviceUID;
 import org.protelis.vm.util.CodePath;
@@ -15,32 +21,51 @@ import org.slf4j.LoggerFactory;
 
 /**
  * A network link between a {@link NetworkServer} and it's neighbor. Used to
- * send and receive data.
+ * send and receive data. The bytes are moved by a {@link NeighborChannel}
+ * created by the {@link NeighborTransport} of the {@link NodeNetworkManager}.
+ *
+ * State frames contain a sequence number. A full frame contains the complete
+ * shared state. A delta frame contains the entries that were added or changed
+ * and the keys that were removed since the frame with the base sequence
+ * number. Since the channel delivers frames in order, the last frame sent on a
+ * link is the state that the neighbor has. A delta that does not apply to the
+ * state the receiver has is ignored until the next full frame.
+ *
+ * The received state is published as an immutable snapshot so that readers
+ * never take a lock or copy the state.
+ *
+ * Outgoing state can be queued with
+ * {@link #enqueueState(OutboundState, Executor, Consumer)}. The queue holds
+ * at most one round, a newer round replaces one that has not been sent yet so
+ * a slow neighbor only ever receives the latest state. Rounds and heartbeats
+ * are handed to the channel with
+ * {@link NeighborChannel#offer(byte[], Runnable)}, so no thread waits for a
+ * neighbor that stopped reading.
  */
 /* package */
-final class NetworkNeighbor extends Thread {
+final class NetworkNeighbor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(NetworkNeighbor.class);
 
-    private Map<CodePath, Object> sharedValues = new HashMap<>();
+    private static final int NO_SEQUENCE = -1;
+
+    // replaced, never modified, written while holding lock
+    private volatile Map<CodePath, Object> sharedValues = Collections.emptyMap();
+
+    private int receivedSequence = NO_SEQUENCE;
 
     /**
      * @return The data most recently shared from the remote
-     *         {@link NetworkServer}. Not null.
+     *         {@link NetworkServer}. Not null and not modifiable.
      */
+    @Nonnull
     public Map<CodePath, Object> getSharedValues() {
-        synchronized (lock) {
-            if (null == sharedValues) {
-                return new HashMap<CodePath, Object>();
-            } else {
-                return new HashMap<CodePath, Object>(sharedValues);
-            }
-        }
+        return sharedValues;
     }
 
     /**
      * Used to keep from having parallel connections.
-     * 
+     *
      * @return the value that was passed into the constructor.
      */
     /* package */ int getNonce() {
@@ -49,33 +74,89 @@ final class NetworkNeighbor extends Thread {
 
     private final int nonce;
 
-    private final ObjectInputStream in;
-    private final ObjectOutputStream out;
-    private final Socket socket;
+    private final DeviceUID uid;
+
+    /**
+     * @return the neighbor on the other end of the link
+     */
+    @Nonnull
+    public DeviceUID getUid() {
+        return uid;
+    }
+
+    private final NeighborChannel channel;
+
+    private final SharedStateCodec codec;
+
+    private final Runnable stateListener;
 
     // use separate object rather than this to keep other objects from blocking
     // us
     private final Object lock = new Object();
 
-    /* package */ NetworkNeighbor(final DeviceUID uid,
+    /* package */ NetworkNeighbor(@Nonnull final DeviceUID uid,
+            final int nonce,
+            @Nonnull final NeighborChannel channel,
+            @Nonnull final SharedStateCodec codec) {
+        this(uid, nonce, channel, codec, () -> {
+        });
+    }
+
+    /**
+     *
+     * @param uid
+     *            the neighbor
+     * @param nonce
+     *            see {@link #getNonce()}
+     * @param channel
+     *            used to send to the neighbor
+     * @param codec
+     *            used to decode the shared state
+     * @param stateListener
+     *            called after a snapshot of the shared values with different
+     *            contents is published
+     */
+    /* package */ NetworkNeighbor(@Nonnull final DeviceUID uid,
             final int nonce,
-            final InetSocketAddress addr,
-            final Socket s,
-            final ObjectInputStream in,
-            final ObjectOutputStream out) {
-        super(uid.toString() + addr.toString());
-
-        this.in = in;
-        this.out = out;
-        this.socket = s;
+            @Nonnull final NeighborChannel channel,
+            @Nonnull final SharedStateCodec codec,
+            @Nonnull final Runnable stateListener) {
+        this.uid = uid;
+        this.channel = channel;
         this.nonce = nonce;
+        this.codec = codec;
+        this.stateListener = stateListener;
     }
 
     private long lastTouched = System.currentTimeMillis();
 
+    private volatile long lastReceived = System.currentTimeMillis();
+
+    /**
+     * The last time a frame was received from the neighbor. Used to detect
+     * neighbors that have gone silent.
+     *
+     * @return milliseconds since epoch
+     */
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    private volatile long lastSent = System.currentTimeMillis();
+
+    /**
+     * The last time a frame was sent to the neighbor. Used to decide when a
+     * heartbeat is needed.
+     *
+     * @return milliseconds since epoch
+     */
+    public long getLastSent() {
+        return lastSent;
+    }
+
     /**
      * The last time this link sent or received a message.
-     * 
+     *
      * @return milliseconds since epoch
      */
     public long getLastTouched() {
@@ -84,85 +165,414 @@ final class NetworkNeighbor extends Thread {
         }
     }
 
-    private boolean running = false;
+    private boolean running = true;
 
     /**
-     * Listen for incoming packets
+     * Called by the transport when a frame arrives from the neighbor.
+     *
+     * @param frame
+     *            the payload of the frame
+     * @throws IOException
+     *             if the frame cannot be decoded
      */
-    @Override
-    public void run() {
-        running = true;
-        try {
-            while (running) {
-                final Object incoming = in.readObject();
-                @SuppressWarnings("unchecked")
-                final Map<CodePath, Object> shared = (incoming instanceof Map) ? (Map<CodePath, Object>) incoming
-                        : null;
+    public void receiveFrame(@Nonnull final byte[] frame) throws IOException {
+        lastReceived = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame))) {
+            final int type = in.readUnsignedByte();
+            if (NeighborFrames.HEARTBEAT == type) {
+                return;
+            }
 
+            final int sequence = in.readInt();
+            if (NeighborFrames.STATE_FULL == type) {
+                final Map<CodePath, Object> shared = Collections.unmodifiableMap(codec.decode(readPayload(in)));
+
+                final boolean changed;
                 synchronized (lock) {
+                    changed = !shared.equals(sharedValues);
                     sharedValues = shared;
+                    receivedSequence = sequence;
                     lastTouched = System.currentTimeMillis();
                 }
-            }
-        } catch (final IOException | ClassNotFoundException e) {
-            if (!running) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug(getName() + ": failed to receive from neighbor", e);
+                if (changed) {
+                    stateListener.run();
                 }
+            } else if (NeighborFrames.STATE_DELTA == type) {
+                final int baseSequence = in.readInt();
+                final Map<CodePath, Object> changed = codec.decode(readPayload(in));
+                final Map<CodePath, Object> removed = codec.decode(readPayload(in));
+
+                synchronized (lock) {
+                    lastTouched = System.currentTimeMillis();
+                    if (baseSequence != receivedSequence) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Ignoring delta from {} based on {}, have {}. Waiting for full state.", uid,
+                                    baseSequence, receivedSequence);
+                        }
+                        return;
+                    }
+
+                    receivedSequence = sequence;
+                    if (changed.isEmpty() && removed.isEmpty()) {
+                        // nothing changed, keep the current snapshot
+                        return;
+                    }
+
+                    final Map<CodePath, Object> shared = new HashMap<>(sharedValues);
+                    shared.keySet().removeAll(removed.keySet());
+                    shared.putAll(changed);
+                    sharedValues = Collections.unmodifiableMap(shared);
+                }
+                stateListener.run();
             } else {
-                LOGGER.error(getName() + ": failed to receive from neighbor", e);
+                throw new IOException("Unknown state frame type " + type + " from neighbor " + uid);
             }
-        } finally {
-            terminate();
         }
     }
 
+    /**
+     * Called by in-memory transports with the state shared by the neighbor.
+     *
+     * @param state
+     *            immutable snapshot of the state, not copied
+     */
+    public void receiveState(@Nonnull final Map<CodePath, Object> state) {
+        lastReceived = System.currentTimeMillis();
+        final boolean changed;
+        synchronized (lock) {
+            changed = !state.equals(sharedValues);
+            sharedValues = state;
+            receivedSequence = NO_SEQUENCE;
+            lastTouched = System.currentTimeMillis();
+        }
+        if (changed) {
+            stateListener.run();
+        }
+    }
+
+    private static byte[] readPayload(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        NeighborFrames.checkLength(length);
+        final byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
     /**
      * Terminate the connection.
      */
     public void terminate() {
-        running = false;
-        interrupt();
-        try {
-            in.close();
-        } catch (final IOException e) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Got error closing input stream, ignoring.", e);
+        synchronized (lock) {
+            running = false;
+        }
+        final OutboundState unsent = pending.getAndSet(null);
+        if (null != unsent) {
+            unsent.neighborDone(OutboundState.NOT_SENT);
+        }
+        channel.close();
+    }
+
+    private final AtomicReference<OutboundState> pending = new AtomicReference<>(null);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong sentCount = new AtomicLong(0);
+
+    /**
+     * Returned by {@link #sendState(OutboundState, Runnable)} when the channel
+     * did not take the frame.
+     */
+    private static final int CHANNEL_BUSY = -2;
+
+    /**
+     * Queue the state for a round to be sent on a thread from the executor.
+     * If a previous round is still waiting it is dropped. At most one task
+     * per neighbor runs at a time so frames are sent in order.
+     *
+     * @param round
+     *            what to send, {@link OutboundState#neighborDone(int)} is
+     *            called once it is sent or dropped
+     * @param executor
+     *            where to send from
+     * @param onFailure
+     *            called if the state cannot be sent
+     */
+    /* package */ void enqueueState(@Nonnull final OutboundState round,
+            @Nonnull final Executor executor,
+            @Nonnull final Consumer<NetworkNeighbor> onFailure) {
+        queue(round);
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(() -> drain(executor, onFailure, false));
+        }
+    }
+
+    /**
+     * Like {@link #enqueueState(OutboundState, Executor, Consumer)}, but the
+     * round is sent on the calling thread when nothing else is being sent to
+     * the neighbor. The calling thread never waits for the neighbor, a round
+     * the channel is too busy to take is sent from the executor later.
+     *
+     * @param round
+     *            what to send
+     * @param executor
+     *            where to send from once the channel can take the round
+     * @param onFailure
+     *            called if the state cannot be sent
+     */
+    /* package */ void offerState(@Nonnull final OutboundState round,
+            @Nonnull final Executor executor,
+            @Nonnull final Consumer<NetworkNeighbor> onFailure) {
+        queue(round);
+        if (draining.compareAndSet(false, true)) {
+            drain(executor, onFailure, false);
+        }
+    }
+
+    /**
+     * Send a heartbeat frame from the executor, unless a round or heartbeat
+     * is already being sent, which keeps the link alive just as well.
+     *
+     * @param executor
+     *            where to send from
+     * @param onFailure
+     *            called if the heartbeat cannot be sent
+     */
+    /* package */ void enqueueHeartbeat(@Nonnull final Executor executor,
+            @Nonnull final Consumer<NetworkNeighbor> onFailure) {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(() -> drain(executor, onFailure, true));
+        }
+    }
+
+    private void queue(final OutboundState round) {
+        final OutboundState previous = pending.getAndSet(round);
+        if (null != previous) {
+            droppedCount.incrementAndGet();
+            previous.neighborDone(OutboundState.NOT_SENT);
+        }
+    }
+
+    /**
+     * Only one thread drains at a time, the one that set draining. When the
+     * channel is busy, draining stays set until the channel calls back and
+     * draining continues on the executor, so no thread waits for the
+     * neighbor.
+     */
+    private void drain(final Executor executor, final Consumer<NetworkNeighbor> onFailure, final boolean heartbeat) {
+        boolean needHeartbeat = heartbeat;
+        Resume resume = new Resume(executor, onFailure);
+        do {
+            OutboundState round;
+            while (null != (round = pending.getAndSet(null))) {
+                int bytes = OutboundState.NOT_SENT;
+                try {
+                    bytes = sendState(round, resume);
+                } catch (final IOException e) {
+                    LOGGER.error("Error sending state to neighbor " + uid, e);
+                    onFailure.accept(this);
+                }
+
+                if (CHANNEL_BUSY == bytes) {
+                    // keep the round unless a newer one was queued meanwhile
+                    if (!pending.compareAndSet(null, round)) {
+                        droppedCount.incrementAndGet();
+                        round.neighborDone(OutboundState.NOT_SENT);
+                    }
+                    if (resume.park()) {
+                        return;
+                    }
+                    // the channel called back already
+                    resume = new Resume(executor, onFailure);
+                } else {
+                    needHeartbeat = false;
+                    if (bytes >= 0) {
+                        sentCount.incrementAndGet();
+                    }
+                    round.neighborDone(bytes);
+                }
             }
+
+            if (needHeartbeat) {
+                try {
+                    if (!sendHeartbeat(resume)) {
+                        // the channel is busy, so the link is not idle
+                        if (resume.park()) {
+                            return;
+                        }
+                        resume = new Resume(executor, onFailure);
+                    }
+                } catch (final IOException e) {
+                    LOGGER.error("Got error sending heartbeat to neighbor, removing. Neighbor: " + uid, e);
+                    onFailure.accept(this);
+                }
+                needHeartbeat = false;
+            }
+
+            draining.set(false);
+            // a round may have been queued after the last check and before
+            // draining was cleared
+        } while (null != pending.get() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Passed to the channel when sending. Continues draining on the executor
+     * once the channel can take more, unless the channel calls back before
+     * the draining thread has given up.
+     */
+    private final class Resume implements Runnable {
+        private final Executor executor;
+        private final Consumer<NetworkNeighbor> onFailure;
+
+        // guarded by this
+        private boolean called = false;
+        private boolean parked = false;
+
+        Resume(final Executor executor, final Consumer<NetworkNeighbor> onFailure) {
+            this.executor = executor;
+            this.onFailure = onFailure;
         }
-        try {
-            out.close();
-        } catch (final IOException e) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Got error closing output stream, ignoring.", e);
+
+        /**
+         * Called by the draining thread after the channel did not take a
+         * frame.
+         *
+         * @return true if the draining thread should return, false if the
+         *         channel has called back already and it should keep going
+         */
+        synchronized boolean park() {
+            if (called) {
+                return false;
             }
+            parked = true;
+            busySince = System.currentTimeMillis();
+            return true;
         }
 
-        try {
-            socket.close();
-        } catch (final IOException e) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Got error closing socket, ignoring.", e);
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (called) {
+                    return;
+                }
+                called = true;
+                if (!parked) {
+                    return;
+                }
+                busySince = 0;
             }
+            executor.execute(() -> drain(executor, onFailure, false));
         }
     }
 
+    private volatile long busySince = 0;
+
+    /**
+     * @return when the channel last refused a frame and has not taken more
+     *         since, 0 if the channel is not holding anything back. Used to
+     *         disconnect neighbors that stopped reading.
+     */
+    public long getBusySince() {
+        return busySince;
+    }
+
+    /**
+     * @return number of rounds waiting to be sent, 0 or 1
+     */
+    public int getQueueDepth() {
+        return null == pending.get() ? 0 : 1;
+    }
+
+    /**
+     * @return number of rounds replaced by a newer round before they were sent
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of rounds sent to the neighbor
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    // sequence of the last state sent to the neighbor, only used by the thread
+    // sending
+    private int lastSentSequence = NO_SEQUENCE;
+
     /**
-     * Send a message to this neighbor.
-     * 
-     * @param toSend
+     * Send the state for a round to this neighbor, waiting for the channel if
+     * it is busy. A delta is sent if the neighbor received the previous round,
+     * otherwise the full state is sent.
+     *
+     * @param round
      *            what to send
+     * @return the number of bytes sent, 0 if the state was handed to the
+     *         neighbor without encoding it, {@link OutboundState#NOT_SENT} if
+     *         the link has been terminated
      * @throws IOException
-     *             when there is an error writing
-     */
-    public void sendMessage(final Map<CodePath, Object> toSend) throws IOException {
-        if (!isInterrupted()) {
-            synchronized (lock) {
-                out.writeObject(toSend);
-                out.flush();
-                lastTouched = System.currentTimeMillis();
+     *             when there is an error encoding or writing
+     */
+    public int sendState(@Nonnull final OutboundState round) throws IOException {
+        return sendState(round, null);
+    }
+
+    /**
+     * @param whenWritable
+     *            passed to {@link NeighborChannel#offer(byte[], Runnable)},
+     *            null to wait for the channel with
+     *            {@link NeighborChannel#send(byte[])}
+     * @return see {@link #sendState(OutboundState)}, {@link #CHANNEL_BUSY} if
+     *         the channel did not take the frame
+     */
+    private int sendState(final OutboundState round, final Runnable whenWritable) throws IOException {
+        synchronized (lock) {
+            if (!running) {
+                return OutboundState.NOT_SENT;
             }
+            lastTouched = System.currentTimeMillis();
         }
+
+        if (channel.sendState(round)) {
+            lastSent = System.currentTimeMillis();
+            // the next encoded frame must be a full frame
+            lastSentSequence = NO_SEQUENCE;
+            return 0;
+        }
+
+        final byte[] frame = round.getFrame(lastSentSequence);
+        if (null == whenWritable) {
+            channel.send(frame);
+        } else if (!channel.offer(frame, whenWritable)) {
+            return CHANNEL_BUSY;
+        }
+        lastSent = System.currentTimeMillis();
+
+        lastSentSequence = round.getSequence();
+        return frame.length;
+    }
+
+    private static final byte[] HEARTBEAT_FRAME = new byte[] { NeighborFrames.HEARTBEAT };
+
+    /**
+     * @return false if the channel did not take the frame
+     */
+    private boolean sendHeartbeat(final Runnable whenWritable) throws IOException {
+        synchronized (lock) {
+            if (!running) {
+                return true;
+            }
+        }
+        if (channel.offer(HEARTBEAT_FRAME, whenWritable)) {
+            lastSent = System.currentTimeMillis();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkNeighbor [" + uid + " nonce: " + nonce + "]";
     }
 
 }
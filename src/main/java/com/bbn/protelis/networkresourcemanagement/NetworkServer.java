@@ -1,9 +1,18 @@
 package com.bbn.protelis.networkresourcemanagement;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
@@ -17,8 +26,10 @@ import org.protelis.vm.impl.SimpleExecutionEnvironment;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.bbn.protelis.utils.VirtualClock;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A server in the network.
@@ -95,6 +106,90 @@ public class NetworkServer extends AbstractExecutionContext
         sleepTime = v;
     }
 
+    private volatile AdaptiveRoundPeriod adaptiveRoundPeriod = null;
+
+    /**
+     * @return the adaptive round period, null if the node always waits
+     *         {@link #getSleepTime()} between rounds
+     */
+    public final AdaptiveRoundPeriod getAdaptiveRoundPeriod() {
+        return adaptiveRoundPeriod;
+    }
+
+    /**
+     * Adapt the time between rounds to how quickly the state of the node and
+     * its neighbors changes instead of using {@link #getSleepTime()}. When
+     * the neighbor state changes during a long period the next round is moved
+     * up to at most the minimum period from then.
+     * 
+     * @param v
+     *            the adaptive round period, null to go back to the sleep time
+     */
+    public final void setAdaptiveRoundPeriod(final AdaptiveRoundPeriod v) {
+        adaptiveRoundPeriod = v;
+    }
+
+    private volatile EventTrigger eventTrigger = null;
+
+    /**
+     * @return how rounds are triggered by neighbor changes, null if they are
+     *         not
+     */
+    public final EventTrigger getEventTrigger() {
+        return eventTrigger;
+    }
+
+    /**
+     * Also run a round when new neighbor state arrives. Without changes the
+     * rounds are {@link EventTrigger#getFallbackPeriod()} apart, unless an
+     * adaptive round period is set, which then takes precedence.
+     * 
+     * @param v
+     *            how to trigger rounds, null to only run rounds periodically
+     */
+    public final void setEventTrigger(final EventTrigger v) {
+        eventTrigger = v;
+    }
+
+    private volatile long lastRoundStart = 0;
+
+    /**
+     * @return How many milliseconds this node currently waits between rounds,
+     *         the current adaptive period if set, otherwise the fallback period
+     *         of the event trigger if set, otherwise {@link #getSleepTime()}
+     */
+    public final long getCurrentRoundPeriod() {
+        final AdaptiveRoundPeriod adaptive = adaptiveRoundPeriod;
+        if (null != adaptive) {
+            return adaptive.getCurrentPeriod();
+        }
+        final EventTrigger trigger = eventTrigger;
+        if (null != trigger) {
+            return trigger.getFallbackPeriod();
+        }
+        return sleepTime;
+    }
+
+    /**
+     * Called by the network manager when the neighbor state changes.
+     */
+    private void stateChanged() {
+        final ExecutionBackend.Execution current = execution;
+        if (null == current) {
+            return;
+        }
+
+        final EventTrigger trigger = eventTrigger;
+        if (null != trigger) {
+            current.runNextRoundWithin(trigger.delayForChange(getClock().getCurrentTime(), lastRoundStart));
+        }
+
+        final AdaptiveRoundPeriod adaptive = adaptiveRoundPeriod;
+        if (null != adaptive && adaptive.getCurrentPeriod() > adaptive.getMinPeriod()) {
+            current.runNextRoundWithin(adaptive.getMinPeriod());
+        }
+    }
+
     /**
      * The neighboring nodes with the bandwidth to the neighbor.
      * 
@@ -162,12 +257,39 @@ public class NetworkServer extends AbstractExecutionContext
             @Nonnull final NodeIdentifier name,
             @Nonnull final ResourceManager<? extends NetworkServer> manager,
             @Nonnull final Map<String, Object> extraData) {
-        super(new SimpleExecutionEnvironment(), new NodeNetworkManager(nodeLookupService));
+        this(new NodeNetworkManager(nodeLookupService), regionLookupService, program, name, manager, extraData);
+    }
+
+    /**
+     * Creates a {@link NetworkServer} that communicates with its neighbors
+     * using the specified network manager.
+     * 
+     * @param networkManager
+     *            used to communicate with neighbors, see
+     *            {@link #accessNetworkManager()}
+     * @param program
+     *            the program to run on the node
+     * @param name
+     *            the name of the node (must be unique)
+     * @param regionLookupService
+     *            used by {@link #convertToSummary(ResourceReport)}
+     * @param manager
+     *            see {@link #getResourceManager()}
+     * @param extraData
+     *            data to help define extra attributes about the node
+     */
+    public NetworkServer(@Nonnull final NodeNetworkManager networkManager,
+            @Nonnull final RegionLookupService regionLookupService,
+            @Nonnull final ProtelisProgram program,
+            @Nonnull final NodeIdentifier name,
+            @Nonnull final ResourceManager<? extends NetworkServer> manager,
+            @Nonnull final Map<String, Object> extraData) {
+        super(new SimpleExecutionEnvironment(), networkManager);
         this.uid = name;
 
         final String regionName = NetworkServerProperties.parseRegionName(extraData);
         if (null != regionName) {
-            final StringRegionIdentifier region = new StringRegionIdentifier(regionName);
+            final StringRegionIdentifier region = StringRegionIdentifier.intern(regionName);
             this.region = region;
         } else {
             this.region = StringRegionIdentifier.UNKNOWN;
@@ -188,6 +310,9 @@ public class NetworkServer extends AbstractExecutionContext
 
         // Finish making the new device and add it to our collection
         vm = new ProtelisVM(program, this);
+
+        networkManager.setStateChangeListener(this::stateChanged);
+        networkManager.setRoundProfile(roundProfile);
     }
 
     /**
@@ -229,7 +354,7 @@ public class NetworkServer extends AbstractExecutionContext
 
     @Override
     public final Number getCurrentTime() {
-        return System.currentTimeMillis();
+        return getClock().getCurrentTime();
     }
 
     /**
@@ -329,58 +454,312 @@ public class NetworkServer extends AbstractExecutionContext
     }
 
     /**
-     * Execute the protolis program.
+     * Execute one round of the protelis program.
+     * 
+     * @return true if the node should keep executing
      */
-    private void run() {
-        while (running) {
-            try {
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("{}: Executing preRunCycle", getNodeIdentifier());
-                }
-                preRunCycle();
-                if (!running) {
-                    break;
-                }
+    private boolean runRound() {
+        final long roundStart = getClock().getCurrentTime();
+        lastRoundStart = roundStart;
+        final long planned = plannedRoundStart;
+        if (planned >= 0) {
+            roundProfile.recordStart(planned, roundStart);
+        }
+        try {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("{}: Executing preRunCycle", getNodeIdentifier());
+            }
+            final long preStart = System.nanoTime();
+            preRunCycle();
+            final long runStart = System.nanoTime();
+            roundProfile.record(RoundProfile.Phase.PRE_RUN_CYCLE, runStart - preStart);
+            if (!running) {
+                return false;
+            }
 
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("{}: runCycle", getNodeIdentifier());
-                }
-                getVM().runCycle(); // execute the Protelis program
-                incrementExecutionCount();
-                if (!running) {
-                    break;
-                }
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("{}: runCycle", getNodeIdentifier());
+            }
+            getVM().runCycle(); // execute the Protelis program
+            incrementExecutionCount();
+            final long postStart = System.nanoTime();
+            roundProfile.record(RoundProfile.Phase.RUN_CYCLE, postStart - runStart);
+            if (!running) {
+                return false;
+            }
 
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("{}: Executing postRunCycle", getNodeIdentifier());
-                }
-                postRunCycle();
-                if (!running) {
-                    break;
-                }
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("{}: Executing postRunCycle", getNodeIdentifier());
+            }
+            postRunCycle();
+            final long end = System.nanoTime();
+            roundProfile.record(RoundProfile.Phase.POST_RUN_CYCLE, end - postStart);
+            roundProfile.record(RoundProfile.Phase.ROUND, end - preStart);
+            if (!running) {
+                return false;
+            }
 
+            final AdaptiveRoundPeriod adaptive = adaptiveRoundPeriod;
+            if (null != adaptive) {
+                adaptive.update(accessNetworkManager().checkAndClearStateChanged());
+            }
+
+            final StabilityListener stability = stabilityListener;
+            if (null != stability) {
+                trackStability(stability);
+            }
+
+            final int interval = checkpointInterval;
+            if (interval > 0 && running && 0 == getExecutionCount() % interval) {
+                checkpoint();
+            }
+
+            plannedRoundStart = getClock().getCurrentTime() + getCurrentRoundPeriod();
+            return true;
+        } catch (final Throwable e) {
+            LOGGER.error("Exception thrown: terminating Protelis on node: " + getName(), e);
+            programLoopException = e;
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Exiting Protelis loop on node: " + getName());
+            }
+            return false;
+        }
+    }
+
+    private volatile StabilityListener stabilityListener = null;
+
+    // only used by the round
+    private Object lastValue = null;
+    private int stableRounds = 0;
+    private long lastChangeRound = 0;
+    private long lastChangeTime = 0;
+
+    /**
+     * @return told when this node becomes stable or stops being stable, null
+     *         if stability isn't tracked
+     */
+    public final StabilityListener getStabilityListener() {
+        return stabilityListener;
+    }
+
+    /**
+     * Track whether the value of the program and the shared state stay the
+     * same from round to round. Should be set before
+     * {@link #startExecuting()}.
+     * 
+     * @param v
+     *            told when this node becomes stable or stops being stable,
+     *            null to stop tracking
+     */
+    public final void setStabilityListener(final StabilityListener v) {
+        stabilityListener = v;
+    }
+
+    /**
+     * Called at the end of a round.
+     */
+    private void trackStability(final StabilityListener listener) {
+        final Object value = getVM().getCurrentValue();
+        // always clear the flag, so it only covers this round
+        final boolean sharedChanged = accessNetworkManager().checkAndClearSharedStateChanged();
+        if (sharedChanged || !Objects.equals(value, lastValue)) {
+            final boolean wasStable = stableRounds >= listener.getStableRounds();
+            lastValue = value;
+            lastChangeRound = getExecutionCount();
+            lastChangeTime = getClock().getCurrentTime();
+            stableRounds = 0;
+            if (wasStable) {
+                listener.nodeUnstable(this);
+            }
+        } else {
+            ++stableRounds;
+            if (stableRounds == listener.getStableRounds()) {
+                listener.nodeStable(this, lastChangeRound, lastChangeTime);
+            }
+        }
+    }
+
+    private final RoundProfile roundProfile = new RoundProfile(this::getExecutionCount);
+
+    // clock time the next round should start at if it waits the whole round
+    // period, negative before the first round
+    private volatile long plannedRoundStart = -1;
+
+    /**
+     * The profile is registered with JMX while the node executes.
+     * 
+     * @return where the round time of this node goes
+     */
+    @Nonnull
+    public final RoundProfile getRoundProfile() {
+        return roundProfile;
+    }
+
+    /**
+     * Writes the checkpoints of all nodes, one at a time so that the
+     * checkpoints of a node are written in order.
+     */
+    private static final ExecutorService CHECKPOINT_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("node-checkpoint-%d").setDaemon(true).build());
+
+    /**
+     * Default value for {@link #getCheckpointInterval()}.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+
+    private volatile Path checkpointFile = null;
+
+    /**
+     * @return where the state of the node is saved, null if it isn't
+     * @see #setCheckpointFile(Path)
+     */
+    public final Path getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    /**
+     * Save the state of the node every {@link #getCheckpointInterval()} rounds
+     * and when it stops, and restore it when it starts. This lets a restarted
+     * node rejoin with the region summaries, plans and neighbor state it had
+     * instead of reconverging from scratch. The state of the Protelis VM
+     * itself isn't saved, the program starts over but sees the old state of
+     * its neighbors until they reconnect. Should be set before
+     * {@link #startExecuting()}.
+     * 
+     * @param v
+     *            where to save the state of the node, null to not save it
+     * @see NodeCheckpoint
+     */
+    public final void setCheckpointFile(final Path v) {
+        checkpointFile = v;
+    }
+
+    private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /**
+     * @return how many rounds between saving the state of the node, 0 to only
+     *         save it when the node stops
+     * @see #setCheckpointFile(Path)
+     */
+    public final int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @param v
+     *            see {@link #getCheckpointInterval()}
+     * @throws IllegalArgumentException
+     *             if the value is negative
+     */
+    public final void setCheckpointInterval(final int v) {
+        if (v < 0) {
+            throw new IllegalArgumentException("Checkpoint interval must not be negative: " + v);
+        }
+        checkpointInterval = v;
+    }
+
+    // only one checkpoint of this node waits for the executor at a time
+    private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+
+    /**
+     * Take a checkpoint and write it in the background, unless the previous
+     * one hasn't been written yet.
+     * 
+     * @return the write, null if no checkpoint was taken
+     */
+    private Future<?> checkpoint() {
+        final Path file = checkpointFile;
+        if (null == file || !checkpointPending.compareAndSet(false, true)) {
+            return null;
+        }
+
+        final NodeCheckpoint checkpoint;
+        try {
+            // the neighbor state and network state are taken on the caller
+            // thread, only the file is written in the background
+            checkpoint = new NodeCheckpoint(getExecutionCount(), getClock().getCurrentTime(), getNetworkState(),
+                    accessNetworkManager().getNeighborState(), accessNetworkManager().getCodec());
+        } catch (final IOException e) {
+            checkpointPending.set(false);
+            LOGGER.warn("Unable to take checkpoint of node " + getName(), e);
+            return null;
+        }
+
+        return CHECKPOINT_EXECUTOR.submit(() -> {
+            checkpointPending.set(false);
+            try {
+                checkpoint.write(file);
                 if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("{}: sleep", getNodeIdentifier());
+                    LOGGER.trace("Node {} wrote checkpoint {} to {}", getName(), checkpoint, file);
                 }
-                Thread.sleep(sleepTime);
-            } catch (final InterruptedException e) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Node " + getName() + " got interrupted, waking up to check if it's time to exit", e);
-                }
-            } catch (final Throwable e) {
-                LOGGER.error("Exception thrown: terminating Protelis on node: " + getName(), e);
-                programLoopException = e;
-                break;
+            } catch (final IOException e) {
+                LOGGER.warn("Unable to write checkpoint of node " + getName() + " to " + file, e);
             }
+        });
+    }
+
+    /**
+     * Restore the checkpoint written by a previous run, if any. A checkpoint
+     * that can't be read or is for another region is ignored and the node
+     * starts from scratch.
+     */
+    private void restoreCheckpoint() {
+        final Path file = checkpointFile;
+        if (null == file || !Files.exists(file)) {
+            return;
         }
-        if (LOGGER.isTraceEnabled()) {
-            LOGGER.trace("Exiting Protelis loop on node: " + getName());
+
+        try {
+            final NodeCheckpoint checkpoint = NodeCheckpoint.read(file);
+            if (!checkpoint.getRegion().equals(getNetworkState().getRegion())) {
+                LOGGER.warn("Ignoring checkpoint {} of node {} for region {}, the node is in region {}", file,
+                        getName(), checkpoint.getRegion(), getNetworkState().getRegion());
+                return;
+            }
+
+            accessNetworkManager()
+                    .restoreNeighborState(checkpoint.decodeNeighborState(accessNetworkManager().getCodec()));
+            checkpoint.restoreNetworkState(getNetworkState());
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Node {} restored checkpoint {}", getName(), checkpoint);
+            }
+        } catch (final IOException e) {
+            LOGGER.warn("Unable to restore checkpoint of node " + getName() + " from " + file + ", starting over", e);
         }
     }
 
     private final Object lock = new Object();
 
-    private Thread executeThread = null;
+    private ExecutionBackend executionBackend = DedicatedThreadBackend.INSTANCE;
+
+    /**
+     * @return what executes the rounds of this node, defaults to
+     *         {@link DedicatedThreadBackend#INSTANCE}
+     */
+    @Nonnull
+    public final ExecutionBackend getExecutionBackend() {
+        synchronized (lock) {
+            return executionBackend;
+        }
+    }
+
+    /**
+     * Takes effect at the next {@link #startExecuting()}.
+     * 
+     * @param v
+     *            what executes the rounds of this node, for example a
+     *            {@link SharedSchedulerBackend} shared by all nodes in the JVM
+     * @see #getExecutionBackend()
+     */
+    public final void setExecutionBackend(@Nonnull final ExecutionBackend v) {
+        synchronized (lock) {
+            executionBackend = v;
+        }
+    }
+
+    // written with lock held, read without it by stateChanged
+    private volatile ExecutionBackend.Execution execution = null;
 
     /**
      * 
@@ -388,11 +767,11 @@ public class NetworkServer extends AbstractExecutionContext
      */
     public final boolean isExecuting() {
         synchronized (lock) {
-            return running && null != executeThread && executeThread.isAlive();
+            return running && null != execution && execution.isAlive();
         }
     }
 
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Start the node executing.
@@ -405,11 +784,45 @@ public class NetworkServer extends AbstractExecutionContext
 
             running = true;
 
+            startClock();
+            plannedRoundStart = -1;
+            roundProfile.registerMBean(getName());
+            restoreCheckpoint();
             accessNetworkManager().start(this);
 
-            executeThread = new Thread(() -> run());
-            executeThread.setName("Node-" + getName());
-            executeThread.start();
+            execution = executionBackend.start(getName(), new ExecutionBackend.Rounds() {
+                @Override
+                public boolean runRound() {
+                    return NetworkServer.this.runRound();
+                }
+
+                @Override
+                public long getSleepTime() {
+                    return getCurrentRoundPeriod();
+                }
+
+                @Override
+                @Nonnull
+                public VirtualClock getClock() {
+                    return NetworkServer.this.getClock();
+                }
+            });
+        }
+    }
+
+    /**
+     * Nodes that share a clock all start it, whoever is first wins.
+     */
+    private void startClock() {
+        final VirtualClock clock = getClock();
+        if (!clock.isStarted() && !clock.isShutdown()) {
+            try {
+                clock.startClock();
+            } catch (final IllegalStateException e) {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Clock was started by someone else", e);
+                }
+            }
         }
     }
 
@@ -437,6 +850,10 @@ public class NetworkServer extends AbstractExecutionContext
             }
             preStopExecuting();
 
+            // before the neighbors are disconnected
+            checkpointPending.set(false);
+            final Future<?> checkpointWrite = checkpoint();
+
             // stop all network communication
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Stopping network manager on node: {}", getNodeIdentifier());
@@ -444,25 +861,37 @@ public class NetworkServer extends AbstractExecutionContext
             accessNetworkManager().stop();
 
             synchronized (lock) {
-                if (null != executeThread) {
+                if (null != execution) {
                     if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("Interrupting and then joining node: {}", getNodeIdentifier());
+                        LOGGER.trace("Stopping execution of node: {}", getNodeIdentifier());
                     }
-                    executeThread.interrupt();
-
-                    try {
-                        executeThread.join(); // may want to have a timeout here
+                    execution.stop();
 
-                        if (LOGGER.isTraceEnabled()) {
-                            LOGGER.trace("Node finished: {}", getNodeIdentifier());
-                        }
-                    } catch (final InterruptedException e) {
-                        LOGGER.debug("Got interrupted waiting for join, probably just time to shutdown", e);
+                    if (LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Node finished: {}", getNodeIdentifier());
                     }
-                    executeThread = null;
-                } // non-null executeThread
+                    execution = null;
+                } // non-null execution
             } // lock
+
+            waitForCheckpoint(checkpointWrite);
         } // isExecuting
+
+        // also when the node stopped on its own
+        roundProfile.unregisterMBean();
+    }
+
+    private void waitForCheckpoint(final Future<?> write) {
+        if (null == write) {
+            return;
+        }
+        try {
+            write.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            LOGGER.warn("Unable to write checkpoint of node " + getName(), e);
+        }
     }
 
     private final ResourceManager<?> resourceManager;
@@ -475,6 +904,19 @@ public class NetworkServer extends AbstractExecutionContext
         return resourceManager;
     }
 
+    /**
+     * All time reads and waits of the node go through this clock, so a faster
+     * or manually advanced clock speeds up the node as a whole. The clock is
+     * started by {@link #startExecuting()} if needed.
+     * 
+     * @return the clock of the resource manager
+     * @see ResourceManager#getClock()
+     */
+    @Nonnull
+    public final VirtualClock getClock() {
+        return resourceManager.getClock();
+    }
+
     /**
      * Get the latest resource report. This method should be called once per
      * cycle and then used to make decisions. This method may call directly to
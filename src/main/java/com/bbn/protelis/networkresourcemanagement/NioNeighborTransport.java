@@ -0,0 +1,446 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking transport. All connections of all transports that share a
+ * {@link NioSelectorGroup} are serviced by the threads of that group, so the
+ * number of threads does not grow with the number of nodes or neighbors. The
+ * framing is the same as {@link SocketNeighborTransport} so the two can talk
+ * to each other.
+ */
+public class NioNeighborTransport implements NeighborTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioNeighborTransport.class);
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Initial size of the per connection read buffer. Grown as needed to hold
+     * the largest frame.
+     */
+    private static final int INITIAL_READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Number of frames that may be waiting to be written to a connection. When
+     * the queue is full {@link NeighborChannel#offer(byte[], Runnable)} does
+     * not take the frame so that a slow neighbor applies back pressure to the
+     * queue in {@link NetworkNeighbor} rather than growing the write queue.
+     */
+    private static final int MAX_QUEUED_FRAMES = 1;
+
+    /**
+     * Each frame is queued as a header buffer and a payload buffer.
+     */
+    private static final int BUFFERS_PER_FRAME = 2;
+
+    private final NioSelectorGroup group;
+
+    private final Object lock = new Object();
+
+    private boolean running = false;
+
+    private ServerSocketChannel server = null;
+
+    private final Set<NioChannel> channels = new HashSet<>();
+
+    /**
+     * Use {@link NioSelectorGroup#getDefault()}.
+     */
+    public NioNeighborTransport() {
+        this(NioSelectorGroup.getDefault());
+    }
+
+    /**
+     *
+     * @param group
+     *            the I/O threads to use
+     */
+    public NioNeighborTransport(@Nonnull final NioSelectorGroup group) {
+        this.group = group;
+    }
+
+    @Override
+    public void start(@Nonnull final NodeNetworkManager manager, @Nonnull final InetSocketAddress listenAddress) {
+        final int port = listenAddress.getPort();
+        try {
+            final ServerSocketChannel ch = ServerSocketChannel.open();
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            ch.bind(new InetSocketAddress(port));
+            ch.configureBlocking(false);
+
+            synchronized (lock) {
+                running = true;
+                server = ch;
+            }
+
+            final NioSelectorGroup.EventLoop loop = group.nextLoop();
+            loop.execute(() -> {
+                try {
+                    ch.register(loop.getSelector(), SelectionKey.OP_ACCEPT,
+                            (NioSelectorGroup.IoHandler) key -> accept(manager, ch));
+                } catch (final IOException e) {
+                    LOGGER.error("Node: " + manager.getNodeName() + " unable to accept neighbors on port " + port, e);
+                }
+            });
+            LOGGER.info("Node: " + manager.getNodeName() + " listening for neighbors on port " + port);
+        } catch (final IOException e) {
+            LOGGER.error("Node: " + manager.getNodeName() + " unable to listen for neighbors on port " + port, e);
+        }
+    }
+
+    private void accept(final NodeNetworkManager manager, final ServerSocketChannel ch) {
+        try {
+            SocketChannel s;
+            while (null != (s = ch.accept())) {
+                final NioChannel channel = new NioChannel(manager, s, false, 0);
+                channel.register(SelectionKey.OP_READ);
+            }
+        } catch (final IOException e) {
+            if (isRunning()) {
+                LOGGER.warn("Node: " + manager.getNodeName() + " received I/O exception accepting connections", e);
+            }
+        }
+    }
+
+    private boolean isRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    @Override
+    public void connect(@Nonnull final NodeNetworkManager manager,
+            @Nonnull final InetSocketAddress neighborAddress,
+            final long connectTimeoutMs) {
+        try {
+            final SocketChannel s = SocketChannel.open();
+            s.configureBlocking(false);
+            final boolean connected = s.connect(neighborAddress);
+            final NioChannel channel = new NioChannel(manager, s, true, RANDOM.nextInt());
+            channel.register(connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+            NeighborConnectionManager.schedule(channel::connectTimeout, connectTimeoutMs);
+        } catch (final IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Couldn't connect to neighbor: " + neighborAddress, e);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        final Set<NioChannel> toStop = new HashSet<>();
+        synchronized (lock) {
+            running = false;
+            if (null != server) {
+                try {
+                    server.close();
+                } catch (final IOException e) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Error closing server socket", e);
+                    }
+                }
+                server = null;
+            }
+            toStop.addAll(channels);
+            channels.clear();
+        }
+        toStop.forEach(NioChannel::close);
+    }
+
+    @Override
+    public int getIoThreadCount() {
+        return group.getThreadCount();
+    }
+
+    /**
+     * A non-blocking connection. All I/O happens on the loop thread,
+     * {@link #send(byte[])} only queues the frame.
+     */
+    private final class NioChannel implements NeighborChannel, NioSelectorGroup.IoHandler {
+        private final NodeNetworkManager manager;
+        private final SocketChannel socket;
+        private final boolean initiator;
+        private final int nonce;
+        private final NioSelectorGroup.EventLoop loop;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        private final Object writeLock = new Object();
+        private final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        private boolean flushScheduled = false;
+        private Runnable whenWritable = null;
+
+        // only accessed on the loop thread
+        private SelectionKey key = null;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+        private NetworkNeighbor neighbor = null;
+
+        NioChannel(final NodeNetworkManager manager,
+                final SocketChannel socket,
+                final boolean initiator,
+                final int nonce) throws IOException {
+            this.manager = manager;
+            this.socket = socket;
+            this.initiator = initiator;
+            this.nonce = nonce;
+            this.loop = group.nextLoop();
+            socket.configureBlocking(false);
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        void register(final int ops) {
+            synchronized (lock) {
+                channels.add(this);
+            }
+
+            loop.execute(() -> {
+                try {
+                    key = socket.register(loop.getSelector(), ops, this);
+                    if (0 == (ops & SelectionKey.OP_CONNECT)) {
+                        connected();
+                    }
+                } catch (final IOException e) {
+                    fail(e);
+                }
+            });
+        }
+
+        /**
+         * Give up if the hello exchange has not completed.
+         */
+        void connectTimeout() {
+            loop.execute(() -> {
+                if (null == neighbor && !closed.get()) {
+                    fail(new IOException("Timed out connecting to neighbor"));
+                }
+            });
+        }
+
+        private void connected() throws IOException {
+            send(new NeighborFrames.Hello(manager.getNodeIdentifier(), nonce).encode());
+        }
+
+        @Override
+        public void ready(@Nonnull final SelectionKey readyKey) {
+            try {
+                if (readyKey.isConnectable()) {
+                    socket.finishConnect();
+                    readyKey.interestOps(SelectionKey.OP_READ);
+                    connected();
+                }
+                if (readyKey.isValid() && readyKey.isReadable()) {
+                    read();
+                }
+                if (readyKey.isValid() && readyKey.isWritable()) {
+                    flush();
+                }
+            } catch (final IOException e) {
+                fail(e);
+            }
+        }
+
+        private void read() throws IOException {
+            while (true) {
+                final int count = socket.read(readBuffer);
+                if (count < 0) {
+                    throw new IOException("Neighbor closed the connection");
+                }
+
+                readBuffer.flip();
+                int needed = 0;
+                while (readBuffer.remaining() >= NeighborFrames.HEADER_LENGTH) {
+                    final int length = readBuffer.getInt(readBuffer.position());
+                    NeighborFrames.checkLength(length);
+                    if (readBuffer.remaining() < NeighborFrames.HEADER_LENGTH + length) {
+                        needed = NeighborFrames.HEADER_LENGTH + length;
+                        break;
+                    }
+                    readBuffer.getInt();
+                    final byte[] frame = new byte[length];
+                    readBuffer.get(frame);
+                    receive(frame);
+                    if (closed.get()) {
+                        return;
+                    }
+                }
+                readBuffer.compact();
+
+                if (needed > readBuffer.capacity()) {
+                    final ByteBuffer bigger = ByteBuffer.allocate(Math.max(needed, readBuffer.capacity() * 2));
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                } else if (0 == count) {
+                    return;
+                }
+            }
+        }
+
+        private void receive(final byte[] frame) throws IOException {
+            if (null == neighbor) {
+                final NeighborFrames.Hello hello = NeighborFrames.Hello.decode(frame);
+                final int linkNonce = initiator ? nonce : hello.getNonce();
+                neighbor = manager.addNeighbor(hello.getUid(), linkNonce, this);
+                if (null == neighbor) {
+                    close();
+                }
+            } else {
+                neighbor.receiveFrame(frame);
+            }
+        }
+
+        @Override
+        public void send(final byte[] frame) throws IOException {
+            synchronized (writeLock) {
+                if (!loop.inLoop()) {
+                    while (!closed.get() && isFull()) {
+                        try {
+                            writeLock.wait();
+                        } catch (final InterruptedException e) {
+                            throw new IOException("Interrupted waiting to send", e);
+                        }
+                    }
+                }
+                enqueue(frame);
+            }
+        }
+
+        @Override
+        public boolean offer(final byte[] frame, final Runnable callback) throws IOException {
+            synchronized (writeLock) {
+                if (!closed.get() && isFull()) {
+                    whenWritable = callback;
+                    return false;
+                }
+                enqueue(frame);
+                return true;
+            }
+        }
+
+        // must hold writeLock
+        private boolean isFull() {
+            return writes.size() >= MAX_QUEUED_FRAMES * BUFFERS_PER_FRAME;
+        }
+
+        // must hold writeLock
+        private void enqueue(final byte[] frame) throws IOException {
+            if (closed.get()) {
+                throw new IOException("Connection is closed");
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(NeighborFrames.HEADER_LENGTH);
+            header.putInt(frame.length);
+            header.flip();
+
+            // the frame may be shared with other neighbors, wrap rather than
+            // copy it
+            writes.add(header);
+            writes.add(ByteBuffer.wrap(frame));
+            if (!flushScheduled) {
+                flushScheduled = true;
+                loop.execute(() -> {
+                    try {
+                        flush();
+                    } catch (final IOException e) {
+                        fail(e);
+                    }
+                });
+            }
+        }
+
+        private void flush() throws IOException {
+            if (null == key || !key.isValid()) {
+                return;
+            }
+
+            Runnable callback = null;
+            synchronized (writeLock) {
+                while (!writes.isEmpty()) {
+                    final ByteBuffer buffer = writes.peek();
+                    socket.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                    writes.poll();
+                    writeLock.notifyAll();
+                }
+
+                if (writes.isEmpty()) {
+                    flushScheduled = false;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+
+                if (!isFull()) {
+                    callback = whenWritable;
+                    whenWritable = null;
+                }
+            }
+            // outside the lock as the callback may offer the next frame
+            if (null != callback) {
+                callback.run();
+            }
+        }
+
+        private void fail(final IOException e) {
+            if (!closed.get()) {
+                if (null == neighbor) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Node: " + manager.getNodeName() + " failed to create link to neighbor", e);
+                    }
+                } else {
+                    LOGGER.error("Node: " + manager.getNodeName() + " failed to communicate with neighbor "
+                            + neighbor.getUid(), e);
+                }
+            }
+            close();
+            if (null != neighbor) {
+                manager.removeNeighbor(neighbor);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                synchronized (lock) {
+                    channels.remove(this);
+                }
+                final Runnable callback;
+                synchronized (writeLock) {
+                    callback = whenWritable;
+                    whenWritable = null;
+                    writeLock.notifyAll();
+                }
+                try {
+                    socket.close();
+                } catch (final IOException e) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Got error closing socket, ignoring.", e);
+                    }
+                }
+                if (null != callback) {
+                    callback.run();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A fixed set of I/O threads, each with its own {@link Selector}, that service
+ * the connections of any number of {@link NioNeighborTransport}s. One group is
+ * normally shared by every node in the process, see {@link #getDefault()}.
+ */
+public final class NioSelectorGroup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NioSelectorGroup.class);
+
+    /**
+     * Maximum number of threads used by the default group.
+     */
+    public static final int DEFAULT_MAX_THREADS = 4;
+
+    private static NioSelectorGroup defaultGroup = null;
+
+    /**
+     * The default group has one thread per processor up to
+     * {@link #DEFAULT_MAX_THREADS}. The threads are daemon threads and the
+     * group is never shutdown.
+     *
+     * @return the group shared by all transports that don't specify one
+     */
+    @Nonnull
+    public static synchronized NioSelectorGroup getDefault() {
+        if (null == defaultGroup) {
+            final int threads = Math.max(1,
+                    Math.min(DEFAULT_MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            defaultGroup = new NioSelectorGroup(threads);
+        }
+        return defaultGroup;
+    }
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Create and start the I/O threads.
+     *
+     * @param threadCount
+     *            the number of I/O threads, must be positive
+     * @throws UncheckedIOException
+     *             if a selector cannot be opened
+     */
+    public NioSelectorGroup(final int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+        }
+
+        final ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("nio-neighbor-%d").setDaemon(true)
+                .build();
+        loops = new EventLoop[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            try {
+                loops[i] = new EventLoop(Selector.open());
+            } catch (final IOException e) {
+                throw new UncheckedIOException("Unable to open selector", e);
+            }
+            factory.newThread(loops[i]).start();
+        }
+    }
+
+    /**
+     * @return the number of I/O threads in this group
+     */
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * Stop all I/O threads. Channels registered with the group are not
+     * closed.
+     */
+    public void shutdown() {
+        for (final EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * @return the loop to register the next channel with
+     */
+    @Nonnull
+    /* package */ EventLoop nextLoop() {
+        final int index = Math.floorMod(next.getAndIncrement(), loops.length);
+        return loops[index];
+    }
+
+    /**
+     * Attached to each {@link SelectionKey} registered with an
+     * {@link EventLoop}.
+     */
+    /* package */ interface IoHandler {
+        /**
+         * Called on the loop thread when the key is ready.
+         *
+         * @param key
+         *            the ready key
+         */
+        void ready(@Nonnull SelectionKey key);
+    }
+
+    /**
+     * A single I/O thread.
+     */
+    /* package */ static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        private volatile Thread thread = null;
+
+        EventLoop(final Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * @return the selector to register channels with, only use from the
+         *         loop thread
+         */
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * Run a task on the loop thread.
+         *
+         * @param task
+         *            the task to run
+         */
+        void execute(@Nonnull final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * @return true if the current thread is the loop thread
+         */
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while (null != (task = tasks.poll())) {
+                        runSafely(task);
+                    }
+
+                    final Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        final SelectionKey key = iter.next();
+                        iter.remove();
+                        if (key.isValid()) {
+                            final IoHandler handler = (IoHandler) key.attachment();
+                            runSafely(() -> handler.ready(key));
+                        }
+                    }
+                } catch (final IOException | ClosedSelectorException e) {
+                    LOGGER.error("Error selecting, stopping I/O thread " + Thread.currentThread().getName(), e);
+                    running = false;
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (final IOException e) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Error closing selector", e);
+                }
+            }
+        }
+
+        private static void runSafely(final Runnable task) {
+            try {
+                task.run();
+            } catch (final RuntimeException e) {
+                LOGGER.error("Unexpected exception on I/O thread, continuing", e);
+            }
+        }
+    }
+
+}
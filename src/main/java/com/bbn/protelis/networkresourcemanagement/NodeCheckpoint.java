@@ -0,0 +1,199 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.util.CodePath;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * What a {@link NetworkServer} needs to rejoin the network with nearly
+ * converged values after a restart: the state last received from each
+ * neighbor and the {@link NetworkState} of the node. The neighbor state is
+ * stored in the format of the node's {@link SharedStateCodec}, so it can only
+ * be restored with the same codec.
+ *
+ * @see NetworkServer#setCheckpointFile(Path)
+ */
+public final class NodeCheckpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final long executionCount;
+    private final long time;
+    private final RegionIdentifier region;
+    private final ResourceSummary shortRegionSummary;
+    private final ResourceSummary longRegionSummary;
+    private final RegionPlan regionPlan;
+    private final LoadBalancerPlan loadBalancerPlan;
+    private final HashMap<DeviceUID, byte[]> neighborState;
+
+    /**
+     * Encodes the neighbor state, the network state is referenced as the
+     * objects in it are replaced rather than modified.
+     *
+     * @param executionCount
+     *            see {@link #getExecutionCount()}
+     * @param time
+     *            see {@link #getTime()}
+     * @param networkState
+     *            the network state of the node
+     * @param neighborState
+     *            the state last received from each neighbor
+     * @param codec
+     *            the codec of the node
+     * @throws IOException
+     *             if the neighbor state cannot be encoded
+     */
+    /* package */ NodeCheckpoint(final long executionCount,
+            final long time,
+            @Nonnull final NetworkState networkState,
+            @Nonnull final Map<DeviceUID, Map<CodePath, Object>> neighborState,
+            @Nonnull final SharedStateCodec codec) throws IOException {
+        this.executionCount = executionCount;
+        this.time = time;
+        this.region = networkState.getRegion();
+        this.shortRegionSummary = networkState.getRegionSummary(ResourceReport.EstimationWindow.SHORT);
+        this.longRegionSummary = networkState.getRegionSummary(ResourceReport.EstimationWindow.LONG);
+        this.regionPlan = networkState.getRegionPlan();
+        this.loadBalancerPlan = networkState.getLoadBalancerPlan();
+        this.neighborState = new HashMap<>();
+        for (final Map.Entry<DeviceUID, Map<CodePath, Object>> entry : neighborState.entrySet()) {
+            this.neighborState.put(entry.getKey(), codec.encode(entry.getValue()));
+        }
+    }
+
+    /**
+     * @return the number of rounds the node had executed when the checkpoint
+     *         was taken
+     */
+    public long getExecutionCount() {
+        return executionCount;
+    }
+
+    /**
+     * @return the time on the clock of the node when the checkpoint was taken
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the region of the node when the checkpoint was taken
+     */
+    @Nonnull
+    public RegionIdentifier getRegion() {
+        return region;
+    }
+
+    /**
+     * @return the neighbors that have state in the checkpoint
+     */
+    public int getNeighborCount() {
+        return neighborState.size();
+    }
+
+    /**
+     * Copy the saved region summaries and plans into the network state.
+     *
+     * @param networkState
+     *            the network state to update
+     * @throws IllegalArgumentException
+     *             if the network state is for a different region than the
+     *             checkpoint
+     */
+    /* package */ void restoreNetworkState(@Nonnull final NetworkState networkState) {
+        if (!region.equals(networkState.getRegion())) {
+            throw new IllegalArgumentException(
+                    "Checkpoint is for region " + region + ", the network state is for " + networkState.getRegion());
+        }
+        networkState.setRegionSummary(shortRegionSummary);
+        networkState.setRegionSummary(longRegionSummary);
+        networkState.setRegionPlan(regionPlan);
+        networkState.setLoadBalancerPlan(loadBalancerPlan);
+    }
+
+    /**
+     * @param codec
+     *            the codec the checkpoint was created with
+     * @return the state last received from each neighbor
+     * @throws IOException
+     *             if the state cannot be decoded
+     */
+    @Nonnull
+    /* package */ ImmutableMap<DeviceUID, Map<CodePath, Object>> decodeNeighborState(
+            @Nonnull final SharedStateCodec codec) throws IOException {
+        final ImmutableMap.Builder<DeviceUID, Map<CodePath, Object>> builder = ImmutableMap.builder();
+        for (final Map.Entry<DeviceUID, byte[]> entry : neighborState.entrySet()) {
+            builder.put(entry.getKey(), codec.decode(entry.getValue()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Write the checkpoint compressed to a temporary file next to the
+     * destination and move it in place, so a node that dies while writing
+     * leaves the previous checkpoint intact.
+     *
+     * @param file
+     *            where to write the checkpoint
+     * @throws IOException
+     *             if the checkpoint cannot be written
+     */
+    public void write(@Nonnull final Path file) throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))) {
+            out.writeObject(this);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param file
+     *            a file written by {@link #write(Path)}
+     * @return the checkpoint
+     * @throws IOException
+     *             if the file cannot be read or does not contain a checkpoint
+     */
+    @Nonnull
+    public static NodeCheckpoint read(@Nonnull final Path file) throws IOException {
+        final Object incoming;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new GZIPInputStream(new BufferedInputStream(Files.newInputStream(file))))) {
+            incoming = in.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException("Unable to read checkpoint " + file, e);
+        }
+
+        if (incoming instanceof NodeCheckpoint) {
+            return (NodeCheckpoint) incoming;
+        } else {
+            throw new IOException("Not a checkpoint: " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[round: " + executionCount + " time: " + time + " region: " + region + " neighbors: "
+                + neighborState.size() + "]";
+    }
+
+}
@@ -1,14 +1,17 @@
 package com.bbn.protelis.networkresourcemanagement;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
 
 import org.protelis.lang.datatype.DeviceUID;
 import org.protelis.lang.datatype.Tuple;
@@ -17,6 +20,10 @@ import org.protelis.vm.util.CodePath;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.bbn.protelis.utils.TimerWheel;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Network manager for a {@link NetworkServer}.
  */
@@ -24,33 +31,261 @@ public class NodeNetworkManager implements NetworkManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(NodeNetworkManager.class);
 
-    private static final Random RANDOM = new Random();
+    /**
+     * Threads used to send state to neighbors when
+     * {@link #isAsynchronousSend()} is true, to send state that a busy channel
+     * could not take and to send heartbeats. Shared by all managers, each
+     * neighbor uses at most one thread at a time. The pool is sized to the
+     * number of cores so that the thread count does not grow with the number
+     * of neighbors in the JVM. The threads never wait for a neighbor, a
+     * channel that is busy calls back when it can take more.
+     */
+    private static final ExecutorService SEND_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("neighbor-send-%d").setDaemon(true).build());
+
+    /**
+     * Advances the liveness timer wheels of all managers.
+     */
+    private static final ScheduledExecutorService LIVENESS_EXECUTOR = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("neighbor-liveness-%d").setDaemon(true).build());
+
+    /**
+     * Resolution of the heartbeat and timeout checks.
+     */
+    private static final long LIVENESS_TICK_MS = 50;
+
+    /**
+     * Number of buckets in the liveness timer wheel. With the default tick
+     * this covers timeouts of up to about 12 seconds in a single turn.
+     */
+    private static final int LIVENESS_WHEEL_SIZE = 256;
 
     private final NodeLookupService lookupService;
+    private final NeighborTransport transport;
+    private final SharedStateCodec codec;
     private final Object lock = new Object();
 
     private NetworkServer node;
 
     /**
+     * Create a manager that uses a {@link SocketNeighborTransport}.
      * 
      * @param lookupService
      *            how to find other nodes
      */
     public NodeNetworkManager(final NodeLookupService lookupService) {
+        this(lookupService, new SocketNeighborTransport());
+    }
+
+    /**
+     * 
+     * @param lookupService
+     *            how to find other nodes
+     * @param transport
+     *            how to talk to the neighbors, owned by this manager
+     */
+    public NodeNetworkManager(@Nonnull final NodeLookupService lookupService,
+            @Nonnull final NeighborTransport transport) {
+        this(lookupService, transport, new BinarySharedStateCodec());
+    }
+
+    /**
+     * 
+     * @param lookupService
+     *            how to find other nodes
+     * @param transport
+     *            how to talk to the neighbors, owned by this manager
+     * @param codec
+     *            how to encode the shared state, must match the codec used by
+     *            the neighbors
+     */
+    public NodeNetworkManager(@Nonnull final NodeLookupService lookupService,
+            @Nonnull final NeighborTransport transport,
+            @Nonnull final SharedStateCodec codec) {
         this.lookupService = lookupService;
+        this.transport = transport;
+        this.codec = codec;
+        this.connectionManager = new NeighborConnectionManager(this);
+    }
+
+    private final NeighborConnectionManager connectionManager;
+
+    /**
+     * @return dials the neighbors of the node and reports how long it took to
+     *         connect to all of them
+     */
+    @Nonnull
+    public NeighborConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Incremented whenever a neighbor is added or removed or publishes state
+     * that differs from its previous state.
+     */
+    private final AtomicLong neighborStateVersion = new AtomicLong(0);
+
+    private volatile NeighborStateView neighborStateView = new NeighborStateView(0, ImmutableMap.of());
+
+    /**
+     * The immutable view of the neighbor state along with the version it was
+     * built from.
+     */
+    private static final class NeighborStateView {
+        private final long version;
+        private final ImmutableMap<DeviceUID, Map<CodePath, Object>> state;
+
+        NeighborStateView(final long version, final ImmutableMap<DeviceUID, Map<CodePath, Object>> state) {
+            this.version = version;
+            this.state = state;
+        }
+    }
+
+    private void neighborStateChanged() {
+        neighborStateVersion.incrementAndGet();
+        stateChanged.set(true);
+        final Runnable listener = stateChangeListener;
+        if (null != listener) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Set when the shared state or the neighbor state changes, cleared by
+     * {@link #checkAndClearStateChanged()}.
+     */
+    private final AtomicBoolean stateChanged = new AtomicBoolean(true);
+
+    private volatile Runnable stateChangeListener = null;
+
+    /**
+     * Used by adaptive scheduling to find out if anything happened during a
+     * round.
+     * 
+     * @return true if the state shared by this node differs from the state it
+     *         shared before or the state of a neighbor changed or a neighbor
+     *         was added or removed since the previous call. True for the first
+     *         call.
+     */
+    public boolean checkAndClearStateChanged() {
+        return stateChanged.getAndSet(false);
+    }
+
+    /**
+     * Only the state shared by this node, not the state of the neighbors.
+     */
+    private final AtomicBoolean sharedStateChanged = new AtomicBoolean(true);
+
+    /**
+     * Used by convergence detection.
+     * 
+     * @return true if the state shared by this node differs from the state it
+     *         shared before since the previous call. True for the first call.
+     */
+    /* package */ boolean checkAndClearSharedStateChanged() {
+        return sharedStateChanged.getAndSet(false);
+    }
+
+    /**
+     * @param listener
+     *            called when a neighbor is added or removed or its state
+     *            changes, may be called with the lock held so must not call
+     *            back into this object. May be null.
+     */
+    /* package */ void setStateChangeListener(final Runnable listener) {
+        stateChangeListener = listener;
+    }
+
+    private volatile RoundProfile roundProfile = null;
+
+    /**
+     * @param profile
+     *            where to record the time spent sharing state, may be null
+     */
+    /* package */ void setRoundProfile(final RoundProfile profile) {
+        roundProfile = profile;
     }
 
+    /**
+     * The returned map and the neighbor state in it are immutable snapshots.
+     * No locks are taken and the same object is returned until a neighbor
+     * changes, so reading the state costs nothing when nothing changed and
+     * otherwise only one map entry per neighbor. The state of each neighbor is
+     * never copied.
+     */
     @Override
-    public Map<DeviceUID, Map<CodePath, Object>> getNeighborState() {
-        final Map<DeviceUID, Map<CodePath, Object>> retval = new HashMap<>();
+    @Nonnull
+    public ImmutableMap<DeviceUID, Map<CodePath, Object>> getNeighborState() {
+        final long version = neighborStateVersion.get();
+        final NeighborStateView view = neighborStateView;
+        if (view.version == version) {
+            return view.state;
+        }
+
+        final ImmutableMap.Builder<DeviceUID, Map<CodePath, Object>> builder = ImmutableMap.builder();
+        final ImmutableMap<DeviceUID, NetworkNeighbor> current = neighbors;
+        current.forEach((uid, neighbor) -> builder.put(uid, neighbor.getSharedValues()));
+        restoredNeighborState.forEach((uid, state) -> {
+            if (!current.containsKey(uid)) {
+                builder.put(uid, state);
+            }
+        });
+        final NeighborStateView newView = new NeighborStateView(version, builder.build());
+        // if a newer version is published meanwhile the next call rebuilds
+        neighborStateView = newView;
+        return newView.state;
+    }
+
+    // immutable, replaced with the lock held
+    private volatile ImmutableMap<DeviceUID, Map<CodePath, Object>> restoredNeighborState = ImmutableMap.of();
 
+    /**
+     * Seed {@link #getNeighborState()} with state from a checkpoint, so the
+     * program sees its old neighbors until they reconnect. The state of a
+     * neighbor is dropped when it connects, the rest once
+     * {@link #getNeighborTimeoutMs()} has passed after {@link #start(NetworkServer)}
+     * without hearing from them. Must be called before the manager is started.
+     *
+     * @param state
+     *            the state last received from each neighbor
+     * @throws IllegalStateException
+     *             if the manager is running
+     */
+    /* package */ void restoreNeighborState(@Nonnull final Map<DeviceUID, Map<CodePath, Object>> state) {
         synchronized (lock) {
-            for (final Map.Entry<DeviceUID, NetworkNeighbor> entry : nbrs.entrySet()) {
-                retval.put(entry.getKey(), entry.getValue().getSharedValues());
+            if (running) {
+                throw new IllegalStateException("Neighbor state can only be restored before starting");
             }
+            restoredNeighborState = ImmutableMap.copyOf(state);
+            neighborStateChanged();
+        }
+    }
+
+    // must hold lock
+    private void forgetRestoredNeighbor(@Nonnull final DeviceUID uid) {
+        if (restoredNeighborState.containsKey(uid)) {
+            final ImmutableMap.Builder<DeviceUID, Map<CodePath, Object>> builder = ImmutableMap.builder();
+            restoredNeighborState.forEach((k, v) -> {
+                if (!k.equals(uid)) {
+                    builder.put(k, v);
+                }
+            });
+            restoredNeighborState = builder.build();
         }
+    }
 
-        return retval;
+    private void expireRestoredNeighborState() {
+        synchronized (lock) {
+            if (!restoredNeighborState.isEmpty()) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Node: {} dropping restored state of neighbors that didn't reconnect: {}",
+                            getNodeName(), restoredNeighborState.keySet());
+                }
+                restoredNeighborState = ImmutableMap.of();
+                neighborStateChanged();
+            }
+        }
     }
 
     private static void unwrapAndLog(final int depth, final Object o) {
@@ -114,13 +349,150 @@ public class NodeNetworkManager implements NetworkManager {
         }
     }
 
+    /**
+     * Default value for {@link #getFullStateInterval()}.
+     */
+    public static final int DEFAULT_FULL_STATE_INTERVAL = 10;
+
+    private volatile boolean deltaEncoding = false;
+
+    /**
+     * When delta encoding is enabled only the entries that changed since the
+     * last message are sent to each neighbor, with the full state sent every
+     * {@link #getFullStateInterval()} messages. This only affects what this
+     * node sends, all nodes can receive deltas. Defaults to false.
+     * 
+     * @return if delta encoding is enabled
+     */
+    public boolean isDeltaEncoding() {
+        return deltaEncoding;
+    }
+
+    /**
+     * 
+     * @param v
+     *            see {@link #isDeltaEncoding()}
+     */
+    public void setDeltaEncoding(final boolean v) {
+        deltaEncoding = v;
+    }
+
+    private volatile int fullStateInterval = DEFAULT_FULL_STATE_INTERVAL;
+
+    /**
+     * 
+     * @return how often the full state is sent to each neighbor when
+     *         {@link #isDeltaEncoding()} is true, in messages
+     */
+    public int getFullStateInterval() {
+        return fullStateInterval;
+    }
+
+    /**
+     * 
+     * @param v
+     *            see {@link #getFullStateInterval()}
+     * @throws IllegalArgumentException
+     *             if the value is less than 1
+     */
+    public void setFullStateInterval(final int v) {
+        if (v < 1) {
+            throw new IllegalArgumentException("Full state interval must be positive: " + v);
+        }
+        fullStateInterval = v;
+    }
+
+    private volatile boolean asynchronousSend = false;
+
+    /**
+     * When sending asynchronously {@link #shareState(Map)} queues the state
+     * for each neighbor and returns without waiting for the neighbors. Each
+     * neighbor has a queue that holds only the latest state, so a slow
+     * neighbor drops rounds rather than delaying the node or the other
+     * neighbors. Defaults to false, the state is handed to each neighbor's
+     * channel in turn before {@link #shareState(Map)} returns. In both cases
+     * a neighbor whose channel is busy gets the latest state once it can take
+     * more, see {@link #getWriteTimeoutMs()}.
+     * 
+     * @return if the state is sent asynchronously
+     */
+    public boolean isAsynchronousSend() {
+        return asynchronousSend;
+    }
+
+    /**
+     * 
+     * @param v
+     *            see {@link #isAsynchronousSend()}
+     */
+    public void setAsynchronousSend(final boolean v) {
+        asynchronousSend = v;
+    }
+
+    /**
+     * @return the send queue status of each current neighbor
+     */
+    @Nonnull
+    public ImmutableMap<DeviceUID, NeighborSendStatus> getNeighborSendStatus() {
+        final ImmutableMap.Builder<DeviceUID, NeighborSendStatus> builder = ImmutableMap.builder();
+        neighbors.forEach((uid, neighbor) -> builder.put(uid,
+                new NeighborSendStatus(neighbor.getQueueDepth(), neighbor.getDroppedCount(), neighbor.getSentCount())));
+        return builder.build();
+    }
+
+    // guarded by lock
+    private int nextSequence = 0;
+    private Map<CodePath, Object> previousState = null;
+    private int previousSequence = 0;
+    private Map<CodePath, Object> lastShared = null;
+
+    private volatile ShareStateReport lastShareStateReport = null;
+
+    /**
+     * @return statistics about the most recent round that all neighbors have
+     *         finished with, null if no round has finished yet
+     */
+    public ShareStateReport getLastShareStateReport() {
+        return lastShareStateReport;
+    }
+
     @Override
     public void shareState(final Map<CodePath, Object> toSend) {
-        // copy the list so that we don't hold the lock while sending all of the
-        // messages
-        final Map<DeviceUID, NetworkNeighbor> nbrsCopy = new HashMap<>();
+        final long shareStart = System.nanoTime();
+        // use the snapshot so that we don't hold the lock while sending all of
+        // the messages
+        final Map<DeviceUID, NetworkNeighbor> nbrsCopy = neighbors;
+        final boolean async = asynchronousSend;
+        final OutboundState round;
         synchronized (lock) {
-            nbrsCopy.putAll(nbrs);
+
+            final int sequence = nextSequence;
+            // keep sequence numbers non-negative
+            nextSequence = (nextSequence + 1) & Integer.MAX_VALUE;
+
+            // the VM may reuse the map, keep a copy to compute the next delta or
+            // for an asynchronous send that isn't done yet
+            final Map<CodePath, Object> state = deltaEncoding || async ? new HashMap<>(toSend) : toSend;
+            if (deltaEncoding) {
+                final boolean fullRound = 0 == sequence % fullStateInterval;
+                round = new OutboundState(codec, sequence, state, fullRound ? null : previousState,
+                        previousSequence);
+                previousState = state;
+            } else {
+                round = new OutboundState(codec, sequence, state, null, previousSequence);
+                previousState = null;
+            }
+            previousSequence = sequence;
+
+            // resource summaries compare their tables, so this doesn't build
+            // the maps of merged summaries
+            if (!toSend.equals(lastShared)) {
+                // only copied when it changes, converged nodes don't pay for
+                // the copy
+                lastShared = state == toSend ? new HashMap<>(toSend) : state;
+                stateChanged.set(true);
+                sharedStateChanged.set(true);
+            }
         }
 
         if (LOGGER.isTraceEnabled()) {
@@ -129,23 +501,34 @@ public class NodeNetworkManager implements NetworkManager {
             });
         }
 
-        final Map<DeviceUID, NetworkNeighbor> toRemove = new HashMap<>();
-        for (final Map.Entry<DeviceUID, NetworkNeighbor> entry : nbrsCopy.entrySet()) {
-            try {
-                entry.getValue().sendMessage(toSend);
-            } catch (final IOException e) {
-                LOGGER.error("Got error sending message to neighbor, removing. Neighbor: " + entry.getKey(), e);
-                toRemove.put(entry.getKey(), entry.getValue());
-            }
+        final int neighborCount = nbrsCopy.size();
+        round.expectNeighbors(neighborCount, done -> roundFinished(done, neighborCount));
+
+        // the frames are encoded once by the first neighbor that needs them
+        // and the same bytes are sent to all neighbors
+        if (async) {
+            nbrsCopy.forEach((uid, neighbor) -> neighbor.enqueueState(round, SEND_EXECUTOR, this::removeNeighbor));
+        } else {
+            nbrsCopy.forEach((uid, neighbor) -> neighbor.offerState(round, SEND_EXECUTOR, this::removeNeighbor));
         }
 
-        if (!toRemove.isEmpty()) {
-            synchronized (lock) {
-                for (final Map.Entry<DeviceUID, NetworkNeighbor> entry : toRemove.entrySet()) {
-                    entry.getValue().terminate();
-                    nbrs.remove(entry.getKey());
-                }
-            }
+        final RoundProfile profile = roundProfile;
+        if (null != profile) {
+            profile.record(RoundProfile.Phase.SHARE_STATE, System.nanoTime() - shareStart);
+        }
+    }
+
+    private void roundFinished(final OutboundState round, final int neighborCount) {
+        final ShareStateReport report = new ShareStateReport(round.getSequence(), neighborCount,
+                round.getEncodeNanos(), round.getFullFrameSize(), round.getDeltaFrameSize(), round.getBytesSent(),
+                round.getDroppedCount());
+        lastShareStateReport = report;
+        final RoundProfile profile = roundProfile;
+        if (null != profile) {
+            profile.record(RoundProfile.Phase.ENCODE, report.getEncodeNanos());
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Node: {} shared state {}", getNodeName(), report);
         }
     }
 
@@ -167,82 +550,391 @@ public class NodeNetworkManager implements NetworkManager {
             running = true;
 
             this.node = node;
-            listenForNeighbors();
+            startLiveness();
 
-            for (final DeviceUID neighborUID : node.getNeighbors()) {
-                connectToNeighbor(neighborUID);
+            final long timeout = neighborTimeoutMs;
+            if (!restoredNeighborState.isEmpty() && timeout > 0) {
+                livenessWheel.schedule(this::expireRestoredNeighborState, System.currentTimeMillis() + timeout);
             }
         }
+
+        listenForNeighbors();
+
+        connectionManager.start(node.getNeighbors());
     }
 
     private boolean running = false;
 
+    /**
+     * Default value for {@link #getHeartbeatIntervalMs()}.
+     */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+
+    /**
+     * Default value for {@link #getNeighborTimeoutMs()}.
+     */
+    public static final long DEFAULT_NEIGHBOR_TIMEOUT_MS = 5000;
+
+    private volatile long heartbeatIntervalMs = DEFAULT_HEARTBEAT_INTERVAL_MS;
+
+    /**
+     * A heartbeat is sent to a neighbor that has not been sent any state for
+     * this long. Changes apply to neighbors that connect after the change.
+     * 
+     * @return the interval in milliseconds, 0 if heartbeats are disabled
+     */
+    public long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    /**
+     * 
+     * @param v
+     *            see {@link #getHeartbeatIntervalMs()}
+     * @throws IllegalArgumentException
+     *             if the value is negative
+     */
+    public void setHeartbeatIntervalMs(final long v) {
+        if (v < 0) {
+            throw new IllegalArgumentException("Heartbeat interval must not be negative: " + v);
+        }
+        heartbeatIntervalMs = v;
+    }
+
+    private volatile long neighborTimeoutMs = DEFAULT_NEIGHBOR_TIMEOUT_MS;
+
+    /**
+     * A neighbor that has not sent anything, including heartbeats, for this
+     * long is disconnected and its state is no longer returned by
+     * {@link #getNeighborState()}. Should be several times
+     * {@link #getHeartbeatIntervalMs()}. Changes apply to neighbors that
+     * connect after the change.
+     * 
+     * @return the timeout in milliseconds, 0 if neighbors never time out
+     */
+    public long getNeighborTimeoutMs() {
+        return neighborTimeoutMs;
+    }
+
+    /**
+     * 
+     * @param v
+     *            see {@link #getNeighborTimeoutMs()}
+     * @throws IllegalArgumentException
+     *             if the value is negative
+     */
+    public void setNeighborTimeoutMs(final long v) {
+        if (v < 0) {
+            throw new IllegalArgumentException("Neighbor timeout must not be negative: " + v);
+        }
+        neighborTimeoutMs = v;
+    }
+
+    /**
+     * Default value for {@link #getWriteTimeoutMs()}.
+     */
+    public static final long DEFAULT_WRITE_TIMEOUT_MS = 5000;
+
+    private volatile long writeTimeoutMs = DEFAULT_WRITE_TIMEOUT_MS;
+
+    /**
+     * A neighbor whose channel has not been able to take a frame for this
+     * long, because the neighbor stopped reading, is disconnected. Changes
+     * apply to neighbors that connect after the change.
+     * 
+     * @return the timeout in milliseconds, 0 if neighbors are never
+     *         disconnected for not reading
+     */
+    public long getWriteTimeoutMs() {
+        return writeTimeoutMs;
+    }
+
+    /**
+     * 
+     * @param v
+     *            see {@link #getWriteTimeoutMs()}
+     * @throws IllegalArgumentException
+     *             if the value is negative
+     */
+    public void setWriteTimeoutMs(final long v) {
+        if (v < 0) {
+            throw new IllegalArgumentException("Write timeout must not be negative: " + v);
+        }
+        writeTimeoutMs = v;
+    }
+
+    // guarded by lock
+    private TimerWheel livenessWheel = null;
+    private ScheduledFuture<?> livenessTicker = null;
+
+    private final AtomicLong evictedNeighborCount = new AtomicLong(0);
+
+    /**
+     * @return the number of neighbors that were disconnected because they
+     *         stopped sending or reading
+     */
+    public long getEvictedNeighborCount() {
+        return evictedNeighborCount.get();
+    }
+
+    // must hold lock
+    private void startLiveness() {
+        final TimerWheel wheel = new TimerWheel(LIVENESS_TICK_MS, LIVENESS_WHEEL_SIZE, System.currentTimeMillis());
+        livenessWheel = wheel;
+        livenessTicker = LIVENESS_EXECUTOR.scheduleAtFixedRate(() -> wheel.advance(System.currentTimeMillis()),
+                LIVENESS_TICK_MS, LIVENESS_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // must hold lock
+    private void stopLiveness() {
+        if (null != livenessTicker) {
+            livenessTicker.cancel(false);
+            livenessTicker = null;
+        }
+        livenessWheel = null;
+    }
+
+    /**
+     * Must hold lock. Each neighbor has at most one heartbeat timeout, one
+     * liveness timeout and one write timeout in the wheel. Frames do not touch the wheel, when a
+     * timeout fires it checks the last send or receive time and schedules
+     * itself again if the neighbor was active in the meantime.
+     */
+    private void watchNeighbor(final NetworkNeighbor neighbor) {
+        if (null == livenessWheel) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long interval = heartbeatIntervalMs;
+        if (interval > 0) {
+            livenessWheel.schedule(() -> checkHeartbeat(neighbor, interval), now + interval);
+        }
+        final long timeout = neighborTimeoutMs;
+        if (timeout > 0) {
+            livenessWheel.schedule(() -> checkTimeout(neighbor, timeout), now + timeout);
+        }
+        final long writeTimeout = writeTimeoutMs;
+        if (writeTimeout > 0) {
+            livenessWheel.schedule(() -> checkWrite(neighbor, writeTimeout), now + writeTimeout);
+        }
+    }
+
+    /**
+     * @return the wheel to reschedule on, null if the neighbor is no longer
+     *         current
+     */
+    private TimerWheel currentWheel(final NetworkNeighbor neighbor) {
+        synchronized (lock) {
+            if (running && nbrs.get(neighbor.getUid()) == neighbor) {
+                return livenessWheel;
+            } else {
+                return null;
+            }
+        }
+    }
+
+    private void checkHeartbeat(final NetworkNeighbor neighbor, final long interval) {
+        final TimerWheel wheel = currentWheel(neighbor);
+        if (null == wheel) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        if (now - neighbor.getLastSent() >= interval) {
+            // skipped if the neighbor is still sending
+            neighbor.enqueueHeartbeat(SEND_EXECUTOR, this::removeNeighbor);
+            wheel.schedule(() -> checkHeartbeat(neighbor, interval), now + interval);
+        } else {
+            wheel.schedule(() -> checkHeartbeat(neighbor, interval), neighbor.getLastSent() + interval);
+        }
+    }
+
+    private void checkTimeout(final NetworkNeighbor neighbor, final long timeout) {
+        final TimerWheel wheel = currentWheel(neighbor);
+        if (null == wheel) {
+            return;
+        }
+
+        final long lastReceived = neighbor.getLastReceived();
+        final long silence = System.currentTimeMillis() - lastReceived;
+        if (silence >= timeout) {
+            LOGGER.warn("Node: {} has not heard from neighbor {} in {} ms, disconnecting", getNodeName(),
+                    neighbor.getUid(), silence);
+            evictedNeighborCount.incrementAndGet();
+            removeNeighbor(neighbor);
+        } else {
+            wheel.schedule(() -> checkTimeout(neighbor, timeout), lastReceived + timeout);
+        }
+    }
+
+    private void checkWrite(final NetworkNeighbor neighbor, final long timeout) {
+        final TimerWheel wheel = currentWheel(neighbor);
+        if (null == wheel) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final long busySince = neighbor.getBusySince();
+        if (0 != busySince && now - busySince >= timeout) {
+            LOGGER.warn("Node: {} has not been able to send to neighbor {} in {} ms, disconnecting", getNodeName(),
+                    neighbor.getUid(), now - busySince);
+            evictedNeighborCount.incrementAndGet();
+            removeNeighbor(neighbor);
+        } else {
+            wheel.schedule(() -> checkWrite(neighbor, timeout), (0 == busySince ? now : busySince) + timeout);
+        }
+    }
+
     /**
      * Stop the manager.
      */
     public void stop() {
+        final Map<DeviceUID, NetworkNeighbor> toStop = new HashMap<>();
         synchronized (lock) {
             running = false;
+            stopLiveness();
+            toStop.putAll(nbrs);
+            nbrs.clear();
+            restoredNeighborState = ImmutableMap.of();
+            publishNeighbors();
+        }
 
-            // stop talking to neighbors
-            nbrs.forEach((k, v) -> {
-                v.terminate();
-                try {
-                    v.join();
-                } catch (final InterruptedException e) {
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("Interrupted during join", e);
-                    }
-                }
-            });
+        connectionManager.stop();
 
-            // force one to stop listening
-            try {
-                if (null != server) {
-                    server.close();
-                }
-            } catch (final IOException e) {
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Error closing server socket", e);
-                }
-            }
-        }
+        // stop talking to neighbors
+        toStop.forEach((k, v) -> v.terminate());
+
+        // outside the lock as the transport may need to wait for its threads
+        // and they call back into this object
+        transport.stop();
     }
 
+    // guarded by lock
     private final Map<DeviceUID, NetworkNeighbor> nbrs = new HashMap<>();
 
-    private void addNeighbor(final DeviceUID uid,
+    // immutable copy of nbrs, replaced whenever nbrs changes
+    private volatile ImmutableMap<DeviceUID, NetworkNeighbor> neighbors = ImmutableMap.of();
+
+    // must hold lock
+    private void publishNeighbors() {
+        neighbors = ImmutableMap.copyOf(nbrs);
+        neighborStateChanged();
+    }
+
+    /**
+     * Called by the {@link NeighborTransport} once the hello frames have been
+     * exchanged on a new link.
+     * 
+     * @param uid
+     *            the neighbor
+     * @param nonce
+     *            symmetry-break nonce chosen by the side that initiated the
+     *            connection
+     * @param channel
+     *            used to send to the neighbor
+     * @return the new neighbor, null if the link is not needed and the channel
+     *         should be closed by the transport
+     */
+    /* package */ NetworkNeighbor addNeighbor(@Nonnull final DeviceUID uid,
             final int nonce,
-            final Socket s,
-            final ObjectInputStream in,
-            final ObjectOutputStream out) {
+            @Nonnull final NeighborChannel channel) {
         synchronized (lock) {
+            if (!running) {
+                return null;
+            }
+
             // symmetry-break nonce
             // If UID isn't already linked, add a new neighbor
-
-            final InetSocketAddress remoteAddr = new InetSocketAddress(s.getInetAddress(), s.getPort());
             final NetworkNeighbor other = nbrs.get(uid);
             if (null == other || other.getNonce() < nonce) {
                 if (null != other) {
                     other.terminate();
                 }
 
-                final NetworkNeighbor neighbor = new NetworkNeighbor(uid, nonce, remoteAddr, s, in, out);
+                final NetworkNeighbor neighbor = new NetworkNeighbor(uid, nonce, channel, codec,
+                        this::neighborStateChanged);
                 nbrs.put(uid, neighbor);
-                neighbor.start();
+                forgetRestoredNeighbor(uid);
+                publishNeighbors();
+                watchNeighbor(neighbor);
+                connectionManager.neighborAdded(uid);
+                return neighbor;
             } else {
-                try {
-                    s.close();
-                } catch (final IOException e) {
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Error closing parallel neighbor socket, ignoring", e);
-                    }
-                }
+                return null;
             }
         } // lock so that we don't add 2 connections to the neighbor
     }
 
-    private ServerSocket server = null;
+    /**
+     * Called by the {@link NeighborTransport} when a link fails. If the
+     * neighbor has already been replaced by another link nothing happens.
+     * 
+     * @param neighbor
+     *            the neighbor to remove
+     */
+    /* package */ void removeNeighbor(@Nonnull final NetworkNeighbor neighbor) {
+        final boolean removed;
+        synchronized (lock) {
+            removed = nbrs.remove(neighbor.getUid(), neighbor);
+            if (removed) {
+                publishNeighbors();
+            }
+        }
+        neighbor.terminate();
+        if (removed) {
+            connectionManager.neighborLost(neighbor.getUid());
+        }
+    }
+
+    /**
+     * @param uid
+     *            the neighbor
+     * @return true if there is currently a link to the neighbor
+     */
+    /* package */ boolean isConnected(@Nonnull final DeviceUID uid) {
+        return neighbors.containsKey(uid);
+    }
+
+    /**
+     * @return the identifier of the node this manager is for
+     * @throws IllegalStateException
+     *             if the manager has not been started
+     */
+    @Nonnull
+    /* package */ DeviceUID getNodeIdentifier() {
+        synchronized (lock) {
+            if (null == node) {
+                throw new IllegalStateException("Network manager has not been started");
+            }
+            return node.getNodeIdentifier();
+        }
+    }
+
+    /**
+     * @return the name of the node this manager is for, used for logging
+     */
+    @Nonnull
+    /* package */ String getNodeName() {
+        synchronized (lock) {
+            return null == node ? "unknown" : node.getName();
+        }
+    }
+
+    /**
+     * @return the codec used to encode the shared state
+     */
+    @Nonnull
+    public SharedStateCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return the transport used to talk to neighbors
+     */
+    @Nonnull
+    public NeighborTransport getTransport() {
+        return transport;
+    }
 
     /**
      * Listen for neighbor connections.
@@ -258,108 +950,17 @@ public class NodeNetworkManager implements NetworkManager {
             return;
         }
 
-        final int port = addr.getPort();
-        new Thread(() -> {
-
-            while (running) {
-                try {
-                    synchronized (lock) {
-                        server = new ServerSocket(port);
-                    }
-
-                    server.setReuseAddress(true);
-                    LOGGER.info("Node: " + node.getName() + " Daemon listening for neighbors on port " + port);
-                    while (running) {
-                        final Socket s = server.accept();
-
-                        // don't need a thread here since addNeighbor will take
-                        // care of creating a thread to service the connection.
-                        try {
-                            // If the link connects, trade UIDs
-                            final ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
-                            final ObjectInputStream in = new ObjectInputStream(s.getInputStream());
-
-                            // write uid for neighbor
-                            out.writeObject(node.getNodeIdentifier());
-                            out.flush();
-
-                            // reads data from connectToNeighbor()
-                            final DeviceUID uid = (DeviceUID) in.readObject();
-                            final int nonce = in.readInt();
-
-                            addNeighbor(uid, nonce, s, in, out);
-                        } catch (final IOException | ClassNotFoundException e) {
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("Got exception creating link to neighbor that connected to us.", e);
-                            }
-                        }
-
-                    } // while running accept connections
-                } catch (final IOException e) {
-                    if (running) {
-                        LOGGER.warn("Node: " + node.getName()
-                                + " received I/O exception accepting connections, trying to listen again on port: "
-                                + port, e);
-                    }
-                }
-
-                synchronized (lock) {
-                    try {
-                        if (null != server) {
-                            server.close();
-                        }
-                    } catch (final IOException e) {
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("Error closing server socket", e);
-                        }
-                    }
-                    server = null;
-                }
-            } // while running, restart listen
-
-            if (LOGGER.isInfoEnabled()) {
-                LOGGER.info("Exiting thread: " + Thread.currentThread().getName());
-            }
-        }, "Node: " + node.getName() + " server thread").start();
-
+        transport.start(this, addr);
     }
 
     /**
-     * Attempt to create a connection to a neighbor.
-     * 
-     * @param neighborNode
-     *            the neighbor to connect to
+     * @param uid
+     *            the neighbor
+     * @return the address to connect to the neighbor on, null if the neighbor
+     *         is not known to the lookup service
      */
-    private void connectToNeighbor(final DeviceUID neighborUID) {
-        final InetSocketAddress addr = lookupService.getInetAddressForNode(neighborUID);
-        if (null == addr) {
-            LOGGER.warn(neighborUID
-                    + " is not found in the lookup service, not connecting to this neighbor for AP sharing");
-            return;
-        }
-
-        try {
-            // Try to link
-            final Socket s = new Socket(addr.getAddress(), addr.getPort());
-
-            final int nonce = RANDOM.nextInt();
-
-            // If the link connects, trade UIDs
-            final ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
-            final ObjectInputStream in = new ObjectInputStream(s.getInputStream());
-
-            final DeviceUID neighborUid = (DeviceUID) in.readObject();
-
-            out.writeObject(node.getNodeIdentifier());
-            out.writeInt(nonce);
-            out.flush();
-
-            addNeighbor(neighborUid, nonce, s, in, out);
-        } catch (final IOException | ClassNotFoundException e) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("Couldn't connect to neighbor: " + neighborUID, e);
-            }
-        }
+    /* package */ InetSocketAddress getNeighborAddress(@Nonnull final DeviceUID uid) {
+        return lookupService.getInetAddressForNode(uid);
     }
 
 }
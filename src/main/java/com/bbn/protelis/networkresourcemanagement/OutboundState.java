@@ -0,0 +1,254 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * The state shared by a node in one round. The frames sent to neighbors are
+ * encoded at most once per round, the first time a neighbor needs them, and the
+ * same bytes are sent to every neighbor. The full frame goes to neighbors that
+ * need a snapshot, the delta frame to neighbors that received the previous
+ * round. Once every neighbor has sent or dropped the round the completion
+ * listener is notified.
+ */
+/* package */ final class OutboundState {
+
+    /**
+     * Passed to {@link #neighborDone(int)} when the round was dropped, either
+     * replaced by a newer round, not sent because the link was terminated or
+     * failed to send. Distinct from 0 so that a round handed over without
+     * encoding it is not counted as dropped.
+     */
+    /* package */ static final int NOT_SENT = -1;
+
+    private final SharedStateCodec codec;
+    private final int sequence;
+    private final Map<CodePath, Object> state;
+    private final Map<CodePath, Object> previousState;
+    private final int previousSequence;
+
+    private byte[] fullFrame = null;
+    private byte[] deltaFrame = null;
+    private long encodeNanos = 0;
+
+    private final AtomicInteger remaining = new AtomicInteger(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final AtomicInteger dropped = new AtomicInteger(0);
+    private Consumer<OutboundState> completionListener = null;
+
+    private Map<CodePath, Object> snapshot = null;
+
+    /**
+     *
+     * @param codec
+     *            used to encode the state
+     * @param sequence
+     *            identifies this round
+     * @param state
+     *            the state to share, must not be modified after this call
+     * @param previousState
+     *            the state of the previous round, null if only the full state
+     *            may be sent
+     * @param previousSequence
+     *            the sequence of the previous round
+     */
+    OutboundState(@Nonnull final SharedStateCodec codec,
+            final int sequence,
+            @Nonnull final Map<CodePath, Object> state,
+            final Map<CodePath, Object> previousState,
+            final int previousSequence) {
+        this.codec = codec;
+        this.sequence = sequence;
+        this.state = state;
+        this.previousState = previousState;
+        this.previousSequence = previousSequence;
+    }
+
+    /**
+     * Set the number of neighbors the round is sent to and who to notify once
+     * they are done. Must be called before the round is given to any
+     * neighbor.
+     *
+     * @param neighborCount
+     *            number of calls to {@link #neighborDone(int)} to expect
+     * @param listener
+     *            notified once all neighbors are done, possibly on another
+     *            thread
+     */
+    public void expectNeighbors(final int neighborCount, @Nonnull final Consumer<OutboundState> listener) {
+        completionListener = listener;
+        remaining.set(neighborCount);
+        if (0 == neighborCount) {
+            listener.accept(this);
+        }
+    }
+
+    /**
+     * Called once per neighbor when the round was sent or dropped.
+     *
+     * @param bytes
+     *            number of bytes sent to the neighbor, 0 if the state was
+     *            handed over without encoding it, {@link #NOT_SENT} if the
+     *            round was dropped
+     */
+    public void neighborDone(final int bytes) {
+        if (bytes < 0) {
+            dropped.incrementAndGet();
+        } else {
+            bytesSent.addAndGet(bytes);
+        }
+        if (0 == remaining.decrementAndGet() && null != completionListener) {
+            completionListener.accept(this);
+        }
+    }
+
+    /**
+     * @return number of bytes sent to neighbors so far
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @return number of neighbors that dropped this round in favor of a newer
+     *         one or failed to send it
+     */
+    public int getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return identifies this round
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The state as an immutable map for neighbors in the same JVM. Created the
+     * first time it is needed and shared by all of those neighbors.
+     *
+     * @return the state, not modifiable
+     */
+    @Nonnull
+    public synchronized Map<CodePath, Object> getSnapshot() {
+        if (null == snapshot) {
+            snapshot = Collections.unmodifiableMap(new HashMap<>(state));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get the frame to send to a neighbor.
+     *
+     * @param neighborSequence
+     *            the sequence of the last state sent to the neighbor
+     * @return the bytes to send, shared between neighbors and must not be
+     *         modified
+     * @throws IOException
+     *             if the state cannot be encoded
+     */
+    @Nonnull
+    public synchronized byte[] getFrame(final int neighborSequence) throws IOException {
+        if (null != previousState && neighborSequence == previousSequence) {
+            if (null == deltaFrame) {
+                final long start = System.nanoTime();
+                deltaFrame = encodeDelta();
+                encodeNanos += System.nanoTime() - start;
+            }
+            if (deltaFrame.length > 0) {
+                return deltaFrame;
+            }
+        }
+
+        if (null == fullFrame) {
+            final long start = System.nanoTime();
+            fullFrame = encodeFull();
+            encodeNanos += System.nanoTime() - start;
+        }
+        return fullFrame;
+    }
+
+    private byte[] encodeFull() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(NeighborFrames.STATE_FULL);
+            out.writeInt(sequence);
+            writePayload(out, codec.encode(state));
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the delta frame or an empty array if everything changed and the
+     *         full frame should be used instead
+     */
+    private byte[] encodeDelta() throws IOException {
+        final Map<CodePath, Object> changed = new HashMap<>();
+        state.forEach((k, v) -> {
+            if (!previousState.containsKey(k) || !Objects.equals(previousState.get(k), v)) {
+                changed.put(k, v);
+            }
+        });
+        final Map<CodePath, Object> removed = new HashMap<>();
+        previousState.keySet().forEach(k -> {
+            if (!state.containsKey(k)) {
+                removed.put(k, null);
+            }
+        });
+
+        if (changed.size() + removed.size() >= state.size() && !state.isEmpty()) {
+            return new byte[0];
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(NeighborFrames.STATE_DELTA);
+            out.writeInt(sequence);
+            out.writeInt(previousSequence);
+            writePayload(out, codec.encode(changed));
+            writePayload(out, codec.encode(removed));
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writePayload(final DataOutputStream out, final byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    /**
+     * @return size of the full frame, 0 if it has not been encoded
+     */
+    public synchronized int getFullFrameSize() {
+        return null == fullFrame ? 0 : fullFrame.length;
+    }
+
+    /**
+     * @return size of the delta frame, 0 if it has not been encoded or was not
+     *         used
+     */
+    public synchronized int getDeltaFrameSize() {
+        return null == deltaFrame ? 0 : deltaFrame.length;
+    }
+
+    /**
+     * @return time spent encoding frames for this round
+     */
+    public synchronized long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+}
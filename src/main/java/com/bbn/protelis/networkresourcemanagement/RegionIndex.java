@@ -0,0 +1,129 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable snapshot of the region of every known node. Each region has a
+ * dense ordinal between 0 and {@link #getRegionCount()}, so code that groups
+ * values by region can use arrays indexed by ordinal instead of hashing region
+ * identifiers. A {@link RegionLookupService} that knows when the region
+ * assignments change builds a new snapshot with a higher version only then.
+ *
+ * @see RegionLookupService#getRegionIndex()
+ */
+public final class RegionIndex {
+
+    /**
+     * Ordinal of nodes that aren't in the index.
+     */
+    public static final int NO_REGION = -1;
+
+    private final long version;
+    private final ImmutableMap<NodeIdentifier, Integer> nodeOrdinals;
+    private final ImmutableMap<RegionIdentifier, Integer> regionOrdinals;
+    private final ImmutableList<RegionIdentifier> regions;
+
+    /**
+     * @param version
+     *            see {@link #getVersion()}
+     * @param assignments
+     *            the region of each node, nodes with a null region are left
+     *            out
+     */
+    public RegionIndex(final long version, @Nonnull final Map<? extends NodeIdentifier, RegionIdentifier> assignments) {
+        this.version = version;
+
+        final Map<RegionIdentifier, Integer> ordinals = new HashMap<>();
+        final ImmutableList.Builder<RegionIdentifier> regionList = ImmutableList.builder();
+        final ImmutableMap.Builder<NodeIdentifier, Integer> nodes = ImmutableMap.builder();
+        assignments.forEach((node, region) -> {
+            if (null != region) {
+                final Integer ordinal = ordinals.computeIfAbsent(region, r -> {
+                    regionList.add(r);
+                    return ordinals.size();
+                });
+                nodes.put(node, ordinal);
+            }
+        });
+        this.nodeOrdinals = nodes.build();
+        this.regionOrdinals = ImmutableMap.copyOf(ordinals);
+        this.regions = regionList.build();
+    }
+
+    /**
+     * @return increases whenever the region assignments change, snapshots with
+     *         the same version from the same service are equal
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of distinct regions
+     */
+    public int getRegionCount() {
+        return regions.size();
+    }
+
+    /**
+     * @return the regions, the index in the list is the ordinal
+     */
+    @Nonnull
+    public ImmutableList<RegionIdentifier> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @param node
+     *            the node to look up
+     * @return the ordinal of the region of the node, {@link #NO_REGION} if the
+     *         node isn't in the index
+     */
+    public int getRegionOrdinal(@Nonnull final NodeIdentifier node) {
+        final Integer ordinal = nodeOrdinals.get(node);
+        return null == ordinal ? NO_REGION : ordinal;
+    }
+
+    /**
+     * @param region
+     *            the region to look up
+     * @return the ordinal of the region, {@link #NO_REGION} if no node in the
+     *         index is in the region
+     */
+    public int getOrdinal(@Nonnull final RegionIdentifier region) {
+        final Integer ordinal = regionOrdinals.get(region);
+        return null == ordinal ? NO_REGION : ordinal;
+    }
+
+    /**
+     * @param ordinal
+     *            between 0 and {@link #getRegionCount()}
+     * @return the region with the ordinal
+     */
+    @Nonnull
+    public RegionIdentifier getRegion(final int ordinal) {
+        return regions.get(ordinal);
+    }
+
+    /**
+     * @param node
+     *            the node to look up
+     * @return the region of the node, null if the node isn't in the index
+     */
+    public RegionIdentifier getRegionForNode(@Nonnull final NodeIdentifier node) {
+        final int ordinal = getRegionOrdinal(node);
+        return NO_REGION == ordinal ? null : regions.get(ordinal);
+    }
+
+    @Override
+    public String toString() {
+        return "[version: " + version + " nodes: " + nodeOrdinals.size() + " regions: " + regions + "]";
+    }
+
+}
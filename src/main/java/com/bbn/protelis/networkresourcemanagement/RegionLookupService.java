@@ -21,4 +21,17 @@ public interface RegionLookupService {
      */
     RegionIdentifier getRegionForNode(@Nonnull NodeIdentifier nodeId);
 
+    /**
+     * Services that know when the region assignments change should return the
+     * same snapshot until they do, so that converting reports to summaries
+     * doesn't look up every node again every round. Nodes that aren't in the
+     * snapshot are looked up with {@link #getRegionForNode(NodeIdentifier)}.
+     * 
+     * @return the regions of the known nodes, null if the service can't tell
+     *         when they change
+     */
+    default RegionIndex getRegionIndex() {
+        return null;
+    }
+
 }
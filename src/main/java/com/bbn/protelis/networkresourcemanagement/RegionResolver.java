@@ -0,0 +1,101 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Resolves nodes to region ordinals for one conversion. Nodes in the
+ * {@link RegionIndex} of the lookup service cost a single probe. Other nodes
+ * are looked up through the service once per resolver and their regions get
+ * ordinals after the ones of the index. Not thread safe, create one per
+ * conversion.
+ */
+/* package */ final class RegionResolver {
+
+    private final RegionLookupService service;
+    private final RegionIndex index;
+    private final int indexRegionCount;
+
+    // created on the first node that isn't in the index
+    private Map<NodeIdentifier, Integer> extraNodes = null;
+    private Map<RegionIdentifier, Integer> extraRegionOrdinals = null;
+    private List<RegionIdentifier> extraRegions = null;
+
+    /**
+     * @param service
+     *            used for nodes that aren't in its index, or all nodes if it
+     *            has no index
+     */
+    /* package */ RegionResolver(@Nonnull final RegionLookupService service) {
+        this.service = service;
+        this.index = service.getRegionIndex();
+        this.indexRegionCount = null == index ? 0 : index.getRegionCount();
+    }
+
+    /**
+     * @param node
+     *            the node to resolve
+     * @return the ordinal of the region of the node,
+     *         {@link RegionIndex#NO_REGION} if the region is unknown
+     */
+    /* package */ int ordinal(@Nonnull final NodeIdentifier node) {
+        if (null != index) {
+            final int ordinal = index.getRegionOrdinal(node);
+            if (RegionIndex.NO_REGION != ordinal) {
+                return ordinal;
+            }
+        }
+
+        if (null == extraNodes) {
+            extraNodes = new HashMap<>();
+            extraRegionOrdinals = new HashMap<>();
+            extraRegions = new ArrayList<>();
+        }
+        final Integer known = extraNodes.get(node);
+        if (null != known) {
+            return known;
+        }
+
+        final RegionIdentifier region = service.getRegionForNode(node);
+        final int ordinal;
+        if (null == region) {
+            ordinal = RegionIndex.NO_REGION;
+        } else if (null != index && RegionIndex.NO_REGION != index.getOrdinal(region)) {
+            ordinal = index.getOrdinal(region);
+        } else {
+            ordinal = extraRegionOrdinals.computeIfAbsent(region, r -> {
+                extraRegions.add(r);
+                return indexRegionCount + extraRegions.size() - 1;
+            });
+        }
+        extraNodes.put(node, ordinal);
+        return ordinal;
+    }
+
+    /**
+     * @return one more than the highest ordinal returned so far
+     */
+    /* package */ int regionCount() {
+        return indexRegionCount + (null == extraRegions ? 0 : extraRegions.size());
+    }
+
+    /**
+     * @param ordinal
+     *            an ordinal returned by {@link #ordinal(NodeIdentifier)}
+     * @return the region, null for {@link RegionIndex#NO_REGION}
+     */
+    /* package */ RegionIdentifier region(final int ordinal) {
+        if (RegionIndex.NO_REGION == ordinal) {
+            return null;
+        } else if (ordinal < indexRegionCount) {
+            return index.getRegion(ordinal);
+        } else {
+            return extraRegions.get(ordinal - indexRegionCount);
+        }
+    }
+
+}
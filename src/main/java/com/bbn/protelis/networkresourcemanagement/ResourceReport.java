@@ -3,7 +3,6 @@ package com.bbn.protelis.networkresourcemanagement;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Function;
 
 import javax.annotation.Nonnull;
 
@@ -116,16 +115,142 @@ public class ResourceReport implements Serializable {
 
         this.containerReports = containerReports;
 
-        // verify everything has the same demand estimation window
-        containerReports.forEach((container, report) -> {
-            if (!demandEstimationWindow.equals(report.getDemandEstimationWindow())) {
-                throw new IllegalArgumentException(
-                        "Container report estimation window " + report.getDemandEstimationWindow()
-                                + " does not match Resource report estimation window " + demandEstimationWindow);
-            }
-        });
+        this.containerAggregates = containerReports.isEmpty() ? ContainerAggregates.EMPTY
+                : new ContainerAggregates(demandEstimationWindow, containerReports);
     }
 
+    /**
+     * The constructor isn't run by Java serialization, build a new report so
+     * that the container aggregates are computed.
+     * 
+     * @return a copy of this report
+     */
+    private Object readResolve() {
+        return new ResourceReport(nodeName, timestamp, demandEstimationWindow, nodeComputeCapacity, networkCapacity,
+                networkLoad, networkDemand, containerReports);
+    }
+
+    /**
+     * Values that are computed from the container reports. They are all
+     * computed in a single pass over the containers when the report is
+     * created and are never modified, so the report can be read from any
+     * thread once it has been created.
+     */
+    private static final class ContainerAggregates {
+
+        /* package */ static final ContainerAggregates EMPTY = new ContainerAggregates();
+
+        private final ImmutableMap<ServiceIdentifier<?>, Double> averageProcessingTime;
+        private final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> computeLoad;
+        private final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> computeDemand;
+        private final ImmutableMap<NodeAttribute<?>, Double> allocatedComputeCapacity;
+        private final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad;
+        private final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkDemand;
+
+        private ContainerAggregates() {
+            averageProcessingTime = ImmutableMap.of();
+            computeLoad = ImmutableMap.of();
+            computeDemand = ImmutableMap.of();
+            allocatedComputeCapacity = ImmutableMap.of();
+            networkLoad = ImmutableMap.of();
+            networkDemand = ImmutableMap.of();
+        }
+
+        /**
+         * @throws IllegalArgumentException
+         *             if any of the container reports don't have the
+         *             demandEstimationWindow
+         */
+        /* package */ ContainerAggregates(@Nonnull final EstimationWindow demandEstimationWindow,
+                @Nonnull final ImmutableMap<ContainerIdentifier, ContainerResourceReport> containerReports) {
+            // service -> [sum, count]
+            final Map<ServiceIdentifier<?>, double[]> procTime = new HashMap<>();
+            final Map<ServiceIdentifier<?>, Map<NodeIdentifier, Map<NodeAttribute<?>, Double>>> sload = new HashMap<>();
+            final Map<ServiceIdentifier<?>, Map<NodeIdentifier, Map<NodeAttribute<?>, Double>>> sdemand = new HashMap<>();
+            final Map<NodeAttribute<?>, Double> capacity = new HashMap<>();
+            final Map<NodeIdentifier, Map<NodeIdentifier, Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>>>> nload = new HashMap<>();
+            final Map<NodeIdentifier, Map<NodeIdentifier, Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>>>> ndemand = new HashMap<>();
+
+            containerReports.forEach((container, report) -> {
+                // verify everything has the same demand estimation window
+                if (!demandEstimationWindow.equals(report.getDemandEstimationWindow())) {
+                    throw new IllegalArgumentException(
+                            "Container report estimation window " + report.getDemandEstimationWindow()
+                                    + " does not match Resource report estimation window " + demandEstimationWindow);
+                }
+
+                final ServiceIdentifier<?> service = report.getService();
+                if (null != service) {
+                    final double time = report.getAverageProcessingTime();
+                    if (!Double.isNaN(time)) {
+                        final double[] sumCount = procTime.computeIfAbsent(service, k -> new double[2]);
+                        sumCount[0] += time;
+                        sumCount[1] += 1;
+                    }
+
+                    addComputeValues(sload.computeIfAbsent(service, k -> new HashMap<>()), report.getComputeLoad());
+                    addComputeValues(sdemand.computeIfAbsent(service, k -> new HashMap<>()),
+                            report.getComputeDemand());
+                }
+
+                report.getComputeCapacity().forEach((attr, value) -> {
+                    capacity.merge(attr, value, Double::sum);
+                });
+
+                addNetworkValues(nload, report.getNetworkLoad());
+                addNetworkValues(ndemand, report.getNetworkDemand());
+            }); // foreach container
+
+            final ImmutableMap.Builder<ServiceIdentifier<?>, Double> avg = ImmutableMap.builder();
+            procTime.forEach((service, sumCount) -> {
+                avg.put(service, sumCount[0] / sumCount[1]);
+            });
+            averageProcessingTime = avg.build();
+
+            computeLoad = ImmutableUtils.makeImmutableMap3(sload);
+            computeDemand = ImmutableUtils.makeImmutableMap3(sdemand);
+            allocatedComputeCapacity = ImmutableMap.copyOf(capacity);
+            networkLoad = ImmutableUtils.makeImmutableMap4(nload);
+            networkDemand = ImmutableUtils.makeImmutableMap4(ndemand);
+        }
+
+        private static void addComputeValues(final Map<NodeIdentifier, Map<NodeAttribute<?>, Double>> dest,
+                final ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>> source) {
+            source.forEach((srcNode, values) -> {
+                final Map<NodeAttribute<?>, Double> destValues = dest.computeIfAbsent(srcNode, k -> new HashMap<>());
+                values.forEach((attr, value) -> {
+                    destValues.merge(attr, value, Double::sum);
+                });
+            });
+        }
+
+        private static void addNetworkValues(
+                final Map<NodeIdentifier, Map<NodeIdentifier, Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>>>> dest,
+                final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> source) {
+            source.forEach((neighborNode, cneighborLoad) -> {
+                final Map<NodeIdentifier, Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>>> neighborLoad = dest
+                        .computeIfAbsent(neighborNode, k -> new HashMap<>());
+
+                cneighborLoad.forEach((sourceNode, csourceLoad) -> {
+                    final Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>> sourceLoad = neighborLoad
+                            .computeIfAbsent(sourceNode, k -> new HashMap<>());
+
+                    csourceLoad.forEach((service, cserviceLoad) -> {
+                        final Map<LinkAttribute<?>, Double> serviceLoad = sourceLoad.computeIfAbsent(service,
+                                k -> new HashMap<>());
+
+                        cserviceLoad.forEach((attr, value) -> {
+                            serviceLoad.merge(attr, value, Double::sum);
+                        }); // foreach value
+
+                    }); // foreach service
+                }); // foreach source
+            }); // foreach neighbor
+        }
+    }
+
+    private final transient ContainerAggregates containerAggregates;
+
     private final ImmutableMap<ContainerIdentifier, ContainerResourceReport> containerReports;
 
     /**
@@ -236,8 +361,6 @@ public class ResourceReport implements Serializable {
         return nodeName;
     }
 
-    private transient ImmutableMap<ServiceIdentifier<?>, Double> serverAverageProcessingTime = null;
-
     /**
      * This is computed from the container resource reports.
      * 
@@ -245,34 +368,9 @@ public class ResourceReport implements Serializable {
      */
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, Double> getAverageProcessingTime() {
-        if (null == serverAverageProcessingTime) {
-            final Map<ServiceIdentifier<?>, Double> rrProcTimeSum = new HashMap<>();
-            final Map<ServiceIdentifier<?>, Double> rrProcTimeCount = new HashMap<>();
-            containerReports.forEach((container, report) -> {
-                final ServiceIdentifier<?> service = report.getService();
-                if (null != service) {
-                    final double time = report.getAverageProcessingTime();
-                    if (!Double.isNaN(time)) {
-                        rrProcTimeSum.merge(service, time, Double::sum);
-                        rrProcTimeCount.merge(service, 1D, Double::sum);
-                    }
-                }
-            });
-
-            ImmutableMap.Builder<ServiceIdentifier<?>, Double> avg = ImmutableMap.builder();
-            rrProcTimeSum.forEach((service, sum) -> {
-                final double count = rrProcTimeCount.getOrDefault(service, 0D);
-                if (count > 0) {
-                    avg.put(service, sum / count);
-                }
-            });
-            serverAverageProcessingTime = avg.build();
-        }
-        return serverAverageProcessingTime;
+        return containerAggregates.averageProcessingTime;
     }
 
-    private transient ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> computeLoad = null;
-
     /**
      * Get compute load for this node. This is a measured value. service -> node
      * load is coming from -> {@link NodeAttribute} specifying the thing being
@@ -283,34 +381,9 @@ public class ResourceReport implements Serializable {
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>>
             getComputeLoad() {
-        if (null == computeLoad) {
-            // compute it
-            final Map<ServiceIdentifier<?>, Map<NodeIdentifier, Map<NodeAttribute<?>, Double>>> sload = new HashMap<>();
-            containerReports.forEach((container, report) -> {
-                final ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>> cload = report
-                        .getComputeLoad();
-                final ServiceIdentifier<?> service = report.getService();
-                if (null != service) {
-                    final Map<NodeIdentifier, Map<NodeAttribute<?>, Double>> serviceLoad = sload
-                            .computeIfAbsent(service, k -> new HashMap<>());
-
-                    cload.forEach((srcNode, values) -> {
-                        final Map<NodeAttribute<?>, Double> sRegionLoad = serviceLoad.computeIfAbsent(srcNode,
-                                k -> new HashMap<>());
-                        values.forEach((attr, value) -> {
-                            sRegionLoad.merge(attr, value, Double::sum);
-                        });
-                    });
-                }
-            });
-
-            computeLoad = ImmutableUtils.makeImmutableMap3(sload);
-        }
-        return computeLoad;
+        return containerAggregates.computeLoad;
     }
 
-    private transient ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> computeDemand = null;
-
     /**
      * Get estimated compute demand for this node. The meanings of the keys and
      * values match those from {@link #getComputeLoad()}, except that this is
@@ -321,34 +394,9 @@ public class ResourceReport implements Serializable {
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>>
             getComputeDemand() {
-        if (null == computeDemand) {
-            // compute it
-            final Map<ServiceIdentifier<?>, Map<NodeIdentifier, Map<NodeAttribute<?>, Double>>> sload = new HashMap<>();
-            containerReports.forEach((container, report) -> {
-                final ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>> cload = report
-                        .getComputeDemand();
-                final ServiceIdentifier<?> service = report.getService();
-                if (null != service) {
-                    final Map<NodeIdentifier, Map<NodeAttribute<?>, Double>> serviceLoad = sload
-                            .computeIfAbsent(service, k -> new HashMap<>());
-
-                    cload.forEach((srcNode, values) -> {
-                        final Map<NodeAttribute<?>, Double> sRegionLoad = serviceLoad.computeIfAbsent(srcNode,
-                                k -> new HashMap<>());
-                        values.forEach((attr, value) -> {
-                            sRegionLoad.merge(attr, value, Double::sum);
-                        });
-                    });
-                }
-            });
-
-            computeDemand = ImmutableUtils.makeImmutableMap3(sload);
-        }
-        return computeDemand;
+        return containerAggregates.computeDemand;
     }
 
-    private transient ImmutableMap<NodeAttribute<?>, Double> allocatedComputeCapacity = null;
-
     /**
      * The sum of the compute capacity for each running container. By comparing
      * this with {@link #getNodeComputeCapacity()} one can determine the
@@ -358,21 +406,9 @@ public class ResourceReport implements Serializable {
      */
     @Nonnull
     public ImmutableMap<NodeAttribute<?>, Double> getAllocatedComputeCapacity() {
-        if (null == allocatedComputeCapacity) {
-            final Map<NodeAttribute<?>, Double> rrCapacity = new HashMap<>();
-            containerReports.forEach((container, report) -> {
-                final ImmutableMap<NodeAttribute<?>, Double> cCapacity = report.getComputeCapacity();
-                cCapacity.forEach((attr, value) -> {
-                    rrCapacity.merge(attr, value, Double::sum);
-                });
-            });
-            allocatedComputeCapacity = ImmutableMap.copyOf(rrCapacity);
-        }
-        return allocatedComputeCapacity;
+        return containerAggregates.allocatedComputeCapacity;
     }
 
-    private transient ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> containerNetworkLoad = null;
-
     /**
      * Sum of {@link ContainerResourceReport#getNetworkLoad()} across all
      * containers on the node.
@@ -382,49 +418,9 @@ public class ResourceReport implements Serializable {
     @Nonnull
     public ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>>
             getContainerNetworkLoad() {
-        if (null == containerNetworkLoad) {
-            // compute it
-            containerNetworkLoad = sumContainerNetworkValue(report -> report.getNetworkLoad());
-        }
-        return containerNetworkLoad;
-    }
-
-    private ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>>
-            sumContainerNetworkValue(
-                    final Function<ContainerResourceReport, ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>>> reportFunction) {
-        // compute it
-        final Map<NodeIdentifier, Map<NodeIdentifier, Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>>>> nload = new HashMap<>();
-        containerReports.forEach((container, report) -> {
-            final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> cload = reportFunction
-                    .apply(report);
-
-            cload.forEach((neighborNode, cneighborLoad) -> {
-                final Map<NodeIdentifier, Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>>> neighborLoad = nload
-                        .computeIfAbsent(neighborNode, k -> new HashMap<>());
-
-                cneighborLoad.forEach((sourceNode, csourceLoad) -> {
-                    final Map<ServiceIdentifier<?>, Map<LinkAttribute<?>, Double>> sourceLoad = neighborLoad
-                            .computeIfAbsent(sourceNode, k -> new HashMap<>());
-
-                    csourceLoad.forEach((service, cserviceLoad) -> {
-
-                        final Map<LinkAttribute<?>, Double> serviceLoad = sourceLoad.computeIfAbsent(service,
-                                k -> new HashMap<>());
-
-                        cserviceLoad.forEach((attr, value) -> {
-                            serviceLoad.merge(attr, value, Double::sum);
-                        }); // foreach value
-
-                    }); // foreach service
-                }); // foreach source
-            }); // foreach neighbor
-        }); // foreach container
-
-        return ImmutableUtils.makeImmutableMap4(nload);
+        return containerAggregates.networkLoad;
     }
 
-    private transient ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> containerNetworkDemand = null;
-
     /**
      * Network demand to neighboring nodes summed across the containers. See
      * {@link #getAllocatedNetworkCapacity()} for details on the map definition.
@@ -434,11 +430,7 @@ public class ResourceReport implements Serializable {
     @Nonnull
     public ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>>
             getContainerNetworkDemand() {
-        if (null == containerNetworkDemand) {
-            // compute it
-            containerNetworkDemand = sumContainerNetworkValue(report -> report.getNetworkDemand());
-        }
-        return containerNetworkDemand;
+        return containerAggregates.networkDemand;
     }
 
     /**
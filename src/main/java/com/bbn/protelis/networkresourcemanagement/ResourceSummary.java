@@ -1,15 +1,24 @@
 package com.bbn.protelis.networkresourcemanagement;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.function.DoubleFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import javax.annotation.Nonnull;
 
+import org.protelis.lang.datatype.Field;
+import org.protelis.lang.datatype.Tuple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.bbn.protelis.utils.ImmutableUtils;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableMap;
@@ -18,6 +27,11 @@ import com.google.common.collect.ImmutableMap;
  * Summary information about the resources in a region. See
  * {@link ResourceReport} for information about capacity vs. load vs. demand.
  * 
+ * Summaries are merged as {@link SummaryTable}s, arrays of doubles indexed by
+ * shared dictionaries of the services, regions and attributes. The maps
+ * returned by the getters of a merged summary are built the first time they
+ * are asked for, so folding many summaries in Protelis only builds the maps of
+ * the final result.
  */
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ResourceSummary implements Serializable {
@@ -78,20 +92,187 @@ public class ResourceSummary implements Serializable {
         this.serverCapacity = serverCapacity;
         this.serverAverageProcessingTimeCount = serverAverageProcessingTimeCount;
         this.serverAverageProcessingTimeSum = serverAverageProcessingTimeSum;
-
-        final ImmutableMap.Builder<ServiceIdentifier<?>, Double> avgProcTime = ImmutableMap.builder();
-        serverAverageProcessingTimeCount.forEach((service, count) -> {
-            final double sum = serverAverageProcessingTimeSum.getOrDefault(service, 0D);
-            final double average = sum / count;
-            avgProcTime.put(service, average);
-        });
-        this.serverAverageProcessingTime = avgProcTime.build();
-
         this.networkCapacity = networkCapacity;
         this.networkLoad = networkLoad;
         this.networkDemand = networkDemand;
     }
 
+    /**
+     * Create a summary from tables, the maps are built when first asked for.
+     */
+    private ResourceSummary(@Nonnull final RegionIdentifier region,
+            final long minTimestamp,
+            final long maxTimestamp,
+            @Nonnull final ResourceReport.EstimationWindow demandEstimationWindow,
+            @Nonnull final Columns columns) {
+        this.region = region;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.demandEstimationWindow = demandEstimationWindow;
+        this.columns = columns;
+    }
+
+    private static final KeyDictionary<?>[] SERVER_CAPACITY_LEVELS = { KeyDictionary.NODE_ATTRIBUTES };
+    private static final KeyDictionary<?>[] SERVER_LEVELS = { KeyDictionary.SERVICES, KeyDictionary.REGIONS,
+            KeyDictionary.NODE_ATTRIBUTES };
+    private static final KeyDictionary<?>[] SERVICE_LEVELS = { KeyDictionary.SERVICES };
+    private static final KeyDictionary<?>[] NETWORK_CAPACITY_LEVELS = { KeyDictionary.REGIONS,
+            KeyDictionary.LINK_ATTRIBUTES };
+    private static final KeyDictionary<?>[] NETWORK_LEVELS = { KeyDictionary.REGIONS, KeyDictionary.REGIONS,
+            KeyDictionary.SERVICES, KeyDictionary.LINK_ATTRIBUTES };
+
+    private static final DoubleFunction<Double> DOUBLE_VALUE = Double::valueOf;
+    private static final DoubleFunction<Integer> INT_VALUE = v -> (int) v;
+
+    /**
+     * The maps of a summary as {@link SummaryTable}s. Merging summaries merges
+     * their tables, the maps of the result are only built if someone asks for
+     * them.
+     */
+    private static final class Columns {
+        private final SummaryTable serverCapacity;
+        private final SummaryTable serverLoad;
+        private final SummaryTable serverDemand;
+        private final SummaryTable serverAverageProcessingTimeCount;
+        private final SummaryTable serverAverageProcessingTimeSum;
+        private final SummaryTable networkCapacity;
+        private final SummaryTable networkLoad;
+        private final SummaryTable networkDemand;
+
+        Columns(final SummaryTable serverCapacity,
+                final SummaryTable serverLoad,
+                final SummaryTable serverDemand,
+                final SummaryTable serverAverageProcessingTimeCount,
+                final SummaryTable serverAverageProcessingTimeSum,
+                final SummaryTable networkCapacity,
+                final SummaryTable networkLoad,
+                final SummaryTable networkDemand) {
+            this.serverCapacity = serverCapacity;
+            this.serverLoad = serverLoad;
+            this.serverDemand = serverDemand;
+            this.serverAverageProcessingTimeCount = serverAverageProcessingTimeCount;
+            this.serverAverageProcessingTimeSum = serverAverageProcessingTimeSum;
+            this.networkCapacity = networkCapacity;
+            this.networkLoad = networkLoad;
+            this.networkDemand = networkDemand;
+        }
+
+        /**
+         * @return the tables of the summary, null if one of its maps can't be
+         *         represented as a table
+         */
+        static Columns of(final ResourceSummary summary) {
+            final SummaryTable serverCapacity = SummaryTable.fromMap(summary.getServerCapacity(),
+                    SERVER_CAPACITY_LEVELS);
+            final SummaryTable serverLoad = SummaryTable.fromMap(summary.getServerLoad(), SERVER_LEVELS);
+            final SummaryTable serverDemand = SummaryTable.fromMap(summary.getServerDemand(), SERVER_LEVELS);
+            final SummaryTable count = SummaryTable.fromMap(summary.getServerAverageProcessingTimeCount(),
+                    SERVICE_LEVELS);
+            final SummaryTable sum = SummaryTable.fromMap(summary.getServerAverageProcessingTimeSum(),
+                    SERVICE_LEVELS);
+            final SummaryTable networkCapacity = SummaryTable.fromMap(summary.getNetworkCapacity(),
+                    NETWORK_CAPACITY_LEVELS);
+            final SummaryTable networkLoad = SummaryTable.fromMap(summary.getNetworkLoad(), NETWORK_LEVELS);
+            final SummaryTable networkDemand = SummaryTable.fromMap(summary.getNetworkDemand(), NETWORK_LEVELS);
+            if (null == serverCapacity || null == serverLoad || null == serverDemand || null == count || null == sum
+                    || null == networkCapacity || null == networkLoad || null == networkDemand) {
+                return null;
+            }
+            return new Columns(serverCapacity, serverLoad, serverDemand, count, sum, networkCapacity, networkLoad,
+                    networkDemand);
+        }
+
+        static Columns merge(final Columns one, final Columns two) {
+            return new Columns(SummaryTable.merge(one.serverCapacity, two.serverCapacity),
+                    SummaryTable.merge(one.serverLoad, two.serverLoad),
+                    SummaryTable.merge(one.serverDemand, two.serverDemand),
+                    SummaryTable.merge(one.serverAverageProcessingTimeCount, two.serverAverageProcessingTimeCount),
+                    SummaryTable.merge(one.serverAverageProcessingTimeSum, two.serverAverageProcessingTimeSum),
+                    SummaryTable.merge(one.networkCapacity, two.networkCapacity),
+                    SummaryTable.merge(one.networkLoad, two.networkLoad),
+                    SummaryTable.merge(one.networkDemand, two.networkDemand));
+        }
+
+        static Columns sum(final List<Columns> all) {
+            return new Columns(sum(all, c -> c.serverCapacity, SERVER_CAPACITY_LEVELS),
+                    sum(all, c -> c.serverLoad, SERVER_LEVELS), //
+                    sum(all, c -> c.serverDemand, SERVER_LEVELS),
+                    sum(all, c -> c.serverAverageProcessingTimeCount, SERVICE_LEVELS),
+                    sum(all, c -> c.serverAverageProcessingTimeSum, SERVICE_LEVELS),
+                    sum(all, c -> c.networkCapacity, NETWORK_CAPACITY_LEVELS),
+                    sum(all, c -> c.networkLoad, NETWORK_LEVELS), //
+                    sum(all, c -> c.networkDemand, NETWORK_LEVELS));
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (o == this) {
+                return true;
+            } else if (o instanceof Columns) {
+                final Columns other = (Columns) o;
+                return serverCapacity.equals(other.serverCapacity) //
+                        && serverLoad.equals(other.serverLoad)
+                        && serverDemand.equals(other.serverDemand)
+                        && serverAverageProcessingTimeCount.equals(other.serverAverageProcessingTimeCount)
+                        && serverAverageProcessingTimeSum.equals(other.serverAverageProcessingTimeSum)
+                        && networkCapacity.equals(other.networkCapacity)
+                        && networkLoad.equals(other.networkLoad)
+                        && networkDemand.equals(other.networkDemand);
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(serverCapacity, serverLoad, networkLoad);
+        }
+
+        private static SummaryTable sum(final List<Columns> all,
+                final Function<Columns, SummaryTable> table,
+                final KeyDictionary<?>[] levels) {
+            final List<SummaryTable> tables = new ArrayList<>(all.size());
+            all.forEach(c -> tables.add(table.apply(c)));
+            return SummaryTable.sum(tables, levels);
+        }
+    }
+
+    // set when created from tables or when first merged, never serialized as
+    // the ordinals are only valid in this JVM
+    private transient volatile Columns columns = null;
+    // set when the maps of this summary can't be represented as tables
+    private transient volatile boolean mapsOnly = false;
+
+    /**
+     * @return the tables of this summary, null if the maps can't be
+     *         represented as tables
+     */
+    private Columns columns() {
+        Columns c = columns;
+        if (null == c && !mapsOnly) {
+            c = Columns.of(this);
+            if (null == c) {
+                mapsOnly = true;
+            } else {
+                columns = c;
+            }
+        }
+        return c;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        // build all maps, they are what is serialized
+        getServerCapacity();
+        getServerLoad();
+        getServerDemand();
+        getServerAverageProcessingTimeCount();
+        getServerAverageProcessingTimeSum();
+        getNetworkCapacity();
+        getNetworkLoad();
+        getNetworkDemand();
+        out.defaultWriteObject();
+    }
+
     private final RegionIdentifier region;
 
     /**
@@ -136,7 +317,9 @@ public class ResourceSummary implements Serializable {
         return demandEstimationWindow;
     }
 
-    private final ImmutableMap<ServiceIdentifier<?>, Integer> serverAverageProcessingTimeCount;
+    // the map fields are either set by the constructor or built from the
+    // columns when first asked for, racing threads build equal maps
+    private volatile ImmutableMap<ServiceIdentifier<?>, Integer> serverAverageProcessingTimeCount;
 
     /**
      * @return Used to compute {@link #getServerAverageProcessingTime()} when
@@ -144,10 +327,15 @@ public class ResourceSummary implements Serializable {
      */
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, Integer> getServerAverageProcessingTimeCount() {
-        return serverAverageProcessingTimeCount;
+        ImmutableMap<ServiceIdentifier<?>, Integer> map = serverAverageProcessingTimeCount;
+        if (null == map) {
+            map = columns.serverAverageProcessingTimeCount.toMap(INT_VALUE);
+            serverAverageProcessingTimeCount = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<ServiceIdentifier<?>, Double> serverAverageProcessingTimeSum;
+    private volatile ImmutableMap<ServiceIdentifier<?>, Double> serverAverageProcessingTimeSum;
 
     /**
      * @return Used to compute {@link #getServerAverageProcessingTime()} when
@@ -155,10 +343,15 @@ public class ResourceSummary implements Serializable {
      */
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, Double> getServerAverageProcessingTimeSum() {
-        return serverAverageProcessingTimeSum;
+        ImmutableMap<ServiceIdentifier<?>, Double> map = serverAverageProcessingTimeSum;
+        if (null == map) {
+            map = columns.serverAverageProcessingTimeSum.toMap(DOUBLE_VALUE);
+            serverAverageProcessingTimeSum = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<ServiceIdentifier<?>, Double> serverAverageProcessingTime;
+    private transient volatile ImmutableMap<ServiceIdentifier<?>, Double> serverAverageProcessingTime;
 
     /**
      * 
@@ -166,10 +359,22 @@ public class ResourceSummary implements Serializable {
      */
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, Double> getServerAverageProcessingTime() {
-        return serverAverageProcessingTime;
+        ImmutableMap<ServiceIdentifier<?>, Double> map = serverAverageProcessingTime;
+        if (null == map) {
+            final ImmutableMap<ServiceIdentifier<?>, Double> sums = getServerAverageProcessingTimeSum();
+            final ImmutableMap.Builder<ServiceIdentifier<?>, Double> avgProcTime = ImmutableMap.builder();
+            getServerAverageProcessingTimeCount().forEach((service, count) -> {
+                final double sum = sums.getOrDefault(service, 0D);
+                final double average = sum / count;
+                avgProcTime.put(service, average);
+            });
+            map = avgProcTime.build();
+            serverAverageProcessingTime = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverLoad;
+    private volatile ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverLoad;
 
     /**
      * Get server load for this region. This is a measured value. service ->
@@ -181,10 +386,15 @@ public class ResourceSummary implements Serializable {
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>>
             getServerLoad() {
-        return serverLoad;
+        ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> map = serverLoad;
+        if (null == map) {
+            map = columns.serverLoad.toMap(DOUBLE_VALUE);
+            serverLoad = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverDemand;
+    private volatile ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverDemand;
 
     /**
      * Get server estimated demand for this region. service -> source region for
@@ -196,10 +406,15 @@ public class ResourceSummary implements Serializable {
     @Nonnull
     public ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>>
             getServerDemand() {
-        return serverDemand;
+        ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> map = serverDemand;
+        if (null == map) {
+            map = columns.serverDemand.toMap(DOUBLE_VALUE);
+            serverDemand = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<NodeAttribute<?>, Double> serverCapacity;
+    private volatile ImmutableMap<NodeAttribute<?>, Double> serverCapacity;
 
     /**
      * Server capacity for this region.
@@ -209,10 +424,15 @@ public class ResourceSummary implements Serializable {
      */
     @Nonnull
     public ImmutableMap<NodeAttribute<?>, Double> getServerCapacity() {
-        return serverCapacity;
+        ImmutableMap<NodeAttribute<?>, Double> map = serverCapacity;
+        if (null == map) {
+            map = columns.serverCapacity.toMap(DOUBLE_VALUE);
+            serverCapacity = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity;
+    private volatile ImmutableMap<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity;
 
     /**
      * Network capacity for neighboring regions. neighbor region -> attribute ->
@@ -223,10 +443,15 @@ public class ResourceSummary implements Serializable {
      */
     @Nonnull
     public ImmutableMap<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> getNetworkCapacity() {
-        return networkCapacity;
+        ImmutableMap<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> map = networkCapacity;
+        if (null == map) {
+            map = columns.networkCapacity.toMap(DOUBLE_VALUE);
+            networkCapacity = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad;
+    private volatile ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad;
 
     /**
      * Network load and where it comes from. neighbor region -> source region ->
@@ -240,10 +465,15 @@ public class ResourceSummary implements Serializable {
     @Nonnull
     public ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>>
             getNetworkLoad() {
-        return networkLoad;
+        ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> map = networkLoad;
+        if (null == map) {
+            map = columns.networkLoad.toMap(DOUBLE_VALUE);
+            networkLoad = map;
+        }
+        return map;
     }
 
-    private final ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkDemand;
+    private volatile ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkDemand;
 
     /**
      * Network demand for neighboring regions. Only direct neighbors are
@@ -255,7 +485,12 @@ public class ResourceSummary implements Serializable {
     @Nonnull
     public ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>>
             getNetworkDemand() {
-        return networkDemand;
+        ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> map = networkDemand;
+        if (null == map) {
+            map = columns.networkDemand.toMap(DOUBLE_VALUE);
+            networkDemand = map;
+        }
+        return map;
     }
 
     /**
@@ -310,6 +545,16 @@ public class ResourceSummary implements Serializable {
                     + one.getDemandEstimationWindow() + " != " + two.getDemandEstimationWindow());
         }
 
+        final long minTimestamp = Math.min(one.getMinTimestamp(), two.getMinTimestamp());
+        final long maxTimestamp = Math.max(one.getMaxTimestamp(), two.getMaxTimestamp());
+
+        final Columns oneColumns = one.columns();
+        final Columns twoColumns = null == oneColumns ? null : two.columns();
+        if (null != twoColumns) {
+            return new ResourceSummary(one.getRegion(), minTimestamp, maxTimestamp, one.getDemandEstimationWindow(),
+                    Columns.merge(oneColumns, twoColumns));
+        }
+
         final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverLoad = mergeMaps3(
                 one.getServerLoad(), two.getServerLoad());
         final ImmutableMap<NodeAttribute<?>, Double> serverCapacity = mergeDoubleMapViaSum(one.getServerCapacity(),
@@ -337,13 +582,189 @@ public class ResourceSummary implements Serializable {
         final ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkDemand = mergeMaps4(
                 one.getNetworkDemand(), two.getNetworkDemand());
 
-        final long minTimestamp = Math.min(one.getMinTimestamp(), two.getMinTimestamp());
-        final long maxTimestamp = Math.max(one.getMaxTimestamp(), two.getMaxTimestamp());
         return new ResourceSummary(one.getRegion(), minTimestamp, maxTimestamp, one.getDemandEstimationWindow(),
                 serverCapacity, serverLoad, serverDemand, ImmutableMap.copyOf(serverAvgProcTimeCount),
                 ImmutableMap.copyOf(serverAvgProcTimeSum), networkCapacity, networkLoad, networkDemand);
     }
 
+    /**
+     * Merges any number of summaries and reports for a region in one pass.
+     * Adding a summary only keeps a reference to it, all summaries are merged
+     * when {@link #build()} is called, so folding k summaries creates one new
+     * summary instead of k - 1. Not thread safe.
+     */
+    public static final class Accumulator {
+        private final RegionIdentifier region;
+        private final ResourceReport.EstimationWindow demandEstimationWindow;
+        private final List<Columns> columns = new ArrayList<>();
+        // summaries that can't be merged as tables, merged pairwise
+        private ResourceSummary mapsOnly = null;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
+        private int count = 0;
+
+        /**
+         * @param region
+         *            the region of the summaries
+         * @param demandEstimationWindow
+         *            the estimation window of the summaries
+         */
+        public Accumulator(@Nonnull final RegionIdentifier region,
+                @Nonnull final ResourceReport.EstimationWindow demandEstimationWindow) {
+            this.region = region;
+            this.demandEstimationWindow = demandEstimationWindow;
+        }
+
+        /**
+         * @param summary
+         *            the summary to add
+         * @return this accumulator
+         * @throws IllegalArgumentException
+         *             if the summary is for another region or estimation
+         *             window
+         */
+        @Nonnull
+        public Accumulator add(@Nonnull final ResourceSummary summary) {
+            if (!region.equals(summary.getRegion())) {
+                throw new IllegalArgumentException("Cannot merge resource summaries from different regions: "
+                        + region + " != " + summary.getRegion());
+            }
+            if (!demandEstimationWindow.equals(summary.getDemandEstimationWindow())) {
+                throw new IllegalArgumentException(
+                        "Cannot merge resource summaries with different estimation windows: "
+                                + demandEstimationWindow + " != " + summary.getDemandEstimationWindow());
+            }
+
+            minTimestamp = Math.min(minTimestamp, summary.getMinTimestamp());
+            maxTimestamp = Math.max(maxTimestamp, summary.getMaxTimestamp());
+            ++count;
+
+            final Columns c = summary.columns();
+            if (null != c) {
+                columns.add(c);
+            } else if (null == mapsOnly) {
+                mapsOnly = summary;
+            } else {
+                mapsOnly = merge(mapsOnly, summary);
+            }
+            return this;
+        }
+
+        /**
+         * @param report
+         *            the report to add
+         * @param nodeToRegion
+         *            convert node identifiers to region identifiers
+         * @return this accumulator
+         * @throws IllegalArgumentException
+         *             if the report is for a node in another region or another
+         *             estimation window
+         * @see ResourceSummary#convertToSummary(ResourceReport,
+         *      RegionLookupService)
+         */
+        @Nonnull
+        public Accumulator add(@Nonnull final ResourceReport report,
+                @Nonnull final RegionLookupService nodeToRegion) {
+            return add(convertToSummary(report, nodeToRegion));
+        }
+
+        /**
+         * @return the number of summaries and reports added
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * The accumulator can be used again afterwards, later additions are
+         * merged with the earlier ones.
+         * 
+         * @return the merge of everything added, the null summary if nothing
+         *         was added
+         * @see ResourceSummary#getNullSummary(RegionIdentifier,
+         *      ResourceReport.EstimationWindow)
+         */
+        @Nonnull
+        public ResourceSummary build() {
+            if (0 == count) {
+                return getNullSummary(region, demandEstimationWindow);
+            }
+
+            if (columns.isEmpty()) {
+                return mapsOnly;
+            }
+            final ResourceSummary fromColumns = new ResourceSummary(region, minTimestamp, maxTimestamp,
+                    demandEstimationWindow, 1 == columns.size() ? columns.get(0) : Columns.sum(columns));
+            if (null == mapsOnly) {
+                return fromColumns;
+            } else {
+                return merge(fromColumns, mapsOnly);
+            }
+        }
+    }
+
+    /**
+     * Merge all summaries in a tuple in one pass, for use from Protelis. Null
+     * entries are skipped, so a tuple built from a field with mux can be
+     * passed directly.
+     * 
+     * @param region
+     *            the region of the summaries
+     * @param estimationWindow
+     *            the estimation window of the summaries
+     * @param summaries
+     *            {@link ResourceSummary} objects or null
+     * @return the merged summary, the null summary if there are none
+     * @throws ClassCastException
+     *             if the tuple contains something other than summaries
+     * @throws IllegalArgumentException
+     *             if a summary is for another region or estimation window
+     * @see Accumulator
+     */
+    @Nonnull
+    public static ResourceSummary mergeAll(@Nonnull final RegionIdentifier region,
+            @Nonnull final ResourceReport.EstimationWindow estimationWindow,
+            @Nonnull final Tuple summaries) {
+        return mergeAll(region, estimationWindow, (Iterable<Object>) summaries);
+    }
+
+    /**
+     * Merge the summaries of all devices in a field in one pass, including
+     * the summary of this device. This replaces a hood fold with
+     * {@link #merge(ResourceSummary, ResourceSummary)}.
+     * 
+     * @param region
+     *            the region of the summaries
+     * @param estimationWindow
+     *            the estimation window of the summaries
+     * @param summaries
+     *            {@link ResourceSummary} objects or null for each device
+     * @return the merged summary, the null summary if there are none
+     * @throws ClassCastException
+     *             if the field contains something other than summaries
+     * @throws IllegalArgumentException
+     *             if a summary is for another region or estimation window
+     * @see #mergeAll(RegionIdentifier, ResourceReport.EstimationWindow, Tuple)
+     */
+    @Nonnull
+    public static ResourceSummary mergeAll(@Nonnull final RegionIdentifier region,
+            @Nonnull final ResourceReport.EstimationWindow estimationWindow,
+            @Nonnull final Field summaries) {
+        return mergeAll(region, estimationWindow, summaries.valIterator());
+    }
+
+    private static ResourceSummary mergeAll(final RegionIdentifier region,
+            final ResourceReport.EstimationWindow estimationWindow,
+            final Iterable<Object> summaries) {
+        final Accumulator accumulator = new Accumulator(region, estimationWindow);
+        for (final Object summary : summaries) {
+            if (null != summary) {
+                accumulator.add((ResourceSummary) summary);
+            }
+        }
+        return accumulator.build();
+    }
+
     /**
      * Convert a {@link ResourceReport} into a {@link ResourceSummary} to be
      * merged later. This is used by Protelis when building up the summary for a
@@ -365,7 +786,10 @@ public class ResourceSummary implements Serializable {
             LOGGER.trace("Converting report with server load {}", report.getComputeLoad());
         }
 
-        final RegionIdentifier reportRegion = nodeToRegion.getRegionForNode(report.getNodeName());
+        // every node is resolved once, values are grouped by region ordinal
+        final RegionResolver regions = new RegionResolver(nodeToRegion);
+        final int reportRegionOrdinal = regions.ordinal(report.getNodeName());
+        final RegionIdentifier reportRegion = regions.region(reportRegionOrdinal);
 
         final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<NodeIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> reportServerLoad = report
                 .getComputeLoad();
@@ -373,7 +797,7 @@ public class ResourceSummary implements Serializable {
                 .builder();
         reportServerLoad.forEach((service, map) -> {
             final ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>> regionMap = convertNodeToRegion(
-                    nodeToRegion, map);
+                    regions, RegionIndex.NO_REGION, map);
             if (LOGGER.isTraceEnabled()) {
                 LOGGER.trace("Converted {} -> {}", map, regionMap);
             }
@@ -392,7 +816,7 @@ public class ResourceSummary implements Serializable {
                 .builder();
         reportServerDemand.forEach((service, map) -> {
             final ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>> regionMap = convertNodeToRegion(
-                    nodeToRegion, map);
+                    regions, RegionIndex.NO_REGION, map);
             serverDemandBuilder.put(service, regionMap);
         });
         final ImmutableMap<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverDemand = serverDemandBuilder
@@ -409,14 +833,14 @@ public class ResourceSummary implements Serializable {
 
         // use node network capacity as the summaries don't care about the
         // containers
-        final ImmutableMap<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity = convertNodeToRegionExcludingThis1(
-                nodeToRegion, reportRegion, report.getNetworkCapacity());
+        final ImmutableMap<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity = convertNodeToRegion(
+                regions, reportRegionOrdinal, report.getNetworkCapacity());
 
         final ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad = convertNodeToRegionExcludingThis3(
-                nodeToRegion, reportRegion, report.getNetworkLoad());
+                regions, reportRegionOrdinal, report.getNetworkLoad());
 
         final ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkDemand = convertNodeToRegionExcludingThis3(
-                nodeToRegion, reportRegion, report.getNetworkDemand());
+                regions, reportRegionOrdinal, report.getNetworkDemand());
 
         final ResourceSummary summary = new ResourceSummary(reportRegion, report.getTimestamp(), report.getTimestamp(),
                 report.getDemandEstimationWindow(), serverCapacity, serverLoad, serverDemand,
@@ -424,30 +848,51 @@ public class ResourceSummary implements Serializable {
         return summary;
     }
 
+    /**
+     * @return the value at the ordinal, created if needed
+     */
+    private static <V> V bucket(final List<V> buckets, final int ordinal, final Supplier<V> create) {
+        while (buckets.size() <= ordinal) {
+            buckets.add(null);
+        }
+        V value = buckets.get(ordinal);
+        if (null == value) {
+            value = create.get();
+            buckets.set(ordinal, value);
+        }
+        return value;
+    }
+
     /**
      * Convert the map of NodeIdentifiers to RegionIdentifiers. Exclude neighbor
      * nodes that are in thisRegion.
      */
     private static <T>
             ImmutableMap<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<T, Double>>>>
-            convertNodeToRegionExcludingThis3(@Nonnull final RegionLookupService nodeToRegion,
-                    @Nonnull final RegionIdentifier thisRegion,
+            convertNodeToRegionExcludingThis3(@Nonnull final RegionResolver regions,
+                    final int thisRegion,
                     final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<T, Double>>>> source) {
-        final Map<RegionIdentifier, Map<RegionIdentifier, Map<ServiceIdentifier<?>, Map<T, Double>>>> dest = new HashMap<>();
+        if (source.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        // neighbor region ordinal -> source region ordinal -> service ->
+        // attribute -> value
+        final List<List<Map<ServiceIdentifier<?>, Map<T, Double>>>> dest = new ArrayList<>();
 
         source.forEach((neighborNode, neighborData) -> {
-            final RegionIdentifier neighborRegion = nodeToRegion.getRegionForNode(neighborNode);
-            if (null != neighborRegion) {
-                if (!thisRegion.equals(neighborRegion)) {
+            final int neighborRegion = regions.ordinal(neighborNode);
+            if (RegionIndex.NO_REGION != neighborRegion) {
+                if (thisRegion != neighborRegion) {
 
-                    final Map<RegionIdentifier, Map<ServiceIdentifier<?>, Map<T, Double>>> destNeighborData = dest
-                            .computeIfAbsent(neighborRegion, k -> new HashMap<>());
+                    final List<Map<ServiceIdentifier<?>, Map<T, Double>>> destNeighborData = bucket(dest,
+                            neighborRegion, ArrayList::new);
 
                     neighborData.forEach((sourceNode, sourceData) -> {
-                        final RegionIdentifier sourceRegion = nodeToRegion.getRegionForNode(sourceNode);
-                        if (null != sourceRegion) {
-                            final Map<ServiceIdentifier<?>, Map<T, Double>> destSourceData = destNeighborData
-                                    .computeIfAbsent(sourceRegion, k -> new HashMap<>());
+                        final int sourceRegion = regions.ordinal(sourceNode);
+                        if (RegionIndex.NO_REGION != sourceRegion) {
+                            final Map<ServiceIdentifier<?>, Map<T, Double>> destSourceData = bucket(destNeighborData,
+                                    sourceRegion, HashMap::new);
 
                             sourceData.forEach((service, serviceData) -> {
                                 final Map<T, Double> destServiceData = destSourceData.computeIfAbsent(service,
@@ -469,53 +914,64 @@ public class ResourceSummary implements Serializable {
             }
         }); // foreach neighbor
 
-        return ImmutableUtils.makeImmutableMap4(dest);
-    }
-
-    /**
-     * Convert the map of NodeIdentifiers to RegionIdentifiers. Exclude this
-     * region.
-     */
-    private static <T> ImmutableMap<RegionIdentifier, ImmutableMap<T, Double>> convertNodeToRegionExcludingThis1(
-            @Nonnull final RegionLookupService nodeToRegion,
-            @Nonnull final RegionIdentifier thisRegion,
-            final ImmutableMap<NodeIdentifier, ImmutableMap<T, Double>> source) {
-
-        final Map<RegionIdentifier, ImmutableMap<T, Double>> dest = new HashMap<>();
-        source.forEach((node, v) -> {
-            final RegionIdentifier region = nodeToRegion.getRegionForNode(node);
-            if (null != region) {
-                if (!thisRegion.equals(region)) {
-                    dest.merge(region, v, ResourceSummary::mergeDoubleMapViaSum);
+        final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<T, Double>>>> result = ImmutableMap
+                .builder();
+        for (int neighborRegion = 0; neighborRegion < dest.size(); ++neighborRegion) {
+            final List<Map<ServiceIdentifier<?>, Map<T, Double>>> neighborData = dest.get(neighborRegion);
+            if (null != neighborData) {
+                final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<T, Double>>> neighborResult = ImmutableMap
+                        .builder();
+                for (int sourceRegion = 0; sourceRegion < neighborData.size(); ++sourceRegion) {
+                    final Map<ServiceIdentifier<?>, Map<T, Double>> sourceData = neighborData.get(sourceRegion);
+                    if (null != sourceData) {
+                        final ImmutableMap.Builder<ServiceIdentifier<?>, ImmutableMap<T, Double>> sourceResult = ImmutableMap
+                                .builder();
+                        sourceData.forEach((service, serviceData) -> sourceResult.put(service,
+                                ImmutableMap.copyOf(serviceData)));
+                        neighborResult.put(regions.region(sourceRegion), sourceResult.build());
+                    }
                 }
-            } else {
-                LOGGER.warn("Unable to find region for node {}", node);
+                result.put(regions.region(neighborRegion), neighborResult.build());
             }
-
-        });
-
-        return ImmutableMap.copyOf(dest);
+        }
+        return result.build();
     }
 
     /**
-     * Convert the map of NodeIdentifiers to RegionIdentifiers.
+     * Convert the map of NodeIdentifiers to RegionIdentifiers. Exclude nodes
+     * in excludeRegion, which may be {@link RegionIndex#NO_REGION} to keep all
+     * nodes.
      */
     private static <T> ImmutableMap<RegionIdentifier, ImmutableMap<T, Double>> convertNodeToRegion(
-            @Nonnull final RegionLookupService nodeToRegion,
+            @Nonnull final RegionResolver regions,
+            final int excludeRegion,
             final ImmutableMap<NodeIdentifier, ImmutableMap<T, Double>> source) {
+        if (source.isEmpty()) {
+            return ImmutableMap.of();
+        }
 
-        final Map<RegionIdentifier, ImmutableMap<T, Double>> dest = new HashMap<>();
+        final List<Map<T, Double>> dest = new ArrayList<>();
         source.forEach((node, v) -> {
-            final RegionIdentifier region = nodeToRegion.getRegionForNode(node);
-            if (null != region) {
-                dest.merge(region, v, ResourceSummary::mergeDoubleMapViaSum);
+            final int region = regions.ordinal(node);
+            if (RegionIndex.NO_REGION != region) {
+                if (excludeRegion != region) {
+                    final Map<T, Double> destData = bucket(dest, region, HashMap::new);
+                    v.forEach((attr, value) -> destData.merge(attr, value, Double::sum));
+                }
             } else {
                 LOGGER.warn("Unable to find region for node {}", node);
             }
 
         });
 
-        return ImmutableMap.copyOf(dest);
+        final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<T, Double>> result = ImmutableMap.builder();
+        for (int region = 0; region < dest.size(); ++region) {
+            final Map<T, Double> data = dest.get(region);
+            if (null != data) {
+                result.put(regions.region(region), ImmutableMap.copyOf(data));
+            }
+        }
+        return result.build();
     }
 
     @Nonnull
@@ -653,6 +1109,59 @@ public class ResourceSummary implements Serializable {
         return newImmutableMap;
     }
 
+    /**
+     * Hashes the tables when the maps can be represented as tables, so a
+     * merged summary doesn't build its maps. Summaries that can't be
+     * represented as tables are never equal to ones that can.
+     */
+    @Override
+    public int hashCode() {
+        final Columns c = columns();
+        if (null != c) {
+            return Objects.hash(region, minTimestamp, maxTimestamp, c);
+        } else {
+            return Objects.hash(region, minTimestamp, maxTimestamp, getServerCapacity(), getServerLoad(),
+                    getNetworkLoad());
+        }
+    }
+
+    /**
+     * Compares the tables when both summaries can be represented as tables,
+     * otherwise the maps. A merged summary never builds its maps here.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        } else if (o instanceof ResourceSummary) {
+            final ResourceSummary other = (ResourceSummary) o;
+            if (!Objects.equals(getRegion(), other.getRegion()) //
+                    || getMinTimestamp() != other.getMinTimestamp()
+                    || getMaxTimestamp() != other.getMaxTimestamp()
+                    || !Objects.equals(getDemandEstimationWindow(), other.getDemandEstimationWindow())) {
+                return false;
+            }
+
+            final Columns mine = columns();
+            final Columns theirs = other.columns();
+            if (null != mine && null != theirs) {
+                return mine.equals(theirs);
+            }
+
+            return Objects.equals(getServerCapacity(), other.getServerCapacity())
+                    && Objects.equals(getServerLoad(), other.getServerLoad())
+                    && Objects.equals(getServerDemand(), other.getServerDemand())
+                    && Objects.equals(getServerAverageProcessingTimeCount(),
+                            other.getServerAverageProcessingTimeCount())
+                    && Objects.equals(getServerAverageProcessingTimeSum(), other.getServerAverageProcessingTimeSum())
+                    && Objects.equals(getNetworkCapacity(), other.getNetworkCapacity())
+                    && Objects.equals(getNetworkLoad(), other.getNetworkLoad())
+                    && Objects.equals(getNetworkDemand(), other.getNetworkDemand());
+        } else {
+            return false;
+        }
+    }
+
     @Override
     public String toString() {
         return "{" + " region: " + getRegion() + " serverLoad: " + getServerLoad() + "}";
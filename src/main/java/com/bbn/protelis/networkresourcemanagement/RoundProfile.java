@@ -0,0 +1,268 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bbn.protelis.utils.TimingHistogram;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Where the round time of a {@link NetworkServer} goes. Each phase of a round
+ * has a {@link TimingHistogram} in nanoseconds that is updated on every round,
+ * so slow nodes can be found without trace logging. Read with
+ * {@link #snapshot()} or through JMX.
+ *
+ * @see NetworkServer#getRoundProfile()
+ */
+public final class RoundProfile implements RoundProfileMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoundProfile.class);
+
+    /**
+     * Domain of the names the profiles are registered under.
+     */
+    public static final String MBEAN_DOMAIN = "com.bbn.protelis";
+
+    /**
+     * The parts of a round that are timed.
+     */
+    public enum Phase {
+        /**
+         * {@link NetworkServer#preRunCycle()}.
+         */
+        PRE_RUN_CYCLE,
+        /**
+         * Execution of the protelis program, includes {@link #SHARE_STATE}.
+         */
+        RUN_CYCLE,
+        /**
+         * Sending the exported state to the neighbors, includes the sends
+         * themselves unless they are asynchronous.
+         */
+        SHARE_STATE,
+        /**
+         * Serializing the exported state, see
+         * {@link ShareStateReport#getEncodeNanos()}.
+         */
+        ENCODE,
+        /**
+         * {@link NetworkServer#postRunCycle()}.
+         */
+        POST_RUN_CYCLE,
+        /**
+         * The whole round.
+         */
+        ROUND,
+        /**
+         * How much later than planned the round started, measured on the
+         * clock of the node. Rounds that start early count as 0.
+         */
+        SLEEP_OVERRUN
+    }
+
+    private final LongSupplier executionCount;
+    private final Map<Phase, TimingHistogram> histograms = new EnumMap<>(Phase.class);
+    private final LongAdder overrunCount = new LongAdder();
+
+    // guarded by this
+    private ObjectName mbeanName = null;
+
+    /**
+     * @param executionCount
+     *            the number of rounds the node executed
+     */
+    /* package */ RoundProfile(@Nonnull final LongSupplier executionCount) {
+        this.executionCount = executionCount;
+        for (final Phase phase : Phase.values()) {
+            histograms.put(phase, new TimingHistogram());
+        }
+    }
+
+    /**
+     * @param phase
+     *            what took the time
+     * @param nanos
+     *            how long it took
+     */
+    /* package */ void record(@Nonnull final Phase phase, final long nanos) {
+        histograms.get(phase).record(nanos);
+    }
+
+    /**
+     * @param plannedStart
+     *            when the round should have started on the clock of the node
+     * @param actualStart
+     *            when the round started
+     */
+    /* package */ void recordStart(final long plannedStart, final long actualStart) {
+        final long overrun = actualStart - plannedStart;
+        if (overrun > 0) {
+            overrunCount.increment();
+        }
+        record(Phase.SLEEP_OVERRUN, TimeUnit.MILLISECONDS.toNanos(Math.max(0, overrun)));
+    }
+
+    /**
+     * @return the current values, taken without stopping the rounds
+     */
+    @Nonnull
+    public Snapshot snapshot() {
+        final ImmutableMap.Builder<Phase, TimingHistogram.Snapshot> phases = ImmutableMap.builder();
+        histograms.forEach((phase, histogram) -> phases.put(phase, histogram.snapshot()));
+        return new Snapshot(executionCount.getAsLong(), overrunCount.sum(), phases.build());
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return executionCount.getAsLong();
+    }
+
+    @Override
+    public long getOverrunCount() {
+        return overrunCount.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        return perPhase(TimingHistogram.Snapshot::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        return perPhase(s -> s.getMean() / TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    @Override
+    public Map<String, Long> getP99Micros() {
+        return perPhase(s -> TimeUnit.NANOSECONDS.toMicros(s.getPercentile(Snapshot.P99)));
+    }
+
+    @Override
+    public Map<String, Long> getMaxMicros() {
+        return perPhase(s -> TimeUnit.NANOSECONDS.toMicros(s.getMax()));
+    }
+
+    private <T> Map<String, T> perPhase(final Function<TimingHistogram.Snapshot, T> value) {
+        final Map<String, T> result = new TreeMap<>();
+        histograms.forEach((phase, histogram) -> result.put(phase.name(), value.apply(histogram.snapshot())));
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        histograms.values().forEach(TimingHistogram::reset);
+        overrunCount.reset();
+    }
+
+    /**
+     * Register with the platform MBean server as
+     * {@value #MBEAN_DOMAIN}:type=RoundProfile,node=name. Failures are logged,
+     * a node with the same name in the same JVM keeps its registration.
+     *
+     * @param nodeName
+     *            name of the node
+     */
+    public synchronized void registerMBean(@Nonnull final String nodeName) {
+        if (null != mbeanName) {
+            return;
+        }
+        try {
+            final ObjectName name = new ObjectName(
+                    MBEAN_DOMAIN + ":type=RoundProfile,node=" + ObjectName.quote(nodeName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mbeanName = name;
+        } catch (final JMException e) {
+            LOGGER.warn("Unable to register round profile of node " + nodeName + " with JMX", e);
+        }
+    }
+
+    /**
+     * Undo {@link #registerMBean(String)}. Does nothing if not registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (null == mbeanName) {
+            return;
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(mbeanName);
+        } catch (final JMException e) {
+            LOGGER.warn("Unable to unregister round profile " + mbeanName + " from JMX", e);
+        }
+        mbeanName = null;
+    }
+
+    /**
+     * Immutable copy of a {@link RoundProfile}.
+     */
+    public static final class Snapshot {
+        /**
+         * Quantile for the 99th percentile.
+         */
+        public static final double P99 = 0.99;
+
+        private final long executionCount;
+        private final long overrunCount;
+        private final ImmutableMap<Phase, TimingHistogram.Snapshot> phases;
+
+        private Snapshot(final long executionCount,
+                final long overrunCount,
+                final ImmutableMap<Phase, TimingHistogram.Snapshot> phases) {
+            this.executionCount = executionCount;
+            this.overrunCount = overrunCount;
+            this.phases = phases;
+        }
+
+        /**
+         * @return see {@link NetworkServer#getExecutionCount()}
+         */
+        public long getExecutionCount() {
+            return executionCount;
+        }
+
+        /**
+         * @return number of rounds that started later than planned
+         */
+        public long getOverrunCount() {
+            return overrunCount;
+        }
+
+        /**
+         * @param phase
+         *            the phase to get
+         * @return times in nanoseconds for the phase
+         */
+        @Nonnull
+        public TimingHistogram.Snapshot getPhase(@Nonnull final Phase phase) {
+            return phases.get(phase);
+        }
+
+        /**
+         * @return times in nanoseconds for all phases
+         */
+        @Nonnull
+        public ImmutableMap<Phase, TimingHistogram.Snapshot> getPhases() {
+            return phases;
+        }
+
+        @Override
+        public String toString() {
+            return "[executions: " + executionCount + " overruns: " + overrunCount + " phases: " + phases + "]";
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link RoundProfile} of one node. Times are in
+ * microseconds and keyed by the name of the {@link RoundProfile.Phase}.
+ *
+ * @see RoundProfile#registerMBean(String)
+ */
+public interface RoundProfileMXBean {
+
+    /**
+     * @return see {@link NetworkServer#getExecutionCount()}
+     */
+    long getExecutionCount();
+
+    /**
+     * @return see {@link RoundProfile.Snapshot#getOverrunCount()}
+     */
+    long getOverrunCount();
+
+    /**
+     * @return number of recorded values per phase
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return mean time per phase
+     */
+    Map<String, Double> getMeanMicros();
+
+    /**
+     * @return 99th percentile time per phase
+     */
+    Map<String, Long> getP99Micros();
+
+    /**
+     * @return longest time per phase
+     */
+    Map<String, Long> getMaxMicros();
+
+    /**
+     * Forget all recorded times.
+     */
+    void reset();
+
+}
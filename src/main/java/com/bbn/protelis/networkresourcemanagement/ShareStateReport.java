@@ -0,0 +1,120 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+/**
+ * Statistics about one call to {@link NodeNetworkManager#shareState(java.util.Map)}.
+ * Each distinct frame is encoded once per round no matter how many neighbors
+ * it is sent to, so {@link #getBytesSent()} divided by the encoded size shows
+ * the savings from sharing the encoding. When the state is sent
+ * asynchronously the report is created once every neighbor has sent or
+ * dropped the round.
+ */
+public final class ShareStateReport {
+
+    private final int sequence;
+    private final int neighborCount;
+    private final long encodeNanos;
+    private final int fullFrameSize;
+    private final int deltaFrameSize;
+    private final long bytesSent;
+    private final int droppedCount;
+
+    /**
+     *
+     * @param sequence
+     *            see {@link #getSequence()}
+     * @param neighborCount
+     *            see {@link #getNeighborCount()}
+     * @param encodeNanos
+     *            see {@link #getEncodeNanos()}
+     * @param fullFrameSize
+     *            see {@link #getFullFrameSize()}
+     * @param deltaFrameSize
+     *            see {@link #getDeltaFrameSize()}
+     * @param bytesSent
+     *            see {@link #getBytesSent()}
+     * @param droppedCount
+     *            see {@link #getDroppedCount()}
+     */
+    public ShareStateReport(final int sequence,
+            final int neighborCount,
+            final long encodeNanos,
+            final int fullFrameSize,
+            final int deltaFrameSize,
+            final long bytesSent,
+            final int droppedCount) {
+        this.sequence = sequence;
+        this.neighborCount = neighborCount;
+        this.encodeNanos = encodeNanos;
+        this.fullFrameSize = fullFrameSize;
+        this.deltaFrameSize = deltaFrameSize;
+        this.bytesSent = bytesSent;
+        this.droppedCount = droppedCount;
+    }
+
+    /**
+     * @return the round the report is for
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the number of neighbors the state was sent to
+     */
+    public int getNeighborCount() {
+        return neighborCount;
+    }
+
+    /**
+     * @return time spent encoding the state
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * @return size of the encoded full state in bytes, 0 if no neighbor needed
+     *         it
+     */
+    public int getFullFrameSize() {
+        return fullFrameSize;
+    }
+
+    /**
+     * @return size of the encoded changes in bytes, 0 if no neighbor needed
+     *         them
+     */
+    public int getDeltaFrameSize() {
+        return deltaFrameSize;
+    }
+
+    /**
+     * @return the number of bytes handed to the neighbor channels
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * @return the number of neighbors that did not receive this round because
+     *         a newer round replaced it or the send failed
+     */
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return the number of bytes encoded for this round
+     */
+    public long getBytesEncoded() {
+        return fullFrameSize + deltaFrameSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ShareStateReport [" + "sequence: " + sequence + " neighbors: " + neighborCount + " encodeNanos: "
+                + encodeNanos + " fullFrameSize: " + fullFrameSize + " deltaFrameSize: " + deltaFrameSize
+                + " bytesSent: " + bytesSent + " dropped: " + droppedCount + "]";
+    }
+
+}
@@ -0,0 +1,817 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transport that uses memory mapped files to talk to neighbors in other JVMs
+ * on the same host and another transport for everything else.
+ *
+ * Each link is one file in a directory shared by all JVMs on the host. The
+ * file holds two {@link SharedMemoryRing}s, one per direction, carrying the
+ * same frames as {@link SocketNeighborTransport}. A transport that is
+ * listening creates a directory named after its address with a marker file in
+ * it, which the poller thread stamps with the current time. A neighbor whose
+ * address is a loopback address or an address of one of the network interfaces
+ * of this host, and has a recently stamped marker, is dialed by creating a
+ * link file in its directory. Otherwise the neighbor is dialed with the
+ * fallback transport, which also accepts connections from other hosts. A
+ * marker that is not stamped any more, left by a JVM that exited without
+ * stopping the transport, is deleted.
+ *
+ * All links in the JVM are polled by one thread that spins briefly before
+ * parking when there is nothing to read, so frames are handed over in
+ * microseconds without system calls. The thread only runs while there are
+ * links or listening transports and exits once the last one is gone. A frame
+ * that does not fit in the ring is finished by the poller thread as the
+ * neighbor makes room, until then the link does not take another frame. The
+ * mappings are released by the garbage collector after the links are closed.
+ */
+public class SharedMemoryNeighborTransport implements NeighborTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedMemoryNeighborTransport.class);
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Default value for the ring capacity.
+     */
+    public static final int DEFAULT_RING_CAPACITY = 1024 * 1024;
+
+    private static final int FILE_MAGIC = 0x50325348;
+    private static final int FILE_HEADER_LENGTH = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = Integer.BYTES;
+
+    private static final String LISTENING_MARKER = "listening";
+    private static final int MARKER_MAGIC = 0x5032534c;
+    private static final int MARKER_HEARTBEAT_OFFSET = Long.BYTES;
+    private static final int MARKER_LENGTH = 2 * Long.BYTES;
+
+    /**
+     * A marker that has not been stamped for this long belongs to a transport
+     * that is gone. Much longer than the scan interval of the poller so that
+     * a pause of the listening JVM does not make its marker look stale, and if
+     * it does the listener creates the marker again.
+     */
+    private static final long STALE_MARKER_MS = 2000;
+    private static final String LINK_SUFFIX = ".link";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * How long {@link NeighborChannel#send(byte[])} waits for the receiver to
+     * make room before the link is considered broken.
+     */
+    private static final long WRITE_TIMEOUT_MS = 10000;
+
+    /**
+     * @return the default directory for the link files, /dev/shm if it exists
+     *         so that the files are never written to disk
+     */
+    @Nonnull
+    public static Path getDefaultDirectory() {
+        final Path shm = Paths.get("/dev/shm");
+        final Path base = Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"));
+        return base.resolve("protelis-neighbors");
+    }
+
+    private final NeighborTransport fallback;
+    private final Path directory;
+    private final int ringCapacity;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private NodeNetworkManager manager = null;
+    private Path listenDirectory = null;
+    private MappedByteBuffer marker = null;
+    private final Set<ShmChannel> channels = new HashSet<>();
+
+    /**
+     * Use {@link SocketNeighborTransport} as the fallback, the default
+     * directory and the default capacity.
+     */
+    public SharedMemoryNeighborTransport() {
+        this(new SocketNeighborTransport(), getDefaultDirectory(), DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     *
+     * @param fallback
+     *            used for neighbors on other hosts and to accept their
+     *            connections, owned by this transport
+     * @param directory
+     *            where the link files are, must be the same for all JVMs on
+     *            the host
+     * @param ringCapacity
+     *            bytes in each direction of a link
+     * @throws IllegalArgumentException
+     *             if the capacity is not positive
+     */
+    public SharedMemoryNeighborTransport(@Nonnull final NeighborTransport fallback,
+            @Nonnull final Path directory,
+            final int ringCapacity) {
+        if (ringCapacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive: " + ringCapacity);
+        }
+        this.fallback = fallback;
+        this.directory = directory;
+        this.ringCapacity = ringCapacity;
+    }
+
+    private Path directoryFor(final InetSocketAddress address) {
+        return directory.resolve(address.getAddress().getHostAddress().replace(':', '_') + "_" + address.getPort());
+    }
+
+    @Override
+    public void start(@Nonnull final NodeNetworkManager manager, @Nonnull final InetSocketAddress listenAddress) {
+        fallback.start(manager, listenAddress);
+
+        final Path dir = directoryFor(listenAddress);
+        final MappedByteBuffer listeningMarker;
+        try {
+            Files.createDirectories(dir);
+            // links left over from a previous run
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (final Path file : stream) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            listeningMarker = createMarker(dir);
+        } catch (final IOException e) {
+            LOGGER.error("Node: " + manager.getNodeName() + " unable to listen for co-located neighbors in " + dir
+                    + ", only the fallback transport will be used", e);
+            return;
+        }
+
+        synchronized (lock) {
+            this.manager = manager;
+            this.listenDirectory = dir;
+            this.marker = listeningMarker;
+        }
+        Poller.INSTANCE.addListener(this);
+        LOGGER.info("Node: " + manager.getNodeName() + " listening for co-located neighbors in " + dir);
+    }
+
+    @Override
+    public void connect(@Nonnull final NodeNetworkManager manager,
+            @Nonnull final InetSocketAddress neighborAddress,
+            final long connectTimeoutMs) {
+        final Path dir = directoryFor(neighborAddress);
+        if (!isLocalAddress(neighborAddress) || !isListening(dir)) {
+            fallback.connect(manager, neighborAddress, connectTimeoutMs);
+            return;
+        }
+
+        final Path temp = dir.resolve(Long.toHexString(RANDOM.nextLong()) + TEMP_SUFFIX);
+        final Path link = dir.resolve(temp.getFileName().toString().replace(TEMP_SUFFIX, LINK_SUFFIX));
+        try {
+            final MappedByteBuffer mapping = map(temp, ringCapacity, true);
+            final ShmChannel channel = new ShmChannel(manager, mapping, link, true, RANDOM.nextInt());
+
+            // the hello is in the ring before the neighbor can see the file
+            channel.send(new NeighborFrames.Hello(manager.getNodeIdentifier(), channel.nonce).encode());
+            Files.move(temp, link, StandardCopyOption.ATOMIC_MOVE);
+
+            if (register(channel)) {
+                NeighborConnectionManager.schedule(channel::connectTimeout, connectTimeoutMs);
+            } else {
+                channel.close();
+            }
+        } catch (final IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Couldn't connect to co-located neighbor in " + dir, e);
+            }
+            deleteQuietly(temp);
+            deleteQuietly(link);
+        }
+    }
+
+    /**
+     * Create the marker with a temporary name and move it into place so that
+     * a neighbor never sees it without a time stamp.
+     *
+     * @return the mapping of the marker, used to stamp it
+     */
+    private static MappedByteBuffer createMarker(final Path dir) throws IOException {
+        final Path temp = dir.resolve(Long.toHexString(RANDOM.nextLong()) + TEMP_SUFFIX);
+        try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final MappedByteBuffer mapping = ch.map(FileChannel.MapMode.READ_WRITE, 0, MARKER_LENGTH);
+            mapping.putInt(0, MARKER_MAGIC);
+            mapping.putLong(MARKER_HEARTBEAT_OFFSET, System.currentTimeMillis());
+            Files.move(temp, dir.resolve(LISTENING_MARKER), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            return mapping;
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    /**
+     * Check the marker of a neighbor and delete it if it is stale.
+     *
+     * @return true if a transport is listening in the directory
+     */
+    private static boolean isListening(final Path dir) {
+        final Path file = dir.resolve(LISTENING_MARKER);
+        final ByteBuffer contents = ByteBuffer.allocate(MARKER_LENGTH);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (contents.hasRemaining() && ch.read(contents) >= 0) {
+                continue;
+            }
+        } catch (final IOException e) {
+            // no marker
+            return false;
+        }
+
+        final long age = System.currentTimeMillis() - contents.getLong(MARKER_HEARTBEAT_OFFSET);
+        if (!contents.hasRemaining() && contents.getInt(0) == MARKER_MAGIC && age < STALE_MARKER_MS) {
+            return true;
+        }
+
+        LOGGER.info("Deleting stale marker for co-located neighbor in " + dir);
+        deleteQuietly(file);
+        return false;
+    }
+
+    /**
+     * Stamp the marker and accept new links, called on the poller thread.
+     */
+    private void scan() {
+        final NodeNetworkManager localManager;
+        final Path dir;
+        MappedByteBuffer localMarker;
+        synchronized (lock) {
+            localManager = manager;
+            dir = listenDirectory;
+            localMarker = marker;
+        }
+        if (null == dir) {
+            return;
+        }
+
+        if (!Files.exists(dir.resolve(LISTENING_MARKER))) {
+            // deleted by a neighbor that thought it was stale
+            try {
+                localMarker = createMarker(dir);
+                synchronized (lock) {
+                    if (!dir.equals(listenDirectory)) {
+                        // stopped in the meantime
+                        deleteQuietly(dir.resolve(LISTENING_MARKER));
+                        return;
+                    }
+                    marker = localMarker;
+                }
+            } catch (final IOException e) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Unable to create the marker in " + dir, e);
+                }
+            }
+        }
+        localMarker.putLong(MARKER_HEARTBEAT_OFFSET, System.currentTimeMillis());
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + LINK_SUFFIX)) {
+            for (final Path link : stream) {
+                try {
+                    final MappedByteBuffer mapping = map(link, 0, false);
+                    // the mapping stays valid after the file is removed
+                    deleteQuietly(link);
+                    final ShmChannel channel = new ShmChannel(localManager, mapping, link, false, 0);
+                    if (register(channel)) {
+                        channel.send(new NeighborFrames.Hello(localManager.getNodeIdentifier(), 0).encode());
+                    } else {
+                        channel.close();
+                    }
+                } catch (final IOException e) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Got exception accepting co-located neighbor from " + link, e);
+                    }
+                    deleteQuietly(link);
+                }
+            }
+        } catch (final IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to look for new co-located neighbors in " + dir, e);
+            }
+        }
+    }
+
+    /**
+     * Map a link file.
+     *
+     * @param create
+     *            if true create the file with the specified capacity, otherwise
+     *            read the capacity from the existing file
+     */
+    private static MappedByteBuffer map(final Path file, final int capacity, final boolean create)
+            throws IOException {
+        try (FileChannel ch = create
+                ? FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final int ringCapacity;
+            if (create) {
+                ringCapacity = capacity;
+            } else {
+                final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+                while (header.hasRemaining() && ch.read(header) >= 0) {
+                    continue;
+                }
+                if (header.getInt(MAGIC_OFFSET) != FILE_MAGIC) {
+                    throw new IOException("Not a neighbor link file: " + file);
+                }
+                ringCapacity = header.getInt(CAPACITY_OFFSET);
+            }
+
+            final long length = FILE_HEADER_LENGTH + 2L * SharedMemoryRing.regionLength(ringCapacity);
+            final MappedByteBuffer mapping = ch.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (create) {
+                mapping.putInt(MAGIC_OFFSET, FILE_MAGIC);
+                mapping.putInt(CAPACITY_OFFSET, ringCapacity);
+            }
+            return mapping;
+        }
+    }
+
+    /**
+     * @return true if the address belongs to this host
+     */
+    private static boolean isLocalAddress(final InetSocketAddress addr) {
+        final InetAddress inet = addr.getAddress();
+        if (null == inet) {
+            // unresolved
+            return false;
+        }
+        if (inet.isLoopbackAddress() || inet.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return null != NetworkInterface.getByInetAddress(inet);
+        } catch (final SocketException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to check if " + addr + " is local, assuming it is not", e);
+            }
+            return false;
+        }
+    }
+
+    private static void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Unable to delete " + file, e);
+            }
+        }
+    }
+
+    private boolean register(final ShmChannel channel) {
+        synchronized (lock) {
+            if (null == manager && !channel.initiator) {
+                return false;
+            }
+            channels.add(channel);
+        }
+        Poller.INSTANCE.addChannel(channel);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        final Set<ShmChannel> toStop;
+        final Path dir;
+        synchronized (lock) {
+            manager = null;
+            dir = listenDirectory;
+            listenDirectory = null;
+            marker = null;
+            toStop = new HashSet<>(channels);
+            channels.clear();
+        }
+        Poller.INSTANCE.removeListener(this);
+        if (null != dir) {
+            deleteQuietly(dir.resolve(LISTENING_MARKER));
+        }
+        toStop.forEach(ShmChannel::close);
+
+        fallback.stop();
+    }
+
+    @Override
+    public int getIoThreadCount() {
+        return fallback.getIoThreadCount() + (Poller.INSTANCE.isStarted() ? 1 : 0);
+    }
+
+    /**
+     * One link. Writes start on the sending thread and are finished on the
+     * poller thread if the ring is full, reads happen on the poller thread.
+     */
+    private final class ShmChannel implements NeighborChannel {
+        private final NodeNetworkManager owner;
+        private final Path file;
+        private final boolean initiator;
+        private final int nonce;
+        private final SharedMemoryRing out;
+        private final SharedMemoryRing in;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final Object writeLock = new Object();
+        // guarded by writeLock, the frame being written
+        private byte[] outHeader = null;
+        private byte[] outData = null;
+        private int outWritten = 0;
+        private Runnable whenWritable = null;
+
+        // only accessed on the poller thread
+        private final byte[] header = new byte[NeighborFrames.HEADER_LENGTH];
+        private int headerRead = 0;
+        private byte[] frame = null;
+        private int frameRead = 0;
+        private volatile NetworkNeighbor neighbor = null;
+
+        ShmChannel(final NodeNetworkManager owner,
+                final MappedByteBuffer mapping,
+                final Path file,
+                final boolean initiator,
+                final int nonce) {
+            this.owner = owner;
+            this.file = file;
+            this.initiator = initiator;
+            this.nonce = nonce;
+
+            final int capacity = mapping.getInt(CAPACITY_OFFSET);
+            final int regionLength = SharedMemoryRing.regionLength(capacity);
+            final ByteBuffer first = mapping.duplicate();
+            first.position(FILE_HEADER_LENGTH);
+            final ByteBuffer second = mapping.duplicate();
+            second.position(FILE_HEADER_LENGTH + regionLength);
+            final SharedMemoryRing initiatorToListener = new SharedMemoryRing(first, capacity);
+            final SharedMemoryRing listenerToInitiator = new SharedMemoryRing(second, capacity);
+            this.out = initiator ? initiatorToListener : listenerToInitiator;
+            this.in = initiator ? listenerToInitiator : initiatorToListener;
+        }
+
+        /**
+         * Read what is available and pass complete frames on.
+         *
+         * @return true if any bytes were read
+         */
+        boolean poll() {
+            if (closed.get()) {
+                return false;
+            }
+            try {
+                boolean progress = false;
+                while (true) {
+                    final int count;
+                    if (null == frame) {
+                        count = in.read(header, headerRead, header.length - headerRead);
+                        headerRead += count;
+                        if (headerRead == header.length) {
+                            final int length = ByteBuffer.wrap(header).getInt();
+                            NeighborFrames.checkLength(length);
+                            frame = new byte[length];
+                            frameRead = 0;
+                            headerRead = 0;
+                        }
+                    } else {
+                        count = in.read(frame, frameRead, frame.length - frameRead);
+                        frameRead += count;
+                    }
+                    if (null != frame && frameRead == frame.length) {
+                        final byte[] complete = frame;
+                        frame = null;
+                        receive(complete);
+                        progress = true;
+                    } else if (0 == count) {
+                        break;
+                    } else {
+                        progress = true;
+                    }
+                }
+
+                if (!progress && in.isClosed()) {
+                    throw new IOException("Neighbor closed the connection");
+                }
+                return progress;
+            } catch (final IOException e) {
+                fail(e);
+                return false;
+            }
+        }
+
+        private void receive(final byte[] data) throws IOException {
+            if (null == neighbor) {
+                final NeighborFrames.Hello hello = NeighborFrames.Hello.decode(data);
+                final int linkNonce = initiator ? nonce : hello.getNonce();
+                neighbor = owner.addNeighbor(hello.getUid(), linkNonce, this);
+                if (null == neighbor) {
+                    close();
+                }
+            } else {
+                neighbor.receiveFrame(data);
+            }
+        }
+
+        void connectTimeout() {
+            if (null == neighbor && !closed.get()) {
+                fail(new IOException("Timed out connecting to co-located neighbor"));
+            }
+        }
+
+        @Override
+        public void send(final byte[] data) throws IOException {
+            int idle = 0;
+            long waitStart = 0;
+            // back off without holding the lock so that the poller thread can
+            // keep writing
+            while (!tryTake(data)) {
+                if (0 == idle) {
+                    waitStart = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - waitStart > WRITE_TIMEOUT_MS) {
+                    throw new IOException("Timed out waiting for the neighbor to read");
+                }
+                Poller.backoff(++idle);
+            }
+        }
+
+        @Override
+        public boolean offer(final byte[] data, final Runnable callback) throws IOException {
+            synchronized (writeLock) {
+                if (tryTake(data)) {
+                    return true;
+                }
+                whenWritable = callback;
+                return false;
+            }
+        }
+
+        /**
+         * Start writing a frame if the previous frame has been written.
+         *
+         * @return true if the frame was taken
+         */
+        private boolean tryTake(final byte[] data) throws IOException {
+            synchronized (writeLock) {
+                if (null != outData && !writeSome()) {
+                    return false;
+                }
+                outHeader = ByteBuffer.allocate(NeighborFrames.HEADER_LENGTH).putInt(data.length).array();
+                outData = data;
+                outWritten = 0;
+                writeSome();
+                return true;
+            }
+        }
+
+        /**
+         * Must hold writeLock. Write as much of the current frame as fits.
+         *
+         * @return true if the frame has been written
+         */
+        private boolean writeSome() throws IOException {
+            if (closed.get() || out.isClosed()) {
+                throw new IOException("Connection is closed");
+            }
+            if (outWritten < outHeader.length) {
+                outWritten += out.write(outHeader, outWritten, outHeader.length - outWritten);
+            }
+            if (outWritten >= outHeader.length) {
+                final int dataWritten = outWritten - outHeader.length;
+                outWritten += out.write(outData, dataWritten, outData.length - dataWritten);
+            }
+            if (outWritten == outHeader.length + outData.length) {
+                outHeader = null;
+                outData = null;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Continue writing a frame that did not fit in the ring, called on the
+         * poller thread.
+         *
+         * @return true if a frame was finished
+         */
+        boolean flush() {
+            final Runnable callback;
+            try {
+                synchronized (writeLock) {
+                    if (null == outData || closed.get() || !writeSome()) {
+                        return false;
+                    }
+                    callback = whenWritable;
+                    whenWritable = null;
+                }
+            } catch (final IOException e) {
+                fail(e);
+                return false;
+            }
+            // outside the lock as the callback may offer the next frame
+            if (null != callback) {
+                callback.run();
+            }
+            return true;
+        }
+
+        private void fail(final IOException e) {
+            if (!closed.get()) {
+                if (null == neighbor) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Node: " + owner.getNodeName() + " failed to create link to neighbor", e);
+                    }
+                } else {
+                    LOGGER.error("Node: " + owner.getNodeName() + " failed to communicate with neighbor "
+                            + neighbor.getUid(), e);
+                }
+            }
+            close();
+            final NetworkNeighbor n = neighbor;
+            if (null != n) {
+                owner.removeNeighbor(n);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                // both directions so that the neighbor notices when reading or
+                // writing
+                out.close();
+                in.close();
+                synchronized (lock) {
+                    channels.remove(this);
+                }
+                Poller.INSTANCE.removeChannel(this);
+                deleteQuietly(file);
+
+                final Runnable callback;
+                synchronized (writeLock) {
+                    callback = whenWritable;
+                    whenWritable = null;
+                }
+                if (null != callback) {
+                    callback.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * The thread that reads all links and accepts new ones. It exits when there
+     * is nothing left to poll and is started again when a link or listener is
+     * added.
+     */
+    private static final class Poller implements Runnable {
+        static final Poller INSTANCE = new Poller();
+
+        private static final int SPIN_LIMIT = 100;
+        private static final int YIELD_LIMIT = 200;
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+        private static final int MAX_BACKOFF_DOUBLINGS = 8;
+        private static final long SCAN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+        private final List<ShmChannel> channels = new CopyOnWriteArrayList<>();
+        private final List<SharedMemoryNeighborTransport> listeners = new CopyOnWriteArrayList<>();
+
+        // guarded by this, null when the thread is not running
+        private Thread thread = null;
+
+        synchronized boolean isStarted() {
+            return null != thread;
+        }
+
+        /**
+         * Called after adding a channel or listener.
+         */
+        private synchronized void ensureStarted() {
+            if (null == thread) {
+                thread = new Thread(this, "shared-memory-neighbor-poller");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        /**
+         * Called by the poller thread when it has nothing to poll. Anything
+         * added after this check calls {@link #ensureStarted()} and gets a new
+         * thread.
+         *
+         * @return true if the thread should exit
+         */
+        private synchronized boolean stopIfIdle() {
+            if (channels.isEmpty() && listeners.isEmpty()) {
+                thread = null;
+                return true;
+            }
+            return false;
+        }
+
+        void addChannel(final ShmChannel channel) {
+            channels.add(channel);
+            ensureStarted();
+        }
+
+        void removeChannel(final ShmChannel channel) {
+            channels.remove(channel);
+        }
+
+        void addListener(final SharedMemoryNeighborTransport transport) {
+            listeners.add(transport);
+            ensureStarted();
+        }
+
+        void removeListener(final SharedMemoryNeighborTransport transport) {
+            listeners.remove(transport);
+        }
+
+        /**
+         * Wait a little when there is nothing to do. Spins first so that a
+         * frame arriving soon is picked up without a context switch.
+         *
+         * @param count
+         *            number of consecutive calls without progress
+         */
+        static void idle(final int count) {
+            if (count < SPIN_LIMIT) {
+                return;
+            } else if (count < YIELD_LIMIT) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+
+        /**
+         * Wait for a neighbor to make room in a ring. Spins first, then parks
+         * for twice as long each time, up to about 10 ms.
+         *
+         * @param count
+         *            number of consecutive calls without progress
+         */
+        static void backoff(final int count) {
+            if (count < SPIN_LIMIT) {
+                return;
+            }
+            LockSupport.parkNanos(PARK_NANOS << Math.min(count - SPIN_LIMIT, MAX_BACKOFF_DOUBLINGS));
+        }
+
+        @Override
+        public void run() {
+            long lastScan = 0;
+            int idleCount = 0;
+            while (true) {
+                boolean progress = false;
+                for (final ShmChannel channel : channels) {
+                    progress |= channel.flush();
+                    progress |= channel.poll();
+                }
+
+                final long now = System.nanoTime();
+                if (now - lastScan >= SCAN_INTERVAL_NANOS) {
+                    lastScan = now;
+                    listeners.forEach(SharedMemoryNeighborTransport::scan);
+                }
+
+                if (progress) {
+                    idleCount = 0;
+                } else if (channels.isEmpty()) {
+                    if (stopIfIdle()) {
+                        return;
+                    }
+                    // only listeners, nothing to do until the next scan
+                    LockSupport.parkNanos(SCAN_INTERVAL_NANOS - (System.nanoTime() - lastScan));
+                } else {
+                    idle(++idleCount);
+                }
+            }
+        }
+    }
+
+}
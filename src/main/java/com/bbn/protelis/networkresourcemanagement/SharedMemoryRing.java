@@ -0,0 +1,219 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Single producer, single consumer byte ring in a region of memory that may be
+ * mapped by two processes. The region starts with a header holding the write
+ * position, the read position and a closed flag, each on its own cache line,
+ * followed by the data. Positions only grow, the index into the data is the
+ * position modulo the capacity.
+ *
+ * The two sides share nothing but the mapped memory, so the data and the
+ * positions are ordered with {@code sun.misc.Unsafe} fences on that memory.
+ * Each side reads the positions, then a load fence keeps its data accesses
+ * after those reads. The writer puts a store fence between the data and the
+ * new write position, the reader puts a load fence between the data and the
+ * new read position, so the other side never sees a position before the bytes
+ * it covers. Java 8 has no public API for these fences, so they are looked up
+ * once as method handles, which the JIT inlines.
+ */
+/* package */ final class SharedMemoryRing {
+
+    /**
+     * Bytes before the data.
+     */
+    public static final int HEADER_LENGTH = 3 * 64;
+
+    private static final int WRITE_POSITION_OFFSET = 0;
+    private static final int READ_POSITION_OFFSET = 64;
+    private static final int CLOSED_OFFSET = 2 * 64;
+
+    private final ByteBuffer region;
+    private final ByteBuffer writeView;
+    private final ByteBuffer readView;
+    private final int capacity;
+
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+    static {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            final MethodType fenceType = MethodType.methodType(void.class);
+            LOAD_FENCE = lookup.findVirtual(unsafeClass, "loadFence", fenceType).bindTo(unsafe);
+            STORE_FENCE = lookup.findVirtual(unsafeClass, "storeFence", fenceType).bindTo(unsafe);
+        } catch (final ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * @param capacity
+     *            number of data bytes
+     * @return number of bytes needed for a ring with the specified capacity
+     */
+    public static int regionLength(final int capacity) {
+        return HEADER_LENGTH + capacity;
+    }
+
+    /**
+     * Use a region of memory as a ring. The region must be zeroed or contain a
+     * ring created with the same capacity.
+     *
+     * @param memory
+     *            the memory to use, position and limit select the region
+     * @param capacity
+     *            number of data bytes
+     * @throws IllegalArgumentException
+     *             if the region is too small
+     */
+    SharedMemoryRing(@Nonnull final ByteBuffer memory, final int capacity) {
+        if (memory.remaining() < regionLength(capacity) || capacity <= 0) {
+            throw new IllegalArgumentException("Region of " + memory.remaining() + " bytes is too small for capacity "
+                    + capacity);
+        }
+        this.capacity = capacity;
+        final ByteBuffer slice = memory.slice();
+        slice.limit(regionLength(capacity));
+        this.region = slice;
+        this.writeView = slice.duplicate();
+        this.readView = slice.duplicate();
+    }
+
+    /**
+     * @return number of data bytes
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Write as many bytes as fit. Only call from the writing side.
+     *
+     * @param src
+     *            the bytes
+     * @param offset
+     *            first byte to write
+     * @param length
+     *            number of bytes to write
+     * @return the number of bytes written, 0 if the ring is full
+     */
+    public int write(@Nonnull final byte[] src, final int offset, final int length) {
+        final long writePosition = region.getLong(WRITE_POSITION_OFFSET);
+        final long readPosition = region.getLong(READ_POSITION_OFFSET);
+        loadFence();
+
+        final int count = (int) Math.min(length, capacity - (writePosition - readPosition));
+        if (count <= 0) {
+            return 0;
+        }
+        copy(writeView, writePosition, count, (view, len, done) -> view.put(src, offset + done, len));
+
+        storeFence();
+        region.putLong(WRITE_POSITION_OFFSET, writePosition + count);
+        return count;
+    }
+
+    /**
+     * Read as many bytes as are available. Only call from the reading side.
+     *
+     * @param dst
+     *            where to put the bytes
+     * @param offset
+     *            first index to fill
+     * @param length
+     *            most bytes to read
+     * @return the number of bytes read, 0 if the ring is empty
+     */
+    public int read(@Nonnull final byte[] dst, final int offset, final int length) {
+        final long readPosition = region.getLong(READ_POSITION_OFFSET);
+        final long writePosition = region.getLong(WRITE_POSITION_OFFSET);
+        loadFence();
+
+        final int count = (int) Math.min(length, writePosition - readPosition);
+        if (count <= 0) {
+            return 0;
+        }
+        copy(readView, readPosition, count, (view, len, done) -> view.get(dst, offset + done, len));
+
+        // the data loads must finish before the writer may reuse the space
+        loadFence();
+        region.putLong(READ_POSITION_OFFSET, readPosition + count);
+        return count;
+    }
+
+    /**
+     * @return number of bytes that can be read
+     */
+    public int available() {
+        final long readPosition = region.getLong(READ_POSITION_OFFSET);
+        final long writePosition = region.getLong(WRITE_POSITION_OFFSET);
+        return (int) (writePosition - readPosition);
+    }
+
+    /**
+     * Mark the ring closed. Seen by both sides.
+     */
+    public void close() {
+        storeFence();
+        region.putInt(CLOSED_OFFSET, 1);
+    }
+
+    /**
+     * @return true if either side has called {@link #close()}
+     */
+    public boolean isClosed() {
+        final boolean closed = 0 != region.getInt(CLOSED_OFFSET);
+        loadFence();
+        return closed;
+    }
+
+    @FunctionalInterface
+    private interface Transfer {
+        void apply(ByteBuffer view, int length, int done);
+    }
+
+    /**
+     * Move bytes between the data area and an array, wrapping around the end
+     * of the data area.
+     */
+    private void copy(final ByteBuffer view, final long position, final int count, final Transfer transfer) {
+        final int index = (int) (position % capacity);
+        final int first = Math.min(count, capacity - index);
+        view.limit(HEADER_LENGTH + index + first);
+        view.position(HEADER_LENGTH + index);
+        transfer.apply(view, first, 0);
+        if (first < count) {
+            view.limit(HEADER_LENGTH + count - first);
+            view.position(HEADER_LENGTH);
+            transfer.apply(view, count - first, first);
+        }
+    }
+
+    private static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (final Throwable e) {
+            throw new IllegalStateException("Unsafe.loadFence failed", e);
+        }
+    }
+
+    private static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (final Throwable e) {
+            throw new IllegalStateException("Unsafe.storeFence failed", e);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Execute the rounds of many nodes as tasks on one
+ * {@link ScheduledExecutorService}, so the number of threads does not grow with
+ * the number of nodes. Each round schedules the next round of the same node
+ * when it finishes, so a node never has two rounds running at once and its
+ * rounds run in order.
+ *
+ * A round occupies a thread of the executor for its whole duration, so rounds
+ * that block for a long time delay the rounds of other nodes.
+ *
+ * The executor waits in real time, so sleep times are converted from the
+ * node's clock with {@link com.bbn.protelis.utils.VirtualClock#toRealDuration(long)}.
+ */
+public final class SharedSchedulerBackend implements ExecutionBackend {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedSchedulerBackend.class);
+
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+
+    /**
+     * Use a new executor with one thread per processor.
+     */
+    public SharedSchedulerBackend() {
+        this(createExecutor(Runtime.getRuntime().availableProcessors()), true);
+    }
+
+    /**
+     * @param executor
+     *            the executor to run the rounds on, not shut down by
+     *            {@link #shutdown()}
+     */
+    public SharedSchedulerBackend(@Nonnull final ScheduledExecutorService executor) {
+        this(executor, false);
+    }
+
+    private SharedSchedulerBackend(final ScheduledExecutorService executor, final boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    private static ScheduledExecutorService createExecutor(final int numThreads) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(numThreads,
+                new ThreadFactoryBuilder().setNameFormat("node-rounds-%d").setDaemon(true).build());
+        // stopped nodes shouldn't leave their next round in the queue
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Stop the executor if it was created by this object. Nodes should be
+     * stopped first.
+     */
+    public void shutdown() {
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    @Nonnull
+    public Execution start(@Nonnull final String name, @Nonnull final Rounds rounds) {
+        final ScheduledExecution execution = new ScheduledExecution(name, rounds);
+        execution.schedule(0);
+        return execution;
+    }
+
+    private final class ScheduledExecution implements Execution, Runnable {
+        private final String name;
+        private final Rounds rounds;
+
+        private final Object lock = new Object();
+
+        // guarded by lock
+        private boolean running = true;
+        private boolean alive = true;
+        private Thread roundThread = null;
+        private ScheduledFuture<?> future = null;
+        // real times
+        private long scheduledStart = Long.MAX_VALUE;
+        // time by which the next round was asked to start while it couldn't
+        // be rescheduled
+        private long requestedStart = Long.MAX_VALUE;
+
+        ScheduledExecution(final String name, final Rounds rounds) {
+            this.name = name;
+            this.rounds = rounds;
+        }
+
+        /**
+         * @param delayMs
+         *            delay on the clock of the rounds
+         */
+        void schedule(final long delayMs) {
+            synchronized (lock) {
+                if (!running) {
+                    finished();
+                    return;
+                }
+                final long now = System.currentTimeMillis();
+                final long realDelay = rounds.getClock().toRealDuration(delayMs);
+                final long delay = Math.max(0, Math.min(realDelay, requestedStart - now));
+                requestedStart = Long.MAX_VALUE;
+                try {
+                    future = executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    scheduledStart = now + delay;
+                } catch (final RejectedExecutionException e) {
+                    LOGGER.error("Executor rejected the next round of node " + name + ", node stops executing", e);
+                    running = false;
+                    finished();
+                }
+            }
+        }
+
+        /**
+         * Called with the lock held.
+         */
+        private void finished() {
+            alive = false;
+            lock.notifyAll();
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                if (!running) {
+                    finished();
+                    return;
+                }
+                roundThread = Thread.currentThread();
+                scheduledStart = Long.MAX_VALUE;
+            }
+
+            boolean again = false;
+            try {
+                again = rounds.runRound();
+            } finally {
+                synchronized (lock) {
+                    roundThread = null;
+                    if (!again) {
+                        running = false;
+                        finished();
+                    } else {
+                        lock.notifyAll();
+                    }
+                }
+            }
+
+            if (again) {
+                schedule(rounds.getSleepTime());
+            }
+        }
+
+        @Override
+        public void runNextRoundWithin(final long delayMs) {
+            synchronized (lock) {
+                if (!running) {
+                    return;
+                }
+                final long start = System.currentTimeMillis() + rounds.getClock().toRealDuration(delayMs);
+                if (start >= scheduledStart && null == roundThread) {
+                    return;
+                }
+
+                // if the round is running or about to run, the next one is
+                // scheduled with the request taken into account
+                if (null != roundThread || null == future || !future.cancel(false)) {
+                    requestedStart = Math.min(requestedStart, start);
+                } else {
+                    future = null;
+                    schedule(delayMs);
+                }
+            }
+        }
+
+        @Override
+        public void stop() {
+            synchronized (lock) {
+                running = false;
+                if (null != future) {
+                    future.cancel(false);
+                }
+
+                // a round that stops its own node can't wait for itself
+                while (null != roundThread && Thread.currentThread() != roundThread) {
+                    try {
+                        lock.wait();
+                    } catch (final InterruptedException e) {
+                        LOGGER.debug("Got interrupted waiting for the round to finish, probably just time to shutdown",
+                                e);
+                        break;
+                    }
+                }
+                finished();
+            }
+        }
+
+        @Override
+        public boolean isAlive() {
+            synchronized (lock) {
+                return alive;
+            }
+        }
+    }
+
+}
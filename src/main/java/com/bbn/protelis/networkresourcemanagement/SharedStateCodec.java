@@ -0,0 +1,40 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Converts the state shared by a Protelis VM to and from the bytes that are
+ * sent to neighbors. All nodes that talk to each other must use the same
+ * codec.
+ * 
+ * @see BinarySharedStateCodec
+ * @see JavaSerializationCodec
+ */
+public interface SharedStateCodec {
+
+    /**
+     * @param state
+     *            the state to encode
+     * @return the encoded state
+     * @throws IOException
+     *             if the state cannot be encoded
+     */
+    @Nonnull
+    byte[] encode(@Nonnull Map<CodePath, Object> state) throws IOException;
+
+    /**
+     * @param data
+     *            bytes created by {@link #encode(Map)}
+     * @return the decoded state
+     * @throws IOException
+     *             if the data cannot be decoded
+     */
+    @Nonnull
+    Map<CodePath, Object> decode(@Nonnull byte[] data) throws IOException;
+
+}
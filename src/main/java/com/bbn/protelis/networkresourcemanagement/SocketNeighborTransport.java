@@ -0,0 +1,398 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Blocking socket transport. There is one thread accepting connections and
+ * two threads per neighbor, one reading from the neighbor and one writing to
+ * it. This is the default transport for {@link NodeNetworkManager}.
+ */
+public class SocketNeighborTransport implements NeighborTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SocketNeighborTransport.class);
+
+    private static final Random RANDOM = new Random();
+
+    private final Object lock = new Object();
+
+    private boolean running = false;
+
+    private ServerSocket server = null;
+
+    private Thread listenThread = null;
+
+    private final Set<BlockingChannel> channels = new HashSet<>();
+
+    @Override
+    public void start(@Nonnull final NodeNetworkManager manager, @Nonnull final InetSocketAddress listenAddress) {
+        synchronized (lock) {
+            running = true;
+        }
+
+        final String nodeName = manager.getNodeName();
+        final int port = listenAddress.getPort();
+        final Thread thread = new Thread(() -> {
+
+            while (isRunning()) {
+                try {
+                    synchronized (lock) {
+                        server = new ServerSocket(port);
+                    }
+
+                    server.setReuseAddress(true);
+                    LOGGER.info("Node: " + nodeName + " Daemon listening for neighbors on port " + port);
+                    while (isRunning()) {
+                        final Socket s = server.accept();
+
+                        // don't need a thread here since addChannel will take
+                        // care of creating a thread to service the connection.
+                        try {
+                            final BlockingChannel channel = new BlockingChannel(manager, s);
+
+                            // write uid for neighbor
+                            channel.sendHello(new NeighborFrames.Hello(manager.getNodeIdentifier(), 0));
+
+                            // reads data from connect()
+                            final NeighborFrames.Hello hello = channel.readHello();
+
+                            addChannel(manager, hello.getUid(), hello.getNonce(), channel);
+                        } catch (final IOException e) {
+                            if (LOGGER.isDebugEnabled()) {
+                                LOGGER.debug("Got exception creating link to neighbor that connected to us.", e);
+                            }
+                            closeSocket(s);
+                        }
+
+                    } // while running accept connections
+                } catch (final IOException e) {
+                    if (isRunning()) {
+                        LOGGER.warn("Node: " + nodeName
+                                + " received I/O exception accepting connections, trying to listen again on port: "
+                                + port, e);
+                    }
+                }
+
+                synchronized (lock) {
+                    try {
+                        if (null != server) {
+                            server.close();
+                        }
+                    } catch (final IOException e) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Error closing server socket", e);
+                        }
+                    }
+                    server = null;
+                }
+            } // while running, restart listen
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info("Exiting thread: " + Thread.currentThread().getName());
+            }
+        }, "Node: " + nodeName + " server thread");
+        synchronized (lock) {
+            listenThread = thread;
+        }
+        thread.start();
+    }
+
+    private boolean isRunning() {
+        synchronized (lock) {
+            return running;
+        }
+    }
+
+    @Override
+    public void connect(@Nonnull final NodeNetworkManager manager,
+            @Nonnull final InetSocketAddress neighborAddress,
+            final long connectTimeoutMs) {
+        final int timeout = (int) Math.min(Integer.MAX_VALUE, connectTimeoutMs);
+        Socket s = null;
+        try {
+            // Try to link
+            s = new Socket();
+            s.connect(neighborAddress, timeout);
+
+            final int nonce = RANDOM.nextInt();
+
+            // If the link connects, trade UIDs
+            s.setSoTimeout(timeout);
+            final BlockingChannel channel = new BlockingChannel(manager, s);
+            final NeighborFrames.Hello hello = channel.readHello();
+            channel.sendHello(new NeighborFrames.Hello(manager.getNodeIdentifier(), nonce));
+            s.setSoTimeout(0);
+
+            addChannel(manager, hello.getUid(), nonce, channel);
+        } catch (final IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Couldn't connect to neighbor: " + neighborAddress, e);
+            }
+            if (null != s) {
+                closeSocket(s);
+            }
+        }
+    }
+
+    private void addChannel(final NodeNetworkManager manager,
+            final DeviceUID uid,
+            final int nonce,
+            final BlockingChannel channel) {
+        final NetworkNeighbor neighbor = manager.addNeighbor(uid, nonce, channel);
+        if (null != neighbor) {
+            synchronized (lock) {
+                channels.add(channel);
+            }
+            channel.start(neighbor);
+        } else {
+            channel.close();
+        }
+    }
+
+    @Override
+    public void stop() {
+        final Set<BlockingChannel> toStop = new HashSet<>();
+        synchronized (lock) {
+            running = false;
+
+            // force one to stop listening
+            try {
+                if (null != server) {
+                    server.close();
+                }
+            } catch (final IOException e) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Error closing server socket", e);
+                }
+            }
+
+            toStop.addAll(channels);
+            channels.clear();
+        }
+
+        toStop.forEach(channel -> {
+            channel.close();
+            channel.join();
+        });
+    }
+
+    @Override
+    public int getIoThreadCount() {
+        synchronized (lock) {
+            return 2 * channels.size() + (null != listenThread && listenThread.isAlive() ? 1 : 0);
+        }
+    }
+
+    private void removeChannel(final BlockingChannel channel) {
+        synchronized (lock) {
+            channels.remove(channel);
+        }
+    }
+
+    private static void closeSocket(final Socket s) {
+        try {
+            s.close();
+        } catch (final IOException e) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Got error closing socket, ignoring.", e);
+            }
+        }
+    }
+
+    /**
+     * A socket and the threads that read from it and write to it. Frames are
+     * handed to the writer thread through a single slot, so a neighbor that
+     * stops reading only blocks the writer thread.
+     */
+    private final class BlockingChannel implements NeighborChannel {
+        private final NodeNetworkManager manager;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        // held while writing to out
+        private final Object outLock = new Object();
+        private final Object writeLock = new Object();
+        // guarded by writeLock
+        private byte[] queued = null;
+        private Runnable whenWritable = null;
+        private Thread writer = null;
+        private Thread reader = null;
+        private volatile boolean open = true;
+
+        BlockingChannel(final NodeNetworkManager manager, final Socket socket) throws IOException {
+            this.manager = manager;
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        void sendHello(final NeighborFrames.Hello hello) throws IOException {
+            send(hello.encode());
+        }
+
+        NeighborFrames.Hello readHello() throws IOException {
+            return NeighborFrames.Hello.decode(NeighborFrames.readFrame(in));
+        }
+
+        void start(final NetworkNeighbor neighbor) {
+            final String name = neighbor.getUid().toString() + socket.getRemoteSocketAddress();
+            final Thread w = new Thread(this::writeFrames, name + " writer");
+            synchronized (writeLock) {
+                writer = w;
+            }
+            w.start();
+
+            reader = new Thread(() -> {
+                try {
+                    while (open) {
+                        final byte[] frame = NeighborFrames.readFrame(in);
+                        neighbor.receiveFrame(frame);
+                    }
+                } catch (final IOException e) {
+                    if (!open) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug(Thread.currentThread().getName() + ": failed to receive from neighbor", e);
+                        }
+                    } else {
+                        LOGGER.error(Thread.currentThread().getName() + ": failed to receive from neighbor", e);
+                    }
+                } finally {
+                    removeChannel(this);
+                    manager.removeNeighbor(neighbor);
+                }
+            }, name);
+            reader.start();
+        }
+
+        private void writeFrames() {
+            try {
+                while (true) {
+                    final byte[] frame;
+                    final Runnable callback;
+                    synchronized (writeLock) {
+                        while (open && null == queued) {
+                            writeLock.wait();
+                        }
+                        if (!open) {
+                            return;
+                        }
+                        frame = queued;
+                        queued = null;
+                        callback = whenWritable;
+                        whenWritable = null;
+                        writeLock.notifyAll();
+                    }
+                    if (null != callback) {
+                        callback.run();
+                    }
+
+                    synchronized (outLock) {
+                        NeighborFrames.writeFrame(out, frame);
+                    }
+                }
+            } catch (final IOException e) {
+                if (open) {
+                    LOGGER.error(Thread.currentThread().getName() + ": failed to send to neighbor", e);
+                }
+                // the reader sees the closed socket and removes the neighbor
+                close();
+            } catch (final InterruptedException e) {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Interrupted waiting for frames", e);
+                }
+            }
+        }
+
+        void join() {
+            join(writer);
+            join(reader);
+        }
+
+        private void join(final Thread t) {
+            if (null != t && t != Thread.currentThread()) {
+                try {
+                    t.join();
+                } catch (final InterruptedException e) {
+                    if (LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Interrupted during join", e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void send(final byte[] frame) throws IOException {
+            synchronized (writeLock) {
+                if (null == writer) {
+                    // the hello exchange, before the writer is started
+                    synchronized (outLock) {
+                        NeighborFrames.writeFrame(out, frame);
+                    }
+                    return;
+                }
+
+                try {
+                    while (open && null != queued) {
+                        writeLock.wait();
+                    }
+                } catch (final InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting to send to neighbor");
+                }
+                enqueue(frame);
+            }
+        }
+
+        @Override
+        public boolean offer(final byte[] frame, final Runnable callback) throws IOException {
+            synchronized (writeLock) {
+                if (open && null != queued) {
+                    whenWritable = callback;
+                    return false;
+                }
+                enqueue(frame);
+                return true;
+            }
+        }
+
+        // must hold writeLock
+        private void enqueue(final byte[] frame) throws IOException {
+            if (!open) {
+                throw new IOException("Channel is closed");
+            }
+            queued = frame;
+            writeLock.notifyAll();
+        }
+
+        @Override
+        public void close() {
+            open = false;
+            final Runnable callback;
+            synchronized (writeLock) {
+                callback = whenWritable;
+                whenWritable = null;
+                writeLock.notifyAll();
+            }
+            closeSocket(socket);
+            if (null != callback) {
+                callback.run();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Told when a {@link NetworkServer} becomes stable, meaning that the value of
+ * its program and the state it shares with its neighbors have not changed for
+ * {@link #getStableRounds()} rounds, and when it stops being stable. Called
+ * from the thread running the rounds of the node.
+ *
+ * @see NetworkServer#setStabilityListener(StabilityListener)
+ */
+public interface StabilityListener {
+
+    /**
+     * @return how many rounds without changes make a node stable, at least 1
+     */
+    int getStableRounds();
+
+    /**
+     * @param node
+     *            the node that became stable
+     * @param lastChangeRound
+     *            the execution count of the round with the last change
+     * @param lastChangeTime
+     *            the time on the clock of the node when the round with the
+     *            last change finished
+     */
+    void nodeStable(@Nonnull NetworkServer node, long lastChangeRound, long lastChangeTime);
+
+    /**
+     * @param node
+     *            a node that was stable and has changed
+     */
+    void nodeUnstable(@Nonnull NetworkServer node);
+
+}
@@ -2,17 +2,24 @@ package com.bbn.protelis.networkresourcemanagement;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 /**
- * Identifier for a node that just uses a string name.
+ * Identifier for a node that just uses a string name. The hash code is
+ * computed once, use {@link #intern(String)} to share instances so that map
+ * lookups can stop at reference equality.
  */
 public class StringRegionIdentifier implements RegionIdentifier, Comparable<StringRegionIdentifier> {
 
     private static final long serialVersionUID = 1L;
 
+    private static final Interner<StringRegionIdentifier> INTERNER = Interners.newWeakInterner();
+
     /**
      * Used to represent an unknown region.
      */
-    public static final StringRegionIdentifier UNKNOWN = new StringRegionIdentifier("unknown");
+    public static final StringRegionIdentifier UNKNOWN = intern("unknown");
 
     /**
      * 
@@ -21,10 +28,29 @@ public class StringRegionIdentifier implements RegionIdentifier, Comparable<Stri
      */
     public StringRegionIdentifier(@Nonnull final String name) {
         this.name = name;
+        this.hash = name.hashCode();
+    }
+
+    /**
+     * 
+     * @param name
+     *            the name for the region
+     * @return the shared identifier for the name
+     */
+    @Nonnull
+    public static StringRegionIdentifier intern(@Nonnull final String name) {
+        return INTERNER.intern(new StringRegionIdentifier(name));
+    }
+
+    private Object readResolve() {
+        return intern(name);
     }
 
     private final String name;
 
+    // recomputed if the object wasn't created by the constructor
+    private transient int hash;
+
     /**
      * 
      * @return the underlying string.
@@ -47,7 +73,8 @@ public class StringRegionIdentifier implements RegionIdentifier, Comparable<Stri
         if (this == o) {
             return true;
         } else if (o instanceof StringRegionIdentifier) {
-            return ((StringRegionIdentifier) o).getName().equals(getName());
+            final StringRegionIdentifier other = (StringRegionIdentifier) o;
+            return hashCode() == other.hashCode() && other.getName().equals(getName());
         } else {
             return false;
         }
@@ -55,7 +82,10 @@ public class StringRegionIdentifier implements RegionIdentifier, Comparable<Stri
 
     @Override
     public int hashCode() {
-        return name.hashCode();
+        if (0 == hash) {
+            hash = name.hashCode();
+        }
+        return hash;
     }
 
     @Override
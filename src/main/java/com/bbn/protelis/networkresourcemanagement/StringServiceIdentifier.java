@@ -2,13 +2,20 @@ package com.bbn.protelis.networkresourcemanagement;
 
 import javax.annotation.Nonnull;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 /**
- * Identifier for a service that just uses a string name.
+ * Identifier for a service that just uses a string name. The hash code is
+ * computed once, use {@link #intern(String)} to share instances so that map
+ * lookups can stop at reference equality.
  */
 public class StringServiceIdentifier implements ServiceIdentifier<String>, Comparable<StringServiceIdentifier> {
 
     private static final long serialVersionUID = 635248806922922389L;
 
+    private static final Interner<StringServiceIdentifier> INTERNER = Interners.newWeakInterner();
+
     /**
      * 
      * @param name
@@ -16,10 +23,29 @@ public class StringServiceIdentifier implements ServiceIdentifier<String>, Compa
      */
     public StringServiceIdentifier(@Nonnull final String name) {
         this.name = name;
+        this.hash = name.hashCode();
+    }
+
+    /**
+     * 
+     * @param name
+     *            the name for the service
+     * @return the shared identifier for the name
+     */
+    @Nonnull
+    public static StringServiceIdentifier intern(@Nonnull final String name) {
+        return INTERNER.intern(new StringServiceIdentifier(name));
+    }
+
+    private Object readResolve() {
+        return intern(name);
     }
 
     private final String name;
 
+    // recomputed if the object wasn't created by the constructor
+    private transient int hash;
+
     /**
      * 
      * @return the underlying string.
@@ -42,7 +68,8 @@ public class StringServiceIdentifier implements ServiceIdentifier<String>, Compa
         if (this == o) {
             return true;
         } else if (o instanceof StringServiceIdentifier) {
-            return ((StringServiceIdentifier) o).getName().equals(getName());
+            final StringServiceIdentifier other = (StringServiceIdentifier) o;
+            return hashCode() == other.hashCode() && other.getName().equals(getName());
         } else {
             return false;
         }
@@ -50,7 +77,10 @@ public class StringServiceIdentifier implements ServiceIdentifier<String>, Compa
 
     @Override
     public int hashCode() {
-        return name.hashCode();
+        if (0 == hash) {
+            hash = name.hashCode();
+        }
+        return hash;
     }
 
     @Override
@@ -0,0 +1,411 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.DoubleFunction;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable columnar form of one of the nested maps of a
+ * {@link ResourceSummary}. The keys of all levels are replaced by their
+ * ordinals in a {@link KeyDictionary} and packed into a single long, the first
+ * level in the highest bits. The packed keys are kept sorted in one array and
+ * the values in a parallel array of doubles, so merging 2 tables with the same
+ * keys is an element-wise add of 2 arrays and merging other tables is a single
+ * pass over both.
+ *
+ * Empty inner maps have no entries and cannot be represented, neither can
+ * keys once a dictionary is full. {@link #fromMap(Map, KeyDictionary[])}
+ * returns null for those maps and the caller keeps using the maps.
+ */
+/* package */ final class SummaryTable {
+
+    private static final long MASK = (1L << KeyDictionary.BITS) - 1;
+
+    private static final long[] NO_KEYS = new long[0];
+    private static final double[] NO_VALUES = new double[0];
+
+    private final KeyDictionary<?>[] levels;
+    private final long[] keys;
+    private final double[] values;
+
+    /**
+     * @param levels
+     *            the dictionary of each level of the map
+     * @param keys
+     *            sorted packed keys, not copied
+     * @param values
+     *            the value for each key, not copied
+     */
+    private SummaryTable(final KeyDictionary<?>[] levels, final long[] keys, final double[] values) {
+        this.levels = levels;
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * @param levels
+     *            the dictionary of each level of the map
+     * @return a table without entries
+     */
+    @Nonnull
+    /* package */ static SummaryTable empty(@Nonnull final KeyDictionary<?>[] levels) {
+        return new SummaryTable(levels, NO_KEYS, NO_VALUES);
+    }
+
+    /**
+     * @return the number of values
+     */
+    /* package */ int size() {
+        return keys.length;
+    }
+
+    /**
+     * @param key
+     *            a packed key
+     * @param level
+     *            the level to get the ordinal of
+     * @param levelCount
+     *            the number of levels of the key
+     * @return the ordinal of the level
+     */
+    /* package */ static int ordinal(final long key, final int level, final int levelCount) {
+        return (int) ((key >>> (KeyDictionary.BITS * (levelCount - 1 - level))) & MASK);
+    }
+
+    /**
+     * @param prefix
+     *            the packed ordinals of the previous levels
+     * @param ordinal
+     *            the ordinal of the next level
+     * @return the packed ordinals including the next level
+     */
+    /* package */ static long pack(final long prefix, final int ordinal) {
+        return (prefix << KeyDictionary.BITS) | ordinal;
+    }
+
+    /**
+     * Convert a nested map to a table.
+     *
+     * @param map
+     *            nested maps with numbers at the last level
+     * @param levels
+     *            the dictionary of each level of the map
+     * @return the table, null if the map has empty inner maps, keys that don't
+     *         fit in a dictionary or values that aren't numbers
+     */
+    /* package */ static SummaryTable fromMap(@Nonnull final Map<?, ?> map, @Nonnull final KeyDictionary<?>[] levels) {
+        if (map.isEmpty()) {
+            return empty(levels);
+        }
+
+        final Collector collector = new Collector(map.size());
+        if (!collect(map, levels, 0, 0, collector)) {
+            return null;
+        }
+        return collector.build(levels);
+    }
+
+    private static boolean collect(final Map<?, ?> map,
+            final KeyDictionary<?>[] levels,
+            final int level,
+            final long prefix,
+            final Collector collector) {
+        @SuppressWarnings("unchecked")
+        final KeyDictionary<Object> dictionary = (KeyDictionary<Object>) levels[level];
+        final boolean last = level == levels.length - 1;
+        for (final Map.Entry<?, ?> entry : map.entrySet()) {
+            final Object k = entry.getKey();
+            final Object v = entry.getValue();
+            if (null == k) {
+                return false;
+            }
+            final int ordinal = dictionary.ordinal(k);
+            if (KeyDictionary.NO_ORDINAL == ordinal) {
+                return false;
+            }
+            final long key = pack(prefix, ordinal);
+
+            if (last) {
+                if (!(v instanceof Number)) {
+                    return false;
+                }
+                collector.add(key, ((Number) v).doubleValue());
+            } else {
+                if (!(v instanceof Map) || ((Map<?, ?>) v).isEmpty()) {
+                    return false;
+                }
+                if (!collect((Map<?, ?>) v, levels, level + 1, key, collector)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects packed keys in any order.
+     */
+    private static final class Collector {
+        private long[] keys;
+        private double[] values;
+        private int size = 0;
+
+        Collector(final int capacity) {
+            keys = new long[capacity];
+            values = new double[capacity];
+        }
+
+        void add(final long key, final double value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            ++size;
+        }
+
+        SummaryTable build(final KeyDictionary<?>[] levels) {
+            final long[] sortedKeys = Arrays.copyOf(keys, size);
+            Arrays.sort(sortedKeys);
+            // keys are unique, so each value can be put where its key ended up
+            final double[] sortedValues = new double[size];
+            for (int i = 0; i < size; ++i) {
+                sortedValues[Arrays.binarySearch(sortedKeys, keys[i])] = values[i];
+            }
+            return new SummaryTable(levels, sortedKeys, sortedValues);
+        }
+    }
+
+    /**
+     * Sum the values of matching keys. Tables with the same keys, which is the
+     * common case once the summaries of a region have settled, are added
+     * element by element and share the key array.
+     *
+     * @param one
+     *            the first table
+     * @param two
+     *            the second table
+     * @return a table with the keys of both
+     * @throws IllegalArgumentException
+     *             if the tables have different levels
+     */
+    @Nonnull
+    /* package */ static SummaryTable merge(@Nonnull final SummaryTable one, @Nonnull final SummaryTable two) {
+        if (one.levels != two.levels) {
+            throw new IllegalArgumentException("Cannot merge tables with different levels");
+        }
+        if (0 == two.keys.length) {
+            return one;
+        }
+        if (0 == one.keys.length) {
+            return two;
+        }
+
+        if (one.keys == two.keys || Arrays.equals(one.keys, two.keys)) {
+            final double[] a = one.values;
+            final double[] b = two.values;
+            final double[] sum = new double[a.length];
+            for (int i = 0; i < sum.length; ++i) {
+                sum[i] = a[i] + b[i];
+            }
+            return new SummaryTable(one.levels, one.keys, sum);
+        }
+
+        final long[] mergedKeys = new long[one.keys.length + two.keys.length];
+        final double[] mergedValues = new double[mergedKeys.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < one.keys.length && j < two.keys.length) {
+            final long a = one.keys[i];
+            final long b = two.keys[j];
+            if (a == b) {
+                mergedKeys[n] = a;
+                mergedValues[n] = one.values[i++] + two.values[j++];
+            } else if (a < b) {
+                mergedKeys[n] = a;
+                mergedValues[n] = one.values[i++];
+            } else {
+                mergedKeys[n] = b;
+                mergedValues[n] = two.values[j++];
+            }
+            ++n;
+        }
+        while (i < one.keys.length) {
+            mergedKeys[n] = one.keys[i];
+            mergedValues[n++] = one.values[i++];
+        }
+        while (j < two.keys.length) {
+            mergedKeys[n] = two.keys[j];
+            mergedValues[n++] = two.values[j++];
+        }
+
+        if (n == mergedKeys.length) {
+            return new SummaryTable(one.levels, mergedKeys, mergedValues);
+        } else {
+            return new SummaryTable(one.levels, Arrays.copyOf(mergedKeys, n), Arrays.copyOf(mergedValues, n));
+        }
+    }
+
+    /**
+     * Sum the values of matching keys of any number of tables in one pass.
+     * Unlike repeated {@link #merge(SummaryTable, SummaryTable)} there are no
+     * intermediate tables, only the result is allocated.
+     *
+     * @param tables
+     *            the tables to sum
+     * @param levels
+     *            the levels of the tables, used for the result if there are
+     *            no tables
+     * @return a table with the keys of all tables
+     * @throws IllegalArgumentException
+     *             if a table has different levels
+     */
+    @Nonnull
+    /* package */ static SummaryTable sum(@Nonnull final List<SummaryTable> tables,
+            @Nonnull final KeyDictionary<?>[] levels) {
+        SummaryTable first = null;
+        int nonEmpty = 0;
+        int total = 0;
+        boolean sameKeys = true;
+        for (final SummaryTable table : tables) {
+            if (table.levels != levels) {
+                throw new IllegalArgumentException("Cannot sum tables with different levels");
+            }
+            if (0 == table.keys.length) {
+                continue;
+            }
+            ++nonEmpty;
+            total += table.keys.length;
+            if (null == first) {
+                first = table;
+            } else if (sameKeys && table.keys != first.keys) {
+                sameKeys = Arrays.equals(table.keys, first.keys);
+            }
+        }
+        if (null == first) {
+            return empty(levels);
+        } else if (1 == nonEmpty) {
+            return first;
+        }
+
+        final long[] keys;
+        if (sameKeys) {
+            keys = first.keys;
+        } else {
+            final long[] all = new long[total];
+            int n = 0;
+            for (final SummaryTable table : tables) {
+                System.arraycopy(table.keys, 0, all, n, table.keys.length);
+                n += table.keys.length;
+            }
+            Arrays.sort(all);
+            int unique = 0;
+            for (int i = 0; i < all.length; ++i) {
+                if (0 == unique || all[unique - 1] != all[i]) {
+                    all[unique++] = all[i];
+                }
+            }
+            keys = Arrays.copyOf(all, unique);
+        }
+
+        final double[] values = new double[keys.length];
+        for (final SummaryTable table : tables) {
+            if (sameKeys) {
+                for (int i = 0; i < table.values.length; ++i) {
+                    values[i] += table.values[i];
+                }
+            } else {
+                // both are sorted and keys contains all keys of the table
+                int j = 0;
+                for (int i = 0; i < table.keys.length; ++i) {
+                    while (keys[j] != table.keys[i]) {
+                        ++j;
+                    }
+                    values[j] += table.values[i];
+                }
+            }
+        }
+        return new SummaryTable(levels, keys, values);
+    }
+
+    /**
+     * Build the nested maps the table was created from.
+     *
+     * @param leaf
+     *            converts values to the type stored in the last level
+     * @return nested maps, the caller knows the types
+     * @param <K>
+     *            the type of the first level
+     * @param <V>
+     *            the type of the values of the first level
+     */
+    @Nonnull
+    /* package */ <K, V> ImmutableMap<K, V> toMap(@Nonnull final DoubleFunction<?> leaf) {
+        @SuppressWarnings("unchecked")
+        final ImmutableMap<K, V> map = (ImmutableMap<K, V>) toMap(0, 0, keys.length, leaf);
+        return map;
+    }
+
+    private ImmutableMap<Object, Object> toMap(final int level,
+            final int from,
+            final int to,
+            final DoubleFunction<?> leaf) {
+        final ImmutableMap.Builder<Object, Object> builder = ImmutableMap.builder();
+        final boolean last = level == levels.length - 1;
+        int start = from;
+        while (start < to) {
+            final int ordinal = ordinal(keys[start], level, levels.length);
+            final Object key = levels[level].key(ordinal);
+            if (last) {
+                builder.put(key, leaf.apply(values[start]));
+                ++start;
+            } else {
+                // keys are sorted, so all keys with this ordinal are together
+                int end = start + 1;
+                while (end < to && ordinal(keys[end], level, levels.length) == ordinal) {
+                    ++end;
+                }
+                builder.put(key, toMap(level + 1, start, end, leaf));
+                start = end;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Tables are equal when they have the same levels and the same values for
+     * the same keys, which is when the maps they were built from are equal.
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        } else if (o instanceof SummaryTable) {
+            final SummaryTable other = (SummaryTable) o;
+            return levels == other.levels //
+                    && (keys == other.keys || Arrays.equals(keys, other.keys))
+                    && Arrays.equals(values, other.values);
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(Arrays.hashCode(keys), Arrays.hashCode(values));
+    }
+
+    @Override
+    public String toString() {
+        return "[levels: " + levels.length + " size: " + keys.length + "]";
+    }
+
+}
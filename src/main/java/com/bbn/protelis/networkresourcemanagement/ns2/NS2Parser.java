@@ -473,7 +473,7 @@ public final class NS2Parser {
             final Topology topology = NS2Parser.parse(scenarioFile, baseDirectory);
 
             final Scenario<NetworkServer, NetworkLink, NetworkClient> scenario = new Scenario<>(topology, factory,
-                    name -> new DnsNameIdentifier(name));
+                    DnsNameIdentifier::intern);
 
             regionLookupService.setDelegate(scenario);
 
@@ -0,0 +1,356 @@
+package com.bbn.protelis.networkresourcemanagement.testbed;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bbn.protelis.common.testbed.termination.TerminationCondition;
+import com.bbn.protelis.networkresourcemanagement.ExecutionBackend;
+import com.bbn.protelis.networkresourcemanagement.InMemoryExchange;
+import com.bbn.protelis.networkresourcemanagement.NetworkClient;
+import com.bbn.protelis.networkresourcemanagement.NetworkLink;
+import com.bbn.protelis.networkresourcemanagement.NetworkServer;
+import com.bbn.protelis.networkresourcemanagement.NodeNetworkManager;
+import com.bbn.protelis.utils.ManualClock;
+
+/**
+ * Run a {@link Scenario} in discrete global rounds as fast as possible. In
+ * each round every server executes once, in parallel on a
+ * {@link ForkJoinPool}. Then the state the servers shared is delivered to
+ * their neighbors and the clock moves forward by the round duration. So every
+ * server reads the state its neighbors shared in the previous round and the
+ * result does not depend on thread scheduling.
+ *
+ * The servers must have been created with transports from an
+ * {@link InMemoryExchange} with deferred delivery, see
+ * {@link com.bbn.protelis.networkresourcemanagement.BasicNetworkFactory#BasicNetworkFactory(com.bbn.protelis.networkresourcemanagement.NodeLookupService, com.bbn.protelis.networkresourcemanagement.RegionLookupService, com.bbn.protelis.networkresourcemanagement.ResourceManagerFactory, String, boolean, com.bbn.protelis.networkresourcemanagement.NeighborTransportFactory)},
+ * and anything that reads time, such as the resource managers, should use the
+ * {@link ManualClock} given to the simulation. The sleep time of the servers
+ * is ignored.
+ *
+ * The termination condition of the scenario is checked after each round, for
+ * example
+ * {@link com.bbn.protelis.networkresourcemanagement.testbed.termination.ExecutionCountTermination}.
+ * Without a termination condition the simulation runs until all servers have
+ * stopped executing.
+ *
+ * @param <N>
+ *            the node type
+ * @param <L>
+ *            the link type
+ * @param <C>
+ *            the client type
+ */
+public class LockstepSimulation<N extends NetworkServer, L extends NetworkLink, C extends NetworkClient> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockstepSimulation.class);
+
+    /**
+     * Default value for {@link #getRoundDuration()}.
+     */
+    public static final long DEFAULT_ROUND_DURATION_MS = NetworkServer.DEFAULT_SLEEP_TIME_MS;
+
+    /**
+     * How long to wait for the servers to connect to their neighbors.
+     */
+    private static final long CONNECT_TIMEOUT_MS = 60 * 1000;
+    private static final long CONNECT_POLL_MS = 10;
+
+    /**
+     * Servers evaluated by one task without splitting further.
+     */
+    private static final int SERVERS_PER_TASK = 16;
+
+    private final Scenario<N, L, C> scenario;
+    private final InMemoryExchange exchange;
+    private final ManualClock clock;
+    private final ForkJoinPool pool;
+
+    private final LockstepBackend backend = new LockstepBackend();
+
+    private long roundDuration = DEFAULT_ROUND_DURATION_MS;
+
+    private long roundCount = 0;
+    private double elapsedSeconds = 0;
+
+    /**
+     * Use the common {@link ForkJoinPool}.
+     *
+     * @param scenario
+     *            the scenario to run
+     * @param exchange
+     *            the exchange that the transports of the servers were created
+     *            by
+     * @param clock
+     *            the clock to advance after each round
+     * @throws IllegalArgumentException
+     *             if the exchange doesn't defer delivery
+     */
+    public LockstepSimulation(@Nonnull final Scenario<N, L, C> scenario,
+            @Nonnull final InMemoryExchange exchange,
+            @Nonnull final ManualClock clock) {
+        this(scenario, exchange, clock, ForkJoinPool.commonPool());
+    }
+
+    /**
+     *
+     * @param scenario
+     *            the scenario to run
+     * @param exchange
+     *            the exchange that the transports of the servers were created
+     *            by
+     * @param clock
+     *            the clock to advance after each round
+     * @param pool
+     *            where to execute the servers
+     * @throws IllegalArgumentException
+     *             if the exchange doesn't defer delivery
+     */
+    public LockstepSimulation(@Nonnull final Scenario<N, L, C> scenario,
+            @Nonnull final InMemoryExchange exchange,
+            @Nonnull final ManualClock clock,
+            @Nonnull final ForkJoinPool pool) {
+        if (!exchange.isDeferredDelivery()) {
+            throw new IllegalArgumentException("The exchange must defer delivery to keep the rounds separate");
+        }
+        this.scenario = scenario;
+        this.exchange = exchange;
+        this.clock = clock;
+        this.pool = pool;
+    }
+
+    /**
+     * @return how far the clock moves each round, in milliseconds. Defaults to
+     *         {@link #DEFAULT_ROUND_DURATION_MS}.
+     */
+    public long getRoundDuration() {
+        return roundDuration;
+    }
+
+    /**
+     * @param v
+     *            see {@link #getRoundDuration()}
+     */
+    public void setRoundDuration(final long v) {
+        roundDuration = v;
+    }
+
+    /**
+     * @return the number of global rounds executed by {@link #run()}
+     */
+    public long getRoundCount() {
+        return roundCount;
+    }
+
+    /**
+     * @return global rounds per second of wall clock time during the last
+     *         {@link #run()}, 0 if nothing has run yet
+     */
+    public double getRoundsPerSecond() {
+        return elapsedSeconds > 0 ? roundCount / elapsedSeconds : 0;
+    }
+
+    /**
+     * Run the scenario until it terminates. The return values live in the
+     * scenario network, which can be freely polled after completion. While
+     * running, the servers use the rounds of the simulation instead of their
+     * execution backend and network timers, their settings are restored
+     * afterwards.
+     */
+    public void run() {
+        final Map<DeviceUID, N> servers = scenario.getServers();
+        final Map<N, ServerSettings> saved = new HashMap<>();
+        for (final N server : servers.values()) {
+            saved.put(server, new ServerSettings(server));
+            final NodeNetworkManager networkManager = server.accessNetworkManager();
+            // rounds are driven by the simulation, not timers
+            networkManager.setAsynchronousSend(false);
+            networkManager.setHeartbeatIntervalMs(0);
+            networkManager.setNeighborTimeoutMs(0);
+            server.setExecutionBackend(backend);
+        }
+
+        LOGGER.debug("Connecting servers");
+        try {
+            servers.values().forEach(NetworkServer::startExecuting);
+            waitForConnections(servers);
+
+            if (!clock.isStarted()) {
+                clock.startClock();
+            }
+
+            roundCount = 0;
+            final long start = System.nanoTime();
+            final TerminationCondition<Map<DeviceUID, N>> termination = scenario.getTerminationCondition();
+            while (true) {
+                final List<ExecutionBackend.Rounds> active = backend.getActive();
+                if (active.isEmpty()) {
+                    LOGGER.debug("All servers stopped; terminating");
+                    break;
+                }
+
+                pool.invoke(new RoundTask(active, 0, active.size()));
+                exchange.deliverPending();
+                clock.advance(roundDuration);
+                ++roundCount;
+
+                if (null != termination && termination.shouldTerminate(servers)) {
+                    LOGGER.debug("Termination condition detected");
+                    break;
+                }
+            }
+            elapsedSeconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        } finally {
+            servers.values().forEach(NetworkServer::stopExecuting);
+            saved.forEach((server, settings) -> settings.restore(server));
+        }
+
+        LOGGER.info("Scenario {}: {} servers, {} rounds in {} seconds ({} rounds/second)", scenario.getName(),
+                servers.size(), roundCount, elapsedSeconds, getRoundsPerSecond());
+    }
+
+    /**
+     * Wait until each server is connected to all of its neighbors that are
+     * servers in the scenario.
+     */
+    private void waitForConnections(final Map<DeviceUID, N> servers) {
+        final long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < CONNECT_TIMEOUT_MS) {
+            if (servers.values().stream().allMatch(server -> isConnected(server, servers.keySet()))) {
+                LOGGER.debug("All servers connected in {} ms", System.currentTimeMillis() - start);
+                return;
+            }
+            try {
+                Thread.sleep(CONNECT_POLL_MS);
+            } catch (final InterruptedException e) {
+                // ignore interruptions - we're just waiting in any case
+            }
+        }
+        LOGGER.warn("Not all servers connected to their neighbors within {} ms, running anyway",
+                CONNECT_TIMEOUT_MS);
+    }
+
+    private static boolean isConnected(final NetworkServer server, final Set<DeviceUID> servers) {
+        final Set<DeviceUID> expected = server.getNeighbors().stream().filter(servers::contains)
+                .collect(Collectors.toSet());
+        return server.accessNetworkManager().getNeighborState().keySet().containsAll(expected);
+    }
+
+    /**
+     * The settings of a server that {@link #run()} changes.
+     */
+    private static final class ServerSettings {
+        private final ExecutionBackend executionBackend;
+        private final boolean asynchronousSend;
+        private final long heartbeatIntervalMs;
+        private final long neighborTimeoutMs;
+
+        ServerSettings(final NetworkServer server) {
+            final NodeNetworkManager networkManager = server.accessNetworkManager();
+            executionBackend = server.getExecutionBackend();
+            asynchronousSend = networkManager.isAsynchronousSend();
+            heartbeatIntervalMs = networkManager.getHeartbeatIntervalMs();
+            neighborTimeoutMs = networkManager.getNeighborTimeoutMs();
+        }
+
+        void restore(final NetworkServer server) {
+            final NodeNetworkManager networkManager = server.accessNetworkManager();
+            networkManager.setAsynchronousSend(asynchronousSend);
+            networkManager.setHeartbeatIntervalMs(heartbeatIntervalMs);
+            networkManager.setNeighborTimeoutMs(neighborTimeoutMs);
+            server.setExecutionBackend(executionBackend);
+        }
+    }
+
+    /**
+     * Execute one round of a range of servers, splitting the range in half
+     * until it is small.
+     */
+    private final class RoundTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<ExecutionBackend.Rounds> rounds;
+        private final int from;
+        private final int to;
+
+        RoundTask(final List<ExecutionBackend.Rounds> rounds, final int from, final int to) {
+            this.rounds = rounds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SERVERS_PER_TASK) {
+                for (int i = from; i < to; ++i) {
+                    final ExecutionBackend.Rounds r = rounds.get(i);
+                    if (!r.runRound()) {
+                        backend.finished(r);
+                    }
+                }
+            } else {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new RoundTask(rounds, from, middle), new RoundTask(rounds, middle, to));
+            }
+        }
+    }
+
+    /**
+     * Records the servers that are executing so that the simulation can run
+     * their rounds.
+     */
+    private static final class LockstepBackend implements ExecutionBackend {
+        private final Object lock = new Object();
+        // guarded by lock
+        private final Set<Rounds> active = new LinkedHashSet<>();
+
+        List<Rounds> getActive() {
+            synchronized (lock) {
+                return new ArrayList<>(active);
+            }
+        }
+
+        void finished(final Rounds rounds) {
+            synchronized (lock) {
+                active.remove(rounds);
+            }
+        }
+
+        @Override
+        @Nonnull
+        public Execution start(@Nonnull final String name, @Nonnull final Rounds rounds) {
+            synchronized (lock) {
+                active.add(rounds);
+            }
+            return new Execution() {
+                @Override
+                public void stop() {
+                    // rounds only run inside LockstepSimulation#run, which
+                    // stops the servers after its last round
+                    finished(rounds);
+                }
+
+                @Override
+                public boolean isAlive() {
+                    synchronized (lock) {
+                        return active.contains(rounds);
+                    }
+                }
+            };
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ import com.bbn.protelis.networkresourcemanagement.NetworkNode;
 import com.bbn.protelis.networkresourcemanagement.NetworkServer;
 import com.bbn.protelis.networkresourcemanagement.NodeIdentifier;
 import com.bbn.protelis.networkresourcemanagement.RegionIdentifier;
+import com.bbn.protelis.networkresourcemanagement.RegionIndex;
 import com.bbn.protelis.networkresourcemanagement.RegionLookupService;
 import com.bbn.protelis.networkresourcemanagement.ns2.NetworkDevice;
 import com.bbn.protelis.networkresourcemanagement.ns2.Node;
@@ -122,20 +123,22 @@ public class Scenario<N extends NetworkServer, L extends NetworkLink, C extends
     // RegionLookupService
     @Override
     public RegionIdentifier getRegionForNode(@Nonnull final NodeIdentifier nodeId) {
-        final N server = servers.get(nodeId);
-        if (null != server) {
-            return server.getRegionIdentifier();
-        } else {
-            final C client = clients.get(nodeId);
-            if (null != client) {
-                return client.getRegionIdentifier();
-            } else {
-                return null;
-            }
-        }
+        return regionIndex.getRegionForNode(nodeId);
+    }
+
+    /**
+     * The nodes of a scenario and their regions don't change, so the index is
+     * built once by the constructor.
+     */
+    @Override
+    @Nonnull
+    public RegionIndex getRegionIndex() {
+        return regionIndex;
     }
     // end RegionLookupService
 
+    private final RegionIndex regionIndex;
+
     private final Set<L> links = new HashSet<>();
 
     /**
@@ -174,6 +177,12 @@ public class Scenario<N extends NetworkServer, L extends NetworkLink, C extends
             nameToNetworkNode.put(nodeName, netNode);
         });
 
+        // servers win over clients with the same identifier
+        final Map<NodeIdentifier, RegionIdentifier> regions = new HashMap<>();
+        clients.forEach((id, client) -> regions.put(client.getNodeIdentifier(), client.getRegionIdentifier()));
+        servers.forEach((id, server) -> regions.put(server.getNodeIdentifier(), server.getRegionIdentifier()));
+        this.regionIndex = new RegionIndex(0, regions);
+
         // create all of the links
         topology.getNodes().forEach((nodeName, node) -> {
             node.getLinks().forEach(l -> {
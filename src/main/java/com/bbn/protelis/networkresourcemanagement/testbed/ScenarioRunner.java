@@ -30,6 +30,10 @@ public class ScenarioRunner<N extends NetworkServer, L extends NetworkLink, C ex
     private final Scenario<N, L, C> scenario;
     private ScenarioVisualizer<?, ?, L, N, C> visualizer;
 
+    private final Object terminationLock = new Object();
+    // guarded by terminationLock
+    private boolean terminationSignalled = false;
+
     /**
      * 
      * @param scenario
@@ -74,7 +78,38 @@ public class ScenarioRunner<N extends NetworkServer, L extends NetworkLink, C ex
         LOGGER.info("Scenario complete");
     }
 
+    /**
+     * Called by termination conditions that may have become true.
+     */
+    private void signalTermination() {
+        synchronized (terminationLock) {
+            terminationSignalled = true;
+            terminationLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the poll period or a signal from the termination condition.
+     */
+    private void waitForNextCheck() {
+        synchronized (terminationLock) {
+            if (!terminationSignalled) {
+                try {
+                    terminationLock.wait(scenario.getTerminationPollFrequency());
+                } catch (final InterruptedException e) {
+                    // ignore interruptions - we're just waiting in any case
+                }
+            }
+            terminationSignalled = false;
+        }
+    }
+
     private void waitForTermination() {
+        final TerminationCondition<Map<DeviceUID, N>> initialTermination = scenario.getTerminationCondition();
+        if (null != initialTermination) {
+            initialTermination.setTerminationListener(this::signalTermination);
+        }
+
         while (true) {
             // Check if we've been told to exit by user click
             if (visualizer != null && visualizer.isClosed()) {
@@ -96,11 +131,7 @@ public class ScenarioRunner<N extends NetworkServer, L extends NetworkLink, C ex
                 }
             }
             // Wait for next time around
-            try {
-                Thread.sleep(scenario.getTerminationPollFrequency());
-            } catch (InterruptedException e) {
-                // ignore interruptions - we're just waiting in any case
-            }
+            waitForNextCheck();
         }
 
         // Cleanup and exit
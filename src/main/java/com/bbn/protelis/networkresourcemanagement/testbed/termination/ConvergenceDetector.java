@@ -0,0 +1,183 @@
+package com.bbn.protelis.networkresourcemanagement.testbed.termination;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+import org.protelis.lang.datatype.DeviceUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bbn.protelis.common.testbed.termination.TerminationCondition;
+import com.bbn.protelis.networkresourcemanagement.NetworkServer;
+import com.bbn.protelis.networkresourcemanagement.StabilityListener;
+
+/**
+ * Terminate once every node is stable. The nodes report when they become
+ * stable and when they change again, so the detector knows right away when
+ * the last node becomes stable and tells the scenario runner without waiting
+ * for the next periodic check.
+ *
+ * The round and time of the last change of the last node to settle are kept,
+ * so how long a scenario takes to converge can be measured instead of guessed
+ * with an execution count.
+ *
+ * @param <N>
+ *            the node type to deal with
+ * @see StabilityListener
+ */
+public class ConvergenceDetector<N extends NetworkServer>
+        implements TerminationCondition<Map<DeviceUID, N>>, StabilityListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConvergenceDetector.class);
+
+    private final int stableRounds;
+    private final int nodeCount;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private final Map<DeviceUID, Long> stableSinceRound = new HashMap<>();
+    private final Map<DeviceUID, Long> stableSinceTime = new HashMap<>();
+    private boolean converged = false;
+    private long convergenceRound = -1;
+    private long convergenceTime = -1;
+    private Runnable terminationListener = null;
+
+    /**
+     * Become the stability listener of the nodes. Must be created before the
+     * nodes start executing.
+     *
+     * @param nodes
+     *            the nodes that all need to be stable
+     * @param stableRounds
+     *            see {@link #getStableRounds()}
+     * @throws IllegalArgumentException
+     *             if stable rounds is less than 1
+     */
+    public ConvergenceDetector(@Nonnull final Collection<? extends NetworkServer> nodes, final int stableRounds) {
+        if (stableRounds < 1) {
+            throw new IllegalArgumentException("Stable rounds must be at least 1: " + stableRounds);
+        }
+        this.stableRounds = stableRounds;
+        this.nodeCount = nodes.size();
+        nodes.forEach(node -> node.setStabilityListener(this));
+    }
+
+    @Override
+    public int getStableRounds() {
+        return stableRounds;
+    }
+
+    @Override
+    public void nodeStable(@Nonnull final NetworkServer node, final long lastChangeRound, final long lastChangeTime) {
+        final Runnable listener;
+        synchronized (lock) {
+            stableSinceRound.put(node.getDeviceUID(), lastChangeRound);
+            stableSinceTime.put(node.getDeviceUID(), lastChangeTime);
+            if (converged || stableSinceRound.size() < nodeCount) {
+                return;
+            }
+
+            converged = true;
+            convergenceRound = stableSinceRound.values().stream().mapToLong(Long::longValue).max().orElse(0);
+            convergenceTime = stableSinceTime.values().stream().mapToLong(Long::longValue).max().orElse(0);
+            lock.notifyAll();
+            listener = terminationListener;
+        }
+
+        if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("All {} nodes stable, converged at round {} time {}", nodeCount, convergenceRound,
+                    convergenceTime);
+        }
+        if (null != listener) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public void nodeUnstable(@Nonnull final NetworkServer node) {
+        synchronized (lock) {
+            stableSinceRound.remove(node.getDeviceUID());
+            stableSinceTime.remove(node.getDeviceUID());
+            if (converged && LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Node {} changed after convergence", node.getName());
+            }
+            converged = false;
+        }
+    }
+
+    /**
+     * @return true if all nodes are stable
+     */
+    public boolean isConverged() {
+        synchronized (lock) {
+            return converged;
+        }
+    }
+
+    /**
+     * @return the number of nodes that are currently stable
+     */
+    public int getStableNodeCount() {
+        synchronized (lock) {
+            return stableSinceRound.size();
+        }
+    }
+
+    /**
+     * @return the highest execution count of a round with a change when all
+     *         nodes became stable, -1 if they never were
+     */
+    public long getConvergenceRound() {
+        synchronized (lock) {
+            return convergenceRound;
+        }
+    }
+
+    /**
+     * @return the latest time on the clocks of the nodes of a round with a
+     *         change when all nodes became stable, -1 if they never were
+     */
+    public long getConvergenceTime() {
+        synchronized (lock) {
+            return convergenceTime;
+        }
+    }
+
+    /**
+     * Wait for all nodes to be stable.
+     *
+     * @param timeoutMs
+     *            how many milliseconds to wait at most
+     * @return true if all nodes are stable
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public boolean awaitConvergence(final long timeoutMs) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeoutMs;
+        synchronized (lock) {
+            long remaining = timeoutMs;
+            while (!converged && remaining > 0) {
+                lock.wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+            return converged;
+        }
+    }
+
+    @Override
+    public boolean shouldTerminate(final Map<DeviceUID, N> nodes) {
+        return isConverged();
+    }
+
+    @Override
+    public void setTerminationListener(final Runnable listener) {
+        synchronized (lock) {
+            terminationListener = listener;
+        }
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.bbn.protelis.utils;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Clock that never sleeps through idle time. Every pending wait is kept in a
+ * queue ordered by deadline. Once all registered participants are waiting on
+ * the clock, time jumps straight to the earliest deadline and the waits that
+ * are due wake up. A scenario whose nodes spend most of their time sleeping
+ * between rounds then runs as fast as the rounds can be executed.
+ *
+ * Time only stays put while a participant does something other than wait on
+ * the clock. Work done on other threads, such as sending state over sockets,
+ * does not hold time back, so deterministic results need synchronous
+ * neighbor communication, see
+ * {@link com.bbn.protelis.networkresourcemanagement.NodeNetworkManager#setAsynchronousSend(boolean)}.
+ * The rounds of the nodes need to wait on the clock, which
+ * {@link com.bbn.protelis.networkresourcemanagement.DedicatedThreadBackend}
+ * does.
+ *
+ * Each wait has its own condition, so moving time forward only wakes the
+ * waits that are due.
+ *
+ * @see #registerParticipant()
+ */
+public class DiscreteEventClock implements VirtualClock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DiscreteEventClock.class);
+
+    private static final class Waiter {
+        private final long deadline;
+        private final boolean participant;
+        private final Condition condition;
+
+        // guarded by lock
+        private boolean released = false;
+
+        Waiter(final long deadline, final boolean participant, final Condition condition) {
+            this.deadline = deadline;
+            this.participant = participant;
+            this.condition = condition;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition started = lock.newCondition();
+
+    // guarded by lock
+    private long currentTime = 0;
+    private boolean clockRunning = false;
+    private boolean shutdown = false;
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(
+            Comparator.comparingLong((final Waiter w) -> w.deadline));
+    private final Set<Thread> participants = new HashSet<>();
+    // participants in waiters that have not been released
+    private int waitingParticipants = 0;
+
+    @Override
+    public void registerParticipant() {
+        lock.lock();
+        try {
+            participants.add(Thread.currentThread());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deregisterParticipant() {
+        lock.lock();
+        try {
+            if (participants.remove(Thread.currentThread())) {
+                // the remaining participants may all be waiting
+                advanceIfIdle();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of registered participants
+     */
+    public int getParticipantCount() {
+        lock.lock();
+        try {
+            return participants.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void startClock() {
+        lock.lock();
+        try {
+            if (clockRunning) {
+                throw new IllegalStateException("Clock is already running, cannot be started again until stopped");
+            }
+            if (shutdown) {
+                throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
+            }
+
+            clockRunning = true;
+            started.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getCurrentTime() {
+        lock.lock();
+        try {
+            return currentTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        lock.lock();
+        try {
+            return clockRunning;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void stopClock() {
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
+            }
+            if (!clockRunning) {
+                throw new IllegalStateException("Clock is not running, cannot be stopped");
+            }
+
+            clockRunning = false;
+
+            // wake everyone up
+            releaseAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void waitForDuration(final long duration) {
+        lock.lock();
+        try {
+            if (shutdown) {
+                return;
+            }
+            if (!clockRunning) {
+                throw new IllegalStateException("Cannot wait on stopped clock");
+            }
+
+            waitForDeadline(currentTime + duration);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            clockRunning = false;
+            started.signalAll();
+            releaseAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        lock.lock();
+        try {
+            return shutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void waitForClockStart() {
+        lock.lock();
+        try {
+            while (!clockRunning && !shutdown) {
+                try {
+                    started.await();
+                } catch (final InterruptedException e) {
+                    if (LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Interrupted waiting for clock to start", e);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void waitUntilTime(final long time) {
+        waitForClockStart();
+
+        lock.lock();
+        try {
+            waitForDeadline(time);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void waitUntilTimeInterruptibly(final long time) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!clockRunning && !shutdown) {
+                started.await();
+            }
+            internalWaitUntil(time, true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait ignoring interrupts. Must hold the lock when calling this method.
+     */
+    private void waitForDeadline(final long time) {
+        try {
+            internalWaitUntil(time, false);
+        } catch (final InterruptedException e) {
+            // not thrown by an uninterruptible wait
+            throw new IllegalStateException("Uninterruptible wait was interrupted", e);
+        }
+    }
+
+    /**
+     * Must hold the lock when calling this method.
+     */
+    private void internalWaitUntil(final long time, final boolean interruptible) throws InterruptedException {
+        if (!clockRunning || currentTime >= time) {
+            return;
+        }
+
+        final Waiter waiter = new Waiter(time, participants.contains(Thread.currentThread()), lock.newCondition());
+        waiters.add(waiter);
+        if (waiter.participant) {
+            ++waitingParticipants;
+        }
+        try {
+            advanceIfIdle();
+            while (!waiter.released) {
+                try {
+                    waiter.condition.await();
+                } catch (final InterruptedException e) {
+                    if (interruptible) {
+                        throw e;
+                    }
+                    if (LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Interrupted during sleep", e);
+                    }
+                }
+            }
+        } finally {
+            if (!waiter.released) {
+                // interrupted, no longer waiting
+                waiters.remove(waiter);
+                if (waiter.participant) {
+                    --waitingParticipants;
+                }
+            }
+        }
+    }
+
+    /**
+     * Jump to the earliest deadline if all participants are waiting and wake
+     * the waits that are due. A waiter that is woken, including by an
+     * interrupt, no longer counts as waiting, so time stays put until it
+     * waits again. Waking only non-participants leaves all participants
+     * waiting, so time keeps moving to the next deadline. Must hold the lock
+     * when calling this method.
+     */
+    private void advanceIfIdle() {
+        while (clockRunning && !waiters.isEmpty() && waitingParticipants >= participants.size()) {
+            final long next = waiters.peek().deadline;
+            if (next > currentTime) {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("All participants waiting, advancing from {} to {}", currentTime, next);
+                }
+                currentTime = next;
+            }
+            while (!waiters.isEmpty() && waiters.peek().deadline <= currentTime) {
+                release(waiters.poll());
+            }
+        }
+    }
+
+    /**
+     * Wake all waits. Must hold the lock when calling this method.
+     */
+    private void releaseAll() {
+        while (!waiters.isEmpty()) {
+            release(waiters.poll());
+        }
+    }
+
+    /**
+     * Must hold the lock when calling this method.
+     */
+    private void release(final Waiter waiter) {
+        waiter.released = true;
+        if (waiter.participant) {
+            --waitingParticipants;
+        }
+        waiter.condition.signal();
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.bbn.protelis.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Clock whose time only moves when {@link #advance(long)} is called. Used to
+ * run simulations faster than real time while everything that reads the clock
+ * sees the same, consistent time.
+ */
+public class ManualClock implements VirtualClock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ManualClock.class);
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private long currentTime = 0;
+    private boolean clockRunning = false;
+    private boolean shutdown = false;
+
+    /**
+     * Move the clock forward and wake up everything waiting for a time that
+     * has now been reached. May be called while the clock is stopped.
+     *
+     * @param duration
+     *            the amount of time to move forward
+     * @throws IllegalArgumentException
+     *             if the duration is negative
+     */
+    public void advance(final long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Time cannot go backwards: " + duration);
+        }
+        synchronized (lock) {
+            currentTime += duration;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void startClock() {
+        synchronized (lock) {
+            if (clockRunning) {
+                throw new IllegalStateException("Clock is already running, cannot be started again until stopped");
+            }
+            if (shutdown) {
+                throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
+            }
+
+            clockRunning = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public long getCurrentTime() {
+        synchronized (lock) {
+            return currentTime;
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        synchronized (lock) {
+            return clockRunning;
+        }
+    }
+
+    @Override
+    public void stopClock() {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
+            }
+            if (!clockRunning) {
+                throw new IllegalStateException("Clock is not running, cannot be stopped");
+            }
+
+            clockRunning = false;
+
+            // wake everyone up
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void waitForDuration(final long duration) {
+        synchronized (lock) {
+            if (shutdown) {
+                return;
+            }
+            if (!clockRunning) {
+                throw new IllegalStateException("Cannot wait on stopped clock");
+            }
+
+            internalWaitUntil(currentTime + duration);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            clockRunning = false;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (lock) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public void waitForClockStart() {
+        synchronized (lock) {
+            while (!clockRunning && !shutdown) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    if (LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Interrupted waiting for clock to start", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void waitUntilTime(final long time) {
+        waitForClockStart();
+
+        synchronized (lock) {
+            internalWaitUntil(time);
+        }
+    }
+
+    @Override
+    public void waitUntilTimeInterruptibly(final long time) throws InterruptedException {
+        synchronized (lock) {
+            while (!clockRunning && !shutdown) {
+                lock.wait();
+            }
+            while (clockRunning && currentTime < time) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock when calling this method.
+     */
+    private void internalWaitUntil(final long time) {
+        while (clockRunning && currentTime < time) {
+            try {
+                lock.wait();
+            } catch (final InterruptedException e) {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Interrupted during sleep", e);
+                }
+            }
+        }
+    }
+
+}
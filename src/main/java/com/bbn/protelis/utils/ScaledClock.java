@@ -0,0 +1,212 @@
+package com.bbn.protelis.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Clock that runs a constant factor faster (or slower) than the system time.
+ * With a speed-up of 10 a node that sleeps 1 second between rounds runs a
+ * round every 100 real milliseconds, while everything that reads the clock
+ * still sees 1 second between rounds.
+ */
+public class ScaledClock implements VirtualClock {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ScaledClock.class);
+
+    private final double speedUp;
+
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private long realStart = 0;
+    /**
+     * Clock time when the clock was last started, so that time doesn't go
+     * backwards across a stop and a start.
+     */
+    private long timeAtStart = 0;
+    /**
+     * The time reported while stopped.
+     */
+    private long stoppedTime = 0;
+    private boolean clockRunning = false;
+    private boolean shutdown = false;
+
+    /**
+     * @param speedUp
+     *            how many milliseconds of clock time pass per real millisecond
+     * @throws IllegalArgumentException
+     *             if the speed-up is not positive
+     */
+    public ScaledClock(final double speedUp) {
+        if (!(speedUp > 0)) {
+            throw new IllegalArgumentException("Speed-up must be positive: " + speedUp);
+        }
+        this.speedUp = speedUp;
+    }
+
+    /**
+     * @return how many milliseconds of clock time pass per real millisecond
+     */
+    public double getSpeedUp() {
+        return speedUp;
+    }
+
+    @Override
+    public long toRealDuration(final long duration) {
+        return (long) Math.ceil(duration / speedUp);
+    }
+
+    @Override
+    public void startClock() {
+        synchronized (lock) {
+            if (clockRunning) {
+                throw new IllegalStateException("Clock is already running, cannot be started again until stopped");
+            }
+            if (shutdown) {
+                throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
+            }
+
+            realStart = System.currentTimeMillis();
+            timeAtStart = stoppedTime;
+            clockRunning = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public long getCurrentTime() {
+        synchronized (lock) {
+            return internalGetCurrentTime();
+        }
+    }
+
+    /**
+     * Must hold the lock when calling this method.
+     */
+    private long internalGetCurrentTime() {
+        if (clockRunning) {
+            return timeAtStart + (long) ((System.currentTimeMillis() - realStart) * speedUp);
+        } else {
+            return stoppedTime;
+        }
+    }
+
+    @Override
+    public boolean isStarted() {
+        synchronized (lock) {
+            return clockRunning;
+        }
+    }
+
+    @Override
+    public void stopClock() {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
+            }
+            if (!clockRunning) {
+                throw new IllegalStateException("Clock is not running, cannot be stopped");
+            }
+
+            stoppedTime = internalGetCurrentTime();
+            clockRunning = false;
+
+            // wake everyone up
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void waitForDuration(final long duration) {
+        synchronized (lock) {
+            if (shutdown) {
+                return;
+            }
+            if (!clockRunning) {
+                throw new IllegalStateException("Cannot wait on stopped clock");
+            }
+
+            internalWaitUntil(internalGetCurrentTime() + duration);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (lock) {
+            if (clockRunning) {
+                stoppedTime = internalGetCurrentTime();
+            }
+            shutdown = true;
+            clockRunning = false;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isShutdown() {
+        synchronized (lock) {
+            return shutdown;
+        }
+    }
+
+    @Override
+    public void waitForClockStart() {
+        synchronized (lock) {
+            while (!clockRunning && !shutdown) {
+                try {
+                    lock.wait();
+                } catch (final InterruptedException e) {
+                    if (LOGGER.isTraceEnabled()) {
+                        LOGGER.trace("Interrupted waiting for clock to start", e);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void waitUntilTime(final long time) {
+        waitForClockStart();
+
+        synchronized (lock) {
+            internalWaitUntil(time);
+        }
+    }
+
+    @Override
+    public void waitUntilTimeInterruptibly(final long time) throws InterruptedException {
+        synchronized (lock) {
+            while (!clockRunning && !shutdown) {
+                lock.wait();
+            }
+
+            while (clockRunning) {
+                final long remaining = time - internalGetCurrentTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                lock.wait(toRealDuration(remaining));
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock when calling this method.
+     */
+    private void internalWaitUntil(final long time) {
+        while (clockRunning) {
+            final long remaining = time - internalGetCurrentTime();
+            if (remaining <= 0) {
+                return;
+            }
+            try {
+                lock.wait(toRealDuration(remaining));
+            } catch (final InterruptedException e) {
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Interrupted during sleep", e);
+                }
+            }
+        }
+    }
+
+}
@@ -1,115 +1,157 @@
 package com.bbn.protelis.utils;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Simple clock that just stores the time offset and then uses the system time.
+ *
+ * Reading the clock doesn't lock, the offset and whether the clock runs are
+ * kept together in an immutable state that is replaced on start, stop and
+ * shutdown. Waiting threads are parked and each one is woken by its own
+ * timeout in a {@link TimerWheel}, so many threads can wait on one clock
+ * without waking each other up. The wheel is advanced by a one-shot task
+ * scheduled for its next deadline, so an idle clock uses no CPU between
+ * wakeups. Starting the clock only wakes the threads waiting for the start,
+ * stopping it wakes the threads waiting for a time.
  */
 public class SimpleClock implements VirtualClock {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SimpleClock.class);
 
-    private long offset = 0;
+    private static final long WHEEL_TICK_MS = 1;
+    private static final int WHEEL_BUCKETS = 64;
+    private static final int WHEEL_LEVELS = 4;
+
     /**
-     * The time reported when stopped. This is initially 0, but will change to
-     * the time that stop is called. This allows one to keep querying the clock
-     * after it's stopped and time not go backwards. Note that this time already
-     * has <code>offset</code> applied.
+     * Advances the wheels of all clocks when their next timeout is due.
      */
-    private long stoppedTime = 0;
+    private static final ScheduledExecutorService TICKER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("clock-ticker-%d").setDaemon(true).build());
 
-    private boolean clockRunning = false;
+    /**
+     * Everything needed to read the clock.
+     */
+    private static final class State {
+        private final boolean running;
+        private final boolean shutdown;
+        private final long offset;
+        /**
+         * The time reported when stopped. This is initially 0, but will change
+         * to the time that stop is called. This allows one to keep querying
+         * the clock after it's stopped and time not go backwards. Note that
+         * this time already has <code>offset</code> applied.
+         */
+        private final long stoppedTime;
+
+        State(final boolean running, final boolean shutdown, final long offset, final long stoppedTime) {
+            this.running = running;
+            this.shutdown = shutdown;
+            this.offset = offset;
+            this.stoppedTime = stoppedTime;
+        }
 
-    @Override
-    public boolean isStarted() {
-        synchronized (lock) {
-            return clockRunning;
+        long currentTime() {
+            if (running) {
+                return System.currentTimeMillis() - offset;
+            } else {
+                return stoppedTime;
+            }
         }
     }
 
-    private boolean shutdown = false;
+    // only replaced while holding lock
+    private volatile State state = new State(false, false, 0, 0);
+
+    // serializes start, stop and shutdown
+    private final Object lock = new Object();
+
+    private final Set<Thread> startWaiters = ConcurrentHashMap.newKeySet();
+    private final Set<Thread> timeWaiters = ConcurrentHashMap.newKeySet();
+
+    // in system time
+    private final TimerWheel wheel = new TimerWheel(WHEEL_TICK_MS, WHEEL_BUCKETS, WHEEL_LEVELS,
+            System.currentTimeMillis());
+    private final Object tickerLock = new Object();
+    // guarded by tickerLock, scheduled for tickerDeadline while the wheel has
+    // timeouts
+    private ScheduledFuture<?> ticker = null;
+    private long tickerDeadline = Long.MAX_VALUE;
+
+    @Override
+    public boolean isStarted() {
+        return state.running;
+    }
 
     @Override
     public void shutdown() {
         synchronized (lock) {
-            shutdown = true;
-            clockRunning = false;
-            stoppedTime = -1;
-            lock.notifyAll();
+            state = new State(false, true, state.offset, -1);
         }
+        wakeAll(startWaiters);
+        wakeAll(timeWaiters);
     }
 
-    private final Object lock = new Object();
-
     @Override
     public void startClock() {
         synchronized (lock) {
-            if (clockRunning) {
+            final State current = state;
+            if (current.running) {
                 throw new IllegalStateException("Clock is already running, cannot be started again until stopped");
             }
-            if (shutdown) {
+            if (current.shutdown) {
                 throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
             }
 
-            offset = System.currentTimeMillis();
-            clockRunning = true;
-            lock.notifyAll();
+            state = new State(true, false, System.currentTimeMillis(), current.stoppedTime);
         }
+        wakeAll(startWaiters);
     }
 
     @Override
     public void stopClock() {
         synchronized (lock) {
-            if (shutdown) {
+            final State current = state;
+            if (current.shutdown) {
                 throw new IllegalStateException("Clock has been shutdown, it can no longer be used.");
             }
-            if (!clockRunning) {
+            if (!current.running) {
                 throw new IllegalStateException("Clock is not running, cannot be stopped");
             }
 
-            stoppedTime = System.currentTimeMillis() - offset;
-            clockRunning = false;
-
-            // wake everyone up
-            lock.notifyAll();
+            state = new State(false, false, current.offset, current.currentTime());
         }
+
+        // wake everyone up
+        wakeAll(timeWaiters);
     }
 
-    @Override
-    public long getCurrentTime() {
-        synchronized (lock) {
-            return internalGetCurrentTime();
-        }
+    private static void wakeAll(final Set<Thread> waiters) {
+        waiters.forEach(LockSupport::unpark);
     }
 
-    /**
-     * Must hold the lock when calling this method.
-     */
-    private long internalGetCurrentTime() {
-        if (clockRunning) {
-            return System.currentTimeMillis() - offset;
-        } else {
-            return stoppedTime;
-        }
+    @Override
+    public long getCurrentTime() {
+        return state.currentTime();
     }
 
     @Override
     public void waitForClockStart() {
-        synchronized (lock) {
-            if (shutdown) {
-                return;
-            }
-
-            while (!clockRunning && !shutdown) {
-                try {
-                    lock.wait();
-                } catch (final InterruptedException e) {
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("Interrupted waiting for clock to start", e);
-                    }
-                }
-            }
+        try {
+            internalWaitForClockStart(false);
+        } catch (final InterruptedException e) {
+            // not thrown by an uninterruptible wait
+            throw new IllegalStateException("Uninterruptible wait was interrupted", e);
         }
     }
 
@@ -118,55 +160,18 @@ public class SimpleClock implements VirtualClock {
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("Enter waitForDuration: " + duration);
         }
-        synchronized (lock) {
-            if (shutdown) {
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("Returning because shutdown");
-                }
-                return;
+        final State current = state;
+        if (current.shutdown) {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Returning because shutdown");
             }
-            if (!clockRunning) {
-                throw new IllegalStateException("Cannot wait on stopped clock");
-            }
-
-            try {
-                final long initialNow = internalGetCurrentTime();
-                final long wakeTime = initialNow + duration;
-                if (LOGGER.isTraceEnabled()) {
-                    LOGGER.trace("wakeTime: " + wakeTime + " initialNow: " + initialNow);
-                }
+            return;
+        }
+        if (!current.running) {
+            throw new IllegalStateException("Cannot wait on stopped clock");
+        }
 
-                while (clockRunning) {
-                    final long now = internalGetCurrentTime();
-                    final long remainingSleep = wakeTime - now;
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("remainingSleep: " + remainingSleep + " now: " + now);
-                    }
-                    if (remainingSleep <= 0) {
-                        if (LOGGER.isTraceEnabled()) {
-                            LOGGER.trace("Finished with sleep");
-                        }
-
-                        break;
-                    } else {
-                        if (LOGGER.isTraceEnabled()) {
-                            LOGGER.trace("Starting wait for: {} ms", remainingSleep);
-                        }
-                        try {
-                            lock.wait(remainingSleep);
-                        } catch (final InterruptedException e) {
-                            if (LOGGER.isTraceEnabled()) {
-                                LOGGER.trace("Interrupted during sleep", e);
-                            }
-                        }
-                    }
-                }
-            } catch (final IllegalStateException e) {
-                if (!shutdown) {
-                    throw e;
-                }
-            }
-        } // lock
+        waitUntil(addSaturated(current.currentTime(), duration));
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("Exiting waitForDuration");
         }
@@ -184,52 +189,142 @@ public class SimpleClock implements VirtualClock {
             LOGGER.trace("waitUntilTime: clock is started");
         }
 
-        synchronized (lock) {
-            if (shutdown) {
-                return;
+        waitUntil(time);
+    }
+
+    @Override
+    public void waitUntilTimeInterruptibly(final long time) throws InterruptedException {
+        internalWaitForClockStart(true);
+        internalWaitUntil(time, true);
+    }
+
+    private void waitUntil(final long time) {
+        try {
+            internalWaitUntil(time, false);
+        } catch (final InterruptedException e) {
+            // not thrown by an uninterruptible wait
+            throw new IllegalStateException("Uninterruptible wait was interrupted", e);
+        }
+    }
+
+    private void internalWaitForClockStart(final boolean interruptible) throws InterruptedException {
+        final Thread thread = Thread.currentThread();
+        // register before checking the state so that a start in between
+        // unparks this thread
+        startWaiters.add(thread);
+        try {
+            State current = state;
+            while (!current.running && !current.shutdown) {
+                LockSupport.park(this);
+                checkInterrupt(interruptible, "Interrupted waiting for clock to start");
+                current = state;
             }
+        } finally {
+            startWaiters.remove(thread);
+        }
+    }
 
-            while (clockRunning) {
-                final long remainingSleep;
-                try {
-                    final long now = internalGetCurrentTime();
-                    remainingSleep = time - now;
-
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("remainingSleep: " + remainingSleep + " now: " + now);
-                    }
-
-                } catch (final IllegalStateException e) {
-                    if (shutdown) {
-                        return;
-                    } else {
-                        throw e;
-                    }
+    /**
+     * Wait until the clock reaches the time or stops.
+     */
+    private void internalWaitUntil(final long time, final boolean interruptible) throws InterruptedException {
+        final Thread thread = Thread.currentThread();
+        // register before checking the state so that a stop in between
+        // unparks this thread
+        timeWaiters.add(thread);
+        try {
+            while (true) {
+                final State current = state;
+                if (!current.running) {
+                    return;
                 }
-                if (remainingSleep > 0) {
-                    if (LOGGER.isTraceEnabled()) {
-                        LOGGER.trace("waitUntilTime: waiting for " + remainingSleep);
-                    }
-
-                    try {
-                        lock.wait(remainingSleep);
-                    } catch (final InterruptedException e) {
-                        if (LOGGER.isTraceEnabled()) {
-                            LOGGER.trace("Interrupted during sleep", e);
-                        }
-                    }
-                } else {
+                final long wakeTime = addSaturated(current.offset, time);
+                final long remainingSleep = wakeTime - System.currentTimeMillis();
+                if (remainingSleep <= 0) {
                     return;
                 }
+
+                if (LOGGER.isTraceEnabled()) {
+                    LOGGER.trace("Starting wait for: {} ms", remainingSleep);
+                }
+                final TimerWheel.Timeout timeout = wheel.schedule(() -> LockSupport.unpark(thread), wakeTime);
+                armTicker(wakeTime);
+                LockSupport.park(this);
+                timeout.cancel();
+                checkInterrupt(interruptible, "Interrupted during sleep");
+            }
+        } finally {
+            timeWaiters.remove(thread);
+        }
+    }
+
+    /**
+     * @return the sum, or Long.MAX_VALUE if it overflows, so that a wait for a
+     *         huge time waits until the clock stops rather than not at all
+     */
+    private static long addSaturated(final long a, final long b) {
+        if (b > 0 && a > Long.MAX_VALUE - b) {
+            return Long.MAX_VALUE;
+        }
+        return a + b;
+    }
+
+    /**
+     * A parked thread returns right away while its interrupt flag is set, so
+     * the flag is cleared either way.
+     */
+    private static void checkInterrupt(final boolean interruptible, final String message)
+            throws InterruptedException {
+        if (Thread.interrupted()) {
+            if (interruptible) {
+                throw new InterruptedException(message);
             }
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace(message);
+            }
+        }
+    }
 
+    /**
+     * Make sure the wheel is advanced no later than the specified time.
+     */
+    private void armTicker(final long deadline) {
+        synchronized (tickerLock) {
+            if (deadline < tickerDeadline) {
+                schedule(deadline);
+            }
+        }
+    }
+
+    /**
+     * Replace the pending tick with one at the deadline. Must hold
+     * tickerLock.
+     */
+    private void schedule(final long deadline) {
+        if (null != ticker) {
+            ticker.cancel(false);
+            ticker = null;
+        }
+        tickerDeadline = deadline;
+        if (Long.MAX_VALUE != deadline) {
+            // at least one tick so that a clock running slightly behind the
+            // deadline doesn't spin
+            final long delay = Math.max(WHEEL_TICK_MS, deadline - System.currentTimeMillis());
+            ticker = TICKER.schedule(this::tick, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tick() {
+        wheel.advance(System.currentTimeMillis());
+        synchronized (tickerLock) {
+            // timeouts scheduled after this look at tickerDeadline and only
+            // move the tick earlier
+            schedule(wheel.nextDeadline());
         }
     }
 
     @Override
     public boolean isShutdown() {
-        synchronized (lock) {
-            return shutdown;
-        }
+        return state.shutdown;
     }
 }
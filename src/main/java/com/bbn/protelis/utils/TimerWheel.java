@@ -0,0 +1,336 @@
+package com.bbn.protelis.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hierarchical timer wheel. Timeouts are placed in one of a fixed number of
+ * buckets based on their deadline, so scheduling and cancelling are constant
+ * time and each call to {@link #advance(long)} only looks at the buckets for
+ * the ticks that have passed rather than at every timeout. Deadlines are
+ * rounded up to the next tick.
+ *
+ * With more than one level, each level has the same number of buckets and
+ * each bucket of a level spans a whole turn of the level below. Timeouts far
+ * in the future wait in a coarse level and move down a level each time the
+ * wheel reaches their bucket, so they are visited once per level instead of
+ * once per turn of the wheel. Timeouts beyond a turn of the top level are
+ * visited once per turn of the top level.
+ *
+ * The wheel does not have a thread, the owner calls {@link #advance(long)}
+ * periodically. Times are in the same units as the times passed to
+ * {@link #advance(long)}, usually milliseconds.
+ */
+public final class TimerWheel {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TimerWheel.class);
+
+    private final long tickDuration;
+    private final long startTime;
+    private final int bucketCount;
+    // ticks spanned by one bucket of each level
+    private final long[] levelTicks;
+    // buckets of all levels, level major
+    private final List<LinkedList<Timeout>> buckets;
+    private final Object lock = new Object();
+
+    // guarded by lock
+    private long nextTick = 0;
+    private int size = 0;
+
+    /**
+     * Create a wheel with a single level.
+     *
+     * @param tickDuration
+     *            the resolution of the wheel, must be positive
+     * @param bucketCount
+     *            number of buckets, timeouts further than this many ticks in
+     *            the future are visited more than once
+     * @param startTime
+     *            the current time
+     * @throws IllegalArgumentException
+     *             if tick duration or bucket count is not positive
+     */
+    public TimerWheel(final long tickDuration, final int bucketCount, final long startTime) {
+        this(tickDuration, bucketCount, 1, startTime);
+    }
+
+    /**
+     *
+     * @param tickDuration
+     *            the resolution of the wheel, must be positive
+     * @param bucketCount
+     *            number of buckets per level
+     * @param levels
+     *            number of levels, timeouts further than bucketCount to the
+     *            power of levels ticks in the future are visited more than
+     *            once in the top level
+     * @param startTime
+     *            the current time
+     * @throws IllegalArgumentException
+     *             if tick duration, bucket count or levels is not positive or
+     *             the top level spans more ticks than fit in a long
+     */
+    public TimerWheel(final long tickDuration, final int bucketCount, final int levels, final long startTime) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+        if (bucketCount <= 0) {
+            throw new IllegalArgumentException("Bucket count must be positive: " + bucketCount);
+        }
+        if (levels <= 0) {
+            throw new IllegalArgumentException("Levels must be positive: " + levels);
+        }
+        this.tickDuration = tickDuration;
+        this.startTime = startTime;
+        this.bucketCount = bucketCount;
+        this.levelTicks = new long[levels];
+        long ticks = 1;
+        for (int level = 0; level < levels; ++level) {
+            levelTicks[level] = ticks;
+            try {
+                ticks = Math.multiplyExact(ticks, bucketCount);
+            } catch (final ArithmeticException e) {
+                throw new IllegalArgumentException("Too many levels for " + bucketCount + " buckets: " + levels, e);
+            }
+        }
+        this.buckets = new ArrayList<>(bucketCount * levels);
+        for (int i = 0; i < bucketCount * levels; ++i) {
+            buckets.add(new LinkedList<>());
+        }
+    }
+
+    /**
+     * @return the resolution of the wheel
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    /**
+     * @return the number of levels of the wheel
+     */
+    public int getLevels() {
+        return levelTicks.length;
+    }
+
+    /**
+     * @return the number of timeouts that have not fired, including cancelled
+     *         timeouts that have not been visited yet
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * The earliest time at which {@link #advance(long)} has work to do, either
+     * running a task or moving tasks down from a coarse level. An owner that
+     * only calls {@link #advance(long)} at this time never misses a deadline
+     * and is not woken while nothing is due. Looks at the buckets in the order
+     * the wheel reaches them and stops at the first bucket with a live task on
+     * each level, so the cost does not grow with the number of timeouts.
+     *
+     * @return the time, {@link Long#MAX_VALUE} if no tasks are scheduled
+     */
+    public long nextDeadline() {
+        synchronized (lock) {
+            long earliestTick = Long.MAX_VALUE;
+            for (int level = 0; level < levelTicks.length; ++level) {
+                long bucket = nextTick / levelTicks[level];
+                if (bucket * levelTicks[level] < nextTick) {
+                    // this coarse bucket already moved its tasks down, it is
+                    // visited again as the last bucket of the turn
+                    ++bucket;
+                }
+                for (int i = 0; i < bucketCount; ++i, ++bucket) {
+                    final long visitTick = bucket * levelTicks[level];
+                    if (visitTick >= earliestTick) {
+                        break;
+                    }
+                    final long due = dueTick(level, visitTick);
+                    if (due < earliestTick) {
+                        earliestTick = due;
+                        // later buckets of this level are due no earlier
+                        if (due == visitTick) {
+                            break;
+                        }
+                    }
+                }
+            }
+            if (Long.MAX_VALUE == earliestTick) {
+                return Long.MAX_VALUE;
+            }
+            return startTime + earliestTick * tickDuration;
+        }
+    }
+
+    /**
+     * When the wheel has work in the bucket it visits at the specified tick.
+     * A level 0 bucket is due at the earliest deadline of its tasks, which is
+     * later than the visit for tasks a turn or more away. A coarse bucket is
+     * due at the visit, when its tasks move down. Must hold the lock.
+     *
+     * @return the tick, {@link Long#MAX_VALUE} if the bucket has no live task
+     */
+    private long dueTick(final int level, final long visitTick) {
+        long due = Long.MAX_VALUE;
+        for (final Timeout timeout : buckets.get(bucketIndex(level, visitTick))) {
+            if (!timeout.cancelled) {
+                if (0 != level) {
+                    return visitTick;
+                }
+                due = Math.min(due, timeout.deadlineTick);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task
+     *            run by {@link #advance(long)} once the deadline has passed
+     * @param deadline
+     *            when to run the task
+     * @return used to cancel the task
+     */
+    @Nonnull
+    public Timeout schedule(@Nonnull final Runnable task, final long deadline) {
+        final Timeout timeout = new Timeout(task);
+        synchronized (lock) {
+            // round up so that a task never runs early
+            timeout.deadlineTick = Math.max(nextTick,
+                    (Math.max(deadline - startTime, 0) + tickDuration - 1) / tickDuration);
+            place(timeout);
+            ++size;
+        }
+        return timeout;
+    }
+
+    /**
+     * Put the timeout in the lowest level whose current turn includes its
+     * deadline, then the wheel reaches its bucket exactly when the timeout
+     * needs to fire or move down a level. Must hold the lock.
+     */
+    private void place(final Timeout timeout) {
+        int level = 0;
+        while (level < levelTicks.length - 1
+                && timeout.deadlineTick / levelTicks[level] - nextTick / levelTicks[level] >= bucketCount) {
+            ++level;
+        }
+        buckets.get(bucketIndex(level, timeout.deadlineTick)).add(timeout);
+    }
+
+    private int bucketIndex(final int level, final long tick) {
+        return level * bucketCount + (int) ((tick / levelTicks[level]) % bucketCount);
+    }
+
+    /**
+     * Run all tasks with a deadline at or before the specified time. The tasks
+     * are run on the calling thread after the internal lock is released, so
+     * they may schedule new tasks.
+     *
+     * @param now
+     *            the current time
+     * @return the number of tasks run
+     */
+    public int advance(final long now) {
+        final List<Timeout> expired = new ArrayList<>();
+        synchronized (lock) {
+            final long currentTick = (now - startTime) / tickDuration;
+            while (nextTick <= currentTick) {
+                // move timeouts down from the coarse levels whose bucket
+                // starts at this tick, highest first so that they can move
+                // down more than one level
+                for (int level = levelTicks.length - 1; level > 0; --level) {
+                    if (nextTick % levelTicks[level] == 0) {
+                        cascade(buckets.get(bucketIndex(level, nextTick)));
+                    }
+                }
+
+                final Iterator<Timeout> iter = buckets.get(bucketIndex(0, nextTick)).iterator();
+                while (iter.hasNext()) {
+                    final Timeout timeout = iter.next();
+                    if (timeout.cancelled) {
+                        iter.remove();
+                        --size;
+                    } else if (timeout.deadlineTick <= nextTick) {
+                        iter.remove();
+                        --size;
+                        expired.add(timeout);
+                    }
+                }
+                ++nextTick;
+            }
+        }
+
+        int count = 0;
+        for (final Timeout timeout : expired) {
+            if (!timeout.cancelled) {
+                ++count;
+                try {
+                    timeout.task.run();
+                } catch (final RuntimeException e) {
+                    LOGGER.error("Timer task failed, continuing", e);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Place the timeouts of a bucket again. Must hold the lock.
+     */
+    private void cascade(final LinkedList<Timeout> bucket) {
+        if (bucket.isEmpty()) {
+            return;
+        }
+        final List<Timeout> moving = new ArrayList<>(bucket);
+        bucket.clear();
+        for (final Timeout timeout : moving) {
+            if (timeout.cancelled) {
+                --size;
+            } else {
+                place(timeout);
+            }
+        }
+    }
+
+    /**
+     * A scheduled task.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private volatile boolean cancelled = false;
+        // guarded by the wheel lock
+        private long deadlineTick = 0;
+
+        private Timeout(final Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Keep the task from running. Has no effect if the task already ran.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return true if {@link #cancel()} was called
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+}
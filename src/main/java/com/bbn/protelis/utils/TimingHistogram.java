@@ -0,0 +1,143 @@
+package com.bbn.protelis.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with power of 2 buckets. Recording is a few atomic
+ * adds and never locks, so it can be done on every round of every node.
+ * Percentiles are only accurate to within a factor of 2, which is enough to
+ * tell a slow node from a fast one.
+ */
+public final class TimingHistogram {
+
+    /**
+     * Bucket i holds values with i significant bits, bucket 0 holds 0.
+     */
+    private static final int NUM_BUCKETS = Long.SIZE;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * @param value
+     *            the duration to record, negative values are recorded as 0
+     */
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(v));
+        count.increment();
+        total.add(v);
+        if (v > max.get()) {
+            max.accumulateAndGet(v, Math::max);
+        }
+    }
+
+    /**
+     * Forget all recorded values. Values recorded at the same time may be
+     * partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    /**
+     * Values recorded while the snapshot is taken may be partly included.
+     *
+     * @return the values recorded so far
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; ++i) {
+            counts[i] = buckets.get(i);
+        }
+        return new Snapshot(count.sum(), total.sum(), max.get(), counts);
+    }
+
+    /**
+     * Immutable copy of a {@link TimingHistogram}.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long total;
+        private final long max;
+        private final long[] buckets;
+
+        private Snapshot(final long count, final long total, final long max, final long[] buckets) {
+            this.count = count;
+            this.total = total;
+            this.max = max;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the recorded values
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * @return the largest recorded value, 0 if there are none
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of the recorded values, 0 if there are none
+         */
+        public double getMean() {
+            return 0 == count ? 0 : (double) total / count;
+        }
+
+        /**
+         * @param quantile
+         *            between 0 and 1
+         * @return a value that at least the quantile of the recorded values
+         *         are smaller than or equal to, at most twice the exact value
+         *         and never more than {@link #getMax()}. 0 if there are no
+         *         values.
+         * @throws IllegalArgumentException
+         *             if the quantile is not between 0 and 1
+         */
+        public long getPercentile(final double quantile) {
+            if (quantile < 0 || quantile > 1) {
+                throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+            }
+            final long bucketTotal = Arrays.stream(buckets).sum();
+            final long rank = (long) Math.ceil(quantile * bucketTotal);
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    // (1 << 63) - 1 is Long.MAX_VALUE
+                    return Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "[count: " + count + " mean: " + getMean() + " max: " + max + "]";
+        }
+    }
+
+}
@@ -74,4 +74,51 @@ public interface VirtualClock {
      */
     void waitUntilTime(long time);
 
+    /**
+     * Like {@link #waitUntilTime(long)}, but stops waiting when the thread is
+     * interrupted. The default implementation only checks for an interrupt
+     * before waiting, implementations should override it.
+     *
+     * @param time
+     *            the time to wait for.
+     * @throws InterruptedException
+     *             if the thread is interrupted
+     */
+    default void waitUntilTimeInterruptibly(final long time) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        waitUntilTime(time);
+    }
+
+    /**
+     * Used where waits have to be expressed in real time, such as tasks
+     * scheduled on an executor.
+     *
+     * @param duration
+     *            an amount of time on this clock
+     * @return about how many real milliseconds pass while this clock advances
+     *         by the duration. The default is the duration itself.
+     */
+    default long toRealDuration(final long duration) {
+        return duration;
+    }
+
+    /**
+     * Tell the clock that the current thread repeatedly waits on it, such as
+     * the thread that runs the rounds of a node. Clocks that move on their
+     * own ignore this, clocks driven by their users, like
+     * {@link DiscreteEventClock}, only move when all participants wait.
+     */
+    default void registerParticipant() {
+    }
+
+    /**
+     * The current thread no longer waits on the clock.
+     *
+     * @see #registerParticipant()
+     */
+    default void deregisterParticipant() {
+    }
+
 }
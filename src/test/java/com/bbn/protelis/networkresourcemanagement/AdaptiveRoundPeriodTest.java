@@ -0,0 +1,46 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdaptiveRoundPeriod}.
+ */
+public class AdaptiveRoundPeriodTest {
+
+    /**
+     * The period doubles while nothing changes, stops at the maximum and
+     * drops to the minimum on a change.
+     */
+    @Test
+    public void testStretchAndSnapBack() {
+        final long min = 100;
+        final long max = 1000;
+        final AdaptiveRoundPeriod period = new AdaptiveRoundPeriod(min, max);
+        assertThat(period.getCurrentPeriod(), is(min));
+
+        assertThat(period.update(false), is(200L));
+        assertThat(period.update(false), is(400L));
+        assertThat(period.update(false), is(800L));
+        assertThat(period.update(false), is(max));
+        assertThat(period.update(false), is(max));
+
+        assertThat(period.update(true), is(min));
+        assertThat(period.getCurrentPeriod(), is(min));
+    }
+
+    /**
+     * A minimum of 0 still grows.
+     */
+    @Test
+    public void testZeroMinimum() {
+        final long max = 10;
+        final AdaptiveRoundPeriod period = new AdaptiveRoundPeriod(0, max);
+        assertThat(period.update(false), is(1L));
+        assertThat(period.update(false), is(2L));
+        assertThat(period.update(false), is(4L));
+    }
+
+}
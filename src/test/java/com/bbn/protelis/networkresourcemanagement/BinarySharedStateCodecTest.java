@@ -0,0 +1,169 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+import org.protelis.lang.datatype.DatatypeFactory;
+import org.protelis.lang.datatype.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Tests for {@link BinarySharedStateCodec}.
+ */
+public class BinarySharedStateCodecTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BinarySharedStateCodecTest.class);
+
+    private static final int NUM_REGIONS = 10;
+    private static final int NUM_SERVICES = 10;
+
+    /**
+     * Check that the types used by this project survive encoding.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        final RegionIdentifier region = new StringRegionIdentifier("A");
+        final ServiceIdentifier<?> service = new StringServiceIdentifier("service");
+        final NodeIdentifier node = new DnsNameIdentifier("node.a");
+        final ContainerIdentifier container = new DnsNameIdentifier("container.a");
+
+        final LoadBalancerPlan lbPlan = new LoadBalancerPlan(region, ImmutableMap.of(service, ImmutableMap.of(node, 2)),
+                ImmutableMap.of(service, ImmutableMap.of(region, 0.5)),
+                ImmutableMap.of(node, ImmutableSet.of(container)), ImmutableMap.of());
+        assertThat(roundTrip(lbPlan), is(lbPlan));
+
+        final RegionPlan regionPlan = new RegionPlan(region, ImmutableMap.of(service, ImmutableMap.of(region, 1D)));
+        assertThat(roundTrip(regionPlan), is(regionPlan));
+
+        final ServiceState serviceState = new ServiceState(service, ServiceState.Status.RUNNING);
+        assertThat(roundTrip(serviceState), is(serviceState));
+
+        final Tuple tuple = DatatypeFactory.createTuple(1D, "text", true, null, 2, 3L, region, NodeAttributeEnum.CPU,
+                LinkAttributeEnum.DATARATE);
+        assertThat(roundTrip(tuple), is(tuple));
+
+        final ResourceSummary summary = createSummary();
+        final ResourceSummary result = (ResourceSummary) roundTrip(summary);
+        assertThat(result.getRegion(), is(summary.getRegion()));
+        assertThat(result.getMinTimestamp(), is(summary.getMinTimestamp()));
+        assertThat(result.getMaxTimestamp(), is(summary.getMaxTimestamp()));
+        assertThat(result.getDemandEstimationWindow(), is(summary.getDemandEstimationWindow()));
+        assertThat(result.getServerCapacity(), is(summary.getServerCapacity()));
+        assertThat(result.getServerLoad(), is(summary.getServerLoad()));
+        assertThat(result.getServerDemand(), is(summary.getServerDemand()));
+        assertThat(result.getServerAverageProcessingTime(), is(summary.getServerAverageProcessingTime()));
+        assertThat(result.getNetworkCapacity(), is(summary.getNetworkCapacity()));
+        assertThat(result.getNetworkLoad(), is(summary.getNetworkLoad()));
+        assertThat(result.getNetworkDemand(), is(summary.getNetworkDemand()));
+    }
+
+    /**
+     * A large {@link ResourceSummary} encodes to fewer bytes than with Java
+     * serialization. The sizes are logged.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testSmallerThanJavaSerialization() throws IOException {
+        final ResourceSummary summary = createSummary();
+
+        final int javaSize = javaSerialize(summary).length;
+        final int binarySize = BinarySharedStateCodec.encodeValue(summary).length;
+
+        LOGGER.info("ResourceSummary with {} regions and {} services. Java: {} bytes Binary: {} bytes", NUM_REGIONS,
+                NUM_SERVICES, javaSize, binarySize);
+
+        assertThat(binarySize, lessThan(javaSize));
+    }
+
+    private static Object roundTrip(final Object value) throws IOException {
+        return BinarySharedStateCodec.decodeValue(BinarySharedStateCodec.encodeValue(value));
+    }
+
+    private static byte[] javaSerialize(final Object value) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Create a summary where every leaf map is a separate instance with
+     * distinct values, as happens when summaries are merged.
+     */
+    private static ResourceSummary createSummary() {
+        final ImmutableMap.Builder<ServiceIdentifier<?>, ImmutableMap<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>>> serverLoad = ImmutableMap
+                .builder();
+        final ImmutableMap.Builder<ServiceIdentifier<?>, Integer> counts = ImmutableMap.builder();
+        final ImmutableMap.Builder<ServiceIdentifier<?>, Double> sums = ImmutableMap.builder();
+        for (int i = 0; i < NUM_SERVICES; ++i) {
+            final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<NodeAttribute<?>, Double>> regionValues = ImmutableMap
+                    .builder();
+            for (int j = 0; j < NUM_REGIONS; ++j) {
+                regionValues.put(new StringRegionIdentifier("region" + j), nodeAttributes(i * NUM_REGIONS + j));
+            }
+            final ServiceIdentifier<?> service = new StringServiceIdentifier("service" + i);
+            serverLoad.put(service, regionValues.build());
+            counts.put(service, i + 1);
+            sums.put(service, (double) i);
+        }
+
+        final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity = ImmutableMap
+                .builder();
+        final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad = ImmutableMap
+                .builder();
+        for (int i = 0; i < NUM_REGIONS; ++i) {
+            final ImmutableMap.Builder<RegionIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>> inner = ImmutableMap
+                    .builder();
+            for (int j = 0; j < NUM_REGIONS; ++j) {
+                final ImmutableMap.Builder<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>> serviceValues = ImmutableMap
+                        .builder();
+                for (int k = 0; k < NUM_SERVICES; ++k) {
+                    serviceValues.put(new StringServiceIdentifier("service" + k), linkAttributes(i + j + k));
+                }
+                inner.put(new StringRegionIdentifier("region" + j), serviceValues.build());
+            }
+            final RegionIdentifier region = new StringRegionIdentifier("region" + i);
+            networkLoad.put(region, inner.build());
+            networkCapacity.put(region, linkAttributes(i));
+        }
+
+        final long minTimestamp = 10;
+        final long maxTimestamp = 20;
+        return new ResourceSummary(new StringRegionIdentifier("region0"), minTimestamp, maxTimestamp,
+                ResourceReport.EstimationWindow.SHORT, nodeAttributes(0), serverLoad.build(), serverLoad.build(),
+                counts.build(), sums.build(), networkCapacity.build(), networkLoad.build(), networkLoad.build());
+    }
+
+    private static ImmutableMap<NodeAttribute<?>, Double> nodeAttributes(final int seed) {
+        final ImmutableMap.Builder<NodeAttribute<?>, Double> values = ImmutableMap.builder();
+        for (final NodeAttributeEnum attr : NodeAttributeEnum.values()) {
+            values.put(attr, (double) (seed + attr.ordinal()));
+        }
+        return values.build();
+    }
+
+    private static ImmutableMap<LinkAttribute<?>, Double> linkAttributes(final int seed) {
+        final ImmutableMap.Builder<LinkAttribute<?>, Double> values = ImmutableMap.builder();
+        for (final LinkAttributeEnum attr : LinkAttributeEnum.values()) {
+            values.put(attr, (double) (seed + attr.ordinal()));
+        }
+        return values.build();
+    }
+
+}
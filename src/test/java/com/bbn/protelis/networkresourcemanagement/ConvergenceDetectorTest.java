@@ -0,0 +1,83 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bbn.protelis.networkresourcemanagement.ns2.NS2Parser;
+import com.bbn.protelis.networkresourcemanagement.ns2.Topology;
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.networkresourcemanagement.testbed.Scenario;
+import com.bbn.protelis.networkresourcemanagement.testbed.ScenarioRunner;
+import com.bbn.protelis.networkresourcemanagement.testbed.termination.ConvergenceDetector;
+import com.bbn.protelis.utils.SimpleClock;
+
+/**
+ * Tests for {@link ConvergenceDetector}.
+ */
+public class ConvergenceDetectorTest {
+
+    /**
+     * The scenario ends as soon as all nodes are stable rather than at the
+     * next poll of the termination condition.
+     *
+     * @throws IOException
+     *             if there is an error reading the resource that holds the
+     *             scenario
+     * @throws URISyntaxException
+     *             when there is an error converting the resource path for the
+     *             scenario to a URI.
+     */
+    @Test
+    public void testMultinode() throws IOException, URISyntaxException {
+        final int basePort = 47200;
+        final int stableRounds = 3;
+        final long sleepTime = 10;
+        final long pollFrequency = 60 * 1000;
+
+        final NodeLookupService nodeLookupService = new LocalNodeLookupService(basePort);
+        final String program = "/protelis/com/bbn/resourcemanagement/resourcetracker.pt";
+        final boolean anonymous = false;
+
+        final DelegateRegionLookup regionLookupService = new DelegateRegionLookup();
+        final BasicResourceManagerFactory managerFactory = new BasicResourceManagerFactory(new SimpleClock());
+        final BasicNetworkFactory factory = new BasicNetworkFactory(nodeLookupService, regionLookupService,
+                managerFactory, program, anonymous, new InMemoryExchange());
+
+        final URL baseu = Thread.currentThread().getContextClassLoader().getResource("ns2/multinode");
+        final Path baseDirectory = Paths.get(baseu.toURI());
+        final Topology topology = NS2Parser.parse("multinode", baseDirectory);
+        final Scenario<NetworkServer, NetworkLink, NetworkClient> scenario = new Scenario<>(topology, factory,
+                name -> new DnsNameIdentifier(name));
+        regionLookupService.setDelegate(scenario);
+        scenario.getServers().values().forEach(node -> node.setSleepTime(sleepTime));
+
+        final ConvergenceDetector<NetworkServer> detector = new ConvergenceDetector<>(
+                scenario.getServers().values(), stableRounds);
+        scenario.setTerminationCondition(detector);
+        scenario.setTerminationPollFrequency(pollFrequency);
+
+        final long start = System.currentTimeMillis();
+        new ScenarioRunner<>(scenario, null).run();
+        Assert.assertThat(System.currentTimeMillis() - start, lessThan(pollFrequency));
+
+        Assert.assertThat(detector.getConvergenceRound(), greaterThan(0L));
+        Assert.assertThat(detector.getConvergenceTime(), greaterThanOrEqualTo(0L));
+        Assert.assertThat(detector.getStableNodeCount(), is(scenario.getServers().size()));
+        for (final NetworkServer node : scenario.getServers().values()) {
+            Assert.assertFalse("Node: " + node.getName() + " isn't dead", node.isExecuting());
+            Assert.assertThat(node.getExecutionCount(), greaterThan((long) stableRounds));
+        }
+    }
+
+}
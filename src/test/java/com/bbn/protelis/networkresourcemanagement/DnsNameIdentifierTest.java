@@ -1,5 +1,11 @@
 package com.bbn.protelis.networkresourcemanagement;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -49,4 +55,32 @@ public class DnsNameIdentifierTest {
         Assert.assertEquals(expected, compare);
     }
 
+    /**
+     * Interning returns the same instance for the same name, also after
+     * deserialization, and keeps the spelling of names that differ in case.
+     * 
+     * @throws IOException
+     *             test failure
+     * @throws ClassNotFoundException
+     *             test failure
+     */
+    @Test
+    public void testIntern() throws IOException, ClassNotFoundException {
+        final DnsNameIdentifier one = DnsNameIdentifier.intern("one");
+        Assert.assertSame(one, DnsNameIdentifier.intern("one"));
+
+        final DnsNameIdentifier upper = DnsNameIdentifier.intern("ONE");
+        Assert.assertEquals(one, upper);
+        Assert.assertEquals(one.hashCode(), upper.hashCode());
+        Assert.assertEquals("ONE", upper.getName());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new DnsNameIdentifier("one"));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Assert.assertSame(one, in.readObject());
+        }
+    }
+
 }
@@ -0,0 +1,98 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.vm.ProtelisProgram;
+import org.protelis.vm.util.CodePath;
+
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.utils.SimpleClock;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Tests for {@link EventTrigger}.
+ */
+public class EventTriggerTest {
+
+    private static final CodePath PATH = new CodePath(new TIntArrayList(new int[] { 1 }));
+    private static final long WAIT_TIMEOUT_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 5;
+
+    /**
+     * The delay honors both the debounce and the minimum interval.
+     */
+    @Test
+    public void testDelay() {
+        final EventTrigger trigger = new EventTrigger(5, 100, 1000);
+        final long lastRoundStart = 1000;
+        assertThat(trigger.delayForChange(lastRoundStart + 10, lastRoundStart), is(90L));
+        assertThat(trigger.delayForChange(lastRoundStart + 500, lastRoundStart), is(5L));
+    }
+
+    /**
+     * A neighbor change runs a round long before the fallback period.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting
+     */
+    @Test
+    public void testTriggeredByNeighbor() throws InterruptedException {
+        final int basePort = 46800;
+        final long fallbackPeriod = 60 * 1000;
+        final InMemoryExchange exchange = new InMemoryExchange();
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final BasicResourceManagerFactory resMgrFactory = new BasicResourceManagerFactory(new SimpleClock());
+
+        final List<NetworkServer> nodes = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            final ResourceManager<NetworkServer> resMgr = resMgrFactory.createResourceManager();
+            final NetworkServer node = new NetworkServer(new NodeNetworkManager(lookup, exchange.createTransport()),
+                    new DelegateRegionLookup(), program, new DnsNameIdentifier("node" + i), resMgr,
+                    Collections.emptyMap());
+            resMgr.init(node, Collections.emptyMap());
+            node.setSleepTime(fallbackPeriod);
+            nodes.add(node);
+        }
+        final NetworkServer source = nodes.get(0);
+        final NetworkServer triggered = nodes.get(1);
+        source.addNeighbor(triggered, 1);
+        triggered.setEventTrigger(new EventTrigger(1, 10, fallbackPeriod));
+
+        try {
+            nodes.forEach(NetworkServer::startExecuting);
+            final long start = System.currentTimeMillis();
+            while ((source.accessNetworkManager().getNeighborState().isEmpty()
+                    || triggered.accessNetworkManager().getNeighborState().isEmpty()
+                    || triggered.getExecutionCount() < 1) && System.currentTimeMillis() - start < WAIT_TIMEOUT_MS) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertThat(triggered.getCurrentRoundPeriod(), is(fallbackPeriod));
+
+            final long before = triggered.getExecutionCount();
+            final long shareTime = System.currentTimeMillis();
+            source.accessNetworkManager().shareState(Collections.singletonMap(PATH, 1D));
+            while (triggered.getExecutionCount() == before
+                    && System.currentTimeMillis() - shareTime < WAIT_TIMEOUT_MS) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertThat(triggered.getExecutionCount(), greaterThan(before));
+            assertThat(System.currentTimeMillis() - shareTime, lessThan(fallbackPeriod));
+            assertTrue(triggered.isExecuting());
+        } finally {
+            nodes.forEach(NetworkServer::stopExecuting);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.protelis.lang.datatype.DeviceUID;
+
+import com.bbn.protelis.networkresourcemanagement.ns2.NS2Parser;
+import com.bbn.protelis.networkresourcemanagement.ns2.Topology;
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.networkresourcemanagement.testbed.LockstepSimulation;
+import com.bbn.protelis.networkresourcemanagement.testbed.Scenario;
+import com.bbn.protelis.networkresourcemanagement.testbed.termination.ExecutionCountTermination;
+import com.bbn.protelis.utils.ManualClock;
+
+/**
+ * Tests for {@link LockstepSimulation}.
+ */
+public class LockstepSimulationTest {
+
+    /**
+     * Run ns2/multinode in lockstep and check that every server executed
+     * exactly once per round, that the clock moved once per round and that
+     * the settings of the servers are restored afterwards.
+     *
+     * @throws IOException
+     *             if there is an error reading the resource that holds the
+     *             scenario
+     * @throws URISyntaxException
+     *             when there is an error converting the resource path for the
+     *             scenario to a URI.
+     */
+    @Test
+    public void testMultinode() throws IOException, URISyntaxException {
+        final int basePort = 46700;
+        final long roundDuration = 100;
+        final long maxExecutions = 50;
+
+        final NodeLookupService nodeLookupService = new LocalNodeLookupService(basePort);
+        final String program = "/protelis/com/bbn/resourcemanagement/resourcetracker.pt";
+        final boolean anonymous = false;
+
+        final ManualClock clock = new ManualClock();
+        final InMemoryExchange exchange = new InMemoryExchange(true);
+        final DelegateRegionLookup regionLookupService = new DelegateRegionLookup();
+        final BasicResourceManagerFactory managerFactory = new BasicResourceManagerFactory(clock);
+        final BasicNetworkFactory factory = new BasicNetworkFactory(nodeLookupService, regionLookupService,
+                managerFactory, program, anonymous, exchange);
+
+        final URL baseu = Thread.currentThread().getContextClassLoader().getResource("ns2/multinode");
+        final Path baseDirectory = Paths.get(baseu.toURI());
+        final Topology topology = NS2Parser.parse("multinode", baseDirectory);
+        final Scenario<NetworkServer, NetworkLink, NetworkClient> scenario = new Scenario<>(topology, factory,
+                name -> new DnsNameIdentifier(name));
+        regionLookupService.setDelegate(scenario);
+        final long heartbeatMs = NodeNetworkManager.DEFAULT_HEARTBEAT_INTERVAL_MS;
+        final long neighborTimeoutMs = NodeNetworkManager.DEFAULT_NEIGHBOR_TIMEOUT_MS;
+        scenario.getServers().values().forEach(node -> node.accessNetworkManager().setAsynchronousSend(true));
+        scenario.setTerminationCondition(new ExecutionCountTermination<>(maxExecutions));
+
+        final LockstepSimulation<NetworkServer, NetworkLink, NetworkClient> simulation = new LockstepSimulation<>(
+                scenario, exchange, clock);
+        simulation.setRoundDuration(roundDuration);
+        simulation.run();
+
+        Assert.assertThat(simulation.getRoundCount(), is(maxExecutions));
+        Assert.assertThat(clock.getCurrentTime(), is(maxExecutions * roundDuration));
+        Assert.assertThat(simulation.getRoundsPerSecond(), greaterThan(0D));
+
+        for (final Map.Entry<DeviceUID, NetworkServer> entry : scenario.getServers().entrySet()) {
+            final NetworkServer node = entry.getValue();
+            Assert.assertFalse("Node: " + node.getName() + " isn't dead", node.isExecuting());
+            Assert.assertThat(node.getExecutionCount(), is(maxExecutions));
+            Assert.assertNull("Received exception inside the program loop: " + node.getExceptionThrownInProgramLoop(),
+                    node.getExceptionThrownInProgramLoop());
+
+            Assert.assertThat(node.getExecutionBackend(), is(DedicatedThreadBackend.INSTANCE));
+            final NodeNetworkManager networkManager = node.accessNetworkManager();
+            Assert.assertThat(networkManager.isAsynchronousSend(), is(true));
+            Assert.assertThat(networkManager.getHeartbeatIntervalMs(), is(heartbeatMs));
+            Assert.assertThat(networkManager.getNeighborTimeoutMs(), is(neighborTimeoutMs));
+        }
+    }
+
+}
@@ -0,0 +1,304 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.protelis.vm.util.CodePath;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Tests for the state frames sent between {@link NetworkNeighbor}s.
+ */
+public class NetworkNeighborTest {
+
+    private static final CodePath PATH_A = new CodePath(new TIntArrayList(new int[] { 1 }));
+    private static final CodePath PATH_B = new CodePath(new TIntArrayList(new int[] { 1, 2 }));
+    private static final CodePath PATH_C = new CodePath(new TIntArrayList(new int[] { 1, 2, 3 }));
+
+    /**
+     * Check that the receiver rebuilds the full state from deltas and that the
+     * deltas are smaller than the full state.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testDelta() throws IOException {
+        final int fullStateInterval = 3;
+        final LoopbackChannel channel = new LoopbackChannel();
+        final NetworkNeighbor sender = new NetworkNeighbor(new DnsNameIdentifier("receiver"), 0, channel,
+                new BinarySharedStateCodec());
+        final NetworkNeighbor receiver = new NetworkNeighbor(new DnsNameIdentifier("sender"), 0, channel,
+                new BinarySharedStateCodec());
+        channel.receiver = receiver;
+
+        final List<Map<CodePath, Object>> rounds = new ArrayList<>();
+        rounds.add(state(PATH_A, 1D, PATH_B, "unchanged"));
+        rounds.add(state(PATH_A, 2D, PATH_B, "unchanged", PATH_C, true));
+        rounds.add(state(PATH_B, "unchanged", PATH_C, true));
+        rounds.add(state(PATH_B, "unchanged", PATH_C, false));
+
+        final Rounds source = new Rounds();
+        for (final Map<CodePath, Object> round : rounds) {
+            sender.sendState(source.next(round, fullStateInterval));
+            assertThat(receiver.getSharedValues(), is(round));
+        }
+
+        // first and fourth frames are full, the second and third are deltas
+        assertThat(channel.frameSizes.get(2), lessThan(channel.frameSizes.get(0)));
+        assertThat(channel.frameSizes.get(2), lessThan(channel.frameSizes.get(3)));
+    }
+
+    /**
+     * A receiver that missed the base state ignores deltas until the next full
+     * state.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testMissedBase() throws IOException {
+        final int fullStateInterval = 3;
+        final LoopbackChannel channel = new LoopbackChannel();
+        final NetworkNeighbor sender = new NetworkNeighbor(new DnsNameIdentifier("receiver"), 0, channel,
+                new BinarySharedStateCodec());
+        final Rounds source = new Rounds();
+
+        // full state is lost
+        sender.sendState(source.next(state(PATH_A, 1D, PATH_B, 1D), fullStateInterval));
+
+        final NetworkNeighbor receiver = new NetworkNeighbor(new DnsNameIdentifier("sender"), 0, channel,
+                new BinarySharedStateCodec());
+        channel.receiver = receiver;
+
+        sender.sendState(source.next(state(PATH_A, 2D, PATH_B, 1D), fullStateInterval));
+        assertThat(receiver.getSharedValues(), is(Collections.emptyMap()));
+
+        sender.sendState(source.next(state(PATH_A, 3D, PATH_B, 1D), fullStateInterval));
+        assertThat(receiver.getSharedValues(), is(Collections.emptyMap()));
+
+        final Map<CodePath, Object> full = state(PATH_A, 4D, PATH_B, 1D);
+        sender.sendState(source.next(full, fullStateInterval));
+        assertThat(receiver.getSharedValues(), is(full));
+    }
+
+    /**
+     * Neighbors that need the same frame are sent the same bytes, the state
+     * is only encoded once.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testEncodeOnce() throws IOException {
+        final LoopbackChannel channel1 = new LoopbackChannel();
+        final LoopbackChannel channel2 = new LoopbackChannel();
+        final NetworkNeighbor neighbor1 = new NetworkNeighbor(new DnsNameIdentifier("one"), 0, channel1,
+                new BinarySharedStateCodec());
+        final NetworkNeighbor neighbor2 = new NetworkNeighbor(new DnsNameIdentifier("two"), 0, channel2,
+                new BinarySharedStateCodec());
+
+        final OutboundState round = new OutboundState(new BinarySharedStateCodec(), 0, state(PATH_A, 1D), null, 0);
+        neighbor1.sendState(round);
+        neighbor2.sendState(round);
+
+        assertSame(channel1.frames.get(0), channel2.frames.get(0));
+        assertThat(round.getFullFrameSize(), is(channel1.frames.get(0).length));
+    }
+
+    /**
+     * Rounds queued while a slow neighbor is busy are replaced by the latest
+     * round and the queue never holds more than one round.
+     *
+     * @throws Exception
+     *             test failure
+     */
+    @Test
+    public void testLatestValueWins() throws Exception {
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LoopbackChannel channel = new LoopbackChannel() {
+            @Override
+            public void send(final byte[] frame) throws IOException {
+                sending.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.send(frame);
+            }
+        };
+        final NetworkNeighbor sender = new NetworkNeighbor(new DnsNameIdentifier("receiver"), 0, channel,
+                new BinarySharedStateCodec());
+        final NetworkNeighbor receiver = new NetworkNeighbor(new DnsNameIdentifier("sender"), 0, channel,
+                new BinarySharedStateCodec());
+        channel.receiver = receiver;
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicReference<NetworkNeighbor> failed = new AtomicReference<>(null);
+            final Rounds source = new Rounds();
+            final List<OutboundState> rounds = new ArrayList<>();
+            final CountDownLatch finished = new CountDownLatch(1);
+            for (int i = 0; i < 4; ++i) {
+                final OutboundState round = source.next(state(PATH_A, (double) i), 1);
+                round.expectNeighbors(1, r -> {
+                    if (r.getSequence() == 3) {
+                        finished.countDown();
+                    }
+                });
+                rounds.add(round);
+                sender.enqueueState(round, executor, failed::set);
+                assertThat(sender.getQueueDepth(), lessThan(2));
+                if (0 == i) {
+                    // the first round is being sent while the others are
+                    // queued
+                    assertThat(sending.await(10, TimeUnit.SECONDS), is(true));
+                }
+            }
+
+            release.countDown();
+            assertThat(finished.await(10, TimeUnit.SECONDS), is(true));
+
+            // the second and third rounds are replaced while the first is sent
+            assertThat(rounds.get(0).getDroppedCount(), is(0));
+            assertThat(rounds.get(1).getDroppedCount(), is(1));
+            assertThat(rounds.get(2).getDroppedCount(), is(1));
+            assertThat(rounds.get(3).getDroppedCount(), is(0));
+            assertThat(sender.getSentCount() + sender.getDroppedCount(), is(4L));
+            assertThat(receiver.getSharedValues(), is(state(PATH_A, 3D)));
+            assertSame(null, failed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A round given to a terminated link is counted as dropped and no bytes
+     * are counted as sent.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testTerminatedLinkDropsRound() throws IOException {
+        final LoopbackChannel channel = new LoopbackChannel();
+        final NetworkNeighbor sender = new NetworkNeighbor(new DnsNameIdentifier("receiver"), 0, channel,
+                new BinarySharedStateCodec());
+        sender.terminate();
+
+        final OutboundState round = new Rounds().next(state(PATH_A, 1D), 1);
+        final AtomicInteger finished = new AtomicInteger(0);
+        round.expectNeighbors(1, r -> finished.incrementAndGet());
+        final int bytes = sender.sendState(round);
+        round.neighborDone(bytes);
+
+        assertThat(bytes, is(OutboundState.NOT_SENT));
+        assertThat(round.getDroppedCount(), is(1));
+        assertThat(round.getBytesSent(), is(0L));
+        assertThat(finished.get(), is(1));
+        assertThat(channel.frames.size(), is(0));
+    }
+
+    /**
+     * The state listener is only told about state that differs from the
+     * previous state, whether it arrives as a full frame, a delta or in
+     * memory.
+     *
+     * @throws IOException
+     *             test failure
+     */
+    @Test
+    public void testListenerOnlyOnChange() throws IOException {
+        final int fullStateInterval = 2;
+        final AtomicInteger notifications = new AtomicInteger(0);
+        final LoopbackChannel channel = new LoopbackChannel();
+        final NetworkNeighbor sender = new NetworkNeighbor(new DnsNameIdentifier("receiver"), 0, channel,
+                new BinarySharedStateCodec());
+        final NetworkNeighbor receiver = new NetworkNeighbor(new DnsNameIdentifier("sender"), 0, channel,
+                new BinarySharedStateCodec(), notifications::incrementAndGet);
+        channel.receiver = receiver;
+        final Rounds source = new Rounds();
+
+        // full, then an empty delta, then a full frame with the same values
+        sender.sendState(source.next(state(PATH_A, 1D), fullStateInterval));
+        sender.sendState(source.next(state(PATH_A, 1D), fullStateInterval));
+        sender.sendState(source.next(state(PATH_A, 1D), fullStateInterval));
+        assertThat(notifications.get(), is(1));
+
+        sender.sendState(source.next(state(PATH_A, 2D), fullStateInterval));
+        assertThat(notifications.get(), is(2));
+
+        receiver.receiveState(state(PATH_A, 2D));
+        assertThat(notifications.get(), is(2));
+        receiver.receiveState(state(PATH_A, 3D));
+        assertThat(notifications.get(), is(3));
+    }
+
+    /**
+     * Creates the rounds the way {@link NodeNetworkManager} does.
+     */
+    private static final class Rounds {
+        private final SharedStateCodec codec = new BinarySharedStateCodec();
+        private Map<CodePath, Object> previous = null;
+        private int sequence = 0;
+
+        OutboundState next(final Map<CodePath, Object> state, final int fullStateInterval) {
+            final boolean fullRound = 0 == sequence % fullStateInterval;
+            final OutboundState round = new OutboundState(codec, sequence, state, fullRound ? null : previous,
+                    sequence - 1);
+            previous = state;
+            ++sequence;
+            return round;
+        }
+    }
+
+    private static Map<CodePath, Object> state(final Object... keysAndValues) {
+        final Map<CodePath, Object> state = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            state.put((CodePath) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return state;
+    }
+
+    /**
+     * Delivers frames directly to another neighbor object.
+     */
+    private static class LoopbackChannel implements NeighborChannel {
+        private NetworkNeighbor receiver = null;
+        private final List<Integer> frameSizes = new ArrayList<>();
+        private final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void send(final byte[] frame) throws IOException {
+            frames.add(frame);
+            frameSizes.add(frame.length);
+            if (null != receiver) {
+                receiver.receiveFrame(frame);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
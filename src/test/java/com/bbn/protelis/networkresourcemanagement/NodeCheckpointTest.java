@@ -0,0 +1,115 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.ProtelisProgram;
+import org.protelis.vm.util.CodePath;
+
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.utils.SimpleClock;
+import com.google.common.collect.ImmutableMap;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Tests for {@link NodeCheckpoint}.
+ */
+public class NodeCheckpointTest {
+
+    private static final long SLEEP_TIME_MS = 10;
+    private static final long NEIGHBOR_TIMEOUT_MS = 200;
+    private static final long WAIT_TIMEOUT_MS = 10000;
+
+    /**
+     * A node restores the network state and neighbor state from its
+     * checkpoint, drops the state of neighbors that don't come back and saves
+     * a new checkpoint when it stops.
+     *
+     * @throws IOException
+     *             if the checkpoint cannot be written or read
+     * @throws InterruptedException
+     *             if interrupted waiting for the node
+     */
+    @Test
+    public void testRestart() throws IOException, InterruptedException {
+        final int basePort = 47300;
+        final Path dir = Files.createTempDirectory("checkpoint");
+        final Path file = dir.resolve("node.checkpoint");
+
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final ResourceManager<NetworkServer> resMgr = new BasicResourceManagerFactory(new SimpleClock())
+                .createResourceManager();
+        final NodeNetworkManager networkManager = new NodeNetworkManager(lookup,
+                new InMemoryExchange().createTransport());
+        networkManager.setNeighborTimeoutMs(NEIGHBOR_TIMEOUT_MS);
+        final NetworkServer node = new NetworkServer(networkManager, new DelegateRegionLookup(), program,
+                new DnsNameIdentifier("restarted"), resMgr, Collections.emptyMap());
+        resMgr.init(node, Collections.emptyMap());
+        node.setSleepTime(SLEEP_TIME_MS);
+        node.setCheckpointFile(file);
+
+        // what a previous run of the node saved
+        final RegionIdentifier region = node.getNetworkState().getRegion();
+        final NetworkState savedState = new NetworkState(region);
+        final RegionPlan plan = new RegionPlan(region,
+                ImmutableMap.of(new StringServiceIdentifier("service"), ImmutableMap.of(region, 1D)));
+        savedState.setRegionPlan(plan);
+        final DeviceUID oldNeighbor = new DnsNameIdentifier("old-neighbor");
+        final Map<CodePath, Object> neighborValues = ImmutableMap
+                .of(new CodePath(new TIntArrayList(new int[] { 1 })), 2D);
+        new NodeCheckpoint(1, 0, savedState, ImmutableMap.of(oldNeighbor, neighborValues), networkManager.getCodec())
+                .write(file);
+
+        try {
+            node.startExecuting();
+            assertThat(node.getNetworkState().getRegionPlan(), is(plan));
+            assertThat(networkManager.getNeighborState().get(oldNeighbor), is(neighborValues));
+
+            final long start = System.currentTimeMillis();
+            while (networkManager.getNeighborState().containsKey(oldNeighbor)
+                    && System.currentTimeMillis() - start < WAIT_TIMEOUT_MS) {
+                Thread.sleep(SLEEP_TIME_MS);
+            }
+            assertFalse(networkManager.getNeighborState().containsKey(oldNeighbor));
+        } finally {
+            node.stopExecuting();
+        }
+
+        final NodeCheckpoint checkpoint = NodeCheckpoint.read(file);
+        assertThat(checkpoint.getRegion(), is(region));
+        assertThat(checkpoint.getNeighborCount(), is(0));
+        assertThat(checkpoint.getExecutionCount(), greaterThan(0L));
+
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    /**
+     * A checkpoint can't be restored into the network state of another
+     * region.
+     *
+     * @throws IOException
+     *             if the checkpoint cannot be created
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testRestoreOtherRegion() throws IOException {
+        final NetworkState savedState = new NetworkState(new StringRegionIdentifier("A"));
+        final NodeCheckpoint checkpoint = new NodeCheckpoint(1, 0, savedState, ImmutableMap.of(),
+                new BinarySharedStateCodec());
+        checkpoint.restoreNetworkState(new NetworkState(new StringRegionIdentifier("B")));
+    }
+
+}
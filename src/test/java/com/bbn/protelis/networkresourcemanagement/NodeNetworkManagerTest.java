@@ -0,0 +1,528 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.vm.ProtelisProgram;
+import org.protelis.vm.util.CodePath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.utils.SimpleClock;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Tests for {@link NodeNetworkManager} and the {@link NeighborTransport}s.
+ */
+public class NodeNetworkManagerTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NodeNetworkManagerTest.class);
+
+    private static final int NUM_NODES = 8;
+    private static final int NUM_ROUNDS = 200;
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final int NUM_CODE_PATHS = 64;
+    private static final CodePath ROUND_PATH = new CodePath(new TIntArrayList(new int[] { 0 }));
+
+    /**
+     * Check that nodes in a ring connect and exchange state using the blocking
+     * socket transport.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connections
+     */
+    @Test
+    public void testSocketTransport() throws InterruptedException {
+        final int basePort = 46000;
+        exchangeState("socket", basePort, SocketNeighborTransport::new);
+    }
+
+    /**
+     * Check that nodes in a ring exchange state when each neighbor is sent to
+     * from the shared send threads.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connections
+     */
+    @Test
+    public void testAsynchronousSend() throws InterruptedException {
+        final int basePort = 47400;
+        exchangeState("asynchronous", basePort, SocketNeighborTransport::new,
+                manager -> manager.setAsynchronousSend(true));
+    }
+
+    /**
+     * Check that nodes in a ring connect and exchange state using the NIO
+     * transport. All nodes share a selector group of 2 threads.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connections
+     */
+    @Test
+    public void testNioTransport() throws InterruptedException {
+        final int basePort = 46100;
+        final NioSelectorGroup group = new NioSelectorGroup(2);
+        try {
+            exchangeState("nio", basePort, () -> new NioNeighborTransport(group));
+        } finally {
+            group.shutdown();
+        }
+    }
+
+    /**
+     * Check that nodes in a ring connect and exchange state without sockets or
+     * serialization.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connections
+     */
+    @Test
+    public void testInMemoryTransport() throws InterruptedException {
+        final int basePort = 46400;
+        exchangeState("in-memory", basePort, new InMemoryExchange());
+    }
+
+    /**
+     * Check that nodes in a ring connect and exchange state through shared
+     * memory rings. All nodes are on localhost, so the fallback transport only
+     * listens.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connections
+     * @throws IOException
+     *             if the directory for the links cannot be created
+     */
+    @Test
+    public void testSharedMemoryTransport() throws InterruptedException, IOException {
+        final int basePort = 46500;
+        final Path directory = Files.createTempDirectory("shm-test");
+        exchangeState("shared-memory", basePort, () -> new SharedMemoryNeighborTransport(
+                new SocketNeighborTransport(), directory, SharedMemoryNeighborTransport.DEFAULT_RING_CAPACITY));
+
+        // nothing left to poll once every transport has stopped
+        final long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (isThreadAlive("shared-memory-neighbor-poller") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        assertTrue("Poller should exit after the transports stop", !isThreadAlive("shared-memory-neighbor-poller"));
+    }
+
+    /**
+     * A listening marker left behind by a JVM that exited without stopping
+     * its transport is deleted and the neighbor is dialed over TCP.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connection
+     * @throws IOException
+     *             if the directory for the links cannot be created
+     */
+    @Test
+    public void testStaleSharedMemoryMarker() throws InterruptedException, IOException {
+        final int basePort = 47600;
+        final Path directory = Files.createTempDirectory("shm-test");
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final BasicResourceManagerFactory resMgrFactory = new BasicResourceManagerFactory(new SimpleClock());
+
+        final List<NetworkServer> nodes = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            // only the dialer uses shared memory
+            final NeighborTransport transport = 0 == i ? new SharedMemoryNeighborTransport(
+                    new SocketNeighborTransport(), directory, SharedMemoryNeighborTransport.DEFAULT_RING_CAPACITY)
+                    : new SocketNeighborTransport();
+            final ResourceManager<NetworkServer> resMgr = resMgrFactory.createResourceManager();
+            final NetworkServer node = new NetworkServer(new NodeNetworkManager(lookup, transport),
+                    new DelegateRegionLookup(), program, new DnsNameIdentifier("node" + i), resMgr,
+                    Collections.emptyMap());
+            resMgr.init(node, Collections.emptyMap());
+            nodes.add(node);
+        }
+        final NetworkServer dialer = nodes.get(0);
+        final NetworkServer listener = nodes.get(1);
+        dialer.addNeighbor(listener, 1);
+
+        // what a crashed listener leaves behind
+        final InetSocketAddress listenerAddress = lookup.getInetAddressForNode(listener.getDeviceUID());
+        final Path listenerDirectory = directory.resolve(
+                listenerAddress.getAddress().getHostAddress().replace(':', '_') + "_" + listenerAddress.getPort());
+        Files.createDirectories(listenerDirectory);
+        final Path marker = Files.createFile(listenerDirectory.resolve("listening"));
+
+        try {
+            nodes.forEach(node -> node.accessNetworkManager().start(node));
+            assertTrue("Dialer should connect over TCP", waitForNeighbors(dialer, 1));
+            assertFalse("Stale marker should be deleted", Files.exists(marker));
+        } finally {
+            nodes.forEach(node -> node.accessNetworkManager().stop());
+        }
+    }
+
+    private static boolean isThreadAlive(final String name) {
+        return Thread.getAllStackTraces().keySet().stream().anyMatch(t -> name.equals(t.getName()) && t.isAlive());
+    }
+
+    /**
+     * A node that starts before its neighbor keeps dialing until the neighbor
+     * is up and dials again after the link is lost.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the connections
+     */
+    @Test
+    public void testRedial() throws InterruptedException {
+        final int basePort = 46200;
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final BasicResourceManagerFactory resMgrFactory = new BasicResourceManagerFactory(new SimpleClock());
+
+        final List<NetworkServer> nodes = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            final ResourceManager<NetworkServer> resMgr = resMgrFactory.createResourceManager();
+            final NetworkServer node = new NetworkServer(new NodeNetworkManager(lookup), new DelegateRegionLookup(),
+                    program, new DnsNameIdentifier("node" + i), resMgr, Collections.emptyMap());
+            resMgr.init(node, Collections.emptyMap());
+            nodes.add(node);
+        }
+        final NetworkServer dialer = nodes.get(0);
+        final NetworkServer listener = nodes.get(1);
+        dialer.addNeighbor(listener, 1);
+
+        try {
+            dialer.accessNetworkManager().start(dialer);
+            Thread.sleep(POLL_INTERVAL_MS * 10);
+            assertThat(dialer.accessNetworkManager().getNeighborState().size(), is(0));
+
+            listener.accessNetworkManager().start(listener);
+            assertTrue("Dialer should connect once the listener is up", waitForNeighbors(dialer, 1));
+            assertThat(dialer.accessNetworkManager().getConnectionManager().getTimeToFullConnectivity(),
+                    greaterThanOrEqualTo(0L));
+
+            listener.accessNetworkManager().stop();
+            assertTrue("Dialer should notice the lost link", waitForNeighbors(dialer, 0));
+
+            listener.accessNetworkManager().start(listener);
+            assertTrue("Dialer should reconnect", waitForNeighbors(dialer, 1));
+        } finally {
+            nodes.forEach(node -> node.accessNetworkManager().stop());
+        }
+    }
+
+    /**
+     * Heartbeats keep an idle link up and a neighbor that goes silent is
+     * evicted.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting
+     */
+    @Test
+    public void testHeartbeatAndEviction() throws InterruptedException {
+        final int basePort = 46300;
+        final long heartbeatMs = 50;
+        final long timeoutMs = 300;
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final BasicResourceManagerFactory resMgrFactory = new BasicResourceManagerFactory(new SimpleClock());
+
+        final List<NetworkServer> nodes = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            final ResourceManager<NetworkServer> resMgr = resMgrFactory.createResourceManager();
+            final NetworkServer node = new NetworkServer(new NodeNetworkManager(lookup), new DelegateRegionLookup(),
+                    program, new DnsNameIdentifier("node" + i), resMgr, Collections.emptyMap());
+            resMgr.init(node, Collections.emptyMap());
+            node.accessNetworkManager().setHeartbeatIntervalMs(heartbeatMs);
+            node.accessNetworkManager().setNeighborTimeoutMs(timeoutMs);
+            nodes.add(node);
+        }
+        final NetworkServer dialer = nodes.get(0);
+        final NetworkServer listener = nodes.get(1);
+        dialer.addNeighbor(listener, 1);
+
+        try {
+            nodes.forEach(node -> node.accessNetworkManager().start(node));
+            assertTrue("Nodes should connect", waitForNeighbors(dialer, 1) && waitForNeighbors(listener, 1));
+
+            // no state is shared, only heartbeats
+            Thread.sleep(timeoutMs * 3);
+            assertThat(dialer.accessNetworkManager().getNeighborState().size(), is(1));
+            assertThat(dialer.accessNetworkManager().getEvictedNeighborCount(), is(0L));
+            assertThat(listener.accessNetworkManager().getEvictedNeighborCount(), is(0L));
+        } finally {
+            nodes.forEach(node -> node.accessNetworkManager().stop());
+        }
+
+        // the listener stops sending heartbeats to links created from now on
+        listener.accessNetworkManager().setHeartbeatIntervalMs(0);
+        try {
+            nodes.forEach(node -> node.accessNetworkManager().start(node));
+            assertTrue("Nodes should connect", waitForNeighbors(dialer, 1));
+
+            final long start = System.currentTimeMillis();
+            while (0 == dialer.accessNetworkManager().getEvictedNeighborCount()
+                    && System.currentTimeMillis() - start < CONNECT_TIMEOUT_MS) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertThat(dialer.accessNetworkManager().getEvictedNeighborCount(), greaterThanOrEqualTo(1L));
+        } finally {
+            nodes.forEach(node -> node.accessNetworkManager().stop());
+        }
+    }
+
+    /**
+     * A neighbor that stops reading does not delay sharing state or the other
+     * neighbors and is disconnected once the write timeout expires.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting
+     * @throws IOException
+     *             if the stuck neighbor cannot connect
+     */
+    @Test
+    public void testStuckNeighbor() throws InterruptedException, IOException {
+        final int basePort = 47500;
+        final long writeTimeoutMs = 500;
+        final int numRounds = 100;
+        // large enough that a few rounds fill the socket buffers
+        final int valueLength = 1024 * 1024;
+        final CodePath bigPath = new CodePath(new TIntArrayList(new int[] { 1 }));
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final BasicResourceManagerFactory resMgrFactory = new BasicResourceManagerFactory(new SimpleClock());
+
+        final List<NetworkServer> nodes = new ArrayList<>();
+        for (int i = 0; i < 2; ++i) {
+            final ResourceManager<NetworkServer> resMgr = resMgrFactory.createResourceManager();
+            final NetworkServer node = new NetworkServer(new NodeNetworkManager(lookup), new DelegateRegionLookup(),
+                    program, new DnsNameIdentifier("node" + i), resMgr, Collections.emptyMap());
+            resMgr.init(node, Collections.emptyMap());
+            nodes.add(node);
+        }
+        final NetworkServer sender = nodes.get(0);
+        final NetworkServer receiver = nodes.get(1);
+        sender.addNeighbor(receiver, 1);
+        final NodeNetworkManager manager = sender.accessNetworkManager();
+        manager.setWriteTimeoutMs(writeTimeoutMs);
+        // only the write timeout may disconnect the stuck neighbor
+        manager.setNeighborTimeoutMs(0);
+
+        final DeviceUID stuckUid = new DnsNameIdentifier("stuck");
+        try (Socket stuck = new Socket()) {
+            nodes.forEach(node -> node.accessNetworkManager().start(node));
+            assertTrue("Nodes should connect", waitForNeighbors(sender, 1));
+
+            // say hello and never read again
+            stuck.connect(lookup.getInetAddressForNode(sender.getDeviceUID()), (int) CONNECT_TIMEOUT_MS);
+            final DataInputStream in = new DataInputStream(stuck.getInputStream());
+            final DataOutputStream out = new DataOutputStream(stuck.getOutputStream());
+            NeighborFrames.readFrame(in);
+            NeighborFrames.writeFrame(out, new NeighborFrames.Hello(stuckUid, 1).encode());
+            assertTrue("Stuck neighbor should connect", waitForNeighbors(sender, 2));
+
+            final char[] chars = new char[valueLength];
+            long slowestShareMs = 0;
+            for (int round = 0; round < numRounds; ++round) {
+                Arrays.fill(chars, (char) round);
+                final Map<CodePath, Object> state = new HashMap<>();
+                state.put(ROUND_PATH, round);
+                state.put(bigPath, new String(chars));
+
+                final long shareStart = System.currentTimeMillis();
+                manager.shareState(state);
+                slowestShareMs = Math.max(slowestShareMs, System.currentTimeMillis() - shareStart);
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+
+            final Integer lastRound = numRounds - 1;
+            final long deliverStart = System.currentTimeMillis();
+            while (!lastRound.equals(receivedRound(receiver, sender))
+                    && System.currentTimeMillis() - deliverStart < CONNECT_TIMEOUT_MS) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertThat(receivedRound(receiver, sender), is(lastRound));
+            assertTrue("Sharing state should not wait for the stuck neighbor: " + slowestShareMs + " ms",
+                    slowestShareMs < writeTimeoutMs);
+
+            assertTrue("Stuck neighbor should be disconnected", waitForNeighbors(sender, 1));
+            assertFalse(manager.getNeighborState().containsKey(stuckUid));
+            assertThat(manager.getEvictedNeighborCount(), is(1L));
+        } finally {
+            nodes.forEach(node -> node.accessNetworkManager().stop());
+        }
+    }
+
+    private static Object receivedRound(final NetworkServer node, final NetworkServer neighbor) {
+        final Map<CodePath, Object> state = node.accessNetworkManager().getNeighborState()
+                .get(neighbor.getDeviceUID());
+        return null == state ? null : state.get(ROUND_PATH);
+    }
+
+    private static boolean waitForNeighbors(final NetworkServer node, final int count) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (node.accessNetworkManager().getNeighborState().size() != count
+                && System.currentTimeMillis() - start < CONNECT_TIMEOUT_MS) {
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return node.accessNetworkManager().getNeighborState().size() == count;
+    }
+
+    /**
+     * Create a ring of nodes, wait for all links to come up, share state for a
+     * number of rounds and log the number of threads started and the number of
+     * rounds per second delivered to the neighbors.
+     */
+    private static void exchangeState(final String name,
+            final int basePort,
+            final NeighborTransportFactory transportFactory) throws InterruptedException {
+        exchangeState(name, basePort, transportFactory, manager -> {
+        });
+    }
+
+    /**
+     * Like {@link #exchangeState(String, int, NeighborTransportFactory)} with
+     * each manager passed to configure before it is started.
+     */
+    private static void exchangeState(final String name,
+            final int basePort,
+            final NeighborTransportFactory transportFactory,
+            final Consumer<NodeNetworkManager> configure) throws InterruptedException {
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final BasicResourceManagerFactory resMgrFactory = new BasicResourceManagerFactory(new SimpleClock());
+
+        final List<NetworkServer> nodes = new ArrayList<>();
+        for (int i = 0; i < NUM_NODES; ++i) {
+            final ResourceManager<NetworkServer> resMgr = resMgrFactory.createResourceManager();
+            final NetworkServer node = new NetworkServer(
+                    new NodeNetworkManager(lookup, transportFactory.createTransport()), new DelegateRegionLookup(),
+                    program, new DnsNameIdentifier("node" + i), resMgr, Collections.emptyMap());
+            resMgr.init(node, Collections.emptyMap());
+            configure.accept(node.accessNetworkManager());
+            nodes.add(node);
+        }
+        for (int i = 0; i < NUM_NODES; ++i) {
+            // only one side dials, the connection manager keeps dialing until
+            // the neighbor is listening
+            final NetworkServer left = nodes.get(i);
+            final NetworkServer right = nodes.get((i + 1) % NUM_NODES);
+            left.addNeighbor(right, 1);
+        }
+
+        final int threadsBefore = Thread.getAllStackTraces().size();
+        try {
+            nodes.forEach(node -> node.accessNetworkManager().start(node));
+
+            final long connectStart = System.currentTimeMillis();
+            while (!allConnected(nodes) && System.currentTimeMillis() - connectStart < CONNECT_TIMEOUT_MS) {
+                nodes.forEach(node -> node.accessNetworkManager().shareState(Collections.emptyMap()));
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertTrue("All nodes should be connected to both ring neighbors", allConnected(nodes));
+
+            final long timeToFullConnectivity = nodes.stream().mapToLong(
+                    node -> node.accessNetworkManager().getConnectionManager().getTimeToFullConnectivity()).max()
+                    .orElse(-1);
+            assertThat(timeToFullConnectivity, greaterThanOrEqualTo(0L));
+
+            final int threads = Thread.getAllStackTraces().size() - threadsBefore;
+
+            // time from sharing the first round until every node has received
+            // the last round from both neighbors
+            final long start = System.nanoTime();
+            for (int round = 0; round < NUM_ROUNDS; ++round) {
+                final Map<CodePath, Object> state = Collections.singletonMap(ROUND_PATH, round);
+                nodes.forEach(node -> node.accessNetworkManager().shareState(state));
+            }
+            final Integer lastRound = NUM_ROUNDS - 1;
+            final long deliverStart = System.currentTimeMillis();
+            while (!allReceived(nodes, lastRound)
+                    && System.currentTimeMillis() - deliverStart < CONNECT_TIMEOUT_MS) {
+                Thread.sleep(1);
+            }
+            final long elapsed = System.nanoTime() - start;
+            assertTrue("All nodes should receive the last round", allReceived(nodes, lastRound));
+            final double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+
+            LOGGER.info("{}: {} nodes, time to full connectivity: {} ms, threads started: {}", name, NUM_NODES,
+                    timeToFullConnectivity, threads);
+            LOGGER.info("{}: {} rounds delivered in {} seconds ({} rounds/second)", name, NUM_ROUNDS, seconds,
+                    NUM_ROUNDS / seconds);
+
+            checkNeighborStateSnapshots(nodes);
+        } finally {
+            nodes.forEach(node -> node.accessNetworkManager().stop());
+        }
+
+        nodes.forEach(node -> assertThat(node.accessNetworkManager().getNeighborState().size(), is(0)));
+    }
+
+    private static boolean allReceived(final List<NetworkServer> nodes, final Object value) {
+        return nodes.stream().allMatch(node -> node.accessNetworkManager().getNeighborState().values().stream()
+                .allMatch(state -> value.equals(state.get(ROUND_PATH))));
+    }
+
+    /**
+     * Reading the neighbor state returns the same snapshot until a neighbor
+     * changes. When one neighbor changes, the state of the other neighbor is
+     * not copied.
+     */
+    private static void checkNeighborStateSnapshots(final List<NetworkServer> nodes) throws InterruptedException {
+        final NodeNetworkManager manager = nodes.get(0).accessNetworkManager();
+        final NetworkServer changing = nodes.get(1);
+        final DeviceUID changingUid = changing.getDeviceUID();
+
+        final Map<DeviceUID, Map<CodePath, Object>> before = manager.getNeighborState();
+        assertSame(before, manager.getNeighborState());
+
+        final Map<CodePath, Object> state = new HashMap<>();
+        for (int i = 0; i < NUM_CODE_PATHS; ++i) {
+            state.put(new CodePath(new TIntArrayList(new int[] { i + 1 })), (double) i);
+        }
+        changing.accessNetworkManager().shareState(state);
+        final long receiveStart = System.currentTimeMillis();
+        while (!state.equals(manager.getNeighborState().get(changingUid))
+                && System.currentTimeMillis() - receiveStart < CONNECT_TIMEOUT_MS) {
+            Thread.sleep(1);
+        }
+
+        final Map<DeviceUID, Map<CodePath, Object>> after = manager.getNeighborState();
+        assertThat(after.get(changingUid), is(state));
+        assertNotSame(before, after);
+        assertSame(after, manager.getNeighborState());
+        before.forEach((uid, neighborState) -> {
+            if (!changingUid.equals(uid)) {
+                assertSame(neighborState, after.get(uid));
+            }
+        });
+    }
+
+    private static boolean allConnected(final List<NetworkServer> nodes) {
+        return nodes.stream().allMatch(node -> node.accessNetworkManager().getNeighborState().size() == 2);
+    }
+
+}
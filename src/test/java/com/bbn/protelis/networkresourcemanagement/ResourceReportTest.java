@@ -0,0 +1,100 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.bbn.protelis.networkresourcemanagement.ResourceReport.EstimationWindow;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Tests for {@link ResourceReport}.
+ */
+public class ResourceReportTest {
+
+    private static final double TOLERANCE = 1E-6;
+
+    /**
+     * The values computed from the container reports are summed across the
+     * containers and are available again after Java serialization.
+     *
+     * @throws IOException
+     *             test failure
+     * @throws ClassNotFoundException
+     *             test failure
+     */
+    @Test
+    public void testContainerAggregates() throws IOException, ClassNotFoundException {
+        final NodeIdentifier nodeName = new DnsNameIdentifier("node");
+        final NodeIdentifier client = new DnsNameIdentifier("client");
+        final NodeIdentifier neighbor = new DnsNameIdentifier("neighbor");
+        final ServiceIdentifier<?> service = new StringServiceIdentifier("service");
+        final double processingTime1 = 2;
+        final double processingTime2 = 4;
+        final double load1 = 10;
+        final double load2 = 30;
+
+        final ContainerIdentifier containerId1 = new DnsNameIdentifier("c1");
+        final ContainerIdentifier containerId2 = new DnsNameIdentifier("c2");
+        final ContainerResourceReport container1 = createContainerReport(containerId1, service, processingTime1, client,
+                neighbor, load1);
+        final ContainerResourceReport container2 = createContainerReport(containerId2, service, processingTime2, client,
+                neighbor, load2);
+
+        final ResourceReport report = new ResourceReport(nodeName, 0, EstimationWindow.SHORT, ImmutableMap.of(),
+                ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of(),
+                ImmutableMap.of(containerId1, container1, containerId2, container2));
+        checkAggregates(report, service, client, neighbor, (processingTime1 + processingTime2) / 2, load1 + load2);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(report);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            final ResourceReport copy = (ResourceReport) in.readObject();
+            checkAggregates(copy, service, client, neighbor, (processingTime1 + processingTime2) / 2,
+                    load1 + load2);
+        }
+    }
+
+    private static ContainerResourceReport createContainerReport(final ContainerIdentifier name,
+            final ServiceIdentifier<?> service,
+            final double processingTime,
+            final NodeIdentifier client,
+            final NodeIdentifier neighbor,
+            final double load) {
+        return new ContainerResourceReport(name, 0, service, EstimationWindow.SHORT,
+                ImmutableMap.of(NodeAttributeEnum.TASK_CONTAINERS, 1D),
+                ImmutableMap.of(client, ImmutableMap.of(NodeAttributeEnum.TASK_CONTAINERS, load)),
+                ImmutableMap.of(client, ImmutableMap.of(NodeAttributeEnum.TASK_CONTAINERS, load)), processingTime,
+                ImmutableMap.of(),
+                ImmutableMap.of(neighbor, ImmutableMap.of(client,
+                        ImmutableMap.of(service, ImmutableMap.of(LinkAttributeEnum.DATARATE, load)))),
+                ImmutableMap.of());
+    }
+
+    private static void checkAggregates(final ResourceReport report,
+            final ServiceIdentifier<?> service,
+            final NodeIdentifier client,
+            final NodeIdentifier neighbor,
+            final double expectedProcessingTime,
+            final double expectedLoad) {
+        Assert.assertEquals(expectedProcessingTime, report.getAverageProcessingTime().get(service), TOLERANCE);
+        Assert.assertEquals(expectedLoad,
+                report.getComputeLoad().get(service).get(client).get(NodeAttributeEnum.TASK_CONTAINERS), TOLERANCE);
+        Assert.assertEquals(expectedLoad,
+                report.getComputeDemand().get(service).get(client).get(NodeAttributeEnum.TASK_CONTAINERS),
+                TOLERANCE);
+        Assert.assertEquals(2, report.getAllocatedComputeCapacity().get(NodeAttributeEnum.TASK_CONTAINERS),
+                TOLERANCE);
+        Assert.assertEquals(expectedLoad, report.getContainerNetworkLoad().get(neighbor).get(client).get(service)
+                .get(LinkAttributeEnum.DATARATE), TOLERANCE);
+        Assert.assertTrue(report.getContainerNetworkDemand().isEmpty());
+    }
+
+}
@@ -5,13 +5,21 @@ import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nonnull;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.protelis.lang.datatype.DatatypeFactory;
 
 import com.bbn.protelis.networkresourcemanagement.ResourceReport.EstimationWindow;
 import com.google.common.collect.ImmutableMap;
@@ -278,6 +286,179 @@ public class ResourceSummaryTest {
 
     }
 
+    /**
+     * Merging summaries as tables gives the same maps as merging the maps,
+     * with keys in one summary, the other or both, and survives Java
+     * serialization. Summaries with empty inner maps keep them.
+     * 
+     * @throws IOException
+     *             test failure
+     * @throws ClassNotFoundException
+     *             test failure
+     */
+    @Test
+    public void testMergeTables() throws IOException, ClassNotFoundException {
+        final RegionIdentifier region = new StringRegionIdentifier("A");
+        final RegionIdentifier regionB = new StringRegionIdentifier("B");
+        final ServiceIdentifier<?> service1 = new StringServiceIdentifier("service1");
+        final ServiceIdentifier<?> service2 = new StringServiceIdentifier("service2");
+        final NodeAttribute<?> attr = NodeAttributeEnum.TASK_CONTAINERS;
+        final LinkAttribute<?> linkAttr = LinkAttributeEnum.DATARATE;
+
+        final ResourceSummary one = new ResourceSummary(region, 1, 2, EstimationWindow.SHORT,
+                ImmutableMap.of(attr, 10D),
+                ImmutableMap.of(service1, ImmutableMap.of(region, ImmutableMap.of(attr, 1D))), ImmutableMap.of(),
+                ImmutableMap.of(service1, 1), ImmutableMap.of(service1, 4D),
+                ImmutableMap.of(regionB, ImmutableMap.of(linkAttr, 5D)),
+                ImmutableMap.of(regionB,
+                        ImmutableMap.of(region, ImmutableMap.of(service1, ImmutableMap.of(linkAttr, 2D)))),
+                ImmutableMap.of());
+        final ResourceSummary two = new ResourceSummary(region, 0, 3, EstimationWindow.SHORT,
+                ImmutableMap.of(attr, 20D),
+                ImmutableMap.of(service1, ImmutableMap.of(region, ImmutableMap.of(attr, 2D)), //
+                        service2, ImmutableMap.of(regionB, ImmutableMap.of(attr, 3D))),
+                ImmutableMap.of(service2, ImmutableMap.of(regionB, ImmutableMap.of(attr, 6D))),
+                ImmutableMap.of(service1, 1), ImmutableMap.of(service1, 2D), ImmutableMap.of(), ImmutableMap.of(),
+                ImmutableMap.of());
+
+        final ResourceSummary merged = ResourceSummary.merge(one, two);
+        Assert.assertEquals(0, merged.getMinTimestamp());
+        Assert.assertEquals(3, merged.getMaxTimestamp());
+        Assert.assertEquals(ImmutableMap.of(attr, 30D), merged.getServerCapacity());
+        Assert.assertEquals(ImmutableMap.of(service1, ImmutableMap.of(region, ImmutableMap.of(attr, 3D)), //
+                service2, ImmutableMap.of(regionB, ImmutableMap.of(attr, 3D))), merged.getServerLoad());
+        Assert.assertEquals(two.getServerDemand(), merged.getServerDemand());
+        Assert.assertEquals(ImmutableMap.of(service1, 2), merged.getServerAverageProcessingTimeCount());
+        Assert.assertEquals(ImmutableMap.of(service1, 3D), merged.getServerAverageProcessingTime());
+        Assert.assertEquals(one.getNetworkCapacity(), merged.getNetworkCapacity());
+        Assert.assertEquals(one.getNetworkLoad(), merged.getNetworkLoad());
+        Assert.assertEquals(ImmutableMap.of(), merged.getNetworkDemand());
+
+        // merging with itself takes the element-wise path
+        final ResourceSummary doubled = ResourceSummary.merge(merged, merged);
+        Assert.assertEquals(ImmutableMap.of(attr, 60D), doubled.getServerCapacity());
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(merged);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            Assert.assertEquals(merged, in.readObject());
+        }
+
+        final ResourceSummary withEmpty = new ResourceSummary(region, 1, 2, EstimationWindow.SHORT,
+                ImmutableMap.of(), ImmutableMap.of(service2, ImmutableMap.of()), ImmutableMap.of(), ImmutableMap.of(),
+                ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of());
+        final ResourceSummary mergedWithEmpty = ResourceSummary.merge(one, withEmpty);
+        Assert.assertEquals(ImmutableMap.of(service1, ImmutableMap.of(region, ImmutableMap.of(attr, 1D)), //
+                service2, ImmutableMap.of()), mergedWithEmpty.getServerLoad());
+
+        // merged summaries compare their tables, a summary built from the
+        // same maps is equal and hashes the same
+        final ResourceSummary mergedAgain = ResourceSummary.merge(one, two);
+        Assert.assertEquals(merged, mergedAgain);
+        Assert.assertEquals(merged.hashCode(), mergedAgain.hashCode());
+        Assert.assertNotEquals(merged, doubled);
+        final ResourceSummary fromMaps = new ResourceSummary(region, 0, 3, EstimationWindow.SHORT,
+                merged.getServerCapacity(), merged.getServerLoad(), merged.getServerDemand(),
+                merged.getServerAverageProcessingTimeCount(), merged.getServerAverageProcessingTimeSum(),
+                merged.getNetworkCapacity(), merged.getNetworkLoad(), merged.getNetworkDemand());
+        Assert.assertEquals(fromMaps, mergedAgain);
+        Assert.assertEquals(fromMaps.hashCode(), mergedAgain.hashCode());
+        Assert.assertEquals(mergedWithEmpty, ResourceSummary.merge(one, withEmpty));
+    }
+
+    /**
+     * Accumulating many summaries gives the same result as folding them
+     * pairwise, also when some can only be merged as maps.
+     */
+    @Test
+    public void testAccumulator() {
+        final RegionIdentifier region = new StringRegionIdentifier("A");
+        final NodeAttribute<?> attr = NodeAttributeEnum.TASK_CONTAINERS;
+        final int numSummaries = 10;
+
+        final List<ResourceSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < numSummaries; ++i) {
+            final ServiceIdentifier<?> service = new StringServiceIdentifier("service" + i % 3);
+            summaries.add(new ResourceSummary(region, i, i, EstimationWindow.LONG, ImmutableMap.of(attr, (double) i),
+                    ImmutableMap.of(service, ImmutableMap.of(region, ImmutableMap.of(attr, (double) i))),
+                    ImmutableMap.of(), ImmutableMap.of(service, 1), ImmutableMap.of(service, (double) i),
+                    ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of()));
+        }
+        // can't be merged as tables
+        summaries.add(new ResourceSummary(region, 0, 0, EstimationWindow.LONG, ImmutableMap.of(),
+                ImmutableMap.of(new StringServiceIdentifier("empty"), ImmutableMap.of()), ImmutableMap.of(),
+                ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of()));
+
+        final ResourceSummary.Accumulator accumulator = new ResourceSummary.Accumulator(region,
+                EstimationWindow.LONG);
+        ResourceSummary expected = summaries.get(0);
+        accumulator.add(expected);
+        for (int i = 1; i < summaries.size(); ++i) {
+            expected = ResourceSummary.merge(expected, summaries.get(i));
+            accumulator.add(summaries.get(i));
+        }
+        Assert.assertEquals(summaries.size(), accumulator.getCount());
+        Assert.assertEquals(expected, accumulator.build());
+
+        final Object[] withNull = summaries.subList(0, numSummaries).toArray(new Object[numSummaries + 1]);
+        final ResourceSummary fromTuple = ResourceSummary.mergeAll(region, EstimationWindow.LONG,
+                DatatypeFactory.createTuple(withNull));
+        Assert.assertEquals(accumulator.build().getServerLoad().get(new StringServiceIdentifier("service1")),
+                fromTuple.getServerLoad().get(new StringServiceIdentifier("service1")));
+
+        Assert.assertEquals(ResourceSummary.getNullSummary(region, EstimationWindow.LONG),
+                new ResourceSummary.Accumulator(region, EstimationWindow.LONG).build());
+    }
+
+    /**
+     * Converting with a {@link RegionIndex} gives the same summary as looking
+     * up every node, only nodes missing from the index are looked up and each
+     * of those only once.
+     */
+    @Test
+    public void testConvertWithIndex() {
+        final NodeIdentifier a0 = new DnsNameIdentifier("a0");
+        final NodeIdentifier a1 = new DnsNameIdentifier("a1");
+        final NodeIdentifier b0 = new DnsNameIdentifier("b0");
+        final NodeIdentifier source = new DnsNameIdentifier("source");
+        final ServiceIdentifier<?> service = new StringServiceIdentifier("service");
+        final RegionIdentifier regionA = new StringRegionIdentifier("A");
+        final RegionIdentifier regionB = new StringRegionIdentifier("B");
+        final RegionIdentifier regionSource = new StringRegionIdentifier("Z");
+
+        final ImmutableMap<NodeIdentifier, ImmutableMap<LinkAttribute<?>, Double>> networkCapacity = ImmutableMap.of(//
+                a1, ImmutableMap.of(LinkAttributeEnum.DATARATE, 100D), //
+                b0, ImmutableMap.of(LinkAttributeEnum.DATARATE, 200D));
+        final ImmutableMap<NodeIdentifier, ImmutableMap<NodeIdentifier, ImmutableMap<ServiceIdentifier<?>, ImmutableMap<LinkAttribute<?>, Double>>>> networkLoad = //
+                ImmutableMap.of(//
+                        b0, //
+                        ImmutableMap.of(source, //
+                                ImmutableMap.of(service, ImmutableMap.of(LinkAttributeEnum.DATARATE, 20D)), //
+                                a1, //
+                                ImmutableMap.of(service, ImmutableMap.of(LinkAttributeEnum.DATARATE, 10D))));
+
+        final ResourceReport report = new ResourceReport(a0, 0, EstimationWindow.SHORT, ImmutableMap.of(),
+                networkCapacity, networkLoad, networkLoad, ImmutableMap.of());
+
+        final TestRegionLookup all = new TestRegionLookup();
+        all.addMapping(a0, regionA);
+        all.addMapping(a1, regionA);
+        all.addMapping(b0, regionB);
+        all.addMapping(source, regionSource);
+
+        // source is not in the index
+        final IndexedRegionLookup indexed = new IndexedRegionLookup(
+                new RegionIndex(0, ImmutableMap.of(a0, regionA, a1, regionA, b0, regionB)));
+        indexed.addMapping(source, regionSource);
+
+        final ResourceSummary expected = ResourceSummary.convertToSummary(report, all);
+        final ResourceSummary actual = ResourceSummary.convertToSummary(report, indexed);
+        Assert.assertEquals(expected, actual);
+        Assert.assertEquals(1, indexed.getLookupCount());
+    }
+
     private static final class TestRegionLookup implements RegionLookupService {
 
         private final Map<NodeIdentifier, RegionIdentifier> data = new HashMap<>();
@@ -293,4 +474,36 @@ public class ResourceSummaryTest {
 
     }
 
+    private static final class IndexedRegionLookup implements RegionLookupService {
+
+        private final RegionIndex index;
+        private final Map<NodeIdentifier, RegionIdentifier> data = new HashMap<>();
+        private int lookupCount = 0;
+
+        IndexedRegionLookup(@Nonnull final RegionIndex index) {
+            this.index = index;
+        }
+
+        public void addMapping(@Nonnull final NodeIdentifier node, @Nonnull final RegionIdentifier region) {
+            data.put(node, region);
+        }
+
+        public int getLookupCount() {
+            return lookupCount;
+        }
+
+        @Override
+        public RegionIdentifier getRegionForNode(final NodeIdentifier nodeId) {
+            ++lookupCount;
+            final RegionIdentifier region = index.getRegionForNode(nodeId);
+            return null == region ? data.get(nodeId) : region;
+        }
+
+        @Override
+        public RegionIndex getRegionIndex() {
+            return index;
+        }
+
+    }
+
 }
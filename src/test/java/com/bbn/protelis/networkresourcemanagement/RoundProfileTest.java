@@ -0,0 +1,101 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.vm.ProtelisProgram;
+
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.utils.SimpleClock;
+import com.bbn.protelis.utils.TimingHistogram;
+
+/**
+ * Tests for {@link RoundProfile}.
+ */
+public class RoundProfileTest {
+
+    private static final int MIN_ROUNDS = 3;
+    private static final long SLEEP_TIME_MS = 1;
+    private static final long WAIT_TIMEOUT_MS = 10000;
+
+    /**
+     * Percentiles are within a factor of 2 of the exact value.
+     */
+    @Test
+    public void testPercentile() {
+        final TimingHistogram histogram = new TimingHistogram();
+        final int numValues = 1000;
+        for (int i = 1; i <= numValues; ++i) {
+            histogram.record(i);
+        }
+        final TimingHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount(), is((long) numValues));
+        assertThat(snapshot.getMax(), is((long) numValues));
+
+        final long exact = (long) (numValues * RoundProfile.Snapshot.P99);
+        assertThat(snapshot.getPercentile(RoundProfile.Snapshot.P99), greaterThanOrEqualTo(exact));
+        assertThat(snapshot.getPercentile(RoundProfile.Snapshot.P99), lessThanOrEqualTo(exact * 2));
+        assertThat(snapshot.getPercentile(0.5), lessThanOrEqualTo((long) numValues));
+    }
+
+    /**
+     * Every round is profiled and the profile is visible through JMX while
+     * the node executes.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the rounds
+     * @throws JMException
+     *             if JMX fails
+     */
+    @Test
+    public void testNetworkServer() throws InterruptedException, JMException {
+        final int basePort = 47100;
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final ResourceManager<NetworkServer> resMgr = new BasicResourceManagerFactory(new SimpleClock())
+                .createResourceManager();
+        final NetworkServer node = new NetworkServer(
+                new NodeNetworkManager(lookup, new InMemoryExchange().createTransport()), new DelegateRegionLookup(),
+                program, new DnsNameIdentifier("profiled"), resMgr, Collections.emptyMap());
+        resMgr.init(node, Collections.emptyMap());
+        node.setSleepTime(SLEEP_TIME_MS);
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(
+                RoundProfile.MBEAN_DOMAIN + ":type=RoundProfile,node=" + ObjectName.quote(node.getName()));
+        try {
+            node.startExecuting();
+            final long start = System.currentTimeMillis();
+            while (node.getExecutionCount() < MIN_ROUNDS && System.currentTimeMillis() - start < WAIT_TIMEOUT_MS) {
+                Thread.sleep(SLEEP_TIME_MS * 10);
+            }
+
+            final RoundProfile.Snapshot snapshot = node.getRoundProfile().snapshot();
+            assertThat(snapshot.getExecutionCount(), greaterThanOrEqualTo((long) MIN_ROUNDS));
+            assertThat(snapshot.getPhase(RoundProfile.Phase.ROUND).getCount(), greaterThan(0L));
+            assertThat(snapshot.getPhase(RoundProfile.Phase.RUN_CYCLE).getCount(), greaterThan(0L));
+            assertThat(snapshot.getPhase(RoundProfile.Phase.SLEEP_OVERRUN).getCount(), greaterThan(0L));
+
+            assertTrue(server.isRegistered(name));
+            assertThat((Long) server.getAttribute(name, "ExecutionCount"), greaterThan(0L));
+        } finally {
+            node.stopExecuting();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+}
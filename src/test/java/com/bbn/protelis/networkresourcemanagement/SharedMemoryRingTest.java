@@ -0,0 +1,108 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SharedMemoryRing}.
+ */
+public class SharedMemoryRingTest {
+
+    private static final int CAPACITY = 16;
+    private static final int TRANSFER_LENGTH = 256 * 1024;
+
+    /**
+     * Bytes come out in order across the end of the data area and writes stop
+     * when the ring is full.
+     */
+    @Test
+    public void testWraparound() {
+        final ByteBuffer memory = ByteBuffer.allocateDirect(SharedMemoryRing.regionLength(CAPACITY));
+        final SharedMemoryRing writer = new SharedMemoryRing(memory, CAPACITY);
+        final SharedMemoryRing reader = new SharedMemoryRing(memory, CAPACITY);
+
+        final byte[] chunk = new byte[CAPACITY - 2];
+        final byte[] received = new byte[chunk.length];
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < chunk.length; ++i) {
+                chunk[i] = (byte) (round * chunk.length + i);
+            }
+            assertThat(writer.write(chunk, 0, chunk.length), is(chunk.length));
+            assertThat(writer.write(chunk, 0, chunk.length), is(2));
+            assertThat(reader.available(), is(CAPACITY));
+
+            assertThat(reader.read(received, 0, received.length), is(received.length));
+            assertArrayEquals(chunk, received);
+            // drop the partial second write
+            assertThat(reader.read(received, 0, received.length), is(2));
+            assertThat(reader.read(received, 0, received.length), is(0));
+        }
+
+        writer.close();
+        assertTrue(reader.isClosed());
+    }
+
+    /**
+     * A writer thread and a reader thread move a long stream through a small
+     * ring, the reader must never see a byte the writer has not finished.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the writer
+     */
+    @Test
+    public void testConcurrentTransfer() throws InterruptedException {
+        final ByteBuffer memory = ByteBuffer.allocateDirect(SharedMemoryRing.regionLength(CAPACITY));
+        final SharedMemoryRing writer = new SharedMemoryRing(memory, CAPACITY);
+        final SharedMemoryRing reader = new SharedMemoryRing(memory, CAPACITY);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread producer = new Thread(() -> {
+            try {
+                final byte[] chunk = new byte[CAPACITY / 2 + 1];
+                int sent = 0;
+                while (sent < TRANSFER_LENGTH) {
+                    final int length = Math.min(chunk.length, TRANSFER_LENGTH - sent);
+                    for (int i = 0; i < length; ++i) {
+                        chunk[i] = (byte) (sent + i);
+                    }
+                    int done = 0;
+                    while (done < length) {
+                        final int count = writer.write(chunk, done, length - done);
+                        if (0 == count) {
+                            // let the reader run on a single core
+                            Thread.yield();
+                        }
+                        done += count;
+                    }
+                    sent += length;
+                }
+            } catch (final RuntimeException e) {
+                failure.set(e);
+            }
+        }, "ring writer");
+        producer.start();
+
+        final byte[] received = new byte[CAPACITY];
+        int expected = 0;
+        while (expected < TRANSFER_LENGTH) {
+            final int count = reader.read(received, 0, received.length);
+            for (int i = 0; i < count; ++i) {
+                assertThat(received[i], is((byte) (expected + i)));
+            }
+            expected += count;
+            if (0 == count) {
+                Thread.yield();
+            }
+        }
+        producer.join();
+        assertThat(failure.get(), is((Throwable) null));
+    }
+
+}
@@ -0,0 +1,147 @@
+package com.bbn.protelis.networkresourcemanagement;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.vm.ProtelisProgram;
+
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+import com.bbn.protelis.utils.SimpleClock;
+import com.bbn.protelis.utils.VirtualClock;
+
+/**
+ * Tests for {@link SharedSchedulerBackend}.
+ */
+public class SharedSchedulerBackendTest {
+
+    private static final int NUM_NODES = 1000;
+    private static final int MIN_ROUNDS = 3;
+    private static final long SLEEP_TIME_MS = 1;
+    private static final long WAIT_TIMEOUT_MS = 10000;
+
+    /**
+     * Many nodes on two threads all execute, the rounds of a node never
+     * overlap and no round runs after stop returns.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the rounds
+     */
+    @Test
+    public void testOrderingAndStop() throws InterruptedException {
+        final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+        try {
+            final SharedSchedulerBackend backend = new SharedSchedulerBackend(executor);
+            final AtomicBoolean overlap = new AtomicBoolean(false);
+            final List<CountingRounds> nodes = new ArrayList<>();
+            final List<ExecutionBackend.Execution> executions = new ArrayList<>();
+            for (int i = 0; i < NUM_NODES; ++i) {
+                final CountingRounds rounds = new CountingRounds(overlap);
+                nodes.add(rounds);
+                executions.add(backend.start("node" + i, rounds));
+            }
+
+            final long start = System.currentTimeMillis();
+            while (nodes.stream().anyMatch(r -> r.count.get() < MIN_ROUNDS)
+                    && System.currentTimeMillis() - start < WAIT_TIMEOUT_MS) {
+                Thread.sleep(SLEEP_TIME_MS * 10);
+            }
+            executions.forEach(ExecutionBackend.Execution::stop);
+
+            for (final CountingRounds rounds : nodes) {
+                assertThat(rounds.count.get(), greaterThanOrEqualTo(MIN_ROUNDS));
+            }
+            assertFalse("Rounds of one node should never overlap", overlap.get());
+            executions.forEach(e -> assertFalse(e.isAlive()));
+
+            final int[] counts = nodes.stream().mapToInt(r -> r.count.get()).toArray();
+            Thread.sleep(SLEEP_TIME_MS * 10);
+            for (int i = 0; i < NUM_NODES; ++i) {
+                assertThat(nodes.get(i).count.get(), is(counts[i]));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A {@link NetworkServer} started on the shared backend executes and stops
+     * like one on its own thread.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the rounds
+     */
+    @Test
+    public void testNetworkServer() throws InterruptedException {
+        final int basePort = 46600;
+        final SharedSchedulerBackend backend = new SharedSchedulerBackend();
+        final InMemoryExchange exchange = new InMemoryExchange();
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final ResourceManager<NetworkServer> resMgr = new BasicResourceManagerFactory(new SimpleClock())
+                .createResourceManager();
+        final NetworkServer node = new NetworkServer(new NodeNetworkManager(lookup, exchange.createTransport()),
+                new DelegateRegionLookup(), program, new DnsNameIdentifier("node"), resMgr, Collections.emptyMap());
+        resMgr.init(node, Collections.emptyMap());
+        node.setSleepTime(SLEEP_TIME_MS);
+        node.setExecutionBackend(backend);
+
+        try {
+            node.startExecuting();
+            assertTrue(node.isExecuting());
+            final long start = System.currentTimeMillis();
+            while (node.getExecutionCount() < MIN_ROUNDS && System.currentTimeMillis() - start < WAIT_TIMEOUT_MS) {
+                Thread.sleep(SLEEP_TIME_MS * 10);
+            }
+            assertThat(node.getExecutionCount(), greaterThanOrEqualTo((long) MIN_ROUNDS));
+        } finally {
+            node.stopExecuting();
+            backend.shutdown();
+        }
+        assertFalse(node.isExecuting());
+    }
+
+    private static final class CountingRounds implements ExecutionBackend.Rounds {
+        private final AtomicInteger count = new AtomicInteger(0);
+        private final AtomicInteger active = new AtomicInteger(0);
+        private final AtomicBoolean overlap;
+        private final VirtualClock clock = new SimpleClock();
+
+        CountingRounds(final AtomicBoolean overlap) {
+            this.overlap = overlap;
+        }
+
+        @Override
+        public boolean runRound() {
+            if (active.incrementAndGet() != 1) {
+                overlap.set(true);
+            }
+            count.incrementAndGet();
+            active.decrementAndGet();
+            return true;
+        }
+
+        @Override
+        public long getSleepTime() {
+            return SLEEP_TIME_MS;
+        }
+
+        @Override
+        public VirtualClock getClock() {
+            return clock;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.bbn.protelis.utils;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.vm.ProtelisProgram;
+
+import com.bbn.protelis.networkresourcemanagement.BasicResourceManagerFactory;
+import com.bbn.protelis.networkresourcemanagement.DelegateRegionLookup;
+import com.bbn.protelis.networkresourcemanagement.DnsNameIdentifier;
+import com.bbn.protelis.networkresourcemanagement.InMemoryExchange;
+import com.bbn.protelis.networkresourcemanagement.NetworkServer;
+import com.bbn.protelis.networkresourcemanagement.NodeNetworkManager;
+import com.bbn.protelis.networkresourcemanagement.ResourceManager;
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+
+/**
+ * Tests for {@link DiscreteEventClock}.
+ */
+public class DiscreteEventClockTest {
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+    private static final long WAIT_TIMEOUT_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 5;
+
+    /**
+     * Participants wake up exactly at their deadlines and time does not move
+     * while a participant is busy.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the threads
+     */
+    @Test
+    public void testParticipants() throws InterruptedException {
+        final DiscreteEventClock clock = new DiscreteEventClock();
+        clock.startClock();
+
+        final long end = 30;
+        final List<Long> missedDeadlines = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = new ArrayList<>();
+        for (final long period : new long[] { 3, 5 }) {
+            final Thread thread = new Thread(() -> {
+                clock.registerParticipant();
+                try {
+                    while (clock.getCurrentTime() < end) {
+                        clock.waitForDuration(period);
+                        final long now = clock.getCurrentTime();
+                        if (now % period != 0) {
+                            missedDeadlines.add(now);
+                        }
+                    }
+                } finally {
+                    clock.deregisterParticipant();
+                }
+            });
+            threads.add(thread);
+        }
+
+        // the test thread is busy, so time stays put
+        clock.registerParticipant();
+        threads.forEach(Thread::start);
+        Thread.sleep(POLL_INTERVAL_MS * 10);
+        assertThat(clock.getCurrentTime(), is(0L));
+
+        clock.deregisterParticipant();
+        for (final Thread thread : threads) {
+            thread.join(WAIT_TIMEOUT_MS);
+        }
+        assertThat(clock.getCurrentTime(), greaterThanOrEqualTo(end));
+        assertThat("Woke up between deadlines", missedDeadlines.isEmpty(), is(true));
+        clock.shutdown();
+    }
+
+    /**
+     * An interrupted wait stops waiting without moving time and the clock
+     * keeps working afterwards.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the thread
+     */
+    @Test
+    public void testInterruptedWait() throws InterruptedException {
+        final DiscreteEventClock clock = new DiscreteEventClock();
+        clock.startClock();
+
+        final List<InterruptedException> interrupts = Collections.synchronizedList(new ArrayList<>());
+        final Thread thread = new Thread(() -> {
+            clock.registerParticipant();
+            try {
+                clock.waitUntilTimeInterruptibly(HOUR_MS);
+            } catch (final InterruptedException e) {
+                interrupts.add(e);
+            } finally {
+                clock.deregisterParticipant();
+            }
+        });
+
+        // the test thread is busy, so the wait can't finish
+        clock.registerParticipant();
+        thread.start();
+        Thread.sleep(POLL_INTERVAL_MS * 10);
+        thread.interrupt();
+        thread.join(WAIT_TIMEOUT_MS);
+        assertThat(interrupts.size(), is(1));
+        assertThat(clock.getCurrentTime(), is(0L));
+
+        clock.waitForDuration(HOUR_MS);
+        assertThat(clock.getCurrentTime(), is(HOUR_MS));
+        clock.deregisterParticipant();
+        clock.shutdown();
+    }
+
+    /**
+     * A thread that is not a participant and waits for an earlier deadline
+     * than the participants does not stop time at its deadline.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the threads
+     */
+    @Test
+    public void testNonParticipantWakesFirst() throws InterruptedException {
+        final DiscreteEventClock clock = new DiscreteEventClock();
+        clock.startClock();
+
+        final long early = 10;
+        final long late = 20;
+        final List<Long> participantWakes = Collections.synchronizedList(new ArrayList<>());
+        final Thread participant = new Thread(() -> {
+            clock.registerParticipant();
+            try {
+                clock.waitUntilTime(late);
+                participantWakes.add(clock.getCurrentTime());
+            } finally {
+                clock.deregisterParticipant();
+            }
+        });
+        final Thread observer = new Thread(() -> clock.waitUntilTime(early));
+
+        // the test thread is busy until both threads are waiting
+        clock.registerParticipant();
+        participant.start();
+        observer.start();
+        Thread.sleep(POLL_INTERVAL_MS * 10);
+        assertThat(clock.getCurrentTime(), is(0L));
+
+        clock.deregisterParticipant();
+        observer.join(WAIT_TIMEOUT_MS);
+        participant.join(WAIT_TIMEOUT_MS);
+        assertThat(observer.isAlive(), is(false));
+        assertThat(participant.isAlive(), is(false));
+        assertThat(participantWakes, is(Collections.singletonList(late)));
+        clock.shutdown();
+    }
+
+    /**
+     * A node that sleeps an hour between rounds runs its rounds without
+     * waiting in real time.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the rounds
+     */
+    @Test
+    public void testNetworkServer() throws InterruptedException {
+        final int basePort = 47000;
+        final int minRounds = 5;
+        final DiscreteEventClock clock = new DiscreteEventClock();
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final ResourceManager<NetworkServer> resMgr = new BasicResourceManagerFactory(clock)
+                .createResourceManager();
+        final NetworkServer node = new NetworkServer(
+                new NodeNetworkManager(lookup, new InMemoryExchange().createTransport()), new DelegateRegionLookup(),
+                program, new DnsNameIdentifier("node"), resMgr, Collections.emptyMap());
+        resMgr.init(node, Collections.emptyMap());
+        node.setSleepTime(HOUR_MS);
+
+        try {
+            final long realStart = System.currentTimeMillis();
+            node.startExecuting();
+            while (node.getExecutionCount() < minRounds
+                    && System.currentTimeMillis() - realStart < WAIT_TIMEOUT_MS) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertThat(node.getExecutionCount(), greaterThanOrEqualTo((long) minRounds));
+            assertThat(System.currentTimeMillis() - realStart, lessThan(WAIT_TIMEOUT_MS));
+            assertThat(node.getCurrentTime().longValue(), greaterThanOrEqualTo(HOUR_MS * (minRounds - 1)));
+        } finally {
+            node.stopExecuting();
+            clock.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.bbn.protelis.utils;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.vm.ProtelisProgram;
+
+import com.bbn.protelis.networkresourcemanagement.BasicResourceManagerFactory;
+import com.bbn.protelis.networkresourcemanagement.DelegateRegionLookup;
+import com.bbn.protelis.networkresourcemanagement.DnsNameIdentifier;
+import com.bbn.protelis.networkresourcemanagement.InMemoryExchange;
+import com.bbn.protelis.networkresourcemanagement.NetworkServer;
+import com.bbn.protelis.networkresourcemanagement.NodeNetworkManager;
+import com.bbn.protelis.networkresourcemanagement.ResourceManager;
+import com.bbn.protelis.networkresourcemanagement.testbed.LocalNodeLookupService;
+
+/**
+ * Tests for {@link ScaledClock}.
+ */
+public class ScaledClockTest {
+
+    private static final double SPEED_UP = 100;
+    private static final long DURATION = 2000;
+    private static final long WAIT_TIMEOUT_MS = 10000;
+    private static final long POLL_INTERVAL_MS = 5;
+
+    /**
+     * Waits take the scaled amount of real time and time doesn't go backwards
+     * across a stop and a start.
+     */
+    @Test
+    public void testWait() {
+        final ScaledClock clock = new ScaledClock(SPEED_UP);
+        clock.startClock();
+
+        final long realStart = System.currentTimeMillis();
+        final long clockStart = clock.getCurrentTime();
+        clock.waitForDuration(DURATION);
+        assertThat(clock.getCurrentTime() - clockStart, greaterThanOrEqualTo(DURATION));
+        assertThat(System.currentTimeMillis() - realStart, lessThan(DURATION));
+
+        clock.stopClock();
+        final long stopped = clock.getCurrentTime();
+        clock.startClock();
+        assertThat(clock.getCurrentTime(), greaterThanOrEqualTo(stopped));
+        clock.shutdown();
+    }
+
+    /**
+     * A node on a sped up clock runs its rounds that much faster.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the rounds
+     */
+    @Test
+    public void testNetworkServer() throws InterruptedException {
+        final int basePort = 46900;
+        final int minRounds = 5;
+        final ScaledClock clock = new ScaledClock(SPEED_UP);
+        final LocalNodeLookupService lookup = new LocalNodeLookupService(basePort);
+        final ProtelisProgram program = ProtelisLoader.parseAnonymousModule("true");
+        final ResourceManager<NetworkServer> resMgr = new BasicResourceManagerFactory(clock)
+                .createResourceManager();
+        final NetworkServer node = new NetworkServer(
+                new NodeNetworkManager(lookup, new InMemoryExchange().createTransport()), new DelegateRegionLookup(),
+                program, new DnsNameIdentifier("node"), resMgr, Collections.emptyMap());
+        resMgr.init(node, Collections.emptyMap());
+        node.setSleepTime(DURATION);
+
+        try {
+            final long realStart = System.currentTimeMillis();
+            node.startExecuting();
+            while (node.getExecutionCount() < minRounds
+                    && System.currentTimeMillis() - realStart < WAIT_TIMEOUT_MS) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+            assertThat(node.getExecutionCount(), greaterThanOrEqualTo((long) minRounds));
+            assertThat(System.currentTimeMillis() - realStart, lessThan(DURATION * (minRounds - 1)));
+            assertThat(node.getCurrentTime().longValue(), greaterThanOrEqualTo(DURATION * (minRounds - 1)));
+        } finally {
+            node.stopExecuting();
+            clock.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.bbn.protelis.utils;
+
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link SimpleClock}.
+ */
+public class SimpleClockTest {
+
+    private static final int NUM_THREADS = 200;
+    private static final long DURATION = 50;
+    private static final long LONG_DURATION = 60 * 1000;
+    private static final long WAIT_TIMEOUT_MS = 10000;
+
+    /**
+     * Many threads waiting on one clock each wake up at their own time and
+     * not before.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the threads
+     */
+    @Test
+    public void testManyWaiters() throws InterruptedException {
+        final SimpleClock clock = new SimpleClock();
+        clock.startClock();
+
+        final AtomicInteger early = new AtomicInteger(0);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NUM_THREADS; ++i) {
+            final long duration = DURATION + i % 10;
+            threads.add(new Thread(() -> {
+                final long start = clock.getCurrentTime();
+                clock.waitForDuration(duration);
+                if (clock.getCurrentTime() - start < duration) {
+                    early.incrementAndGet();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (final Thread thread : threads) {
+            thread.join(WAIT_TIMEOUT_MS);
+            assertFalse(thread.isAlive());
+        }
+        assertThat(early.get(), is(0));
+        clock.shutdown();
+    }
+
+    /**
+     * Stopping the clock wakes up waiting threads and interrupts wake up
+     * interruptible waits, time doesn't go backwards while stopped.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the threads
+     */
+    @Test
+    public void testStopAndInterrupt() throws InterruptedException {
+        final SimpleClock clock = new SimpleClock();
+        clock.startClock();
+
+        final AtomicInteger interrupted = new AtomicInteger(0);
+        final Thread waiter = new Thread(() -> clock.waitForDuration(LONG_DURATION));
+        final Thread interruptible = new Thread(() -> {
+            try {
+                clock.waitUntilTimeInterruptibly(LONG_DURATION);
+            } catch (final InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+        });
+        final long start = System.currentTimeMillis();
+        waiter.start();
+        interruptible.start();
+
+        Thread.sleep(DURATION);
+        interruptible.interrupt();
+        interruptible.join(WAIT_TIMEOUT_MS);
+        assertThat(interrupted.get(), is(1));
+        assertTrue(waiter.isAlive());
+
+        clock.stopClock();
+        waiter.join(WAIT_TIMEOUT_MS);
+        assertFalse(waiter.isAlive());
+        assertThat(System.currentTimeMillis() - start, lessThan(LONG_DURATION));
+
+        final long stopped = clock.getCurrentTime();
+        assertThat(stopped, greaterThanOrEqualTo(DURATION));
+        Thread.sleep(DURATION);
+        assertThat(clock.getCurrentTime(), is(stopped));
+        clock.shutdown();
+    }
+
+    /**
+     * Waiting for the largest time or duration waits until the clock stops
+     * rather than overflowing and returning right away.
+     *
+     * @throws InterruptedException
+     *             if interrupted waiting for the threads
+     */
+    @Test
+    public void testHugeWait() throws InterruptedException {
+        final SimpleClock clock = new SimpleClock();
+        clock.startClock();
+
+        final Thread untilTime = new Thread(() -> clock.waitUntilTime(Long.MAX_VALUE));
+        final Thread forDuration = new Thread(() -> clock.waitForDuration(Long.MAX_VALUE));
+        untilTime.start();
+        forDuration.start();
+
+        Thread.sleep(DURATION);
+        assertTrue(untilTime.isAlive());
+        assertTrue(forDuration.isAlive());
+
+        clock.stopClock();
+        untilTime.join(WAIT_TIMEOUT_MS);
+        forDuration.join(WAIT_TIMEOUT_MS);
+        assertFalse(untilTime.isAlive());
+        assertFalse(forDuration.isAlive());
+        clock.shutdown();
+    }
+
+}
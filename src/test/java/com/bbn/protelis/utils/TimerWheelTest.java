@@ -0,0 +1,144 @@
+package com.bbn.protelis.utils;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimerWheel}.
+ */
+public class TimerWheelTest {
+
+    private static final long TICK = 10;
+    private static final int BUCKETS = 8;
+
+    /**
+     * Tasks run once their deadline has passed and not before, including
+     * deadlines more than one turn of the wheel away.
+     */
+    @Test
+    public void testDeadlines() {
+        final long start = 1000;
+        final TimerWheel wheel = new TimerWheel(TICK, BUCKETS, start);
+        final List<Integer> fired = new ArrayList<>();
+
+        wheel.schedule(() -> fired.add(1), start + 15);
+        wheel.schedule(() -> fired.add(2), start + TICK * BUCKETS * 2 + 5);
+        final TimerWheel.Timeout cancelled = wheel.schedule(() -> fired.add(3), start + 15);
+        cancelled.cancel();
+
+        assertThat(wheel.advance(start + 10), is(0));
+        assertThat(wheel.advance(start + 20), is(1));
+        assertThat(fired.get(0), is(1));
+
+        assertThat(wheel.advance(start + TICK * BUCKETS * 2), is(0));
+        assertThat(wheel.size(), is(1));
+        assertThat(wheel.advance(start + TICK * BUCKETS * 2 + TICK), is(1));
+        assertThat(fired.size(), is(2));
+        assertThat(fired.get(1), is(2));
+        assertThat(wheel.size(), is(0));
+    }
+
+    /**
+     * A task may reschedule itself.
+     */
+    @Test
+    public void testReschedule() {
+        final TimerWheel wheel = new TimerWheel(TICK, BUCKETS, 0);
+        final List<Long> fired = new ArrayList<>();
+        final Runnable[] task = new Runnable[1];
+        task[0] = () -> {
+            fired.add((long) fired.size());
+            wheel.schedule(task[0], (fired.size() + 1) * TICK * 3);
+        };
+        wheel.schedule(task[0], TICK * 3);
+
+        for (long now = 0; now <= TICK * 100; now += TICK) {
+            wheel.advance(now);
+        }
+        assertThat(fired.size(), is(33));
+    }
+
+    /**
+     * With several levels every task still runs at the first advance after its
+     * deadline, including deadlines beyond a turn of the top level.
+     */
+    @Test
+    public void testLevels() {
+        final int levels = 3;
+        final long horizon = TICK * BUCKETS * BUCKETS * BUCKETS * 2;
+        final TimerWheel wheel = new TimerWheel(TICK, BUCKETS, levels, 0);
+        final Random random = new Random(0);
+        final int numTasks = 500;
+        final long[] deadlines = new long[numTasks];
+        final long[] firedAt = new long[numTasks];
+        final long[] now = new long[1];
+        for (int i = 0; i < numTasks; ++i) {
+            final int task = i;
+            deadlines[i] = (long) (random.nextDouble() * horizon);
+            wheel.schedule(() -> firedAt[task] = now[0], deadlines[i]);
+        }
+
+        for (now[0] = 0; now[0] <= horizon + TICK; now[0] += TICK) {
+            wheel.advance(now[0]);
+        }
+        assertThat(wheel.size(), is(0));
+        for (int i = 0; i < numTasks; ++i) {
+            final long expected = (deadlines[i] + TICK - 1) / TICK * TICK;
+            assertThat(firedAt[i], is(expected));
+        }
+    }
+
+    /**
+     * An owner that only advances the wheel at {@link TimerWheel#nextDeadline()}
+     * runs every task at its deadline, for one level and for several levels.
+     */
+    @Test
+    public void testNextDeadline() {
+        checkNextDeadline(new TimerWheel(TICK, BUCKETS, 1, 0));
+        checkNextDeadline(new TimerWheel(TICK, BUCKETS, 3, 0));
+    }
+
+    private static void checkNextDeadline(final TimerWheel wheel) {
+        assertThat(wheel.nextDeadline(), is(Long.MAX_VALUE));
+
+        final long horizon = TICK * BUCKETS * BUCKETS * BUCKETS * 2;
+        final Random random = new Random(0);
+        final int numTasks = 200;
+        final long[] deadlines = new long[numTasks];
+        final long[] firedAt = new long[numTasks];
+        final long[] now = new long[1];
+        for (int i = 0; i < numTasks; ++i) {
+            final int task = i;
+            deadlines[i] = (long) (random.nextDouble() * horizon);
+            final TimerWheel.Timeout timeout = wheel.schedule(() -> firedAt[task] = now[0], deadlines[i]);
+            if (0 == i % 10) {
+                // cancelled tasks don't cause wakeups
+                timeout.cancel();
+                firedAt[task] = -1;
+            }
+        }
+
+        int wakeups = 0;
+        long next;
+        while (Long.MAX_VALUE != (next = wheel.nextDeadline())) {
+            assertThat(next >= now[0], is(true));
+            now[0] = next;
+            wheel.advance(now[0]);
+            ++wakeups;
+        }
+        for (int i = 0; i < numTasks; ++i) {
+            final long expected = 0 == i % 10 ? -1 : (deadlines[i] + TICK - 1) / TICK * TICK;
+            assertThat(firedAt[i], is(expected));
+        }
+        // one wakeup per task plus the moves between levels, far fewer than
+        // one per tick
+        assertThat(wakeups < horizon / TICK / 2, is(true));
+    }
+
+}